@@ -0,0 +1,101 @@
+package benchmark;
+
+import database.*;
+
+import java.io.*;
+
+/**
+ * CatalogLoadBenchmark class
+ *
+ * Measures how long a database with a large item catalog takes to save a snapshot and to load
+ * it again, with the items serialized into the data file and with the items in the memory-mapped
+ * item store. Also reports the size of the files each snapshot needs.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public class CatalogLoadBenchmark {
+    private static final int DEFAULT_ITEMS = 100000;
+    private static final int SELLERS = 1000; // Sellers the items are spread over
+
+    /**
+     * Main method to run the benchmark
+     * @param args Command-line arguments: [items]
+     */
+    public static void main(String[] args) throws Exception {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITEMS;
+
+        System.out.println("Catalog load benchmark: " + items + " items");
+        run(false, Math.min(items, 10000)); // Warm up
+        run(true, Math.min(items, 10000));
+        System.out.printf("%-11s %12s %10s %10s%n", "item store", "bytes", "save ms", "load ms");
+        System.out.println(run(false, items));
+        System.out.println(run(true, items));
+    }
+
+    /**
+     * Fills a fresh database and saves a snapshot of it
+     * @param dataFile Data file of the database
+     * @param mapped True to keep the items in the mapped item store
+     * @param items Number of items listed
+     * @return Nanoseconds taken by the snapshot
+     */
+    private static long save(File dataFile, boolean mapped, int items) {
+        Database database = new Database(dataFile.getPath(), true);
+        if (mapped) {
+            database.enableMappedItemStore();
+        }
+        database.loadFromDisk();
+        for (int s = 0; s < SELLERS; s++) {
+            database.addUser(new User("seller" + s, "pw"));
+        }
+        for (int i = 0; i < items; i++) {
+            database.addItem(new Item("Item " + i, "Benchmark item number " + i, 1.0 + i % 100,
+                                      "seller" + (i % SELLERS)));
+        }
+        long started = System.nanoTime();
+        database.checkpoint();
+        long saved = System.nanoTime() - started;
+        database.close();
+        return saved;
+    }
+
+    /**
+     * Fills a fresh database, saves it and loads it again
+     * @param mapped True to keep the items in the mapped item store
+     * @param items Number of items listed
+     * @return Report line with the file size and the save and load times
+     */
+    private static String run(boolean mapped, int items) throws Exception {
+        File dataFile = File.createTempFile("catalog_benchmark", ".ser");
+        dataFile.delete();
+        String base = dataFile.getPath().replaceFirst("\\.ser$", "");
+        File journalFile = new File(base + ".journal");
+        File storeFile = new File(base + ".items");
+        PrintStream out = System.out;
+        // Saving and loading log a line each; keep that out of the measurement
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long saved = save(dataFile, mapped, items);
+            long bytes = dataFile.length() + storeFile.length();
+            System.gc(); // The saved database is garbage now; do not make the load pay for collecting it
+
+            long started = System.nanoTime();
+            Database loaded = new Database(dataFile.getPath(), true);
+            loaded.loadFromDisk();
+            long load = System.nanoTime() - started;
+            boolean complete = loaded.getItemsBySeller("seller0").size() == (items + SELLERS - 1) / SELLERS;
+            loaded.close();
+
+            return String.format("%-11s %12d %10.0f %10.0f%s", mapped ? "mapped" : "serialized", bytes,
+                       saved / 1e6, load / 1e6, complete ? "" : "  (items missing after load)");
+        } finally {
+            System.setOut(out);
+            dataFile.delete();
+            journalFile.delete();
+            storeFile.delete();
+        }
+    }
+}
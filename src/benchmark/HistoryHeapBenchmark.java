@@ -0,0 +1,118 @@
+package benchmark;
+
+import database.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HistoryHeapBenchmark class
+ *
+ * Measures the heap a loaded database spends on its message and transaction history. A snapshot
+ * is generated in which every message and transaction has its own copy of each username, as
+ * snapshots written by earlier versions do, and loaded into a database. The report gives the heap
+ * per history entry, how many distinct username strings the loaded history refers to, and the
+ * size of the snapshot before and after the database saves it again.
+ * Heap use is measured as the difference in used memory after a full collection.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public class HistoryHeapBenchmark {
+    private static final int DEFAULT_MESSAGES = 1000000;
+    private static final int USERS = 1000; // Users the history is spread over
+    private static final int TRANSACTIONS_PER_MESSAGES = 4; // One transaction per this many messages
+
+    /**
+     * Main method to run the benchmark
+     * @param args Command-line arguments: [messages]
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+        int transactions = messages / TRANSACTIONS_PER_MESSAGES;
+
+        File dataFile = File.createTempFile("history_benchmark", ".ser");
+        PrintStream out = System.out;
+        try {
+            generate(dataFile, messages, transactions);
+            long generatedBytes = dataFile.length();
+
+            // Loading and saving log a line each; keep that out of the report
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long before = usedMemory();
+            Database database = new Database(dataFile.getPath(), false);
+            database.loadFromDisk();
+            long bytes = usedMemory() - before;
+            int usernames = distinctUsernames(database);
+            database.saveToDisk();
+            System.setOut(out);
+
+            System.out.println("History heap benchmark: " + messages + " messages, " + transactions +
+                               " transactions, " + USERS + " users");
+            System.out.printf("%-32s %14d%n", "heap bytes per history entry", bytes / (messages + transactions));
+            System.out.printf("%-32s %14d%n", "distinct username strings", usernames);
+            System.out.printf("%-32s %14d%n", "snapshot bytes as generated", generatedBytes);
+            System.out.printf("%-32s %14d%n", "snapshot bytes as saved", dataFile.length());
+        } finally {
+            System.setOut(out);
+            dataFile.delete();
+        }
+    }
+
+    /**
+     * Writes a snapshot whose messages and transactions each carry their own username strings
+     */
+    private static void generate(File dataFile, int messages, int transactions) throws IOException {
+        Map<String, User> users = new HashMap<>();
+        for (int u = 0; u < USERS; u++) {
+            users.put("user" + u, new User("user" + u, "pw"));
+        }
+        Random random = new Random(1);
+        List<Message> messageList = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            // new String() gives every message its own copies, as separately received requests would
+            messageList.add(new Message(new String("user" + random.nextInt(USERS)),
+                                        new String("user" + random.nextInt(USERS)), "Message " + i, i % 100));
+        }
+        List<Transaction> transactionList = new ArrayList<>(transactions);
+        for (int i = 0; i < transactions; i++) {
+            transactionList.add(new Transaction(i + 1, i, 5.0, new String("user" + random.nextInt(USERS)),
+                                                new String("user" + random.nextInt(USERS))));
+        }
+        DatabaseData data = new DatabaseData(users, new HashMap<>(), messageList, transactionList, 1);
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile)))) {
+            oos.writeObject(data);
+        }
+    }
+
+    /**
+     * Counts the distinct String objects naming users in the loaded history
+     */
+    private static int distinctUsernames(Database database) {
+        Set<String> strings = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int u = 0; u < USERS; u++) {
+            for (Message message : database.getMessagesForUser("user" + u)) {
+                strings.add(message.getSender());
+                strings.add(message.getRecipient());
+            }
+            for (Transaction transaction : database.getTransactionsForUser("user" + u)) {
+                strings.add(transaction.getBuyer());
+                strings.add(transaction.getSeller());
+            }
+        }
+        return strings.size();
+    }
+
+    /**
+     * Returns the heap in use after collecting garbage
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,187 @@
+package benchmark;
+
+import database.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * IntMapBenchmark class
+ *
+ * Compares the int-keyed IntObjectMap and IntHashSet with the boxed collections they replace:
+ * the item table (a ConcurrentHashMap, or a HashMap) and the search index posting lists (a HashSet).
+ * For each size it reports the heap taken per entry and the lookups per second of random present
+ * keys from one thread. Keys are consecutive, like item IDs.
+ * Heap use is measured as the difference in used memory after a full collection, so run it with
+ * a heap large enough for the biggest size, for example -Xmx4g for 10 million entries.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public class IntMapBenchmark {
+    private static final int[] DEFAULT_SIZES = {1000000, 10000000};
+    private static final int LOOKUPS = 10000000; // Lookups per measurement
+    private static final int ROUNDS = 5; // Measurements per collection; the best is reported
+    private static final Object VALUE = new Object(); // Shared by every entry, so only the collections are measured
+
+    /**
+     * Collections compared
+     */
+    private enum Kind {
+        HASH_MAP("HashMap"),
+        CONCURRENT_HASH_MAP("ConcurrentHashMap"),
+        INT_OBJECT_MAP("IntObjectMap"),
+        HASH_SET("HashSet"),
+        INT_HASH_SET("IntHashSet");
+
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Main method to run the benchmark
+     * @param args Command-line arguments: [entries ...]
+     */
+    public static void main(String[] args) {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("Int map benchmark: " + LOOKUPS + " random lookups per measurement, best of " + ROUNDS);
+        for (Kind kind : Kind.values()) {
+            run(kind, 100000); // Warm up
+        }
+        System.out.printf("%-18s %10s %12s %14s%n", "collection", "entries", "bytes/entry", "lookups/s");
+        for (int size : sizes) {
+            for (Kind kind : Kind.values()) {
+                System.out.println(run(kind, size));
+            }
+        }
+    }
+
+    /**
+     * Fills one collection and measures it
+     * @param kind Collection to measure
+     * @param size Number of entries
+     * @return Report line with the heap per entry and the lookup throughput
+     */
+    private static String run(Kind kind, int size) {
+        long before = usedMemory();
+        Object collection = fill(kind, size);
+        long bytes = usedMemory() - before;
+
+        IntPredicate lookup = lookup(kind, collection);
+        int[] keys = new int[LOOKUPS];
+        Random random = new Random(size);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = 1 + random.nextInt(size);
+        }
+        long best = Long.MAX_VALUE;
+        int found = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            found = 0;
+            long started = System.nanoTime();
+            for (int key : keys) {
+                if (lookup.test(key)) {
+                    found++;
+                }
+            }
+            best = Math.min(best, System.nanoTime() - started);
+        }
+        if (found != keys.length) {
+            throw new IllegalStateException(kind.label + " lost entries");
+        }
+        return String.format("%-18s %10d %12.1f %14.0f", kind.label, size, (double) bytes / size,
+                             LOOKUPS / (best / 1e9));
+    }
+
+    /**
+     * Returns a collection of the given kind holding the keys 1 to size
+     */
+    private static Object fill(Kind kind, int size) {
+        switch (kind) {
+            case HASH_MAP: {
+                Map<Integer, Object> map = new HashMap<>();
+                for (int key = 1; key <= size; key++) {
+                    map.put(key, VALUE);
+                }
+                return map;
+            }
+            case CONCURRENT_HASH_MAP: {
+                Map<Integer, Object> map = new ConcurrentHashMap<>();
+                for (int key = 1; key <= size; key++) {
+                    map.put(key, VALUE);
+                }
+                return map;
+            }
+            case INT_OBJECT_MAP: {
+                IntObjectMap<Object> map = new IntObjectMap<>();
+                for (int key = 1; key <= size; key++) {
+                    map.put(key, VALUE);
+                }
+                return map;
+            }
+            case HASH_SET: {
+                Set<Integer> set = new HashSet<>();
+                for (int key = 1; key <= size; key++) {
+                    set.add(key);
+                }
+                return set;
+            }
+            default: {
+                IntHashSet set = new IntHashSet();
+                for (int key = 1; key <= size; key++) {
+                    set.add(key);
+                }
+                return set;
+            }
+        }
+    }
+
+    /**
+     * Returns the lookup of a key in a collection made by fill
+     */
+    @SuppressWarnings("unchecked")
+    private static IntPredicate lookup(Kind kind, Object collection) {
+        switch (kind) {
+            case HASH_MAP:
+            case CONCURRENT_HASH_MAP: {
+                Map<Integer, Object> map = (Map<Integer, Object>) collection;
+                return key -> map.get(key) != null;
+            }
+            case INT_OBJECT_MAP: {
+                IntObjectMap<Object> map = (IntObjectMap<Object>) collection;
+                return key -> map.get(key) != null;
+            }
+            case HASH_SET: {
+                Set<Integer> set = (Set<Integer>) collection;
+                return set::contains;
+            }
+            default: {
+                IntHashSet set = (IntHashSet) collection;
+                return set::contains;
+            }
+        }
+    }
+
+    /**
+     * Returns the heap in use after collecting garbage
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,174 @@
+package benchmark;
+
+import database.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PurchaseBenchmark class
+ *
+ * Measures how many purchases per second PaymentProcessor completes when many threads buy at once,
+ * and checks afterwards that no item was sold twice and no money was created or lost.
+ * Each scenario is run with the per-entity locking purchase path and, for comparison, with every
+ * purchase serialized behind one global lock.
+ *
+ * Scenarios:
+ * - independent: each thread buys from its own seller, so no two purchases share a lock
+ * - shared seller: every thread buys from the same seller, whose lock all purchases take
+ * - same items: every thread tries to buy the same items, so most purchases are refused
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public class PurchaseBenchmark {
+    private static final int DEFAULT_PURCHASES_PER_THREAD = 2000;
+    private static final double PRICE = 1.0; // Price of every item
+
+    /**
+     * How the threads of a scenario pick what to buy
+     */
+    private enum Scenario {
+        INDEPENDENT("independent"),
+        SHARED_SELLER("shared seller"),
+        SAME_ITEMS("same items");
+
+        private final String label;
+
+        Scenario(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Main method to run the benchmark
+     * @param args Command-line arguments: [threads] [purchases per thread]
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+        int purchases = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PURCHASES_PER_THREAD;
+
+        System.out.println("Purchase benchmark: " + threads + " threads, " + purchases + " purchases per thread");
+        run(Scenario.INDEPENDENT, threads, purchases, false); // Warm up
+        System.out.printf("%-15s %-11s %12s %8s  %s%n", "scenario", "locking", "purchases/s", "sold", "consistent");
+        for (Scenario scenario : Scenario.values()) {
+            for (boolean serialized : new boolean[] {false, true}) {
+                System.out.println(run(scenario, threads, purchases, serialized));
+            }
+        }
+    }
+
+    /**
+     * Runs one scenario on a fresh database
+     * @param scenario What the threads buy
+     * @param threads Number of buying threads
+     * @param purchases Purchases each thread attempts
+     * @param serialized True to hold one global lock around every purchase
+     * @return Report line with the throughput and whether the result is consistent
+     */
+    private static String run(Scenario scenario, int threads, int purchases, boolean serialized) throws Exception {
+        File dataFile = File.createTempFile("purchase_benchmark", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        PrintStream out = System.out;
+        // The purchase path logs every transaction; keep that out of the measurement
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Database database = new Database(dataFile.getPath(), true);
+            database.loadFromDisk();
+            PaymentProcessor processor = new PaymentProcessor(database);
+            Object globalLock = new Object();
+
+            // Buyers can afford everything they try to buy; sellers list enough for every attempt
+            int sellers = (scenario == Scenario.INDEPENDENT) ? threads : 1;
+            int itemsPerSeller = (scenario == Scenario.SAME_ITEMS) ? purchases : purchases * threads / sellers;
+            int[][] itemIds = new int[sellers][itemsPerSeller];
+            for (int s = 0; s < sellers; s++) {
+                database.addUser(new User("seller" + s, "pw"));
+                for (int i = 0; i < itemsPerSeller; i++) {
+                    Item item = new Item("Item " + i, "Benchmark item", PRICE, "seller" + s);
+                    database.addItem(item);
+                    itemIds[s][i] = item.getId();
+                }
+            }
+            for (int t = 0; t < threads; t++) {
+                User buyer = new User("buyer" + t, "pw");
+                buyer.setBalance(purchases * PRICE);
+                database.addUser(buyer);
+            }
+            double moneyBefore = totalBalance(database, sellers, threads);
+
+            AtomicInteger sold = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    String buyer = "buyer" + thread;
+                    int seller = (scenario == Scenario.INDEPENDENT) ? thread : 0;
+                    for (int i = 0; i < purchases; i++) {
+                        int item = (scenario == Scenario.SHARED_SELLER) ? itemIds[0][thread * purchases + i] :
+                                                                          itemIds[seller][i];
+                        TransactionResult result;
+                        if (serialized) {
+                            synchronized (globalLock) {
+                                result = processor.processPayment(buyer, "seller" + seller, item);
+                            }
+                        } else {
+                            result = processor.processPayment(buyer, "seller" + seller, item);
+                        }
+                        if (result.isSuccess()) {
+                            sold.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            long started = System.nanoTime();
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - started;
+            pool.shutdown();
+
+            int soldItems = 0;
+            for (int[] sellerItems : itemIds) {
+                for (int id : sellerItems) {
+                    soldItems += database.getItemById(id).isSold() ? 1 : 0;
+                }
+            }
+            boolean consistent = soldItems == sold.get() &&
+                                 Math.abs(totalBalance(database, sellers, threads) - moneyBefore) < 1e-6;
+            database.close();
+
+            double perSecond = (double) threads * purchases / (elapsed / 1e9);
+            return String.format("%-15s %-11s %12.0f %8d  %s", scenario.label, serialized ? "global" : "per-entity",
+                       perSecond, sold.get(), consistent ? "yes" : "NO");
+        } finally {
+            System.setOut(out);
+            dataFile.delete();
+            journalFile.delete();
+        }
+    }
+
+    /**
+     * Returns the sum of every buyer's and seller's balance
+     */
+    private static double totalBalance(Database database, int sellers, int buyers) {
+        double total = 0;
+        for (int s = 0; s < sellers; s++) {
+            total += database.getUserByUsername("seller" + s).getBalance();
+        }
+        for (int t = 0; t < buyers; t++) {
+            total += database.getUserByUsername("buyer" + t).getBalance();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,308 @@
+package client;
+import database.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * AsyncMarketplaceClient class
+ *
+ * Asynchronous API over the connection of a MarketplaceClient. Every operation returns a
+ * CompletableFuture at once, so callers such as Swing event handlers never wait on the network.
+ * Futures complete with the server's reply, or exceptionally with an IOException if the
+ * connection fails and a TimeoutException if no reply arrives within the timeout.
+ * Dependent stages run on the client's executor; with an older server that only speaks object
+ * streams, the blocking calls run there as well. Reads go to the client's read replica under the
+ * same rules as MarketplaceClient's own calls, the replica being asked on the executor.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public class AsyncMarketplaceClient implements AsyncMarketplaceClientInterface {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    // Used when no executor is given; daemon threads so the client never keeps the program running
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "marketplace-client-async");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MarketplaceClient client;
+    private final long timeoutMillis;
+    private final Executor executor;
+
+    /**
+     * Constructor with the default timeout and executor
+     * @param client Client whose connection is used
+     */
+    public AsyncMarketplaceClient(MarketplaceClient client) {
+        this(client, DEFAULT_TIMEOUT_MILLIS, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * Constructor for AsyncMarketplaceClient
+     * @param client Client whose connection is used
+     * @param timeoutMillis Time each operation may take before its future fails
+     * @param executor Runs dependent stages and, with object streams, the blocking calls
+     */
+    public AsyncMarketplaceClient(MarketplaceClient client, long timeoutMillis, Executor executor) {
+        this.client = client;
+        this.timeoutMillis = timeoutMillis;
+        this.executor = executor;
+    }
+
+    /**
+     * Sends a command and converts the reply to the expected type
+     * @param command The command name
+     * @param arguments The command's arguments
+     * @return Future completed with the reply
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> send(String command, Object... arguments) {
+        if (!client.isConnected()) {
+            return CompletableFuture.failedFuture(new IOException("Not connected"));
+        }
+        CompletableFuture<Object> reply;
+        if (client.mayReadFromReplica(command)) {
+            // The replica is called blocking, so ask it on the executor and fall back to the primary
+            reply = CompletableFuture.supplyAsync(() -> client.readFromReplica(command, arguments), executor)
+                                     .thenCompose(value -> (value != null) ? CompletableFuture.completedFuture(value)
+                                                                           : client.submit(command, arguments));
+        } else if (client.isUsingBinaryProtocol()) {
+            reply = client.submit(command, arguments);
+        } else {
+            // Object streams block until the reply arrives, so wait on the executor instead of the caller
+            reply = CompletableFuture.supplyAsync(() -> client.submit(command, arguments), executor)
+                                     .thenCompose(future -> future);
+        }
+        return reply.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .thenApplyAsync(value -> (T) value, executor);
+    }
+
+    /**
+     * Login to the marketplace with credentials
+     * @param username Username to login with
+     * @param password Password for the user
+     * @return Future TransactionResult indicating success/failure of login attempt
+     */
+    @Override
+    public CompletableFuture<TransactionResult> login(String username, String password) {
+        return this.<TransactionResult>send("LOGIN", username, password).thenApply(result -> {
+            if (result.isSuccess()) {
+                client.setLoggedInUser(username, password);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Register a new user in the marketplace
+     * @param username Username for new account
+     * @param password Password for new account
+     * @return Future TransactionResult indicating success/failure of registration
+     */
+    @Override
+    public CompletableFuture<TransactionResult> register(String username, String password) {
+        return send("REGISTER", username, password);
+    }
+
+    /**
+     * Logout current user from the marketplace
+     * @return Future TransactionResult indicating success/failure of logout
+     */
+    @Override
+    public CompletableFuture<TransactionResult> logout() {
+        return this.<TransactionResult>send("LOGOUT").thenApply(result -> {
+            if (result.isSuccess()) {
+                client.setLoggedInUser(null, null);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Add an item to the marketplace for sale
+     * @param title Item title
+     * @param description Item description
+     * @param price Item price
+     * @return Future TransactionResult indicating success/failure and the new item ID
+     */
+    @Override
+    public CompletableFuture<TransactionResult> addItem(String title, String description, double price) {
+        return send("ADD_ITEM", title, description, price);
+    }
+
+    /**
+     * Search for items in the marketplace by keyword
+     * @param query Search keyword
+     * @return Future list of matching items
+     */
+    @Override
+    public CompletableFuture<List<Item>> searchItems(String query) {
+        return send("SEARCH_ITEMS", query);
+    }
+
+    /**
+     * Search for items in the marketplace one page at a time
+     * Only what changed since the version cached by the underlying client is sent again.
+     * @param query Search keyword, empty for every item for sale
+     * @param order Order of the results
+     * @param pageToken Token of the previous page, null for the first page
+     * @param pageSize Most items on the page; the server caps this at its page size
+     * @return Future page of matching items
+     */
+    @Override
+    public CompletableFuture<SearchPage> searchItems(String query, SearchPage.Order order, String pageToken, int pageSize) {
+        ItemCache itemCache = client.getItemCache();
+        String key = ItemCache.pageKey(query, order, pageToken, pageSize);
+        return this.<SearchPage>send("SEARCH_ITEMS_PAGE", query, order.name(), pageToken, pageSize,
+                                     itemCache.knownVersion(key)).thenCompose(reply -> {
+            SearchPage page = itemCache.resolve(key, reply);
+            if (page != null) {
+                return CompletableFuture.completedFuture(page);
+            }
+            // Evicted since the request was sent; ask for everything
+            return this.<SearchPage>send("SEARCH_ITEMS_PAGE", query, order.name(), pageToken, pageSize, 0L)
+                       .thenApply(fullReply -> itemCache.resolve(key, fullReply));
+        });
+    }
+
+    /**
+     * Purchase an item from the marketplace
+     * @param itemId ID of the item to buy
+     * @return Future TransactionResult indicating success/failure of purchase
+     */
+    @Override
+    public CompletableFuture<TransactionResult> buyItem(int itemId) {
+        return send("BUY_ITEM", itemId);
+    }
+
+    /**
+     * Retrieve items listed by the current logged-in user
+     * @return Future list of user's items
+     */
+    @Override
+    public CompletableFuture<List<Item>> getUserItems() {
+        return send("GET_USER_ITEMS");
+    }
+
+    /**
+     * Send a message to another user regarding an item
+     * @param recipient Username of message recipient
+     * @param content Message text content
+     * @param itemId ID of item the message is about (0 for general messages)
+     * @return Future TransactionResult indicating success/failure of message sending
+     */
+    @Override
+    public CompletableFuture<TransactionResult> sendMessage(String recipient, String content, int itemId) {
+        return send("SEND_MESSAGE", recipient, content, itemId);
+    }
+
+    /**
+     * Get all messages for the current logged-in user
+     * @return Future list of messages
+     */
+    @Override
+    public CompletableFuture<List<Message>> getMessages() {
+        return send("GET_MESSAGES");
+    }
+
+    /**
+     * Get transaction history for the current logged-in user
+     * @return Future list of transactions
+     */
+    @Override
+    public CompletableFuture<List<Transaction>> getTransactions() {
+        return send("GET_TRANSACTIONS");
+    }
+
+    /**
+     * Get the messages of the current logged-in user stored after a given sequence number
+     * @param afterSequence Sequence number of the last message already seen, 0 for the oldest
+     * @param limit Most messages to return; the server caps this at its page size
+     * @return Future list of messages, oldest first
+     */
+    @Override
+    public CompletableFuture<List<Message>> getMessagesSince(long afterSequence, int limit) {
+        return send("GET_MESSAGES_SINCE", afterSequence, limit);
+    }
+
+    /**
+     * Get the transactions of the current logged-in user stored after a given sequence number
+     * @param afterSequence Sequence number of the last transaction already seen, 0 for the oldest
+     * @param limit Most transactions to return; the server caps this at its page size
+     * @return Future list of transactions, oldest first
+     */
+    @Override
+    public CompletableFuture<List<Transaction>> getTransactionsSince(long afterSequence, int limit) {
+        return send("GET_TRANSACTIONS_SINCE", afterSequence, limit);
+    }
+
+    /**
+     * Get current balance of logged-in user
+     * @return Future balance, -1 if not logged in
+     */
+    @Override
+    public CompletableFuture<Double> getBalance() {
+        return send("GET_BALANCE");
+    }
+
+    /**
+     * Delete the current user's account
+     * @return Future TransactionResult indicating success/failure
+     */
+    @Override
+    public CompletableFuture<TransactionResult> deleteAccount() {
+        return this.<TransactionResult>send("DELETE_ACCOUNT").thenApply(result -> {
+            if (result.isSuccess()) {
+                client.setLoggedInUser(null, null);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Delete an item listing
+     * @param itemId ID of the item to delete
+     * @return Future TransactionResult indicating success/failure
+     */
+    @Override
+    public CompletableFuture<TransactionResult> deleteItem(int itemId) {
+        return send("DELETE_ITEM", itemId);
+    }
+
+    /**
+     * Ask the server to push new messages, sales and balance changes of the logged-in user
+     * to the listeners of the underlying client
+     * @return Future TransactionResult indicating success/failure
+     */
+    @Override
+    public CompletableFuture<TransactionResult> subscribe() {
+        if (client.isConnected() && !client.isUsingBinaryProtocol()) {
+            return CompletableFuture.completedFuture(new TransactionResult(false, "Server does not support events"));
+        }
+        return send("SUBSCRIBE");
+    }
+
+    /**
+     * Get the time each operation may take before its future fails
+     * @return Timeout in milliseconds
+     */
+    @Override
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Get the blocking client whose connection is used
+     * @return The underlying client
+     */
+    @Override
+    public MarketplaceClient getClient() {
+        return client;
+    }
+}
@@ -0,0 +1,153 @@
+package client;
+import database.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * AsyncMarketplaceClientInterface
+ *
+ * This interface defines the asynchronous counterpart of MarketplaceClientInterface.
+ * Every operation returns at once with a future completed by the server's reply.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public interface AsyncMarketplaceClientInterface {
+    /**
+     * Login to the marketplace
+     * @param username Username
+     * @param password Password
+     * @return Future TransactionResult indicating success/failure
+     */
+    CompletableFuture<TransactionResult> login(String username, String password);
+
+    /**
+     * Register a new user
+     * @param username Username
+     * @param password Password
+     * @return Future TransactionResult indicating success/failure
+     */
+    CompletableFuture<TransactionResult> register(String username, String password);
+
+    /**
+     * Logout from the marketplace
+     * @return Future TransactionResult indicating success/failure
+     */
+    CompletableFuture<TransactionResult> logout();
+
+    /**
+     * Add an item to the marketplace
+     * @param title Item title
+     * @param description Item description
+     * @param price Item price
+     * @return Future TransactionResult indicating success/failure and the new item ID
+     */
+    CompletableFuture<TransactionResult> addItem(String title, String description, double price);
+
+    /**
+     * Search for items in the marketplace
+     * @param query Search query
+     * @return Future list of matching items
+     */
+    CompletableFuture<List<Item>> searchItems(String query);
+
+    /**
+     * Search for items in the marketplace one page at a time
+     * @param query Search query
+     * @param order Order of the results
+     * @param pageToken Token of the previous page, null for the first page
+     * @param pageSize Most items on the page
+     * @return Future page of matching items
+     */
+    CompletableFuture<SearchPage> searchItems(String query, SearchPage.Order order, String pageToken, int pageSize);
+
+    /**
+     * Buy an item from the marketplace
+     * @param itemId ID of the item to buy
+     * @return Future TransactionResult indicating success/failure
+     */
+    CompletableFuture<TransactionResult> buyItem(int itemId);
+
+    /**
+     * Get items listed by the logged-in user
+     * @return Future list of user's items
+     */
+    CompletableFuture<List<Item>> getUserItems();
+
+    /**
+     * Send a message to another user
+     * @param recipient Recipient username
+     * @param content Message content
+     * @param itemId ID of item the message is about
+     * @return Future TransactionResult indicating success/failure
+     */
+    CompletableFuture<TransactionResult> sendMessage(String recipient, String content, int itemId);
+
+    /**
+     * Get messages for the logged-in user
+     * @return Future list of messages
+     */
+    CompletableFuture<List<Message>> getMessages();
+
+    /**
+     * Get transactions for the logged-in user
+     * @return Future list of transactions
+     */
+    CompletableFuture<List<Transaction>> getTransactions();
+
+    /**
+     * Get messages for the logged-in user stored after a sequence number
+     * @param afterSequence Sequence number of the last message already seen
+     * @param limit Most messages to return
+     * @return Future list of messages, oldest first
+     */
+    CompletableFuture<List<Message>> getMessagesSince(long afterSequence, int limit);
+
+    /**
+     * Get transactions for the logged-in user stored after a sequence number
+     * @param afterSequence Sequence number of the last transaction already seen
+     * @param limit Most transactions to return
+     * @return Future list of transactions, oldest first
+     */
+    CompletableFuture<List<Transaction>> getTransactionsSince(long afterSequence, int limit);
+
+    /**
+     * Get the balance of the logged-in user
+     * @return Future balance, -1 if not logged in
+     */
+    CompletableFuture<Double> getBalance();
+
+    /**
+     * Delete the current user's account
+     * @return Future TransactionResult indicating success/failure
+     */
+    CompletableFuture<TransactionResult> deleteAccount();
+
+    /**
+     * Delete an item listing
+     * @param itemId ID of the item to delete
+     * @return Future TransactionResult indicating success/failure
+     */
+    CompletableFuture<TransactionResult> deleteItem(int itemId);
+
+    /**
+     * Ask the server to push events for the logged-in user to the client's listeners
+     * @return Future TransactionResult indicating success/failure
+     */
+    CompletableFuture<TransactionResult> subscribe();
+
+    /**
+     * Get the time each operation may take before its future fails
+     * @return Timeout in milliseconds
+     */
+    long getTimeoutMillis();
+
+    /**
+     * Get the blocking client whose connection is used
+     * @return The underlying client
+     */
+    MarketplaceClient getClient();
+}
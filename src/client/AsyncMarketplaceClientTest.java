@@ -0,0 +1,153 @@
+package client;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import database.*;
+import server.MarketplaceServer;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncMarketplaceClientTest {
+    private MarketplaceClient client;
+
+    @Before
+    public void setUp() {
+        client = new MarketplaceClient();
+    }
+
+    @After
+    public void tearDown() {
+        client.disconnect();
+    }
+
+    @Test
+    public void testOperationsComplete() throws Exception {
+        File dataFile = File.createTempFile("async_client_test", ".ser");
+        dataFile.delete();
+        int testPort = 23463;
+        MarketplaceServer server = new MarketplaceServer(new Database(dataFile.getPath(), false));
+        server.start(testPort);
+        try {
+            assertTrue("Client should connect", client.connect("localhost", testPort));
+            AsyncMarketplaceClient async = new AsyncMarketplaceClient(client);
+
+            assertTrue("Registration should succeed", async.register("async", "pw").get(10, TimeUnit.SECONDS).isSuccess());
+            assertTrue("Login should succeed", async.login("async", "pw").get(10, TimeUnit.SECONDS).isSuccess());
+            assertEquals("Login should be recorded on the client", "async", client.getLoggedInUser());
+            TransactionResult added = async.addItem("Stool", "Wooden stool", 15.0).get(10, TimeUnit.SECONDS);
+            assertTrue("Item should be added", added.isSuccess());
+
+            // Issued together, answered independently
+            CompletableFuture<Double> balance = async.getBalance();
+            CompletableFuture<List<Transaction>> transactions = async.getTransactions();
+            CompletableFuture<List<Message>> messages = async.getMessages();
+            CompletableFuture<List<Item>> userItems = async.getUserItems();
+            CompletableFuture<List<Item>> search = async.searchItems("stool");
+            assertEquals("Balance should arrive", 100.0, balance.get(10, TimeUnit.SECONDS), 0.001);
+            assertTrue("Transactions should arrive", transactions.get(10, TimeUnit.SECONDS).isEmpty());
+            assertTrue("Messages should arrive", messages.get(10, TimeUnit.SECONDS).isEmpty());
+            assertEquals("Own items should arrive", 1, userItems.get(10, TimeUnit.SECONDS).size());
+            assertEquals("Search results should arrive", added.getItemId(),
+                         search.get(10, TimeUnit.SECONDS).get(0).getId());
+
+            assertTrue("Deleting the item should succeed",
+                       async.deleteItem(added.getItemId()).get(10, TimeUnit.SECONDS).isSuccess());
+            assertTrue("Logout should succeed", async.logout().get(10, TimeUnit.SECONDS).isSuccess());
+            assertNull("Logout should be recorded on the client", client.getLoggedInUser());
+        } finally {
+            client.disconnect();
+            server.stop();
+            dataFile.delete();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        // Accepts the binary protocol, then never answers
+        ServerSocket silentServer = new ServerSocket(23464);
+        Thread serverThread = new Thread(() -> {
+            try (Socket socket = silentServer.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(in.readInt());
+                out.flush();
+                while (in.read() >= 0) {
+                    // Discard requests
+                }
+            } catch (IOException e) {
+                // Closed by the test
+            }
+        });
+        serverThread.start();
+        try {
+            assertTrue("Client should connect", client.connect("localhost", 23464));
+            AsyncMarketplaceClient async = new AsyncMarketplaceClient(client, 200, Runnable::run);
+            assertEquals("Timeout should be configurable", 200, async.getTimeoutMillis());
+            long start = System.nanoTime();
+            try {
+                async.getBalance().get(10, TimeUnit.SECONDS);
+                fail("Request without reply should time out");
+            } catch (ExecutionException e) {
+                assertTrue("Failure should be a timeout", e.getCause() instanceof TimeoutException);
+            }
+            assertTrue("Timeout should fire after about 200 ms",
+                       TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        } finally {
+            client.disconnect();
+            silentServer.close();
+            serverThread.join(5000);
+        }
+    }
+
+    @Test
+    public void testNotConnected() throws Exception {
+        AsyncMarketplaceClient async = new AsyncMarketplaceClient(client);
+        try {
+            async.getMessages().get(10, TimeUnit.SECONDS);
+            fail("Operations should fail without a connection");
+        } catch (ExecutionException e) {
+            assertTrue("Failure should be an I/O error", e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testObjectStreamCallsRunOnExecutor() throws Exception {
+        // Behaves like a server from before the binary protocol
+        ServerSocket oldServer = new ServerSocket(23465);
+        Thread serverThread = new Thread(() -> {
+            while (!oldServer.isClosed()) {
+                try (Socket socket = oldServer.accept()) {
+                    ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+                    ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+                    assertEquals("Command should arrive as an object", "GET_BALANCE", ois.readObject());
+                    oos.writeObject(42.0);
+                    oos.flush();
+                    ois.readObject();
+                } catch (IOException | ClassNotFoundException e) {
+                    // The binary attempt is refused by closing the connection
+                }
+            }
+        });
+        serverThread.start();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        AtomicInteger tasks = new AtomicInteger();
+        try {
+            assertTrue("Client should connect", client.connect("localhost", 23465));
+            assertFalse("Old server should get object streams", client.isUsingBinaryProtocol());
+            AsyncMarketplaceClient async = new AsyncMarketplaceClient(client, 10000, task -> {
+                tasks.incrementAndGet();
+                pool.execute(task);
+            });
+            assertEquals("Balance should arrive", 42.0, async.getBalance().get(10, TimeUnit.SECONDS), 0.0);
+            assertTrue("Blocking call should run on the executor", tasks.get() >= 1);
+        } finally {
+            client.disconnect();
+            pool.shutdown();
+            oldServer.close();
+            serverThread.join(5000);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package client;
+import database.*;
+
+import java.util.*;
+
+/**
+ * ItemCache class
+ *
+ * Bounded cache of the items and search pages a client has received, so that showing a page
+ * again costs only a small request. Items are kept by ID together with the catalog version they
+ * were listed at; pages are kept as the IDs of their items and the catalog version they were
+ * read at. Both are evicted least recently used first.
+ * The server decides what is stale: given the version of a cached page it answers "not modified"
+ * if the catalog is unchanged, and otherwise sends in full only the items listed after that
+ * version. Anything the cache no longer holds is fetched again in full.
+ * Thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class ItemCache {
+    static final int DEFAULT_MAX_ITEMS = 2000; // Items kept before the least recently used is evicted
+    static final int DEFAULT_MAX_PAGES = 100; // Pages kept before the least recently used is evicted
+
+    /**
+     * A search page as the IDs of its items
+     */
+    private static final class CachedPage {
+        final long catalogVersion; // Catalog version the page was read at
+        final int[] itemIds; // Items of the page, in page order
+        final String nextPageToken;
+
+        CachedPage(long catalogVersion, int[] itemIds, String nextPageToken) {
+            this.catalogVersion = catalogVersion;
+            this.itemIds = itemIds;
+            this.nextPageToken = nextPageToken;
+        }
+    }
+
+    private final Map<Integer, Item> items; // Items by ID, in access order
+    private final Map<String, CachedPage> pages; // Pages by pageKey, in access order
+    private long hits; // Items taken from the cache instead of the reply
+    private long misses; // Items the server had to send in full
+
+    /**
+     * Constructor with the default bounds
+     */
+    ItemCache() {
+        this(DEFAULT_MAX_ITEMS, DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * Constructor for ItemCache
+     * @param maxItems Most items kept
+     * @param maxPages Most pages kept
+     */
+    ItemCache(int maxItems, int maxPages) {
+        this.items = new LinkedHashMap<Integer, Item>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Item> eldest) {
+                return size() > maxItems;
+            }
+        };
+        this.pages = new LinkedHashMap<String, CachedPage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    /**
+     * Returns the key a search page is cached under
+     * @param query Search query
+     * @param order Order of the results
+     * @param pageToken Token of the previous page, null for the first page
+     * @param pageSize Most items on the page
+     * @return Cache key
+     */
+    static String pageKey(String query, SearchPage.Order order, String pageToken, int pageSize) {
+        return order.name() + "\n" + pageSize + "\n" + pageToken + "\n" + query;
+    }
+
+    /**
+     * Returns the catalog version to send with a search, so the server can leave out what is cached
+     * @param key Key of the page
+     * @return Version of the cached page, 0 if the page or one of its items is not cached
+     */
+    synchronized long knownVersion(String key) {
+        CachedPage page = pages.get(key);
+        if (page == null) {
+            return 0;
+        }
+        for (int id : page.itemIds) {
+            if (!items.containsKey(id)) {
+                pages.remove(key);
+                return 0;
+            }
+        }
+        return page.catalogVersion;
+    }
+
+    /**
+     * Completes a search reply from the cache and caches what it brought
+     * @param key Key of the page
+     * @param reply The server's reply to a search sent with knownVersion(key)
+     * @return The full page, or null if the reply refers to items no longer cached
+     */
+    synchronized SearchPage resolve(String key, SearchPage reply) {
+        if (reply.isNotModified()) {
+            CachedPage page = pages.get(key);
+            if (page == null || page.catalogVersion != reply.getCatalogVersion()) {
+                return null;
+            }
+            List<Item> pageItems = new ArrayList<>(page.itemIds.length);
+            for (int id : page.itemIds) {
+                Item item = items.get(id);
+                if (item == null) {
+                    pages.remove(key);
+                    return null;
+                }
+                pageItems.add(item);
+            }
+            hits += pageItems.size();
+            return new SearchPage(pageItems, page.nextPageToken, page.catalogVersion);
+        }
+
+        List<Item> pageItems = new ArrayList<>(reply.getItems().size());
+        int[] itemIds = new int[reply.getItems().size()];
+        for (Item item : reply.getItems()) {
+            if (item.isPlaceholder()) {
+                Item cached = items.get(item.getId());
+                if (cached == null || cached.getVersion() != item.getVersion()) {
+                    pages.remove(key);
+                    return null;
+                }
+                hits++;
+                item = cached;
+            } else {
+                misses++;
+                items.put(item.getId(), item);
+            }
+            itemIds[pageItems.size()] = item.getId();
+            pageItems.add(item);
+        }
+        if (reply.getCatalogVersion() != 0) {
+            pages.put(key, new CachedPage(reply.getCatalogVersion(), itemIds, reply.getNextPageToken()));
+        }
+        return new SearchPage(pageItems, reply.getNextPageToken(), reply.getCatalogVersion());
+    }
+
+    /**
+     * Drops everything, for example when connecting to another server
+     */
+    synchronized void clear() {
+        items.clear();
+        pages.clear();
+    }
+
+    /**
+     * Returns the number of cached items
+     * @return Item count
+     */
+    synchronized int size() {
+        return items.size();
+    }
+
+    /**
+     * Returns how many items were taken from the cache instead of being sent by the server
+     * @return Hit count
+     */
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns how many items the server had to send in full
+     * @return Miss count
+     */
+    synchronized long getMissCount() {
+        return misses;
+    }
+}
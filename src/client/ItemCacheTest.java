@@ -0,0 +1,113 @@
+package client;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import database.*;
+import java.util.*;
+
+public class ItemCacheTest {
+    private Database database;
+    private ItemCache cache;
+
+    @Before
+    public void setUp() {
+        database = new Database();
+        cache = new ItemCache(10, 4);
+        for (int i = 1; i <= 5; i++) {
+            database.addItem(new Item("Lamp " + i, "Desk lamp", i, "seller"));
+        }
+    }
+
+    /**
+     * Searches the way MarketplaceClient does: with the version the cache knows, and again
+     * in full if the reply refers to items the cache does not hold.
+     */
+    private SearchPage search(String query, int pageSize) {
+        String key = ItemCache.pageKey(query, SearchPage.Order.PRICE, null, pageSize);
+        SearchPage reply = database.searchItemsPage(query, SearchPage.Order.PRICE, null, pageSize,
+                                                    cache.knownVersion(key));
+        SearchPage page = cache.resolve(key, reply);
+        if (page == null) {
+            page = cache.resolve(key, database.searchItemsPage(query, SearchPage.Order.PRICE, null, pageSize, 0));
+        }
+        return page;
+    }
+
+    private List<String> titles(SearchPage page) {
+        List<String> titles = new ArrayList<>();
+        for (Item item : page.getItems()) {
+            titles.add(item.getTitle());
+        }
+        return titles;
+    }
+
+    @Test
+    public void testUnchangedPageIsNotSentAgain() {
+        SearchPage first = search("lamp", 3);
+        assertEquals("First search should be sent in full", 3, cache.getMissCount());
+        String key = ItemCache.pageKey("lamp", SearchPage.Order.PRICE, null, 3);
+        assertTrue("Server should answer not modified", database.searchItemsPage("lamp", SearchPage.Order.PRICE,
+            null, 3, cache.knownVersion(key)).isNotModified());
+
+        SearchPage again = search("lamp", 3);
+        assertEquals("Page should be rebuilt from the cache", titles(first), titles(again));
+        assertEquals("Nothing should be sent in full again", 3, cache.getMissCount());
+        assertEquals("Every item should come from the cache", 3, cache.getHitCount());
+        assertEquals("Next page token should be kept", first.getNextPageToken(), again.getNextPageToken());
+    }
+
+    @Test
+    public void testOnlyChangedItemsAreSent() {
+        search("lamp", 3);
+        database.addItem(new Item("Lamp 0", "Cheap lamp", 0.5, "seller"));
+        SearchPage page = search("lamp", 3);
+        assertEquals("New item should lead the page", Arrays.asList("Lamp 0", "Lamp 1", "Lamp 2"), titles(page));
+        assertEquals("Only the new item should be sent in full", 4, cache.getMissCount());
+        assertEquals("Unchanged items should come from the cache", 2, cache.getHitCount());
+    }
+
+    @Test
+    public void testSoldItemLeavesCachedPage() {
+        SearchPage first = search("lamp", 3);
+        database.getItemById(first.getItems().get(0).getId()).setSold(true);
+        String key = ItemCache.pageKey("lamp", SearchPage.Order.PRICE, null, 3);
+        assertNull("An item that moved onto the page is not cached", cache.resolve(key,
+            database.searchItemsPage("lamp", SearchPage.Order.PRICE, null, 3, cache.knownVersion(key))));
+        assertEquals("Sold item should be gone from the page", Arrays.asList("Lamp 2", "Lamp 3", "Lamp 4"),
+            titles(search("lamp", 3)));
+    }
+
+    @Test
+    public void testEvictedItemsAreFetchedAgain() {
+        ItemCache small = new ItemCache(2, 4);
+        cache = small;
+        String key = ItemCache.pageKey("lamp", SearchPage.Order.PRICE, null, 3);
+        search("lamp", 3);
+        assertEquals("Cache should be bounded", 2, small.size());
+        assertEquals("Pages with evicted items should not claim a version", 0, small.knownVersion(key));
+
+        // A reply with placeholders for items the cache no longer holds cannot be completed
+        search("lamp", 2);
+        database.addItem(new Item("Lamp 9", "Another lamp", 9.0, "seller"));
+        String otherKey = ItemCache.pageKey("lamp", SearchPage.Order.PRICE, null, 2);
+        long known = small.knownVersion(otherKey);
+        small.clear();
+        assertNull("Placeholders for evicted items should ask for a full fetch", small.resolve(otherKey,
+            database.searchItemsPage("lamp", SearchPage.Order.PRICE, null, 2, known)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        ItemCache small = new ItemCache(3, 4);
+        cache = small;
+        search("lamp 1", 1);
+        search("lamp 2", 1);
+        search("lamp 3", 1);
+        search("lamp 1", 1); // Uses Lamp 1 again
+        search("lamp 4", 1); // Evicts Lamp 2
+        assertNotEquals("Recently used item should be kept", 0,
+            small.knownVersion(ItemCache.pageKey("lamp 1", SearchPage.Order.PRICE, null, 1)));
+        assertEquals("Least recently used item should be evicted", 0,
+            small.knownVersion(ItemCache.pageKey("lamp 2", SearchPage.Order.PRICE, null, 1)));
+    }
+}
@@ -4,6 +4,8 @@ import database.*;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * MarketplaceClient class
@@ -11,6 +13,15 @@ import java.util.*;
  * This class implements the MarketplaceClientInterface and provides functionality for connecting
  * to the marketplace server, handling user authentication, and performing marketplace operations.
  * All data is stored on the server and accessed via network I/O.
+ * Talks to the server with the compact binary protocol of WireProtocol, falling back to
+ * Java object streams when the server is too old to support it.
+ * With the binary protocol, requests are tagged with IDs and a reader thread matches replies to
+ * them, so any number of threads can use one client and have requests in flight at once.
+ * After subscribe, the reader thread also passes the events the server pushes to the listeners.
+ * Search pages are cached, so showing an unchanged page again costs only a "not modified" reply.
+ * With useReadReplica, reads are sent to a read-only replica of the server as long as its data is
+ * no older than a given bound and this client has not changed anything within that bound, so a
+ * client always sees its own changes. Otherwise, and for writes, the primary is used.
  * 
  * @author L10-Team1 
  *
@@ -18,11 +29,33 @@ import java.util.*;
  *
  */
 public class MarketplaceClient implements MarketplaceClientInterface {
+    // Commands a read replica can answer; SEARCH_ITEMS_PAGE is not one, as catalog versions differ between servers
+    private static final Set<String> REPLICA_READS = new HashSet<>(Arrays.asList(
+        "SEARCH_ITEMS", "GET_USER_ITEMS", "GET_MESSAGES", "GET_TRANSACTIONS", "GET_MESSAGES_SINCE",
+        "GET_TRANSACTIONS_SINCE", "GET_BALANCE"));
+    // Commands that change data; reads after them go to the primary until the replica has caught up
+    private static final Set<String> WRITES = new HashSet<>(Arrays.asList(
+        "REGISTER", "ADD_ITEM", "BUY_ITEM", "SEND_MESSAGE", "DELETE_ACCOUNT", "DELETE_ITEM"));
+
     private Socket socket;
-    private ObjectOutputStream oos;
+    private ObjectOutputStream oos; // Object stream protocol, guarded by this
     private ObjectInputStream ois;
-    private String loggedInUser;
-    private boolean connected;
+    private DataOutputStream out; // Binary protocol, guarded by itself
+    private DataInputStream in; // Read by the reader thread only
+    private volatile boolean binaryProtocol;
+    private volatile String loggedInUser;
+    private volatile boolean connected;
+    
+    // Binary requests waiting for their reply, by request ID
+    private final Map<Integer, CompletableFuture<Object>> pendingReplies = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile IOException readFailure; // Why the reader thread stopped, null while it runs
+    private final List<MarketplaceEventListener> eventListeners = new CopyOnWriteArrayList<>();
+    private final ItemCache itemCache = new ItemCache(); // Items and search pages received from the server
+    private volatile MarketplaceClient readReplica; // Connection to a read replica, null if reads go to the primary
+    private volatile long maxStalenessMillis; // Oldest data a read from the replica may return
+    private volatile long lastWriteNanos; // System.nanoTime() when the last write completed
+    private volatile String[] replicaCredentials; // Username and password to log in on the replica with, null if none
 
     /**
      * Default constructor
@@ -43,6 +76,14 @@ public class MarketplaceClient implements MarketplaceClientInterface {
         connect(host, port);
     }
 
+    /**
+     * Get the cache of items and search pages received from the server
+     * @return The item cache
+     */
+    ItemCache getItemCache() {
+        return itemCache;
+    }
+    
     /**
      * Connect to the marketplace server
      * @param host Server hostname or IP address
@@ -51,10 +92,22 @@ public class MarketplaceClient implements MarketplaceClientInterface {
      */
     @Override
     public boolean connect(String host, int port) {
+        itemCache.clear(); // Versions are only meaningful to the server that issued them
         try {
             socket = new Socket(host, port);
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
+            binaryProtocol = openBinary();
+            if (binaryProtocol) {
+                readFailure = null;
+                Thread reader = new Thread(this::readReplies, "marketplace-client-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } else {
+                // Server does not know the binary protocol; reconnect with object streams
+                socket.close();
+                socket = new Socket(host, port);
+                oos = new ObjectOutputStream(socket.getOutputStream());
+                ois = new ObjectInputStream(socket.getInputStream());
+            }
             connected = true;
             return true;
         } catch (IOException e) {
@@ -64,6 +117,292 @@ public class MarketplaceClient implements MarketplaceClientInterface {
         }
     }
     
+    /**
+     * Send reads to a read-only replica of the server from now on. Call before logging in, so the
+     * replica can be logged in as well. Reads fall back to the primary while the replica's data may
+     * be older than maxStalenessMillis, within maxStalenessMillis of a change made by this client,
+     * and for good if the replica fails.
+     * @param host Replica hostname or IP address
+     * @param port Replica port number
+     * @param maxStalenessMillis How old the data read from the replica may be
+     * @return true if the replica accepted the bound, false if it could not be used
+     */
+    @Override
+    public boolean useReadReplica(String host, int port, long maxStalenessMillis) {
+        MarketplaceClient replica = new MarketplaceClient();
+        if (!replica.connect(host, port)) {
+            return false;
+        }
+        try {
+            Object reply = replica.call("SET_MAX_STALENESS", maxStalenessMillis);
+            if (!(reply instanceof TransactionResult) || !((TransactionResult) reply).isSuccess()) {
+                replica.disconnect();
+                return false;
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            replica.disconnect();
+            return false;
+        }
+        this.maxStalenessMillis = maxStalenessMillis;
+        lastWriteNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+        MarketplaceClient previous = readReplica;
+        readReplica = replica;
+        if (previous != null) {
+            previous.disconnect();
+        }
+        return true;
+    }
+    
+    /**
+     * Check whether a command may be sent to the read replica now
+     * @param command The command name
+     * @return true if a replica is used, the command is a read it can answer, and this client has
+     *         not changed anything within the staleness bound
+     */
+    boolean mayReadFromReplica(String command) {
+        return readReplica != null && REPLICA_READS.contains(command) &&
+               System.nanoTime() - lastWriteNanos >= TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+    }
+    
+    /**
+     * Sends a read to the replica if it may answer it. Blocks until the replica replies.
+     * @param command The command name
+     * @param arguments The command's arguments
+     * @return The replica's reply, or null if the primary has to answer
+     */
+    Object readFromReplica(String command, Object[] arguments) {
+        MarketplaceClient replica = readReplica;
+        if (replica == null || !mayReadFromReplica(command)) {
+            return null;
+        }
+        try {
+            String user = loggedInUser;
+            if (!Objects.equals(user, replica.getLoggedInUser())) {
+                String[] credentials = replicaCredentials;
+                if (user == null) {
+                    replica.logout();
+                } else if (credentials == null || !credentials[0].equals(user) ||
+                           !replica.login(credentials[0], credentials[1]).isSuccess()) {
+                    // Not replicated yet, or logged in without the password
+                    return null;
+                }
+            }
+            Object reply = replica.call(command, arguments);
+            // The replica answers reads it refuses with a TransactionResult, such as when it is behind
+            return (reply instanceof TransactionResult) ? null : reply;
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Read replica failed, reading from the primary: " + e.getMessage());
+            readReplica = null;
+            replica.disconnect();
+            return null;
+        }
+    }
+    
+    /**
+     * Offers the binary protocol to the server
+     * @return true if the server accepted it, false if it answered with an object stream header
+     */
+    private boolean openBinary() throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out.writeInt(WireProtocol.MAGIC_MULTIPLEXED);
+        out.flush();
+        try {
+            return in.readInt() == WireProtocol.MAGIC_MULTIPLEXED;
+        } catch (EOFException | SocketException e) {
+            // An old server may close the connection as soon as it sees the magic number
+            return false;
+        }
+    }
+    
+    /**
+     * Reads replies and completes the requests they answer. Runs on the reader thread
+     * until the connection closes, then fails every request still waiting.
+     */
+    private void readReplies() {
+        try {
+            while (true) {
+                byte[] frame = WireProtocol.readFrame(in);
+                if (WireProtocol.requestIdOf(frame) == WireProtocol.EVENT_REQUEST_ID) {
+                    fireEvent((MarketplaceEvent) WireProtocol.decodeTaggedReply(frame));
+                    continue;
+                }
+                CompletableFuture<Object> reply = pendingReplies.remove(WireProtocol.requestIdOf(frame));
+                if (reply != null) {
+                    reply.complete(WireProtocol.decodeTaggedReply(frame));
+                }
+            }
+        } catch (IOException e) {
+            readFailure = (e instanceof EOFException) ? new EOFException("Connection closed by server") : e;
+            for (Integer requestId : pendingReplies.keySet()) {
+                CompletableFuture<Object> reply = pendingReplies.remove(requestId);
+                if (reply != null) {
+                    reply.completeExceptionally(readFailure);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Passes a pushed event to every listener
+     * @param event The event
+     */
+    private void fireEvent(MarketplaceEvent event) {
+        for (MarketplaceEventListener listener : eventListeners) {
+            try {
+                switch (event.getType()) {
+                    case MESSAGE_RECEIVED:
+                        listener.onMessageReceived(event.getMessage());
+                        break;
+                    case ITEM_SOLD:
+                        listener.onItemSold(event.getTransaction());
+                        break;
+                    default:
+                        listener.onBalanceChanged(event.getBalance());
+                }
+            } catch (RuntimeException e) {
+                // A failing listener must not stop the reader thread
+                System.err.println("Error in event listener: " + e);
+            }
+        }
+    }
+    
+    /**
+     * Add a listener for events pushed by the server
+     * @param listener The listener
+     */
+    @Override
+    public void addEventListener(MarketplaceEventListener listener) {
+        eventListeners.add(listener);
+    }
+    
+    /**
+     * Remove a listener added with addEventListener
+     * @param listener The listener
+     */
+    @Override
+    public void removeEventListener(MarketplaceEventListener listener) {
+        eventListeners.remove(listener);
+    }
+    
+    /**
+     * Ask the server to push new messages, sales and balance changes of the logged-in user.
+     * The subscription lasts for the connection and follows later logins on it.
+     * @return TransactionResult indicating success/failure; fails if the server cannot push events
+     */
+    @Override
+    public TransactionResult subscribe() {
+        if (!binaryProtocol) {
+            return new TransactionResult(false, "Server does not support events");
+        }
+        try {
+            return (TransactionResult) call("SUBSCRIBE");
+        } catch (IOException | ClassNotFoundException e) {
+            return new TransactionResult(false, "Error: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Sends a command without waiting for the reply. With the binary protocol the request is
+     * tagged and may be answered out of order; with object streams it runs synchronously.
+     * Requests sent without waiting may run in any order on the server, so a command that
+     * depends on another, such as one that needs a login, should be sent once the other completes.
+     * @param command The command name
+     * @param arguments The command's arguments
+     * @return Future completed with the server's reply, or exceptionally if the connection fails
+     */
+    CompletableFuture<Object> submit(String command, Object... arguments) {
+        if (WRITES.contains(command)) {
+            CompletableFuture<Object> reply = send(command, arguments);
+            reply.whenComplete((value, error) -> lastWriteNanos = System.nanoTime());
+            return reply;
+        }
+        return send(command, arguments);
+    }
+    
+    /**
+     * Sends a command to the server without waiting for the reply, as described for submit
+     */
+    private CompletableFuture<Object> send(String command, Object[] arguments) {
+        if (!binaryProtocol) {
+            try {
+                return CompletableFuture.completedFuture(callObjectStreams(command, arguments));
+            } catch (IOException | ClassNotFoundException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        pendingReplies.put(requestId, reply);
+        // Also forgets requests completed by someone else, such as a timeout
+        reply.whenComplete((value, error) -> pendingReplies.remove(requestId));
+        try {
+            byte[] frame = WireProtocol.encodeTaggedRequest(requestId, command, arguments);
+            synchronized (out) {
+                out.write(frame);
+                out.flush();
+            }
+        } catch (IOException e) {
+            pendingReplies.remove(requestId);
+            reply.completeExceptionally(e);
+        }
+        // The reader may have stopped before the request was registered
+        if (readFailure != null && pendingReplies.remove(requestId) != null) {
+            reply.completeExceptionally(readFailure);
+        }
+        return reply;
+    }
+    
+    /**
+     * Sends a command over object streams and waits for the reply
+     */
+    private synchronized Object callObjectStreams(String command, Object[] arguments)
+            throws IOException, ClassNotFoundException {
+        oos.writeObject(command);
+        for (Object argument : arguments) {
+            oos.writeObject(argument);
+        }
+        oos.flush();
+        return ois.readObject();
+    }
+    
+    /**
+     * Sends a command with its arguments and waits for the reply, from the read replica if it may answer
+     * @param command The command name
+     * @param arguments The command's arguments
+     * @return The server's reply
+     */
+    private Object call(String command, Object... arguments) throws IOException, ClassNotFoundException {
+        Object replicaReply = readFromReplica(command, arguments);
+        if (replicaReply != null) {
+            return replicaReply;
+        }
+        try {
+            return submit(command, arguments).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + command);
+        }
+    }
+    
+    /**
+     * Check whether the connection uses the binary protocol
+     * @return true for the binary protocol, false for object streams
+     */
+    @Override
+    public boolean isUsingBinaryProtocol() {
+        return binaryProtocol;
+    }
+    
     /**
      * Disconnect from the marketplace server
      * Sends exit command to server and closes all resources
@@ -71,14 +410,28 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public void disconnect() {
         if (!connected) return;
+        MarketplaceClient replica = readReplica;
+        readReplica = null;
+        replicaCredentials = null;
+        if (replica != null) {
+            replica.disconnect();
+        }
         
         try {
-            oos.writeObject("EXIT");
-            oos.flush();
+            if (binaryProtocol) {
+                byte[] frame = WireProtocol.encodeTaggedRequest(nextRequestId.incrementAndGet(), "EXIT");
+                synchronized (out) {
+                    out.write(frame);
+                    out.flush();
+                }
+            } else {
+                synchronized (this) {
+                    oos.writeObject("EXIT");
+                    oos.flush();
+                }
+            }
             
             socket.close();
-            oos.close();
-            ois.close();
             connected = false;
             loggedInUser = null;
         } catch (IOException e) {
@@ -95,14 +448,9 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public TransactionResult login(String username, String password) {
         try {
-            oos.writeObject("LOGIN");
-            oos.writeObject(username);
-            oos.writeObject(password);
-            oos.flush();
-            
-            TransactionResult result = (TransactionResult) ois.readObject();
+            TransactionResult result = (TransactionResult) call("LOGIN", username, password);
             if (result.isSuccess()) {
-                loggedInUser = username;
+                setLoggedInUser(username, password);
             }
             return result;
         } catch (IOException | ClassNotFoundException e) {
@@ -119,12 +467,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public TransactionResult register(String username, String password) {
         try {
-            oos.writeObject("REGISTER");
-            oos.writeObject(username);
-            oos.writeObject(password);
-            oos.flush();
-            
-            return (TransactionResult) ois.readObject();
+            return (TransactionResult) call("REGISTER", username, password);
         } catch (IOException | ClassNotFoundException e) {
             return new TransactionResult(false, "Error: " + e.getMessage());
         }
@@ -137,12 +480,10 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public TransactionResult logout() {
         try {
-            oos.writeObject("LOGOUT");
-            oos.flush();
-            
-            TransactionResult result = (TransactionResult) ois.readObject();
+            TransactionResult result = (TransactionResult) call("LOGOUT");
             if (result.isSuccess()) {
                 loggedInUser = null;
+                replicaCredentials = null;
             }
             return result;
         } catch (IOException | ClassNotFoundException e) {
@@ -160,13 +501,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public TransactionResult addItem(String title, String description, double price) {
         try {
-            oos.writeObject("ADD_ITEM");
-            oos.writeObject(title);
-            oos.writeObject(description);
-            oos.writeObject(price);
-            oos.flush();
-            
-            return (TransactionResult) ois.readObject();
+            return (TransactionResult) call("ADD_ITEM", title, description, price);
         } catch (IOException | ClassNotFoundException e) {
             return new TransactionResult(false, "Error: " + e.getMessage());
         }
@@ -181,17 +516,41 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @SuppressWarnings("unchecked")
     public List<Item> searchItems(String query) {
         try {
-            oos.writeObject("SEARCH_ITEMS");
-            oos.writeObject(query);
-            oos.flush();
-            
-            return (List<Item>) ois.readObject();
+            return (List<Item>) call("SEARCH_ITEMS", query);
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error searching items: " + e.getMessage());
             return new ArrayList<>();
         }
     }
     
+    /**
+     * Search for items in the marketplace one page at a time
+     * The server is told which version of the page is cached, and only sends what changed since.
+     * @param query Search keyword, empty for every item for sale
+     * @param order Order of the results
+     * @param pageToken Token of the previous page, null for the first page
+     * @param pageSize Most items on the page; the server caps this at its page size
+     * @return Page of matching items, an empty last page on error
+     */
+    @Override
+    public SearchPage searchItems(String query, SearchPage.Order order, String pageToken, int pageSize) {
+        String key = ItemCache.pageKey(query, order, pageToken, pageSize);
+        try {
+            SearchPage reply = (SearchPage) call("SEARCH_ITEMS_PAGE", query, order.name(), pageToken, pageSize,
+                                                 itemCache.knownVersion(key));
+            SearchPage page = itemCache.resolve(key, reply);
+            if (page == null) {
+                // Evicted since the request was sent; ask for everything
+                reply = (SearchPage) call("SEARCH_ITEMS_PAGE", query, order.name(), pageToken, pageSize, 0L);
+                page = itemCache.resolve(key, reply);
+            }
+            return page;
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error searching items: " + e.getMessage());
+            return new SearchPage(new ArrayList<>(), null);
+        }
+    }
+    
     /**
      * Purchase an item from the marketplace
      * @param itemId ID of the item to buy
@@ -200,11 +559,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public TransactionResult buyItem(int itemId) {
         try {
-            oos.writeObject("BUY_ITEM");
-            oos.writeObject(itemId);
-            oos.flush();
-            
-            return (TransactionResult) ois.readObject();
+            return (TransactionResult) call("BUY_ITEM", itemId);
         } catch (IOException | ClassNotFoundException e) {
             return new TransactionResult(false, "Error: " + e.getMessage());
         }
@@ -218,10 +573,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @SuppressWarnings("unchecked")
     public List<Item> getUserItems() {
         try {
-            oos.writeObject("GET_USER_ITEMS");
-            oos.flush();
-            
-            return (List<Item>) ois.readObject();
+            return (List<Item>) call("GET_USER_ITEMS");
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error getting user items: " + e.getMessage());
             return new ArrayList<>();
@@ -238,13 +590,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public TransactionResult sendMessage(String recipient, String content, int itemId) {
         try {
-            oos.writeObject("SEND_MESSAGE");
-            oos.writeObject(recipient);
-            oos.writeObject(content);
-            oos.writeObject(itemId);
-            oos.flush();
-            
-            return (TransactionResult) ois.readObject();
+            return (TransactionResult) call("SEND_MESSAGE", recipient, content, itemId);
         } catch (IOException | ClassNotFoundException e) {
             return new TransactionResult(false, "Error: " + e.getMessage());
         }
@@ -258,10 +604,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @SuppressWarnings("unchecked")
     public List<Message> getMessages() {
         try {
-            oos.writeObject("GET_MESSAGES");
-            oos.flush();
-            
-            return (List<Message>) ois.readObject();
+            return (List<Message>) call("GET_MESSAGES");
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error getting messages: " + e.getMessage());
             return new ArrayList<>();
@@ -277,9 +620,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     public List<Transaction> getTransactions() {
         try {
             System.out.println("Client: Requesting transactions for " + loggedInUser);
-            oos.writeObject("GET_TRANSACTIONS");
-            oos.flush();
-            List<Transaction> result = (List<Transaction>) ois.readObject();
+            List<Transaction> result = (List<Transaction>) call("GET_TRANSACTIONS");
             System.out.println("Client: Received " + result.size() + " transactions from server");
             return result;
         } catch (IOException | ClassNotFoundException e) {
@@ -289,6 +630,40 @@ public class MarketplaceClient implements MarketplaceClientInterface {
         }
     }
     
+    /**
+     * Get the messages of the current logged-in user stored after a given sequence number
+     * @param afterSequence Sequence number of the last message already seen, 0 for the oldest
+     * @param limit Most messages to return; the server caps this at its page size
+     * @return List of messages, oldest first, empty list if none or error
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Message> getMessagesSince(long afterSequence, int limit) {
+        try {
+            return (List<Message>) call("GET_MESSAGES_SINCE", afterSequence, limit);
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error getting messages: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Get the transactions of the current logged-in user stored after a given sequence number
+     * @param afterSequence Sequence number of the last transaction already seen, 0 for the oldest
+     * @param limit Most transactions to return; the server caps this at its page size
+     * @return List of transactions, oldest first, empty list if none or error
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Transaction> getTransactionsSince(long afterSequence, int limit) {
+        try {
+            return (List<Transaction>) call("GET_TRANSACTIONS_SINCE", afterSequence, limit);
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error getting transactions: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
     /**
      * Get current balance of logged-in user
      * @return User balance or -1 if not logged in or error
@@ -296,10 +671,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public double getBalance() {
         try {
-            oos.writeObject("GET_BALANCE");
-            oos.flush();
-            
-            return (Double) ois.readObject();
+            return (Double) call("GET_BALANCE");
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error getting balance: " + e.getMessage());
             return -1;
@@ -313,12 +685,10 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public TransactionResult deleteAccount() {
         try {
-            oos.writeObject("DELETE_ACCOUNT");
-            oos.flush();
-            
-            TransactionResult result = (TransactionResult) ois.readObject();
+            TransactionResult result = (TransactionResult) call("DELETE_ACCOUNT");
             if (result.isSuccess()) {
                 loggedInUser = null;
+                replicaCredentials = null;
             }
             return result;
         } catch (IOException | ClassNotFoundException e) {
@@ -334,11 +704,7 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     @Override
     public TransactionResult deleteItem(int itemId) {
         try {
-            oos.writeObject("DELETE_ITEM");
-            oos.writeObject(itemId);
-            oos.flush();
-            
-            return (TransactionResult) ois.readObject();
+            return (TransactionResult) call("DELETE_ITEM", itemId);
         } catch (IOException | ClassNotFoundException e) {
             return new TransactionResult(false, "Error: " + e.getMessage());
         }
@@ -361,4 +727,15 @@ public class MarketplaceClient implements MarketplaceClientInterface {
     public String getLoggedInUser() {
         return loggedInUser;
     }
+    
+    /**
+     * Records a login or logout, made here or through AsyncMarketplaceClient
+     * @param username Username or null if logged out
+     * @param password The user's password, null if logged out
+     */
+    void setLoggedInUser(String username, String password) {
+        loggedInUser = username;
+        // Kept only while a replica is used, to log in there once the user has been replicated
+        replicaCredentials = (username != null && readReplica != null) ? new String[] {username, password} : null;
+    }
 }
@@ -28,6 +28,15 @@ public interface MarketplaceClientInterface {
      */
     void disconnect();
     
+    /**
+     * Send reads to a read-only replica of the server while its data is no older than a bound
+     * @param host Replica hostname or IP address
+     * @param port Replica port number
+     * @param maxStalenessMillis How old the data read from the replica may be
+     * @return true if the replica can be used
+     */
+    boolean useReadReplica(String host, int port, long maxStalenessMillis);
+    
     /**
      * Login to the marketplace
      * @param username Username
@@ -66,6 +75,16 @@ public interface MarketplaceClientInterface {
      */
     List<Item> searchItems(String query);
     
+    /**
+     * Search for items in the marketplace one page at a time
+     * @param query Search query
+     * @param order Order of the results
+     * @param pageToken Token of the previous page, null for the first page
+     * @param pageSize Most items on the page
+     * @return Page of matching items
+     */
+    SearchPage searchItems(String query, SearchPage.Order order, String pageToken, int pageSize);
+    
     /**
      * Buy an item from the marketplace
      * @param itemId ID of the item to buy
@@ -100,6 +119,22 @@ public interface MarketplaceClientInterface {
      */
     List<Transaction> getTransactions();
     
+    /**
+     * Get messages for the logged-in user stored after a sequence number
+     * @param afterSequence Sequence number of the last message already seen
+     * @param limit Most messages to return
+     * @return List of messages, oldest first
+     */
+    List<Message> getMessagesSince(long afterSequence, int limit);
+    
+    /**
+     * Get transactions for the logged-in user stored after a sequence number
+     * @param afterSequence Sequence number of the last transaction already seen
+     * @param limit Most transactions to return
+     * @return List of transactions, oldest first
+     */
+    List<Transaction> getTransactionsSince(long afterSequence, int limit);
+    
     /**
      * Get the balance of the logged-in user
      * @return User balance or -1 if not logged in or error
@@ -112,6 +147,30 @@ public interface MarketplaceClientInterface {
      */
     boolean isConnected();
     
+    /**
+     * Check whether the connection uses the binary protocol
+     * @return true for the binary protocol, false for Java object streams
+     */
+    boolean isUsingBinaryProtocol();
+    
+    /**
+     * Add a listener for events pushed by the server
+     * @param listener The listener
+     */
+    void addEventListener(MarketplaceEventListener listener);
+    
+    /**
+     * Remove a listener added with addEventListener
+     * @param listener The listener
+     */
+    void removeEventListener(MarketplaceEventListener listener);
+    
+    /**
+     * Ask the server to push events for the logged-in user to the listeners
+     * @return TransactionResult indicating success/failure
+     */
+    TransactionResult subscribe();
+    
     /**
      * Get the username of the logged-in user
      * @return Username or null if not logged in
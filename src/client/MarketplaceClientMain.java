@@ -337,7 +337,9 @@ public class MarketplaceClientMain {
                 System.out.printf("Item ID: %d | Amount: $%.2f | Time: %s\n", 
                     transaction.getItemId(), transaction.getAmount(), transaction.getTimestamp());
                 
-                if (transaction.getBuyer().equals(client.getLoggedInUser())) {
+                if (transaction.isRefund()) {
+                    System.out.println("Type: Refund from " + transaction.getSeller());
+                } else if (transaction.getBuyer().equals(client.getLoggedInUser())) {
                     System.out.println("Type: Purchase from " + transaction.getSeller());
                 } else {
                     System.out.println("Type: Sale to " + transaction.getBuyer());
@@ -3,6 +3,12 @@ package client;
 import static org.junit.Assert.*;
 import org.junit.*;
 import database.*;
+import server.MarketplaceServer;
+import server.NioMarketplaceServer;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class MarketplaceClientTest {
     private MarketplaceClient client;
@@ -34,4 +40,255 @@ public class MarketplaceClientTest {
         assertFalse("Client should not be connected after disconnect", client.isConnected());
         assertNull("Logged in user should be null after disconnect", client.getLoggedInUser());
     }
+    
+    @Test
+    public void testBinaryProtocolWithCurrentServer() throws IOException {
+        File dataFile = File.createTempFile("client_test", ".ser");
+        dataFile.delete();
+        int testPort = 23459;
+        MarketplaceServer server = new MarketplaceServer(new Database(dataFile.getPath(), false));
+        server.start(testPort);
+        try {
+            assertTrue("Client should connect", client.connect("localhost", testPort));
+            assertTrue("Current server should accept the binary protocol", client.isUsingBinaryProtocol());
+            
+            assertTrue("Registration should succeed", client.register("binary", "pw").isSuccess());
+            assertTrue("Login should succeed", client.login("binary", "pw").isSuccess());
+            TransactionResult added = client.addItem("Kettle", "Electric kettle", 25.0);
+            assertTrue("Item should be added", added.isSuccess());
+            
+            List<Item> items = client.searchItems("kettle");
+            assertEquals("Item should be found", 1, items.size());
+            assertEquals("Item ID should match", added.getItemId(), items.get(0).getId());
+            assertEquals("Balance should be readable", 100.0, client.getBalance(), 0.001);
+            assertTrue("Messages should be empty", client.getMessages().isEmpty());
+            
+            client.sendMessage("binary", "first", 0);
+            client.sendMessage("binary", "second", 0);
+            List<Message> page = client.getMessagesSince(0, 1);
+            assertEquals("Page should respect the limit", 1, page.size());
+            List<Message> newer = client.getMessagesSince(page.get(0).getSequence(), 10);
+            assertEquals("Only newer messages should be fetched", "second", newer.get(0).getContent());
+            assertTrue("Nothing should follow the newest message",
+                       client.getMessagesSince(newer.get(0).getSequence(), 10).isEmpty());
+            assertTrue("Transactions should be empty", client.getTransactionsSince(0, 10).isEmpty());
+            
+            client.addItem("Cheap kettle", "Stovetop kettle", 5.0);
+            SearchPage cheapest = client.searchItems("kettle", SearchPage.Order.PRICE, null, 1);
+            assertEquals("Cheapest item should come first", 5.0, cheapest.getItems().get(0).getPrice(), 0.0);
+            SearchPage next = client.searchItems("kettle", SearchPage.Order.PRICE, cheapest.getNextPageToken(), 1);
+            assertEquals("Next page should continue the order", added.getItemId(), next.getItems().get(0).getId());
+            assertFalse("Nothing should follow the last page", next.hasNextPage());
+            long hits = client.getItemCache().getHitCount();
+            assertEquals("Repeated page should match", cheapest.getItems().get(0).getId(),
+                         client.searchItems("kettle", SearchPage.Order.PRICE, null, 1).getItems().get(0).getId());
+            assertEquals("Repeated page should come from the cache", hits + 1, client.getItemCache().getHitCount());
+            client.disconnect();
+        } finally {
+            server.stop();
+            dataFile.delete();
+        }
+    }
+    
+    @Test
+    public void testFallsBackToObjectStreamsWithOldServer() throws Exception {
+        // Behaves like a server from before the binary protocol
+        ServerSocket oldServer = new ServerSocket(23460);
+        Thread serverThread = new Thread(() -> {
+            while (!oldServer.isClosed()) {
+                try (Socket socket = oldServer.accept()) {
+                    ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+                    ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+                    assertEquals("Command should arrive as an object", "REGISTER", ois.readObject());
+                    ois.readObject();
+                    ois.readObject();
+                    oos.writeObject(new TransactionResult(true, "Registration successful"));
+                    oos.flush();
+                    ois.readObject();
+                } catch (IOException | ClassNotFoundException e) {
+                    // The binary attempt is refused by closing the connection
+                }
+            }
+        });
+        serverThread.start();
+        try {
+            assertTrue("Client should connect", client.connect("localhost", 23460));
+            assertFalse("Old server should get object streams", client.isUsingBinaryProtocol());
+            assertTrue("Commands should work over object streams", client.register("legacy", "pw").isSuccess());
+            client.disconnect();
+        } finally {
+            oldServer.close();
+            serverThread.join(5000);
+        }
+    }
+    
+    @Test
+    public void testRequestsInFlightAtOnce() throws Exception {
+        File dataFile = File.createTempFile("client_test", ".ser");
+        dataFile.delete();
+        int testPort = 23461;
+        MarketplaceServer server = new MarketplaceServer(new Database(dataFile.getPath(), false));
+        server.start(testPort);
+        try {
+            assertTrue("Client should connect", client.connect("localhost", testPort));
+            client.register("multi", "pw");
+            client.login("multi", "pw");
+            for (int i = 0; i < 20; i++) {
+                client.addItem("Gadget" + (1000 + i), "Gadget number " + i, i);
+            }
+            
+            // Many requests sent before any reply is read; each must get its own reply
+            List<CompletableFuture<Object>> searches = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                searches.add(client.submit("SEARCH_ITEMS", "gadget" + (1000 + i)));
+            }
+            CompletableFuture<Object> balance = client.submit("GET_BALANCE");
+            for (int i = 0; i < 20; i++) {
+                List<?> items = (List<?>) searches.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals("Search " + i + " should get its own reply", 1, items.size());
+                assertEquals("Search " + i + " should get its own reply", "Gadget" + (1000 + i),
+                             ((Item) items.get(0)).getTitle());
+            }
+            assertEquals("Balance should be answered too", 100.0, (Double) balance.get(10, TimeUnit.SECONDS), 0.001);
+            
+            // The blocking methods can be shared by several threads
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            List<Future<Integer>> counts = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                counts.add(pool.submit(() -> client.getUserItems().size()));
+            }
+            for (Future<Integer> count : counts) {
+                assertEquals("Every thread should see all items", 20, (int) count.get(10, TimeUnit.SECONDS));
+            }
+            pool.shutdown();
+            client.disconnect();
+        } finally {
+            server.stop();
+            dataFile.delete();
+        }
+    }
+    
+    @Test
+    public void testPendingRequestsFailWhenConnectionCloses() throws Exception {
+        // Accepts the binary protocol, then hangs up without answering
+        ServerSocket silentServer = new ServerSocket(23462);
+        Thread serverThread = new Thread(() -> {
+            try (Socket socket = silentServer.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(in.readInt());
+                out.flush();
+                WireProtocol.readFrame(in);
+            } catch (IOException e) {
+                // Test failures show up on the client side
+            }
+        });
+        serverThread.start();
+        try {
+            assertTrue("Client should connect", client.connect("localhost", 23462));
+            CompletableFuture<Object> reply = client.submit("GET_BALANCE");
+            try {
+                reply.get(10, TimeUnit.SECONDS);
+                fail("Request should fail when the connection closes");
+            } catch (ExecutionException e) {
+                assertTrue("Failure should be an I/O error", e.getCause() instanceof IOException);
+            }
+            assertEquals("Later requests should fail at once", -1, client.getBalance(), 0.0);
+        } finally {
+            silentServer.close();
+            serverThread.join(5000);
+        }
+    }
+    
+    /**
+     * Checks that a subscribed seller is told about a message, the sale and the new balances.
+     */
+    private void checkEventsArePushed(int testPort) throws Exception {
+        MarketplaceClient buyer = new MarketplaceClient();
+        BlockingQueue<Object> sellerEvents = new LinkedBlockingQueue<>();
+        BlockingQueue<Object> buyerEvents = new LinkedBlockingQueue<>();
+        try {
+            assertTrue("Seller should connect", client.connect("localhost", testPort));
+            assertTrue("Buyer should connect", buyer.connect("localhost", testPort));
+            client.addEventListener(new MarketplaceEventListener() {
+                @Override
+                public void onMessageReceived(Message message) {
+                    sellerEvents.add(message);
+                }
+                
+                @Override
+                public void onItemSold(Transaction transaction) {
+                    sellerEvents.add(transaction);
+                }
+                
+                @Override
+                public void onBalanceChanged(double balance) {
+                    sellerEvents.add(balance);
+                }
+            });
+            buyer.addEventListener(new MarketplaceEventListener() {
+                @Override
+                public void onBalanceChanged(double balance) {
+                    buyerEvents.add(balance);
+                }
+            });
+            
+            // Subscribing before login: the subscription follows the login
+            assertTrue("Subscription should succeed", client.subscribe().isSuccess());
+            client.register("seller", "pw");
+            client.login("seller", "pw");
+            buyer.register("buyer", "pw");
+            buyer.login("buyer", "pw");
+            assertTrue("Buyer should be able to subscribe", buyer.subscribe().isSuccess());
+            int itemId = client.addItem("Vase", "Blue vase", 30.0).getItemId();
+            
+            assertTrue("Message should be sent", buyer.sendMessage("seller", "Is it chipped?", itemId).isSuccess());
+            Object event = sellerEvents.poll(10, TimeUnit.SECONDS);
+            assertTrue("Seller should be told about the message", event instanceof Message);
+            assertEquals("Pushed message should match", "Is it chipped?", ((Message) event).getContent());
+            
+            assertTrue("Purchase should succeed", buyer.buyItem(itemId).isSuccess());
+            event = sellerEvents.poll(10, TimeUnit.SECONDS);
+            assertTrue("Seller should be told about the sale", event instanceof Transaction);
+            assertEquals("Pushed sale should match", itemId, ((Transaction) event).getItemId());
+            assertEquals("Seller should be told the new balance", 130.0,
+                         (Double) sellerEvents.poll(10, TimeUnit.SECONDS), 0.001);
+            assertEquals("Buyer should be told the new balance", 70.0,
+                         (Double) buyerEvents.poll(10, TimeUnit.SECONDS), 0.001);
+            
+            // Replies still match their requests while events arrive
+            assertEquals("Balance should be readable", 130.0, client.getBalance(), 0.001);
+        } finally {
+            buyer.disconnect();
+            client.disconnect();
+        }
+    }
+    
+    @Test
+    public void testEventsArePushed() throws Exception {
+        File dataFile = File.createTempFile("client_test", ".ser");
+        dataFile.delete();
+        MarketplaceServer server = new MarketplaceServer(new Database(dataFile.getPath(), false));
+        server.start(23466);
+        try {
+            checkEventsArePushed(23466);
+        } finally {
+            server.stop();
+            dataFile.delete();
+        }
+    }
+    
+    @Test
+    public void testEventsArePushedByNioServer() throws Exception {
+        File dataFile = File.createTempFile("client_test", ".ser");
+        dataFile.delete();
+        MarketplaceServer server = new NioMarketplaceServer(new Database(dataFile.getPath(), false), 1, 2);
+        server.start(23467);
+        try {
+            checkEventsArePushed(23467);
+        } finally {
+            server.stop();
+            dataFile.delete();
+        }
+    }
 }
@@ -0,0 +1,37 @@
+package client;
+import database.*;
+
+/**
+ * MarketplaceEventListener
+ *
+ * Receives the events the server pushes to a subscribed client. Methods are called on the
+ * client's reader thread, so they must return quickly; GUI code should hand the event to the
+ * event dispatch thread. Every method does nothing by default.
+ * 
+ * @author L10-Team1 
+ *
+ * @version April 2024
+ *
+ */
+public interface MarketplaceEventListener {
+    /**
+     * Called when a message is sent to the logged-in user
+     * @param message The new message
+     */
+    default void onMessageReceived(Message message) {
+    }
+    
+    /**
+     * Called when the logged-in user buys or sells an item
+     * @param transaction The sale
+     */
+    default void onItemSold(Transaction transaction) {
+    }
+    
+    /**
+     * Called when the balance of the logged-in user changes
+     * @param balance The new balance
+     */
+    default void onBalanceChanged(double balance) {
+    }
+}
@@ -0,0 +1,84 @@
+package database;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * AtomicFiles class
+ *
+ * Replaces files so that a crash at any moment leaves either the complete old contents or the
+ * complete new ones, never a truncated mix. New contents are written to a temporary file next to
+ * the target, forced to disk, and renamed over the target; the directory is then forced so the
+ * rename itself survives a crash.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+final class AtomicFiles {
+    
+    /**
+     * Callback used to write the new contents of a file.
+     */
+    interface Contents {
+        void writeTo(OutputStream out) throws IOException;
+    }
+    
+    private AtomicFiles() {
+    }
+    
+    /**
+    * Writes new contents to a file, replacing the old ones atomically.
+    * If writing fails the old file is left as it was.
+    *
+    * @param target file to replace
+    * @param contents writes the new contents
+    * @throws IOException if the contents cannot be written
+    */
+    static void write(File target, Contents contents) throws IOException {
+        File temp = new File(target.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+                BufferedOutputStream out = new BufferedOutputStream(fileOut, 64 * 1024);
+                contents.writeTo(out);
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            replace(temp, target);
+        } finally {
+            temp.delete();
+        }
+    }
+    
+    /**
+    * Renames a file that is already on disk over the target, replacing it atomically.
+    *
+    * @param source complete new file, in the same directory as the target
+    * @param target file to replace
+    * @throws IOException if the file cannot be renamed
+    */
+    static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+    
+    /**
+    * Forces a directory's entries to disk. Not every platform can open a directory;
+    * there the rename is left to the file system.
+    */
+    private static void syncDirectory(File directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on Windows; NTFS makes the rename durable itself
+        }
+    }
+}
@@ -1,129 +1,959 @@
 package database;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToLongFunction;
 
 /**
  * Database class
  *
  * This class implements the DatabaseInterface and provides methods to manage users, items, messages, and transactions.
  * Also handles loading and saving data to disk.
- * All methods are synchronized to ensure thread safety.
- * 
- * @author L10-Team1 
+ *
+ * Thread safety: users live in a concurrent map and items in an IntObjectMap, so lookups take no lock at all.
+ * Mutations of a single user or item are serialized by a striped per-entity lock, the message and
+ * transaction lists are guarded by a read-write lock, and the search index by its own read-write lock.
+ * A purchase changes an item and two users at once; it takes the item's lock and then the users'
+ * locks in stripe order, so purchases touching different entities still run in parallel.
+ * Every mutation also holds the shared side of the snapshot lock, which snapshots take exclusively
+ * while they copy the data, so that a snapshot and the journal position it records always agree.
+ * The copy is written to disk after the lock is released, to a temporary file that then atomically
+ * replaces the data file.
+ *
+ * In journaled mode every mutation is appended to a write-ahead journal and saveToDisk() only
+ * flushes the journal. A background thread periodically compacts the journal into a full snapshot.
+ * Purchases additionally wait until their record is fsynced; concurrent purchases share one fsync
+ * through a group commit.
+ *
+ * A journaled database can be the primary of replicas: its journal records are kept in a
+ * ReplicationLog once flushed, and a replica applies them in order to a database of its own, starting
+ * from a snapshot when it is new or has fallen too far behind. A replica's snapshots record the last
+ * primary record they contain, so a restarted replica continues from there.
+ *
+ * @author L10-Team1
  *
  * @version April 2024
  *
  */
 public class Database implements DatabaseInterface {
-    private Map<String, User> users; // Map of users (username, User object) pairs
-    private Map<Integer, Item> items; // Map of items (itemID, Item object) pairs
-    private List<Message> messages; // List of messages sent
-    private List<Transaction> transactions; // List of transactions made
-    private int nextItemId; // Next item ID to be assigned
+    public static final String DEFAULT_DATA_FILE = "marketplace_data.ser"; // Default serialized data file
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 30; // How often the journal is compacted
+    private static final int CHECKPOINT_RECORD_THRESHOLD = 10000; // Journal size that triggers an early compaction
+    private static final int LOCK_STRIPES = 64; // Number of per-entity lock stripes
+    
+    private volatile Map<String, User> users; // Map of users (username, User object) pairs
+    private volatile IntObjectMap<Item> items; // Map of items (itemID, Item object) pairs, keys not boxed
+    private List<Message> messages; // List of messages sent, guarded by historyLock
+    private List<Transaction> transactions; // List of transactions made, guarded by historyLock
+    private Map<String, List<Message>> messagesByUser; // Messages each user sent or received, guarded by historyLock
+    private Map<String, List<Transaction>> transactionsByUser; // Transactions each user took part in, guarded by historyLock
+    private final AtomicInteger nextItemId; // Next item ID to be assigned
+    private final int itemIdStride; // Distance between the item IDs this database assigns, the number of shards
+    private final IdAllocator transactionIds; // Assigns transaction IDs
+    private final SearchIndex searchIndex; // Inverted n-gram index over unsold items, guarded by indexLock
+    private final Map<String, ConcurrentSkipListMap<Integer, Item>> itemsBySeller; // Seller -> their items by ID
+    private final Item.SoldListener soldListener; // Keeps the indexes in sync when an item is sold
+    private final Map<String, String> usernames; // One shared String per username, referred to by the history
+    private final Set<Long> remoteSales; // IDs of the purchases paid on another shard and sold here
+    
+    private final StripedLock userLocks = new StripedLock(LOCK_STRIPES); // Per-username mutation locks
+    private final StripedLock itemLocks = new StripedLock(LOCK_STRIPES); // Per-item mutation locks
+    private final ReentrantReadWriteLock historyLock = new ReentrantReadWriteLock(); // Messages and transactions
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock(); // Search index
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock(); // Mutations shared, snapshot copies exclusive
+    private final ReentrantLock snapshotWriterLock = new ReentrantLock(); // Writes one snapshot at a time, in order
     
-    private final String DATA_FILE = "marketplace_data.ser"; // File name for serialized data file
+    private final String DATA_FILE; // File name for serialized data file
+    private final Journal journal; // Write-ahead journal, null when not in journaled mode
+    private final GroupCommit groupCommit; // Batches the fsyncs purchases wait for, null when not journaled
+    private volatile boolean replaying; // True while journal records are being applied
+    private volatile ReplicationLog replicationLog; // Journal records kept for replicas, null until enabled
+    private volatile long replicatedSequence; // Last primary journal record applied, on a replica
+    private volatile boolean mappedItems; // Snapshots write the items to the mapped item store
+    private ScheduledExecutorService checkpointer; // Background journal compaction
+    private final AtomicBoolean checkpointQueued = new AtomicBoolean(false);
     
     public Database() {
-        this.users = new HashMap<>();
-        this.items = new HashMap<>();
+        this(DEFAULT_DATA_FILE, false);
+    }
+    
+    /**
+    * Creates a database using the default data file.
+    * @param journaled true to persist mutations through the write-ahead journal
+    */
+    public Database(boolean journaled) {
+        this(DEFAULT_DATA_FILE, journaled);
+    }
+    
+    /**
+    * Creates a database backed by the given data file.
+    * In journaled mode the journal is kept next to it with a ".journal" extension.
+    * @param dataFile path of the snapshot file
+    * @param journaled true to persist mutations through the write-ahead journal
+    */
+    public Database(String dataFile, boolean journaled) {
+        this(dataFile, journaled, 0, 1);
+    }
+    
+    /**
+    * Creates the database of one shard of a partitioned marketplace.
+    * Its item IDs are the shard number plus a multiple of the shard count, so the shard holding
+    * an item can be told from its ID, and its transaction IDs carry the shard number.
+    * @param dataFile path of the snapshot file
+    * @param journaled true to persist mutations through the write-ahead journal
+    * @param shard number of this shard, from 0
+    * @param shardCount number of shards
+    */
+    public Database(String dataFile, boolean journaled, int shard, int shardCount) {
+        if (shard < 0 || shard >= shardCount) {
+            throw new IllegalArgumentException("Shard " + shard + " out of range for " + shardCount + " shards");
+        }
+        this.users = new ConcurrentHashMap<>();
+        this.items = new IntObjectMap<>();
         this.messages = new ArrayList<>();
         this.transactions = new ArrayList<>();
-        this.nextItemId = 1;
+        this.messagesByUser = new HashMap<>();
+        this.transactionsByUser = new HashMap<>();
+        this.nextItemId = new AtomicInteger(shard + 1);
+        this.itemIdStride = shardCount;
+        this.transactionIds = new IdAllocator(shard);
+        this.searchIndex = new SearchIndex();
+        this.itemsBySeller = new ConcurrentHashMap<>();
+        this.soldListener = this::itemSoldChanged;
+        this.usernames = new ConcurrentHashMap<>();
+        this.remoteSales = ConcurrentHashMap.newKeySet();
+        this.DATA_FILE = dataFile;
+        this.journal = journaled ? new Journal(new File(journalFileName(dataFile))) : null;
+        this.groupCommit = journaled ? new GroupCommit(journal, GroupCommit.DEFAULT_WINDOW_MILLIS) : null;
+    }
+    
+    /**
+    * Returns the journal file name belonging to a snapshot file.
+    */
+    private static String journalFileName(String dataFile) {
+        return dataFile.replaceFirst("\\.ser$", "") + ".journal";
+    }
+    
+    /**
+    * Returns the item store file name belonging to a snapshot file.
+    */
+    private static String itemStoreFileName(String dataFile) {
+        return dataFile.replaceFirst("\\.ser$", "") + ".items";
+    }
+    
+    /**
+    * Returns true if the database persists through the write-ahead journal.
+    * @return journaled mode
+    */
+    public boolean isJournaled() {
+        return journal != null;
     }
     
     /**
     * Loads the database from disk.
-    * If the file does not exist and Exception is thrown, it will be caught and handled.
+    * In journaled mode the journal records written after the snapshot are replayed on top of it.
+    * If the file does not exist the database starts empty.
+    * @throws UncheckedIOException if the snapshot or its item store exists but cannot be read, or the
+    * journal cannot be replayed; the files are left untouched and no journal is opened
     */
     public void loadFromDisk() {
-        synchronized(this) {
+        snapshotLock.writeLock().lock();
+        try {
+            long snapshotSequence = 0;
             File file = new File(DATA_FILE);
-            if (!file.exists()) {
+            if (file.exists()) {
+                DatabaseData data;
+                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+                    data = (DatabaseData) ois.readObject();
+                    if (data.isItemsInStore()) {
+                        loadStoredItems(data);
+                    }
+                } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                    // Starting empty would let the next save or checkpoint overwrite the only copy of the data
+                    throw new UncheckedIOException(new IOException("Cannot load database from " + DATA_FILE +
+                                                                   ": " + e.getMessage(), e));
+                }
+                install(data);
+                snapshotSequence = data.getLastJournalSequence();
+                System.out.println("Database loaded from disk. Transactions: " + this.transactions.size());
+            }
+            
+            if (journal == null) {
+                // Only a replica's snapshots record a journal position: the primary's it has applied
+                replicatedSequence = snapshotSequence;
                 return;
             }
             
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                DatabaseData data = (DatabaseData) ois.readObject();
-                this.users = data.getUsers();
-                this.items = data.getItems();
-                this.messages = data.getMessages();
-                this.nextItemId = data.getNextItemId();
-                this.transactions = data.getTransactions();
-                if (this.transactions == null) this.transactions = new ArrayList<>();
-                System.out.println("Database loaded from disk. Transactions: " + this.transactions.size());
-            } catch (Exception e) {
-                System.err.println("Error loading database from disk: " + e.getMessage());
+            try {
+                replaying = true;
+                journal.replay(snapshotSequence, this);
+                System.out.println("Journal replayed up to record " + journal.getLastSequence());
+                journal.open(snapshotSequence);
+            } catch (IOException e) {
+                // A checkpoint now would drop the records that could not be replayed
+                throw new UncheckedIOException(new IOException("Cannot replay journal: " + e.getMessage(), e));
+            } finally {
+                replaying = false;
+            }
+            startCheckpointer();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+    * Reads the items of a snapshot that were written to the item store instead of the snapshot.
+    * The store is written first, so after a crash in between it can be newer than the snapshot; the
+    * journal records replayed afterwards set items to absolute states, so applying them again is harmless.
+    * @param data snapshot to fill in
+    * @throws IOException if the store cannot be read or is older than the snapshot
+    */
+    private void loadStoredItems(DatabaseData data) throws IOException {
+        MappedItemStore store = MappedItemStore.open(new File(itemStoreFileName(DATA_FILE)));
+        if (store.getJournalSequence() < data.getLastJournalSequence()) {
+            throw new IOException("Item store is older than the snapshot");
+        }
+        data.getItems().putAll(store.items());
+    }
+    
+    /**
+    * Replaces the whole contents of the database with a snapshot. Caller holds the snapshot lock.
+    * @param data the snapshot
+    */
+    private void install(DatabaseData data) {
+        List<Transaction> loadedTransactions = data.getTransactions();
+        historyLock.writeLock().lock();
+        try {
+            this.users = new ConcurrentHashMap<>(data.getUsers());
+            this.items = new IntObjectMap<>(data.getItems().size());
+            for (Map.Entry<Integer, Item> entry : data.getItems().entrySet()) {
+                this.items.put(entry.getKey(), entry.getValue());
+            }
+            this.messages = data.getMessages();
+            this.transactions = (loadedTransactions != null) ? loadedTransactions : new ArrayList<>();
+            this.nextItemId.set(data.getNextItemId());
+            // Snapshots written before usernames were shared hold a copy of a name per message and transaction
+            usernames.clear();
+            for (String username : users.keySet()) {
+                sharedUsername(username);
+            }
+            for (Message message : messages) {
+                shareUsernames(message);
+            }
+            remoteSales.clear();
+            for (Transaction transaction : transactions) {
+                shareUsernames(transaction);
+                noteRemoteSale(transaction);
+            }
+            // Older snapshots have no next ID; their IDs were below 2^31 and are skipped as loaded
+            this.transactionIds.advancePast(data.getNextTransactionId() - 1);
+            for (Transaction transaction : this.transactions) {
+                this.transactionIds.advancePast(transaction.getId());
+            }
+            if (data.getMessagesByUser() != null && data.getTransactionsByUser() != null) {
+                this.messagesByUser = data.getMessagesByUser();
+                this.transactionsByUser = data.getTransactionsByUser();
+            } else {
+                rebuildHistoryIndexes();
             }
+            assignMissingSequences();
+        } finally {
+            historyLock.writeLock().unlock();
         }
+        rebuildIndexes();
     }
     
     /**
     * Saves the database to disk.
-    * If an Exception is thrown, it will be caught and handled. 
+    * In journaled mode only the journal is flushed; the full snapshot is written by checkpoint().
+    * If an Exception is thrown, it will be caught and handled.
     */
     public void saveToDisk() {
-        synchronized(this) {
-            DatabaseData data = new DatabaseData(users, items, messages, transactions, nextItemId);
+        if (journal == null) {
+            writeSnapshot();
+            return;
+        }
+        
+        try {
+            journal.flush(false);
+        } catch (IOException e) {
+            System.err.println("Error flushing journal: " + e.getMessage());
+        }
+        checkpointIfLarge();
+    }
+    
+    /**
+    * Returns once the journal record with the given sequence number is on the storage device.
+    * Callers waiting at the same time share one fsync. Without a journal the whole database
+    * is saved instead.
+    * @param sequence sequence number of the record, 0 if nothing was journaled
+    */
+    private void awaitDurable(long sequence) {
+        if (journal == null) {
+            writeSnapshot();
+            return;
+        }
+        
+        try {
+            groupCommit.awaitDurable(sequence);
+        } catch (IOException e) {
+            System.err.println("Error syncing journal: " + e.getMessage());
+        }
+        checkpointIfLarge();
+    }
+    
+    /**
+    * Queues an early checkpoint once the journal has grown past the record threshold.
+    */
+    private void checkpointIfLarge() {
+        if (journal.getRecordCount() >= CHECKPOINT_RECORD_THRESHOLD) {
+            requestCheckpoint();
+        }
+    }
+    
+    /**
+    * Writes a full snapshot of the database and empties the journal.
+    * Called periodically from the background checkpoint thread in journaled mode.
+    */
+    public void checkpoint() {
+        writeSnapshot();
+    }
+    
+    /**
+    * Stops background work and writes a final checkpoint.
+    * Only has an effect in journaled mode, once the database has been loaded.
+    */
+    public void close() {
+        if (journal == null || !journal.isOpen()) {
+            return;
+        }
+        groupCommit.close();
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+            try {
+                checkpointer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkpoint();
+        journal.close();
+    }
+    
+    /**
+    * Serializes the whole database to the data file and, in journaled mode, drops the journal
+    * records it contains. Mutations are held off only while a consistent copy of the data is taken;
+    * the copy is then serialized and written without blocking them. The file is replaced atomically,
+    * so a crash while saving leaves the previous snapshot intact.
+    * With the mapped item store enabled, the items are written to the store file first and left out
+    * of the data file.
+    * @return true if the snapshot was written
+    */
+    private boolean writeSnapshot() {
+        snapshotWriterLock.lock();
+        try {
+            DatabaseData data;
+            long journalSequence = 0;
+            boolean itemsToStore = mappedItems;
+            snapshotLock.writeLock().lock();
+            try {
+                if (journal != null) {
+                    journal.flush(false);
+                    journalSequence = journal.getLastSequence();
+                } else {
+                    journalSequence = replicatedSequence;
+                }
+                data = copyData(journalSequence);
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
             
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(DATA_FILE))) {
+            if (itemsToStore) {
+                MappedItemStore.write(new File(itemStoreFileName(DATA_FILE)), data.getItems().values(), journalSequence);
+                data.getItems().clear();
+                data.setItemsInStore(true);
+            }
+            AtomicFiles.write(new File(DATA_FILE), out -> {
+                ObjectOutputStream oos = new ObjectOutputStream(out);
                 oos.writeObject(data);
-                System.out.println("Database saved to disk");
-            } catch (IOException e) {
-                System.err.println("Error saving database to disk: " + e.getMessage());
+                oos.flush();
+            });
+            System.out.println("Database saved to disk");
+            if (journal != null) {
+                journal.truncate(journalSequence);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving database to disk: " + e.getMessage());
+            return false;
+        } finally {
+            snapshotWriterLock.unlock();
+        }
+    }
+    
+    /**
+    * Makes snapshots write the items to a memory-mapped column store next to the data file instead
+    * of serializing them with the rest of the data, which makes loading large catalogs much faster.
+    * A snapshot records where its items are, so either kind loads whether or not this is enabled.
+    * @throws IllegalStateException if the database is not journaled
+    */
+    public void enableMappedItemStore() {
+        if (journal == null) {
+            // The journal is what brings the two files back in step after a crash between them
+            throw new IllegalStateException("The mapped item store needs a journaled database");
+        }
+        mappedItems = true;
+    }
+    
+    /**
+    * Starts keeping journal records for replicas. Call after loadFromDisk; records written before
+    * are sent to replicas as part of a snapshot.
+    * @throws IllegalStateException if the database is not journaled
+    */
+    public void enableReplication() {
+        if (journal == null) {
+            throw new IllegalStateException("Replication needs a journaled database");
+        }
+        snapshotLock.writeLock().lock();
+        try {
+            journal.flush(false);
+            replicationLog = journal.startReplication(ReplicationLog.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            System.err.println("Error flushing journal: " + e.getMessage());
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+    * Returns the sequence number of the newest journal record replicas can be sent.
+    * @return sequence number, 0 if replication is not enabled
+    */
+    public long getReplicationSequence() {
+        ReplicationLog log = replicationLog;
+        return (log == null) ? 0 : log.getPublishedSequence();
+    }
+    
+    /**
+    * Returns the journal records a replica needs next, waiting a little for new ones.
+    * @param afterSequence last record the replica has applied
+    * @param max most records returned
+    * @param waitMillis longest wait for a new record
+    * @return records to pass to applyReplicatedRecord in order, empty if nothing is new,
+    *         or null if the replica has to be sent a snapshot
+    * @throws InterruptedException if interrupted while waiting
+    */
+    public List<byte[]> getReplicationRecords(long afterSequence, int max, long waitMillis) throws InterruptedException {
+        ReplicationLog log = replicationLog;
+        return (log == null) ? null : log.recordsAfter(afterSequence, max, waitMillis);
+    }
+    
+    /**
+    * Writes a snapshot for a replica to install with installReplicaSnapshot. Like writeSnapshot,
+    * mutations are only held off while the data is copied.
+    * @param out stream to write the snapshot to
+    * @return sequence number of the last journal record the snapshot contains
+    * @throws IOException if the snapshot cannot be written
+    */
+    public long writeReplicaSnapshot(OutputStream out) throws IOException {
+        DatabaseData data;
+        long journalSequence;
+        snapshotLock.writeLock().lock();
+        try {
+            journal.flush(false);
+            journalSequence = journal.getLastSequence();
+            data = copyData(journalSequence);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(data);
+        oos.flush();
+        return journalSequence;
+    }
+    
+    /**
+    * Replaces the contents of a replica with a snapshot of its primary.
+    * @param in stream holding a snapshot written by writeReplicaSnapshot
+    * @throws IOException if the snapshot cannot be read
+    */
+    public void installReplicaSnapshot(InputStream in) throws IOException {
+        DatabaseData data;
+        try {
+            data = (DatabaseData) new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Invalid replica snapshot: " + e.getMessage());
+        }
+        snapshotLock.writeLock().lock();
+        try {
+            install(data);
+            replicatedSequence = data.getLastJournalSequence();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+    * Applies a journal record of the primary to a replica. Records must be applied in order by one
+    * thread; a record the replica already has is skipped. Each record takes the same item and user
+    * locks as the change it repeats, so it is applied as one step just as on the primary.
+    * @param record record as returned by getReplicationRecords
+    * @throws IOException if the record is malformed or does not follow the last one applied
+    */
+    public void applyReplicatedRecord(byte[] record) throws IOException {
+        long sequence = Journal.sequenceOf(record);
+        if (sequence <= replicatedSequence) {
+            return;
+        }
+        if (sequence != replicatedSequence + 1) {
+            throw new IOException("Replicated record " + sequence + " does not follow " + replicatedSequence);
+        }
+        snapshotLock.readLock().lock();
+        try {
+            Journal.apply(record, this);
+            replicatedSequence = sequence;
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+    
+    /**
+    * Returns the last journal record of the primary a replica has applied.
+    * @return sequence number, 0 if none
+    */
+    public long getReplicatedSequence() {
+        return replicatedSequence;
+    }
+    
+    /**
+    * Copies everything a snapshot holds. Called while mutations are held off.
+    * Users and items are copied because they keep changing; messages and transactions do not
+    * change once stored, so only the collections holding them are copied.
+    * @param journalSequence last journal record the copy contains
+    * @return the copy
+    */
+    private DatabaseData copyData(long journalSequence) {
+        Map<String, User> userCopies = new HashMap<>();
+        for (User user : users.values()) {
+            userCopies.put(user.getUsername(), user.copy());
+        }
+        Map<Integer, Item> itemCopies = new HashMap<>();
+        for (Item item : items.values()) {
+            itemCopies.put(item.getId(), item.copy());
+        }
+        return new DatabaseData(userCopies, itemCopies, new ArrayList<>(messages), new ArrayList<>(transactions),
+                                nextItemId.get(), journalSequence, copyIndex(messagesByUser),
+                                copyIndex(transactionsByUser), transactionIds.peek());
+    }
+    
+    /**
+    * Copies a per-user history index, list by list.
+    */
+    private static <T> Map<String, List<T>> copyIndex(Map<String, List<T>> index) {
+        Map<String, List<T>> copy = new HashMap<>();
+        for (Map.Entry<String, List<T>> entry : index.entrySet()) {
+            copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return copy;
+    }
+    
+    /**
+    * Starts the background thread that periodically compacts the journal.
+    */
+    private void startCheckpointer() {
+        if (checkpointer != null) {
+            return;
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "database-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            if (journal.getRecordCount() > 0) {
+                checkpoint();
+            }
+        }, CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+    
+    /**
+    * Queues an early checkpoint on the background thread.
+    */
+    private void requestCheckpoint() {
+        if (checkpointer == null || !checkpointQueued.compareAndSet(false, true)) {
+            return;
+        }
+        checkpointer.execute(() -> {
+            checkpointQueued.set(false);
+            checkpoint();
+        });
+    }
+    
+    /**
+    * Rebuilds the in-memory indexes after the item map has been replaced.
+    */
+    private void rebuildIndexes() {
+        indexLock.writeLock().lock();
+        try {
+            searchIndex.clear();
+            itemsBySeller.clear();
+            for (Item item : items.values()) {
+                indexItem(item);
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+    * Rebuilds the per-user message and transaction indexes from the full history lists.
+    * Only needed for snapshots written before the indexes were persisted.
+    */
+    private void rebuildHistoryIndexes() {
+        messagesByUser = new HashMap<>();
+        transactionsByUser = new HashMap<>();
+        for (Message message : messages) {
+            indexMessage(message);
+        }
+        for (Transaction transaction : transactions) {
+            indexTransaction(transaction);
+        }
+    }
+    
+    /**
+    * Numbers the messages and transactions of snapshots written before sequence numbers existed.
+    * Sequence numbers are positions in the append-only history lists, so they are recomputed here
+    * exactly as addMessage and addTransaction would have assigned them.
+    */
+    private void assignMissingSequences() {
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i).getSequence() == 0) {
+                messages.get(i).setSequence(i + 1);
+            }
+        }
+        for (int i = 0; i < transactions.size(); i++) {
+            if (transactions.get(i).getSequence() == 0) {
+                transactions.get(i).setSequence(i + 1);
             }
         }
     }
     
+    /**
+    * Returns the shared instance of a username, registering the given one if the name is new.
+    * Usernames are kept for as long as the database runs, since history can outlive an account.
+    */
+    private String sharedUsername(String username) {
+        if (username == null) {
+            return null;
+        }
+        String shared = usernames.putIfAbsent(username, username);
+        return (shared != null) ? shared : username;
+    }
+    
+    /**
+    * Makes a message refer to the shared instances of its usernames, so millions of messages
+    * between a few thousand users hold a few thousand name strings rather than two each.
+    */
+    private void shareUsernames(Message message) {
+        message.setUsernames(sharedUsername(message.getSender()), sharedUsername(message.getRecipient()));
+    }
+    
+    /**
+    * Makes a transaction refer to the shared instances of its usernames.
+    */
+    private void shareUsernames(Transaction transaction) {
+        transaction.setUsernames(sharedUsername(transaction.getBuyer()), sharedUsername(transaction.getSeller()));
+    }
+    
+    /**
+    * Remembers a loaded transaction as the seller's half of a cross-shard purchase if its buyer is not
+    * a user of this database, so creditForSale recognizes a retried sale without searching the seller's
+    * history. Purchases whose buyer was removed since are remembered too; no shard retries those.
+    */
+    private void noteRemoteSale(Transaction transaction) {
+        if (!users.containsKey(transaction.getBuyer())) {
+            remoteSales.add(transaction.getId());
+        }
+    }
+    
+    /**
+    * Adds a message to the sender's and recipient's index entries. Caller holds historyLock.
+    */
+    private void indexMessage(Message message) {
+        addToUserIndex(messagesByUser, message.getSender(), message);
+        if (!message.getRecipient().equals(message.getSender())) {
+            addToUserIndex(messagesByUser, message.getRecipient(), message);
+        }
+    }
+    
+    /**
+    * Adds a transaction to the buyer's and seller's index entries. Caller holds historyLock.
+    */
+    private void indexTransaction(Transaction transaction) {
+        addToUserIndex(transactionsByUser, transaction.getBuyer(), transaction);
+        if (!transaction.getSeller().equals(transaction.getBuyer())) {
+            addToUserIndex(transactionsByUser, transaction.getSeller(), transaction);
+        }
+    }
+    
+    /**
+    * Appends a value to a user's entry in a per-user index.
+    */
+    private static <T> void addToUserIndex(Map<String, List<T>> index, String username, T value) {
+        index.computeIfAbsent(username, name -> new ArrayList<>()).add(value);
+    }
+    
+    /**
+    * Returns up to limit entries of a user's history whose sequence number is above afterSequence.
+    * History lists are in sequence order, so the first entry is found by binary search.
+    * Caller holds historyLock.
+    */
+    private static <T> List<T> historyAfter(List<T> history, ToLongFunction<T> sequenceOf,
+                                            long afterSequence, int limit) {
+        if (history == null) {
+            return new ArrayList<>();
+        }
+        int low = 0;
+        int high = history.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sequenceOf.applyAsLong(history.get(middle)) <= afterSequence) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int end = (limit <= 0) ? history.size() : (int) Math.min(history.size(), (long) low + limit);
+        return new ArrayList<>(history.subList(low, end));
+    }
+    
+    /**
+    * Registers an item with the indexes and listens for changes to its sold status.
+    */
+    private void indexItem(Item item) {
+        itemsBySeller.computeIfAbsent(item.getSeller(), seller -> new ConcurrentSkipListMap<>())
+                     .put(item.getId(), item);
+        indexLock.writeLock().lock();
+        try {
+            item.setSoldListener(soldListener);
+            if (!item.isSold()) {
+                searchIndex.add(item);
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+    * Removes an item from the indexes.
+    */
+    private void unindexItem(Item item) {
+        // compute() runs atomically per seller, so an empty entry is never dropped under a concurrent add
+        itemsBySeller.compute(item.getSeller(), (seller, sellerItems) -> {
+            if (sellerItems == null) {
+                return null;
+            }
+            sellerItems.remove(item.getId(), item);
+            return sellerItems.isEmpty() ? null : sellerItems;
+        });
+        indexLock.writeLock().lock();
+        try {
+            item.setSoldListener(null);
+            searchIndex.remove(item.getId());
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+    * Called when the sold status of an item held by the database flips.
+    * Sold items are dropped from the search index; unsold items are added back.
+    */
+    private void itemSoldChanged(Item item) {
+        ReentrantLock lock = itemLocks.lockFor(item.getId());
+        lock.lock();
+        try {
+            if (items.get(item.getId()) != item) {
+                return;
+            }
+            indexLock.writeLock().lock();
+            try {
+                if (item.isSold()) {
+                    searchIndex.remove(item.getId());
+                } else {
+                    searchIndex.add(item);
+                }
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+    * Appends a record to the journal if the database is journaled.
+    * Callers hold the lock of the entity being changed, so records for one entity
+    * reach the journal in the same order the changes were applied.
+    * Records are not written again while the journal itself is being replayed.
+    * @return sequence number of the record, 0 if nothing was written
+    */
+    private long log(byte type, Journal.RecordWriter writer) {
+        if (journal == null || replaying) {
+            return 0;
+        }
+        try {
+            return journal.append(type, writer);
+        } catch (IOException e) {
+            System.err.println("Error writing journal: " + e.getMessage());
+            return 0;
+        }
+    }
+    
     /**
     * Returns the user object for the given username.
     * @param username
     * @return User object
     */
     public User getUserByUsername(String username) {
-        synchronized(this) {
-            return users.get(username);
-        }
+        return (username == null) ? null : users.get(username);
     }
-
+    
     /**
     * Adds a user to the database.
     * @param user
     */
     public void addUser(User user) {
-        synchronized(this) {
+        ReentrantLock lock = userLocks.lockFor(user.getUsername());
+        snapshotLock.readLock().lock();
+        lock.lock();
+        try {
             users.put(user.getUsername(), user);
+            sharedUsername(user.getUsername());
+            log(Journal.ADD_USER_CENTS, out -> {
+                Journal.writeString(out, user.getUsername());
+                Journal.writeString(out, user.getPassword());
+                out.writeLong(user.getBalanceCents());
+            });
+        } finally {
+            lock.unlock();
+            snapshotLock.readLock().unlock();
         }
     }
     
     /**
-    * Removes a user from the database. 
+    * Adds a user unless the username is already taken. Checking and adding happen under the
+    * username's lock, so of two users registering the same name at once only one is added.
+    * @param user
+    * @return true if the user was added, false if the username was taken
+    */
+    public boolean addUserIfAbsent(User user) {
+        ReentrantLock lock = userLocks.lockFor(user.getUsername());
+        snapshotLock.readLock().lock();
+        lock.lock();
+        try {
+            if (users.putIfAbsent(user.getUsername(), user) != null) {
+                return false;
+            }
+            sharedUsername(user.getUsername());
+            log(Journal.ADD_USER_CENTS, out -> {
+                Journal.writeString(out, user.getUsername());
+                Journal.writeString(out, user.getPassword());
+                out.writeLong(user.getBalanceCents());
+            });
+            return true;
+        } finally {
+            lock.unlock();
+            snapshotLock.readLock().unlock();
+        }
+    }
+    
+    /**
+    * Removes a user from the database.
+    * The user's entries in the message and transaction indexes are dropped with the account;
+    * the other party of each message or transaction still sees it in their own history.
     * @param username
     */
     public void removeUser(String username) {
-        synchronized(this) {
+        ReentrantLock lock = userLocks.lockFor(username);
+        snapshotLock.readLock().lock();
+        lock.lock();
+        try {
             users.remove(username);
+            historyLock.writeLock().lock();
+            try {
+                messagesByUser.remove(username);
+                transactionsByUser.remove(username);
+            } finally {
+                historyLock.writeLock().unlock();
+            }
+            log(Journal.REMOVE_USER, out -> Journal.writeString(out, username));
+        } finally {
+            lock.unlock();
+            snapshotLock.readLock().unlock();
         }
     }
     
     /**
     * Adds an item to the database.
-    * @return 
+    * @return
     */
     public void addItem(Item item) {
-        synchronized(this) {
-            item.setId(nextItemId++);
-            items.put(item.getId(), item);
+        int id = nextItemId.getAndAdd(itemIdStride);
+        ReentrantLock lock = itemLocks.lockFor(id);
+        snapshotLock.readLock().lock();
+        lock.lock();
+        try {
+            item.setId(id);
+            items.put(id, item);
+            indexItem(item);
+            log(Journal.ADD_ITEM_CENTS, out -> {
+                out.writeInt(item.getId());
+                Journal.writeString(out, item.getTitle());
+                Journal.writeString(out, item.getDescription());
+                out.writeLong(item.getPriceCents());
+                Journal.writeString(out, item.getSeller());
+                out.writeBoolean(item.isSold());
+            });
+        } finally {
+            lock.unlock();
+            snapshotLock.readLock().unlock();
+        }
+    }
+    
+    /**
+    * Re-inserts an item with a known ID (used when replaying the journal and on replicas).
+    * Holds the item's lock, so a replaced item is swapped out in one step.
+    * @param id
+    * @param item
+    */
+    void restoreItem(int id, Item item) {
+        ReentrantLock lock = itemLocks.lockFor(id);
+        lock.lock();
+        try {
+            item.setId(id);
+            Item previous = items.put(id, item);
+            if (previous != null) {
+                unindexItem(previous);
+            }
+            indexItem(item);
+            nextItemId.accumulateAndGet(id + itemIdStride, Math::max);
+        } finally {
+            lock.unlock();
         }
     }
+    
     /**
     * Returns the item object for the given item ID.
     * @param id
     * @return Item object
     */
     public Item getItemById(int id) {
-        synchronized(this) {
-            return items.get(id);
-        }
+        return items.get(id);
     }
     
     /**
@@ -131,30 +961,133 @@ public class Database implements DatabaseInterface {
     * @param id
     */
     public void removeItem(int id) {
-        synchronized(this) {
-            items.remove(id);
+        ReentrantLock lock = itemLocks.lockFor(id);
+        snapshotLock.readLock().lock();
+        lock.lock();
+        try {
+            Item item = items.remove(id);
+            if (item != null) {
+                unindexItem(item);
+            }
+            log(Journal.REMOVE_ITEM, out -> out.writeInt(id));
+        } finally {
+            lock.unlock();
+            snapshotLock.readLock().unlock();
         }
     }
     
     /**
-    * Searches for items based on the given query.
+    * Returns every item listed by the given seller, sold or not, ordered by item ID.
+    * Read from the seller index without taking any lock.
+    * @param seller
+    * @return List of the seller's items
+    */
+    public List<Item> getItemsBySeller(String seller) {
+        ConcurrentSkipListMap<Integer, Item> sellerItems = itemsBySeller.get(seller);
+        return (sellerItems == null) ? new ArrayList<>() : new ArrayList<>(sellerItems.values());
+    }
+    
+    /**
+    * Removes every item listed by the given seller, e.g. when their account is deleted.
+    * Each removal is journaled like removeItem.
+    * @param seller
+    * @return List of the items that were removed
+    */
+    public List<Item> removeItemsBySeller(String seller) {
+        List<Item> removed = new ArrayList<>();
+        for (Item item : getItemsBySeller(seller)) {
+            ReentrantLock lock = itemLocks.lockFor(item.getId());
+            snapshotLock.readLock().lock();
+            lock.lock();
+            try {
+                if (items.remove(item.getId(), item)) {
+                    unindexItem(item);
+                    removed.add(item);
+                    log(Journal.REMOVE_ITEM, out -> out.writeInt(item.getId()));
+                }
+            } finally {
+                lock.unlock();
+                snapshotLock.readLock().unlock();
+            }
+        }
+        return removed;
+    }
+    
+    /**
+    * Searches for unsold items whose title or description contains the query.
+    * Answered from the inverted n-gram index instead of scanning every item, or from the
+    * search result cache when the same query was answered since the matching items last changed.
     * @param query
-    * @return List of items matching the query
+    * @return List of items matching the query, ordered by item ID
     */
     public List<Item> searchItems(String itemToSearch) {
-        synchronized(this) {
-            List<Item> results = new ArrayList<>();
-            String lower = itemToSearch.toLowerCase();
-            
-            for (Item item : items.values()) {
-                if (!item.isSold() && 
-                    (item.getTitle().toLowerCase().contains(lower) || 
-                     item.getDescription().toLowerCase().contains(lower))) {
-                    results.add(item);
-                }
+        indexLock.readLock().lock();
+        try {
+            return searchIndex.search(itemToSearch);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+    
+    /**
+    * Returns the hit, miss, eviction and invalidation counts of the search result cache.
+    * @return Statistics of the cache
+    */
+    public SearchCacheStats getSearchCacheStats() {
+        return searchIndex.getCacheStats();
+    }
+    
+    /**
+    * Returns one page of the unsold items whose title or description contains the query,
+    * in the given order. Pages are read from the sorted sets of the search index, so a
+    * page costs about the same however many items match.
+    * @param query text to search for, empty for every unsold item
+    * @param order order of the results
+    * @param pageToken token of the previous page, null for the first page
+    * @param pageSize most items on the page
+    * @return the page; empty and without a next page token if pageToken is invalid
+    */
+    public SearchPage searchItemsPage(String query, SearchPage.Order order, String pageToken, int pageSize) {
+        return searchItemsPage(query, order, pageToken, pageSize, 0);
+    }
+    
+    /**
+    * Returns one page of search results for a client that may already hold it.
+    * If the catalog is still at knownVersion the reply is a not modified page without items;
+    * otherwise items listed at or before knownVersion are replaced by placeholders.
+    * @param query text to search for, empty for every unsold item
+    * @param order order of the results
+    * @param pageToken token of the previous page, null for the first page
+    * @param pageSize most items on the page
+    * @param knownVersion catalog version of the client's copy of the page, 0 if it has none
+    * @return the page; empty and without a next page token if pageToken is invalid
+    */
+    public SearchPage searchItemsPage(String query, SearchPage.Order order, String pageToken, int pageSize,
+                                      long knownVersion) {
+        Item after = null;
+        if (pageToken != null) {
+            after = SearchPage.cursorFor(order, pageToken);
+            if (after == null) {
+                return new SearchPage(new ArrayList<>(), null);
+            }
+        }
+        indexLock.readLock().lock();
+        try {
+            if (knownVersion != 0 && knownVersion == searchIndex.getVersion()) {
+                return SearchPage.notModified(knownVersion);
+            }
+            SearchPage page = searchIndex.searchPage(query, order, after, Math.max(1, pageSize));
+            if (knownVersion == 0) {
+                return page;
             }
             
-            return results;
+            List<Item> items = new ArrayList<>(page.getItems().size());
+            for (Item item : page.getItems()) {
+                items.add((item.getVersion() <= knownVersion) ? Item.placeholder(item.getId(), item.getVersion()) : item);
+            }
+            return new SearchPage(items, page.getNextPageToken(), page.getCatalogVersion());
+        } finally {
+            indexLock.readLock().unlock();
         }
     }
     
@@ -163,58 +1096,383 @@ public class Database implements DatabaseInterface {
     * @param message
     */
     public void addMessage(Message message) {
-        synchronized(this) {
+        snapshotLock.readLock().lock();
+        historyLock.writeLock().lock();
+        try {
+            shareUsernames(message);
+            message.setSequence(messages.size() + 1);
             messages.add(message);
+            indexMessage(message);
+            log(Journal.ADD_MESSAGE, out -> {
+                Journal.writeString(out, message.getSender());
+                Journal.writeString(out, message.getRecipient());
+                Journal.writeString(out, message.getContent());
+                out.writeLong(message.getTimestamp().getTime());
+                out.writeInt(message.getItemId());
+            });
+        } finally {
+            historyLock.writeLock().unlock();
+            snapshotLock.readLock().unlock();
         }
     }
     
     /**
     * Returns the list of messages for the given user.
+    * Read from the per-user index, so the cost depends only on the user's own history.
     * @param username
-    * @return List of messages for the user
+    * @return List of messages for the user, oldest first
     */
     public List<Message> getMessagesForUser(String username) {
-        synchronized(this) {
-            List<Message> userMessages = new ArrayList<>();
+        historyLock.readLock().lock();
+        try {
+            List<Message> userMessages = messagesByUser.get(username);
+            return (userMessages == null) ? new ArrayList<>() : new ArrayList<>(userMessages);
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+    
+    /**
+    * Returns the messages of the given user stored after the given sequence number.
+    * A client that remembers the sequence number of the last message it has seen only
+    * fetches what arrived since, so a refresh costs as much as the new messages.
+    * @param username
+    * @param afterSequence sequence number of the last message already seen, 0 for the oldest page
+    * @param limit largest number of messages returned, 0 or less for no limit
+    * @return List of messages, oldest first
+    */
+    public List<Message> getMessagesForUserAfter(String username, long afterSequence, int limit) {
+        historyLock.readLock().lock();
+        try {
+            return historyAfter(messagesByUser.get(username), Message::getSequence, afterSequence, limit);
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+    
+    /**
+    * Adds a transaction to the database.
+    * In journaled mode the transaction is logged as a purchase: transactions are only recorded
+    * after PaymentProcessor has moved the money and marked the item sold, so replaying the
+    * record re-applies those changes as well.
+    * @param transaction
+    */
+    public void addTransaction(Transaction transaction) {
+        recordTransaction(transaction);
+    }
+    
+    /**
+    * Stores a transaction and journals it as a purchase, like addTransaction, or as a refund.
+    * A transaction without an ID is given the next one from transactionIds.
+    * @param transaction
+    * @return Sequence number of the journal record, 0 if none was written
+    */
+    private long recordTransaction(Transaction transaction) {
+        int total;
+        long sequence;
+        snapshotLock.readLock().lock();
+        historyLock.writeLock().lock();
+        try {
+            if (transaction.getId() == 0) {
+                transaction.setId(transactionIds.next());
+            } else {
+                transactionIds.advancePast(transaction.getId());
+            }
+            shareUsernames(transaction);
+            transaction.setSequence(transactions.size() + 1);
+            transactions.add(transaction);
+            indexTransaction(transaction);
+            total = transactions.size();
+            sequence = log(transaction.isRefund() ? Journal.REFUND : Journal.PURCHASE_ID64, out -> {
+                out.writeLong(transaction.getId());
+                out.writeInt(transaction.getItemId());
+                out.writeLong(transaction.getAmountCents());
+                out.writeLong(transaction.getTimestamp().getTime());
+                Journal.writeString(out, transaction.getBuyer());
+                Journal.writeString(out, transaction.getSeller());
+            });
+        } finally {
+            historyLock.writeLock().unlock();
+            snapshotLock.readLock().unlock();
+        }
+        System.out.println("Transaction added. Total transactions: " + total);
+        return sequence;
+    }
+    
+    /**
+    * Buys an item as one atomic step: moves the price from the buyer to the seller, marks the item
+    * sold and records the transaction. The item's lock is taken first, then the locks of both users
+    * in stripe order, and every check is made again under them, so an item is never sold twice and a
+    * balance never pays for more than it holds, while purchases of other items by other users proceed
+    * in parallel. An item seen as already sold is refused without taking any lock.
+    * Returns only once the purchase is saved: in journaled mode its record is fsynced together with
+    * those of concurrent purchases, otherwise the whole database is written.
+    * @param buyerUsername
+    * @param sellerUsername
+    * @param itemId
+    * @return Result of the purchase
+    */
+    TransactionResult purchase(String buyerUsername, String sellerUsername, int itemId) {
+        Item item = items.get(itemId);
+        if (item != null && item.isSold()) {
+            return new TransactionResult(false, "Item is already sold");
+        }
+        ReentrantLock itemLock = itemLocks.lockFor(itemId);
+        List<ReentrantLock> locks = userLocks.locksFor(buyerUsername, sellerUsername);
+        Transaction transaction;
+        long sequence;
+        snapshotLock.readLock().lock();
+        itemLock.lock();
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            User buyer = users.get(buyerUsername);
+            User seller = users.get(sellerUsername);
+            if (buyer == null) {
+                return new TransactionResult(false, "Buyer not found");
+            }
+            if (seller == null) {
+                return new TransactionResult(false, "Seller not found");
+            }
+            item = items.get(itemId);
+            if (item == null) {
+                return new TransactionResult(false, "Item not found");
+            }
+            if (item.isSold()) {
+                return new TransactionResult(false, "Item is already sold");
+            }
+            if (!item.getSeller().equals(sellerUsername)) {
+                return new TransactionResult(false, "Seller doesn't own this item");
+            }
+            long price = item.getPriceCents();
+            if (buyer.getBalanceCents() < price) {
+                return new TransactionResult(false, "Insufficient funds");
+            }
             
-            for (Message message : messages) {
-                if (message.getSender().equals(username) || message.getRecipient().equals(username)) {
-                    userMessages.add(message);
+            buyer.setBalanceCents(buyer.getBalanceCents() - price);
+            seller.setBalanceCents(seller.getBalanceCents() + price);
+            item.setSold(true);
+            transaction = Transaction.withAmountCents(buyerUsername, sellerUsername, itemId, price);
+            sequence = recordTransaction(transaction);
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+            itemLock.unlock();
+            snapshotLock.readLock().unlock();
+        }
+        awaitDurable(sequence);
+        System.out.println("Transaction created: ID=" + transaction.getId() + 
+                           ", Buyer=" + transaction.getBuyer() + 
+                           ", Seller=" + transaction.getSeller() + 
+                           ", ItemId=" + transaction.getItemId());
+        return new TransactionResult(true, "Payment processed successfully", itemId);
+    }
+    
+    /**
+    * Buyer's half of a purchase of an item held by another shard: takes the amount of the transaction
+    * from the buyer and records the transaction, which is given an ID. The record replays as a purchase
+    * whose seller and item are not on this shard, so replaying it only takes the money again.
+    * Returns only once the debit is saved.
+    * @param transaction purchase to pay for, without an ID
+    * @return Result of the debit
+    */
+    TransactionResult debitForPurchase(Transaction transaction) {
+        ReentrantLock lock = userLocks.lockFor(transaction.getBuyer());
+        long sequence;
+        snapshotLock.readLock().lock();
+        lock.lock();
+        try {
+            User buyer = users.get(transaction.getBuyer());
+            if (buyer == null) {
+                return new TransactionResult(false, "Buyer not found");
+            }
+            if (buyer.getBalanceCents() < transaction.getAmountCents()) {
+                return new TransactionResult(false, "Insufficient funds");
+            }
+            buyer.setBalanceCents(buyer.getBalanceCents() - transaction.getAmountCents());
+            sequence = recordTransaction(transaction);
+        } finally {
+            lock.unlock();
+            snapshotLock.readLock().unlock();
+        }
+        awaitDurable(sequence);
+        return new TransactionResult(true, "Payment taken", transaction.getItemId());
+    }
+    
+    /**
+    * Seller's half of a purchase paid on another shard: marks the item sold, gives the amount to the
+    * seller and records the transaction under the ID the buyer's shard gave it. Repeating the call with
+    * the same transaction changes nothing, so a buyer's shard that lost the answer can retry.
+    * Returns only once the sale is saved.
+    * @param transaction purchase paid by the buyer's shard
+    * @return Result of the sale; on failure the buyer's shard gives the money back
+    */
+    TransactionResult creditForSale(Transaction transaction) {
+        int itemId = transaction.getItemId();
+        ReentrantLock itemLock = itemLocks.lockFor(itemId);
+        ReentrantLock sellerLock = userLocks.lockFor(transaction.getSeller());
+        long sequence;
+        snapshotLock.readLock().lock();
+        itemLock.lock();
+        sellerLock.lock();
+        try {
+            User seller = users.get(transaction.getSeller());
+            Item item = items.get(itemId);
+            if (seller == null) {
+                return new TransactionResult(false, "Seller not found");
+            }
+            if (item == null) {
+                return new TransactionResult(false, "Item not found");
+            }
+            if (item.isSold()) {
+                if (remoteSales.contains(transaction.getId())) {
+                    return new TransactionResult(true, "Payment processed successfully", itemId);
                 }
+                return new TransactionResult(false, "Item is already sold");
             }
-            
-            return userMessages;
+            if (!item.getSeller().equals(transaction.getSeller())) {
+                return new TransactionResult(false, "Seller doesn't own this item");
+            }
+            if (item.getPriceCents() != transaction.getAmountCents()) {
+                return new TransactionResult(false, "Price has changed");
+            }
+            seller.setBalanceCents(seller.getBalanceCents() + transaction.getAmountCents());
+            item.setSold(true);
+            sequence = recordTransaction(transaction);
+            remoteSales.add(transaction.getId());
+        } finally {
+            sellerLock.unlock();
+            itemLock.unlock();
+            snapshotLock.readLock().unlock();
         }
+        awaitDurable(sequence);
+        return new TransactionResult(true, "Payment processed successfully", itemId);
     }
     
     /**
-    * Adds a transaction to the database. 
+    * Gives the buyer back the amount of a purchase whose seller's shard refused it, recording a
+    * refund transaction so the buyer's history and the journal show it.
+    * @param transaction purchase paid by debitForPurchase
+    */
+    void refundPurchase(Transaction transaction) {
+        Transaction refund = Transaction.refundOf(transaction);
+        ReentrantLock lock = userLocks.lockFor(transaction.getBuyer());
+        long sequence;
+        snapshotLock.readLock().lock();
+        lock.lock();
+        try {
+            User buyer = users.get(transaction.getBuyer());
+            if (buyer != null) {
+                buyer.setBalanceCents(buyer.getBalanceCents() + transaction.getAmountCents());
+            }
+            sequence = recordTransaction(refund);
+        } finally {
+            lock.unlock();
+            snapshotLock.readLock().unlock();
+        }
+        awaitDurable(sequence);
+    }
+    
+    /**
+    * Re-applies a purchase read from the journal: moves the money, marks the item sold
+    * and records the transaction. Called while replaying at startup and for each record a replica
+    * receives; like purchase it holds the item's lock and both users' locks throughout, so the
+    * purchase is applied as one step while the replica serves reads.
     * @param transaction
     */
-    public void addTransaction(Transaction transaction) {
-        synchronized(this) {
-            if (transactions == null) transactions = new ArrayList<>();
-            transactions.add(transaction);
-            System.out.println("Transaction added. Total transactions: " + transactions.size());
+    void applyPurchase(Transaction transaction) {
+        ReentrantLock itemLock = itemLocks.lockFor(transaction.getItemId());
+        List<ReentrantLock> locks = userLocks.locksFor(transaction.getBuyer(), transaction.getSeller());
+        itemLock.lock();
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            User buyer = users.get(transaction.getBuyer());
+            User seller = users.get(transaction.getSeller());
+            Item item = items.get(transaction.getItemId());
+            if (buyer != null) buyer.setBalanceCents(buyer.getBalanceCents() - transaction.getAmountCents());
+            if (seller != null) seller.setBalanceCents(seller.getBalanceCents() + transaction.getAmountCents());
+            if (item != null) item.setSold(true);
+            transactionIds.advancePast(transaction.getId());
+            historyLock.writeLock().lock();
+            try {
+                shareUsernames(transaction);
+                transaction.setSequence(transactions.size() + 1);
+                transactions.add(transaction);
+                indexTransaction(transaction);
+                noteRemoteSale(transaction);
+            } finally {
+                historyLock.writeLock().unlock();
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+            itemLock.unlock();
+        }
+    }
+    
+    /**
+    * Re-applies a refund read from the journal: gives the buyer the amount back and records the
+    * refund. Called while replaying and on replicas; holds the buyer's lock like refundPurchase.
+    * @param refund
+    */
+    void applyRefund(Transaction refund) {
+        ReentrantLock lock = userLocks.lockFor(refund.getBuyer());
+        lock.lock();
+        try {
+            User buyer = users.get(refund.getBuyer());
+            if (buyer != null) buyer.setBalanceCents(buyer.getBalanceCents() + refund.getAmountCents());
+            transactionIds.advancePast(refund.getId());
+            historyLock.writeLock().lock();
+            try {
+                shareUsernames(refund);
+                refund.setSequence(transactions.size() + 1);
+                transactions.add(refund);
+                indexTransaction(refund);
+            } finally {
+                historyLock.writeLock().unlock();
+            }
+        } finally {
+            lock.unlock();
         }
     }
     
     /**
     * getTransactionsForUser
+    * Read from the per-user index, so the cost depends only on the user's own history.
     * @param username
-    * @return List of transactions for the user
+    * @return List of transactions for the user, oldest first
     */
     public List<Transaction> getTransactionsForUser(String username) {
-        synchronized(this) {
-            if (transactions == null) transactions = new ArrayList<>();
-            List<Transaction> userTransactions = new ArrayList<>();
-            for (Transaction transaction : transactions) {
-                if (transaction.getBuyer().equals(username) || transaction.getSeller().equals(username)) {
-                    userTransactions.add(transaction);
-                }
-            }
-            System.out.println("Returning " + userTransactions.size() + " transactions for user " + username);
-            return userTransactions;
+        List<Transaction> userTransactions;
+        historyLock.readLock().lock();
+        try {
+            List<Transaction> indexed = transactionsByUser.get(username);
+            userTransactions = (indexed == null) ? new ArrayList<>() : new ArrayList<>(indexed);
+        } finally {
+            historyLock.readLock().unlock();
+        }
+        System.out.println("Returning " + userTransactions.size() + " transactions for user " + username);
+        return userTransactions;
+    }
+    
+    /**
+    * Returns the transactions of the given user stored after the given sequence number.
+    * @param username
+    * @param afterSequence sequence number of the last transaction already seen, 0 for the oldest page
+    * @param limit largest number of transactions returned, 0 or less for no limit
+    * @return List of transactions, oldest first
+    */
+    public List<Transaction> getTransactionsForUserAfter(String username, long afterSequence, int limit) {
+        historyLock.readLock().lock();
+        try {
+            return historyAfter(transactionsByUser.get(username), Transaction::getSequence, afterSequence, limit);
+        } finally {
+            historyLock.readLock().unlock();
         }
     }
 }
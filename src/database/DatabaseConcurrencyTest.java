@@ -0,0 +1,258 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DatabaseConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 500;
+    
+    private File dataFile;
+    private File journalFile;
+    
+    @Before
+    public void setUp() throws Exception {
+        dataFile = File.createTempFile("concurrency_test", ".ser");
+        dataFile.delete();
+        journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+    }
+    
+    @After
+    public void tearDown() {
+        dataFile.delete();
+        journalFile.delete();
+    }
+    
+    /**
+     * Runs the task on THREADS threads at once and waits for all of them.
+     */
+    private void runConcurrently(Callable<Void> task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+    }
+    
+    @Test
+    public void testConcurrentMutationsAreNotLost() throws Exception {
+        Database database = new Database(dataFile.getPath(), true);
+        database.loadFromDisk();
+        Set<Integer> itemIds = ConcurrentHashMap.newKeySet();
+        
+        runConcurrently(() -> {
+            String name = Thread.currentThread().getName();
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                String username = name + "-user" + i;
+                database.addUser(new User(username, "pw"));
+                
+                Item item = new Item("Item " + i, "Sold by " + username, 1.0 + i, username);
+                database.addItem(item);
+                assertTrue("Item IDs should be unique", itemIds.add(item.getId()));
+                
+                database.addMessage(new Message(username, "hub", "Hello " + i, item.getId()));
+                database.addTransaction(new Transaction(i, item.getId(), 1.0, username, "hub"));
+                
+                // Remove every other item again while other threads keep searching
+                if (i % 2 == 0) {
+                    database.removeItem(item.getId());
+                }
+                database.searchItems("item");
+            }
+            return null;
+        });
+        
+        int total = THREADS * OPERATIONS_PER_THREAD;
+        assertEquals("Every message should be stored", total, database.getMessagesForUser("hub").size());
+        assertEquals("Every transaction should be stored", total, database.getTransactionsForUser("hub").size());
+        assertEquals("Only the items that were not removed should be searchable",
+            total / 2, database.searchItems("item").size());
+        
+        // The snapshot and journal must describe the same state
+        database.close();
+        Database reloaded = new Database(dataFile.getPath(), true);
+        reloaded.loadFromDisk();
+        assertEquals("Messages should survive a reload", total, reloaded.getMessagesForUser("hub").size());
+        assertEquals("Items should survive a reload", total / 2, reloaded.searchItems("item").size());
+        for (int id : itemIds) {
+            assertEquals("Item presence should match after reload",
+                database.getItemById(id) != null, reloaded.getItemById(id) != null);
+        }
+    }
+    
+    @Test
+    public void testAddAndRemoveSameUserKeepJournalOrder() throws Exception {
+        Database database = new Database(dataFile.getPath(), true);
+        database.loadFromDisk();
+        
+        runConcurrently(() -> {
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                String username = "shared" + (i % 10);
+                if ((i + Thread.currentThread().getId()) % 2 == 0) {
+                    database.addUser(new User(username, "pw"));
+                } else {
+                    database.removeUser(username);
+                }
+            }
+            return null;
+        });
+        database.close();
+        
+        Database reloaded = new Database(dataFile.getPath(), true);
+        reloaded.loadFromDisk();
+        for (int i = 0; i < 10; i++) {
+            String username = "shared" + i;
+            assertEquals("Replayed state should match memory for " + username,
+                database.getUserByUsername(username) != null, reloaded.getUserByUsername(username) != null);
+        }
+    }
+    
+    @Test
+    public void testSnapshotsDuringMutations() throws Exception {
+        Database database = new Database(dataFile.getPath(), true);
+        database.loadFromDisk();
+        
+        runConcurrently(() -> {
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                database.addMessage(new Message("a", "b", "m" + i, 0));
+                if (i % 100 == 0) {
+                    database.checkpoint();
+                }
+            }
+            return null;
+        });
+        database.close();
+        
+        Database reloaded = new Database(dataFile.getPath(), true);
+        reloaded.loadFromDisk();
+        assertEquals("Snapshot plus journal tail should hold every message exactly once",
+            THREADS * OPERATIONS_PER_THREAD, reloaded.getMessagesForUser("b").size());
+    }
+    
+    @Test
+    public void testConcurrentPurchasesSellEachItemOnce() throws Exception {
+        Database database = new Database(dataFile.getPath(), true);
+        database.loadFromDisk();
+        PaymentProcessor processor = new PaymentProcessor(database);
+        database.addUser(new User("seller", "pw"));
+        List<Integer> itemIds = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Item item = new Item("Item " + i, "Contested", 1.0, "seller");
+            database.addItem(item);
+            itemIds.add(item.getId());
+        }
+        Map<Integer, Integer> sales = new ConcurrentHashMap<>();
+        
+        runConcurrently(() -> {
+            String buyer = Thread.currentThread().getName();
+            database.addUser(new User(buyer, "pw"));
+            List<Integer> order = new ArrayList<>(itemIds);
+            Collections.shuffle(order);
+            for (int id : order) {
+                if (processor.processPayment(buyer, "seller", id).isSuccess()) {
+                    sales.merge(id, 1, Integer::sum);
+                }
+            }
+            return null;
+        });
+        
+        assertEquals("Every item should be sold", itemIds.size(), sales.size());
+        for (int count : sales.values()) {
+            assertEquals("No item should be sold twice", 1, count);
+        }
+        assertEquals("Seller should be paid once per item", 150.0,
+            database.getUserByUsername("seller").getBalance(), 0.001);
+        assertEquals("One transaction should be recorded per item",
+            itemIds.size(), database.getTransactionsForUser("seller").size());
+        
+        database.close();
+        Database reloaded = new Database(dataFile.getPath(), true);
+        reloaded.loadFromDisk();
+        assertEquals("Balances should survive a reload", 150.0,
+            reloaded.getUserByUsername("seller").getBalance(), 0.001);
+    }
+    
+    @Test
+    public void testCrossedPurchasesNeverOverdraw() throws Exception {
+        Database database = new Database(dataFile.getPath(), true);
+        database.loadFromDisk();
+        PaymentProcessor processor = new PaymentProcessor(database);
+        // Every user buys from every other user, so each pair locks in both directions
+        List<Item> listed = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            database.addUser(new User("user" + t, "pw"));
+            for (int i = 0; i < 20; i++) {
+                Item item = new Item("Item " + i, "From user" + t, 10.0, "user" + t);
+                database.addItem(item);
+                listed.add(item);
+            }
+        }
+        AtomicInteger next = new AtomicInteger();
+        
+        runConcurrently(() -> {
+            String buyer = "user" + next.getAndIncrement();
+            for (Item item : listed) {
+                if (!item.getSeller().equals(buyer)) {
+                    processor.processPayment(buyer, item.getSeller(), item.getId());
+                }
+            }
+            return null;
+        });
+        
+        double total = 0;
+        int recorded = 0;
+        for (int t = 0; t < THREADS; t++) {
+            double balance = database.getUserByUsername("user" + t).getBalance();
+            assertTrue("No balance should go negative", balance >= 0);
+            total += balance;
+            recorded += database.getTransactionsForUser("user" + t).size();
+        }
+        assertEquals("Money should only move between users", THREADS * 100.0, total, 0.001);
+        int sold = 0;
+        for (Item item : listed) {
+            sold += item.isSold() ? 1 : 0;
+        }
+        assertTrue("Purchases should have been made", sold > 0);
+        // Each transaction is listed for its buyer and its seller
+        assertEquals("Every sale should be recorded once", 2 * sold, recorded);
+    }
+    
+    @Test
+    public void testConcurrentRegistrationsKeepFirstAccount() throws Exception {
+        Database database = new Database(dataFile.getPath(), true);
+        database.loadFromDisk();
+        AtomicInteger added = new AtomicInteger();
+        
+        runConcurrently(() -> {
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                if (database.addUserIfAbsent(new User("user" + i, Thread.currentThread().getName()))) {
+                    added.incrementAndGet();
+                }
+            }
+            return null;
+        });
+        assertEquals("Each username should be added exactly once", OPERATIONS_PER_THREAD, added.get());
+        assertNull("Looking up no username should find nobody", database.getUserByUsername(null));
+        String owner = database.getUserByUsername("user0").getPassword();
+        database.close();
+        
+        Database reloaded = new Database(dataFile.getPath(), true);
+        reloaded.loadFromDisk();
+        assertEquals("Only the first account should be journaled", owner,
+                     reloaded.getUserByUsername("user0").getPassword());
+        reloaded.close();
+    }
+}
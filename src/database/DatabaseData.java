@@ -14,20 +14,49 @@ import java.util.*;
  *
  */
 public class DatabaseData implements DatabaseDataInterface, Serializable {
+    private static final long serialVersionUID = 8352223983137161222L;
     
     private Map<String, User> users; //Map of users, (username, User object) opairs
     private Map<Integer, Item> items; //Map of items, (itemID, Item object) pairs
     private List<Message> messages; //List of messages sent
     private List<Transaction> transactions; //List of transactions made
     private int nextItemId; //Next item ID to be assigned
+    private long lastJournalSequence; //Last journal record already contained in this snapshot
+    private Map<String, List<Message>> messagesByUser; //Messages per sender/recipient, null in older snapshots
+    private Map<String, List<Transaction>> transactionsByUser; //Transactions per buyer/seller, null in older snapshots
+    private long nextTransactionId; //Next transaction ID to be assigned, 0 in older snapshots
+    private boolean itemsInStore; //True if the items were written to a MappedItemStore instead of this snapshot
     
     public DatabaseData(Map<String, User> users, Map<Integer, Item> items, List<Message> messages, 
                         List<Transaction> transactions, int nextItemId) {
+        this(users, items, messages, transactions, nextItemId, 0);
+    }
+    
+    public DatabaseData(Map<String, User> users, Map<Integer, Item> items, List<Message> messages, 
+                        List<Transaction> transactions, int nextItemId, long lastJournalSequence) {
+        this(users, items, messages, transactions, nextItemId, lastJournalSequence, null, null);
+    }
+    
+    public DatabaseData(Map<String, User> users, Map<Integer, Item> items, List<Message> messages, 
+                        List<Transaction> transactions, int nextItemId, long lastJournalSequence,
+                        Map<String, List<Message>> messagesByUser,
+                        Map<String, List<Transaction>> transactionsByUser) {
+        this(users, items, messages, transactions, nextItemId, lastJournalSequence, messagesByUser, transactionsByUser, 0);
+    }
+    
+    public DatabaseData(Map<String, User> users, Map<Integer, Item> items, List<Message> messages, 
+                        List<Transaction> transactions, int nextItemId, long lastJournalSequence,
+                        Map<String, List<Message>> messagesByUser,
+                        Map<String, List<Transaction>> transactionsByUser, long nextTransactionId) {
         this.users = users;
         this.items = items;
         this.messages = messages;
         this.transactions = (transactions != null) ? transactions : new ArrayList<>();
         this.nextItemId = nextItemId;
+        this.lastJournalSequence = lastJournalSequence;
+        this.messagesByUser = messagesByUser;
+        this.transactionsByUser = transactionsByUser;
+        this.nextTransactionId = nextTransactionId;
     }
     
     /**
@@ -74,4 +103,63 @@ public class DatabaseData implements DatabaseDataInterface, Serializable {
     public int getNextItemId() {
         return nextItemId;
     }
+    
+    /**
+    * Returns the sequence number of the last journal record included in this snapshot.
+    * Snapshots written before journaling existed return 0.
+    *
+    * @return lastJournalSequence
+    */
+    public long getLastJournalSequence() {
+        return lastJournalSequence;
+    }
+    
+    /**
+    * Returns the per-user message index (messages each user sent or received).
+    * Snapshots written before the index existed return null.
+    *
+    * @return messagesByUser
+    */
+    public Map<String, List<Message>> getMessagesByUser() {
+        return messagesByUser;
+    }
+    
+    /**
+    * Returns the per-user transaction index (transactions each user bought or sold in).
+    * Snapshots written before the index existed return null.
+    *
+    * @return transactionsByUser
+    */
+    public Map<String, List<Transaction>> getTransactionsByUser() {
+        return transactionsByUser;
+    }
+    
+    /**
+    * Returns the next transaction ID to be assigned.
+    * Snapshots written before transaction IDs were allocated by the database return 0.
+    *
+    * @return nextTransactionId
+    */
+    public long getNextTransactionId() {
+        return nextTransactionId;
+    }
+    
+    /**
+    * Returns true if the items of this snapshot are kept in the item store file next to it
+    * rather than in the snapshot itself. Older snapshots return false.
+    *
+    * @return itemsInStore
+    */
+    public boolean isItemsInStore() {
+        return itemsInStore;
+    }
+    
+    /**
+    * Marks the items as written to the item store file instead of this snapshot.
+    *
+    * @param itemsInStore true if getItems() is left empty
+    */
+    void setItemsInStore(boolean itemsInStore) {
+        this.itemsInStore = itemsInStore;
+    }
 }
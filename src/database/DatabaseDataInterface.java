@@ -8,4 +8,9 @@ public interface DatabaseDataInterface {
     List<Message> getMessages();
     List<Transaction> getTransactions();
     int getNextItemId();
+    long getLastJournalSequence();
+    Map<String, List<Message>> getMessagesByUser();
+    Map<String, List<Transaction>> getTransactionsByUser();
+    long getNextTransactionId();
+    boolean isItemsInStore();
 }
\ No newline at end of file
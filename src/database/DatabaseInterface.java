@@ -1,18 +1,38 @@
 package database;
+import java.io.*;
 import java.util.List;
 
 public interface DatabaseInterface {
     void loadFromDisk();
     void saveToDisk();
+    void checkpoint();
+    void close();
+    boolean isJournaled();
+    void enableMappedItemStore();
+    void enableReplication();
+    long getReplicationSequence();
+    List<byte[]> getReplicationRecords(long afterSequence, int max, long waitMillis) throws InterruptedException;
+    long writeReplicaSnapshot(OutputStream out) throws IOException;
+    void installReplicaSnapshot(InputStream in) throws IOException;
+    void applyReplicatedRecord(byte[] record) throws IOException;
+    long getReplicatedSequence();
     User getUserByUsername(String username);
     void addUser(User user);
+    boolean addUserIfAbsent(User user);
     void removeUser(String username);
     void addItem(Item item);
     Item getItemById(int id);
     void removeItem(int id);
+    List<Item> getItemsBySeller(String seller);
+    List<Item> removeItemsBySeller(String seller);
     List<Item> searchItems(String query);
+    SearchCacheStats getSearchCacheStats();
+    SearchPage searchItemsPage(String query, SearchPage.Order order, String pageToken, int pageSize);
+    SearchPage searchItemsPage(String query, SearchPage.Order order, String pageToken, int pageSize, long knownVersion);
     void addMessage(Message message);
     List<Message> getMessagesForUser(String username);
+    List<Message> getMessagesForUserAfter(String username, long afterSequence, int limit);
     void addTransaction(Transaction transaction);
     List<Transaction> getTransactionsForUser(String username);
+    List<Transaction> getTransactionsForUserAfter(String username, long afterSequence, int limit);
 }
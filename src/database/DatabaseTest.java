@@ -2,8 +2,20 @@ package database;
 import static org.junit.Assert.*;
 import org.junit.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class DatabaseTest {
     private Database database;
@@ -148,4 +160,466 @@ public class DatabaseTest {
         assertTrue("Should find at least one transaction after reload", !txs.isEmpty());
         assertEquals("Transaction buyer should match after reload", "anotherUser", txs.get(0).getBuyer());
     }
+    
+    @Test
+    public void testHistoryIndexesKeepOrderAndCountSelfOnce() {
+        List<Message> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Message message = new Message("testUser", (i % 2 == 0) ? "anotherUser" : "thirdUser", "m" + i, 0);
+            database.addMessage(message);
+            sent.add(message);
+        }
+        database.addMessage(new Message("thirdUser", "anotherUser", "unrelated", 0));
+        assertEquals("Messages should be returned oldest first", sent, database.getMessagesForUser("testUser"));
+        
+        database.addMessage(new Message("testUser", "testUser", "note to self", 0));
+        assertEquals("A message to oneself should be listed once", 6, database.getMessagesForUser("testUser").size());
+        
+        database.getMessagesForUser("testUser").clear();
+        assertEquals("Returned lists should be copies", 6, database.getMessagesForUser("testUser").size());
+        assertTrue("Unknown users should have no messages", database.getMessagesForUser("nobody").isEmpty());
+    }
+    
+    @Test
+    public void testRemoveUserDropsOwnHistoryAcrossReload() throws Exception {
+        File dataFile = File.createTempFile("history_test", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        try {
+            Database journaled = new Database(dataFile.getPath(), true);
+            journaled.loadFromDisk();
+            journaled.addUser(testUser);
+            journaled.addMessage(testMessage);
+            journaled.addTransaction(testTransaction);
+            journaled.checkpoint();
+            journaled.removeUser("testUser");
+            
+            assertTrue("Removed user's messages should be dropped", journaled.getMessagesForUser("testUser").isEmpty());
+            assertTrue("Removed user's transactions should be dropped",
+                journaled.getTransactionsForUser("testUser").isEmpty());
+            assertEquals("Other party should keep the message", 1, journaled.getMessagesForUser("anotherUser").size());
+            
+            // Removal is in the journal tail, the history is in the snapshot
+            journaled.close();
+            Database reloaded = new Database(dataFile.getPath(), true);
+            reloaded.loadFromDisk();
+            assertTrue("Removal should survive a reload", reloaded.getMessagesForUser("testUser").isEmpty());
+            assertEquals("Other party should keep the transaction after a reload",
+                1, reloaded.getTransactionsForUser("anotherUser").size());
+            
+            // And again once the removal itself is part of the snapshot
+            reloaded.close();
+            Database compacted = new Database(dataFile.getPath(), true);
+            compacted.loadFromDisk();
+            assertTrue("Removal should survive compaction", compacted.getTransactionsForUser("testUser").isEmpty());
+            assertEquals("Other party should keep the message after compaction",
+                1, compacted.getMessagesForUser("anotherUser").size());
+            compacted.close();
+        } finally {
+            dataFile.delete();
+            journalFile.delete();
+        }
+    }
+    
+    @Test
+    public void testGetItemsBySellerSurvivesGaps() {
+        Item second = new Item("Second", "Another item", 10.0, "testUser");
+        Item other = new Item("Other", "Someone else's item", 5.0, "anotherUser");
+        Item third = new Item("Third", "Listed after a gap", 20.0, "testUser");
+        database.addItem(second);
+        database.addItem(other);
+        database.addItem(third);
+        database.removeItem(second.getId());
+        third.setSold(true);
+        
+        List<Item> sellerItems = database.getItemsBySeller("testUser");
+        assertEquals("Items after a removed ID should still be found", 2, sellerItems.size());
+        assertEquals("Items should be ordered by ID", testItem.getId(), sellerItems.get(0).getId());
+        assertEquals("Sold items should still be listed", third.getId(), sellerItems.get(1).getId());
+        assertTrue("Unknown sellers should have no items", database.getItemsBySeller("nobody").isEmpty());
+    }
+    
+    @Test
+    public void testRemoveItemsBySeller() {
+        Item other = new Item("Other", "Someone else's item", 5.0, "anotherUser");
+        database.addItem(new Item("Second", "Another item", 10.0, "testUser"));
+        database.addItem(other);
+        
+        List<Item> removed = database.removeItemsBySeller("testUser");
+        assertEquals("Both of the seller's items should be removed", 2, removed.size());
+        assertNull("Removed items should no longer be found by ID", database.getItemById(testItem.getId()));
+        assertTrue("Seller should have no items left", database.getItemsBySeller("testUser").isEmpty());
+        assertTrue("Removed items should not be searchable", database.searchItems("test item").isEmpty());
+        assertEquals("Other sellers' items should be kept", other, database.getItemById(other.getId()));
+    }
+    
+    @Test
+    public void testMessagesAfterSequencePageThroughHistory() {
+        for (int i = 0; i < 7; i++) {
+            database.addMessage(new Message("testUser", "anotherUser", "m" + i, 0));
+            database.addMessage(new Message("thirdUser", "anotherUser", "other" + i, 0));
+        }
+        List<Message> all = database.getMessagesForUser("testUser");
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue("Sequence numbers should increase", all.get(i).getSequence() > all.get(i - 1).getSequence());
+        }
+        
+        List<Message> first = database.getMessagesForUserAfter("testUser", 0, 3);
+        assertEquals("First page should be full", 3, first.size());
+        assertEquals("First page should start with the oldest message", "m0", first.get(0).getContent());
+        List<Message> second = database.getMessagesForUserAfter("testUser", first.get(2).getSequence(), 3);
+        assertEquals("Second page should continue after the cursor", "m3", second.get(0).getContent());
+        List<Message> last = database.getMessagesForUserAfter("testUser", second.get(2).getSequence(), 3);
+        assertEquals("Last page should hold the rest", 1, last.size());
+        assertTrue("Nothing should follow the newest message",
+            database.getMessagesForUserAfter("testUser", last.get(0).getSequence(), 3).isEmpty());
+        assertEquals("A limit of 0 should return everything", 7, database.getMessagesForUserAfter("testUser", 0, 0).size());
+        
+        // A cursor between two of the user's messages, i.e. one of another user's sequence numbers
+        long between = database.getMessagesForUser("thirdUser").get(0).getSequence();
+        assertEquals("Cursor need not be one of the user's own sequence numbers",
+            "m1", database.getMessagesForUserAfter("testUser", between, 1).get(0).getContent());
+        assertTrue("Unknown users should have no messages", database.getMessagesForUserAfter("nobody", 0, 5).isEmpty());
+    }
+    
+    @Test
+    public void testTransactionsAfterSequence() {
+        database.addTransaction(testTransaction);
+        Transaction second = new Transaction(2, testItem.getId(), 10.0, "testUser", "thirdUser");
+        database.addTransaction(second);
+        assertEquals("Sequence numbers should count transactions", 2, second.getSequence());
+        
+        List<Transaction> newer = database.getTransactionsForUserAfter("testUser", testTransaction.getSequence(), 10);
+        assertEquals("Only the newer transaction should be returned", 1, newer.size());
+        assertEquals("Newer transaction should match", second.getId(), newer.get(0).getId());
+    }
+    
+    @Test
+    public void testTransactionIdsAreUniqueAcrossReload() throws Exception {
+        File dataFile = File.createTempFile("transaction_id_test", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        try {
+            Database journaled = new Database(dataFile.getPath(), true);
+            journaled.loadFromDisk();
+            Set<Long> ids = new HashSet<>();
+            // Created within the same millisecond, which used to give them the same ID
+            for (int i = 0; i < 50; i++) {
+                Transaction transaction = new Transaction("anotherUser", "testUser", testItem.getId(), 1.0);
+                journaled.addTransaction(transaction);
+                assertTrue("Transaction IDs should be unique", ids.add(transaction.getId()));
+            }
+            journaled.checkpoint();
+            Transaction inJournal = new Transaction("anotherUser", "testUser", testItem.getId(), 1.0);
+            journaled.addTransaction(inJournal);
+            assertTrue("Transaction IDs should be unique", ids.add(inJournal.getId()));
+            journaled.close();
+            
+            Database reloaded = new Database(dataFile.getPath(), true);
+            reloaded.loadFromDisk();
+            assertEquals("IDs should survive a reload", inJournal.getId(),
+                reloaded.getTransactionsForUser("testUser").get(50).getId());
+            Transaction afterReload = new Transaction("anotherUser", "testUser", testItem.getId(), 1.0);
+            reloaded.addTransaction(afterReload);
+            assertTrue("IDs should not be reused after a reload", ids.add(afterReload.getId()));
+            reloaded.checkpoint();
+            reloaded.close();
+            
+            reloaded = new Database(dataFile.getPath(), true);
+            reloaded.loadFromDisk();
+            Transaction afterSnapshot = new Transaction("anotherUser", "testUser", testItem.getId(), 1.0);
+            reloaded.addTransaction(afterSnapshot);
+            assertTrue("IDs should not be reused after loading a snapshot", ids.add(afterSnapshot.getId()));
+            reloaded.close();
+        } finally {
+            dataFile.delete();
+            journalFile.delete();
+        }
+    }
+    
+    @Test
+    public void testSequencesSurviveReloadAndContinue() throws Exception {
+        File dataFile = File.createTempFile("sequence_test", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        try {
+            Database journaled = new Database(dataFile.getPath(), true);
+            journaled.loadFromDisk();
+            journaled.addMessage(new Message("testUser", "anotherUser", "in snapshot", 0));
+            journaled.checkpoint();
+            journaled.addMessage(new Message("testUser", "anotherUser", "in journal", 0));
+            journaled.saveToDisk();
+            
+            Database reloaded = new Database(dataFile.getPath(), true);
+            reloaded.loadFromDisk();
+            List<Message> messages = reloaded.getMessagesForUser("testUser");
+            assertEquals("Snapshot message should keep its sequence number", 1, messages.get(0).getSequence());
+            assertEquals("Replayed message should get the same sequence number", 2, messages.get(1).getSequence());
+            Message next = new Message("testUser", "anotherUser", "after reload", 0);
+            reloaded.addMessage(next);
+            assertEquals("Numbering should continue after a reload", 3, next.getSequence());
+            journaled.close();
+            reloaded.close();
+        } finally {
+            dataFile.delete();
+            journalFile.delete();
+        }
+    }
+    
+    @Test
+    public void testReplicaFollowsPrimaryAcrossSnapshotAndRestart() throws Exception {
+        File primaryFile = File.createTempFile("replication_primary", ".ser");
+        File replicaFile = File.createTempFile("replication_replica", ".ser");
+        primaryFile.delete();
+        replicaFile.delete();
+        File journalFile = new File(primaryFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        try {
+            Database primary = new Database(primaryFile.getPath(), true);
+            primary.loadFromDisk();
+            primary.addUser(new User("seller", "pw"));
+            primary.enableReplication();
+            assertNull("Records from before replication started should need a snapshot",
+                       primary.getReplicationRecords(0, 100, 0));
+            
+            ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            long snapshotSequence = primary.writeReplicaSnapshot(snapshot);
+            Database replica = new Database(replicaFile.getPath(), false);
+            replica.loadFromDisk();
+            replica.installReplicaSnapshot(new ByteArrayInputStream(snapshot.toByteArray()));
+            assertEquals("Replica should be at the snapshot's record", snapshotSequence, replica.getReplicatedSequence());
+            
+            primary.addUser(new User("buyer", "pw"));
+            Item item = new Item("Lamp", "Desk lamp", 30.0, "seller");
+            primary.addItem(item);
+            assertTrue("Purchase should succeed",
+                       new PaymentProcessor(primary).processPayment("buyer", "seller", item.getId()).isSuccess());
+            primary.addMessage(new Message("buyer", "seller", "Thanks", item.getId()));
+            primary.saveToDisk();
+            
+            List<byte[]> records = primary.getReplicationRecords(replica.getReplicatedSequence(), 100, 0);
+            assertEquals("Every flushed change should be shipped", 4, records.size());
+            try {
+                replica.applyReplicatedRecord(records.get(3));
+                fail("A record should not be applied before the ones it follows");
+            } catch (IOException e) {
+                // Expected
+            }
+            for (byte[] record : records) {
+                replica.applyReplicatedRecord(record);
+            }
+            replica.applyReplicatedRecord(records.get(0)); // Applying a record twice changes nothing
+            
+            assertEquals("Replica should be at the primary's record", primary.getReplicationSequence(),
+                         replica.getReplicatedSequence());
+            assertEquals("Buyer should have paid", 70.0, replica.getUserByUsername("buyer").getBalance(), 0.0);
+            assertEquals("Seller should have been paid", 130.0, replica.getUserByUsername("seller").getBalance(), 0.0);
+            assertTrue("Item should be sold", replica.getItemById(item.getId()).isSold());
+            assertEquals("Transaction should keep its ID", primary.getTransactionsForUser("buyer").get(0).getId(),
+                         replica.getTransactionsForUser("buyer").get(0).getId());
+            assertEquals("Message should keep its sequence number",
+                         primary.getMessagesForUser("seller").get(0).getSequence(),
+                         replica.getMessagesForUser("seller").get(0).getSequence());
+            
+            replica.checkpoint();
+            Database restarted = new Database(replicaFile.getPath(), false);
+            restarted.loadFromDisk();
+            assertEquals("Restarted replica should continue after the records it saved",
+                         replica.getReplicatedSequence(), restarted.getReplicatedSequence());
+            primary.close();
+        } finally {
+            primaryFile.delete();
+            replicaFile.delete();
+            journalFile.delete();
+        }
+    }
+    
+    @Test
+    public void testMappedItemStoreSurvivesRestart() throws Exception {
+        File dataFile = File.createTempFile("mapped_items", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        File storeFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".items");
+        try {
+            Database db = new Database(dataFile.getPath(), true);
+            db.enableMappedItemStore();
+            db.loadFromDisk();
+            db.addUser(new User("seller", "pw"));
+            db.addUser(new User("buyer", "pw"));
+            Item lamp = new Item("Lamp", "Desk lamp", 30.0, "seller");
+            Item chair = new Item("Chair", "Oak chair", 40.0, "seller");
+            db.addItem(lamp);
+            db.addItem(chair);
+            assertTrue("Purchase should succeed",
+                       new PaymentProcessor(db).processPayment("buyer", "seller", lamp.getId()).isSuccess());
+            db.checkpoint();
+            Item table = new Item("Table", "Kitchen table", 90.0, "seller");
+            db.addItem(table); // Only in the journal
+            db.saveToDisk(); // db is then abandoned, as if the process had died
+            
+            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(dataFile))) {
+                DatabaseData data = (DatabaseData) ois.readObject();
+                assertTrue("Snapshot should say its items are in the store", data.isItemsInStore());
+                assertTrue("Snapshot should not hold the items itself", data.getItems().isEmpty());
+            }
+            assertTrue("Item store should be written next to the snapshot", storeFile.exists());
+            
+            Database restarted = new Database(dataFile.getPath(), true);
+            restarted.loadFromDisk();
+            assertTrue("Sold item should come back sold", restarted.getItemById(lamp.getId()).isSold());
+            assertEquals("Item should come back from the store", "Oak chair",
+                         restarted.getItemById(chair.getId()).getDescription());
+            assertEquals("Item listed after the snapshot should be replayed", 90.0,
+                         restarted.getItemById(table.getId()).getPrice(), 0.0);
+            assertEquals("Search should find the stored items", 1, restarted.searchItems("chair").size());
+            assertEquals("Balances should come from the snapshot", 70.0,
+                         restarted.getUserByUsername("buyer").getBalance(), 0.0);
+            Item shelf = new Item("Shelf", "", 15.0, "seller");
+            restarted.addItem(shelf);
+            assertTrue("New items should get new IDs", shelf.getId() > table.getId());
+            restarted.close();
+        } finally {
+            dataFile.delete();
+            journalFile.delete();
+            storeFile.delete();
+        }
+    }
+    
+    @Test
+    public void testItemStoreNewerThanSnapshotIsReplayedOver() throws Exception {
+        File dataFile = File.createTempFile("mapped_items_crash", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        File storeFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".items");
+        try {
+            Database db = new Database(dataFile.getPath(), true);
+            db.enableMappedItemStore();
+            db.loadFromDisk();
+            db.addUser(new User("seller", "pw"));
+            db.addUser(new User("buyer", "pw"));
+            Item lamp = new Item("Lamp", "Desk lamp", 30.0, "seller");
+            db.addItem(lamp);
+            db.checkpoint();
+            Item chair = new Item("Chair", "Oak chair", 40.0, "seller");
+            db.addItem(chair);
+            assertTrue("Purchase should succeed",
+                       new PaymentProcessor(db).processPayment("buyer", "seller", chair.getId()).isSuccess());
+            db.removeItem(lamp.getId());
+            db.saveToDisk(); // db is then abandoned, as if the process had died
+            // A crash after the next snapshot's item store was written, before its data file was
+            MappedItemStore.write(storeFile, Collections.singletonList(chair), 100);
+            
+            Database restarted = new Database(dataFile.getPath(), true);
+            restarted.loadFromDisk();
+            assertNull("Removed item should stay removed", restarted.getItemById(lamp.getId()));
+            assertTrue("Sold item should stay sold", restarted.getItemById(chair.getId()).isSold());
+            assertEquals("Buyer should have paid exactly once", 60.0,
+                         restarted.getUserByUsername("buyer").getBalance(), 0.0);
+            restarted.close();
+        } finally {
+            dataFile.delete();
+            journalFile.delete();
+            storeFile.delete();
+        }
+    }
+    
+    @Test
+    public void testHistorySharesUsernameStrings() throws Exception {
+        File dataFile = File.createTempFile("shared_usernames", ".ser");
+        try {
+            Database db = new Database(dataFile.getPath(), false);
+            db.addUser(new User("alice", "pw"));
+            db.addMessage(new Message(new String("alice"), new String("bob"), "Hi", 1));
+            db.addMessage(new Message(new String("bob"), new String("alice"), "Hello", 1));
+            db.addTransaction(new Transaction(new String("bob"), new String("alice"), 1, 5.0));
+            List<Message> messages = db.getMessagesForUser("alice");
+            Transaction transaction = db.getTransactionsForUser("alice").get(0);
+            assertSame("Messages should share one string per username",
+                       messages.get(0).getSender(), messages.get(1).getRecipient());
+            assertSame("Transactions should share the messages' usernames",
+                       messages.get(0).getRecipient(), transaction.getBuyer());
+            assertSame("History should share the user's own name",
+                       db.getUserByUsername("alice").getUsername(), transaction.getSeller());
+            db.saveToDisk();
+            
+            Database reloaded = new Database(dataFile.getPath(), false);
+            reloaded.loadFromDisk();
+            messages = reloaded.getMessagesForUser("alice");
+            assertEquals("Usernames should survive a reload", "alice", messages.get(0).getSender());
+            assertSame("Reloaded messages should share one string per username",
+                       messages.get(0).getSender(), messages.get(1).getRecipient());
+            assertSame("Reloaded transactions should share the messages' usernames", messages.get(1).getSender(),
+                       reloaded.getTransactionsForUser("bob").get(0).getBuyer());
+        } finally {
+            dataFile.delete();
+        }
+    }
+    
+    @Test
+    public void testUnreadableSnapshotFailsStartupAndKeepsFiles() throws Exception {
+        File dataFile = File.createTempFile("corrupt_snapshot", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        try {
+            Database db = new Database(dataFile.getPath(), true);
+            db.loadFromDisk();
+            db.addUser(new User("alice", "pw"));
+            db.checkpoint();
+            db.addUser(new User("bob", "pw")); // Only in the journal
+            db.close();
+            try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+                raf.setLength(raf.length() / 2);
+            }
+            byte[] snapshot = Files.readAllBytes(dataFile.toPath());
+            byte[] journal = Files.readAllBytes(journalFile.toPath());
+            
+            Database restarted = new Database(dataFile.getPath(), true);
+            try {
+                restarted.loadFromDisk();
+                fail("Loading an unreadable snapshot should fail");
+            } catch (UncheckedIOException e) {
+                // Expected
+            }
+            restarted.close();
+            assertArrayEquals("Snapshot should be left as it was", snapshot, Files.readAllBytes(dataFile.toPath()));
+            assertArrayEquals("Journal should be left as it was", journal, Files.readAllBytes(journalFile.toPath()));
+        } finally {
+            dataFile.delete();
+            journalFile.delete();
+        }
+    }
+    
+    @Test
+    public void testUnreadableItemStoreFailsStartup() throws Exception {
+        File dataFile = File.createTempFile("corrupt_store", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        File storeFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".items");
+        try {
+            Database db = new Database(dataFile.getPath(), true);
+            db.enableMappedItemStore();
+            db.loadFromDisk();
+            db.addUser(new User("seller", "pw"));
+            db.addItem(new Item("Lamp", "Desk lamp", 30.0, "seller"));
+            db.checkpoint();
+            db.close();
+            storeFile.delete();
+            byte[] snapshot = Files.readAllBytes(dataFile.toPath());
+            
+            Database restarted = new Database(dataFile.getPath(), true);
+            restarted.enableMappedItemStore();
+            try {
+                restarted.loadFromDisk();
+                fail("Loading a snapshot whose item store is missing should fail");
+            } catch (UncheckedIOException e) {
+                // Expected
+            }
+            restarted.close();
+            assertArrayEquals("Snapshot should be left as it was", snapshot, Files.readAllBytes(dataFile.toPath()));
+            assertFalse("No item store should be written", storeFile.exists());
+        } finally {
+            dataFile.delete();
+            journalFile.delete();
+            storeFile.delete();
+        }
+    }
 }
@@ -0,0 +1,186 @@
+package database;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GroupCommit class
+ *
+ * Makes journal records durable in batches. A caller that needs its record on disk waits for it
+ * with awaitDurable(); a single flusher thread waits a few milliseconds for more callers to join,
+ * then writes and fsyncs everything appended so far at once and releases every caller the batch
+ * covered. Under load one fsync is shared by many purchases instead of each paying for its own.
+ * The flusher thread is started by the first caller and stopped by close().
+ * Thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class GroupCommit {
+    static final long DEFAULT_WINDOW_MILLIS = 2; // How long a batch stays open for more records
+    
+    private final Journal journal; // Journal whose records are made durable
+    private final long windowMillis; // How long a batch stays open for more records
+    private final Object monitor = new Object(); // Guards the fields below
+    private long requested; // Highest sequence number a caller waits for
+    private long durable; // Highest sequence number known to be on disk
+    private long failedUpTo; // Highest sequence number of a batch whose fsync failed
+    private IOException failure; // Error of the last failed batch
+    private long batches; // Number of fsyncs made
+    private Thread flusher; // Flusher thread, null until the first caller or after close()
+    private boolean closed; // True once close() was called
+    private boolean stopped; // True once the flusher thread has finished its last batch
+    
+    GroupCommit(Journal journal, long windowMillis) {
+        this.journal = journal;
+        this.windowMillis = windowMillis;
+    }
+    
+    /**
+    * Blocks until the record with the given sequence number, and every record before it, is on disk.
+    *
+    * @param sequence sequence number returned by Journal.append
+    * @throws IOException if the batch holding the record could not be written
+    */
+    void awaitDurable(long sequence) throws IOException {
+        synchronized (monitor) {
+            if (sequence <= durable) {
+                return;
+            }
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            startFlusher();
+            requested = Math.max(requested, sequence);
+            monitor.notifyAll();
+            boolean interrupted = false;
+            try {
+                while (durable < sequence) {
+                    if (failedUpTo >= sequence) {
+                        throw failure;
+                    }
+                    if (stopped) {
+                        throw new IOException("Journal is closed");
+                    }
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        // The record is already applied; the caller still has to learn whether it is durable
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+    
+    /**
+    * Returns the number of fsyncs made so far.
+    *
+    * @return batch count
+    */
+    long getBatchCount() {
+        synchronized (monitor) {
+            return batches;
+        }
+    }
+    
+    /**
+    * Makes every waiting record durable and stops the flusher thread.
+    */
+    void close() {
+        Thread thread;
+        synchronized (monitor) {
+            closed = true;
+            thread = flusher;
+            flusher = null;
+            monitor.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+    * Starts the flusher thread if it is not running. Called while holding the monitor.
+    */
+    private void startFlusher() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread(this::flushLoop, "journal-group-commit");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    
+    /**
+    * Body of the flusher thread: one write and fsync per batch of waiting records.
+    */
+    private void flushLoop() {
+        try {
+            flushBatches();
+        } finally {
+            synchronized (monitor) {
+                stopped = true;
+                monitor.notifyAll();
+            }
+        }
+    }
+    
+    /**
+    * Flushes batches until close() is called and nothing is left to flush.
+    */
+    private void flushBatches() {
+        while (true) {
+            synchronized (monitor) {
+                while (!closed && requested <= Math.max(durable, failedUpTo)) {
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (requested <= Math.max(durable, failedUpTo)) {
+                    return;
+                }
+                // Keep the batch open so that records appended meanwhile share its fsync
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                long remaining;
+                while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            
+            // Every record up to this sequence is in the journal's buffer, so the flush below covers it
+            long upTo = journal.getLastSequence();
+            IOException error = null;
+            try {
+                journal.flush(true);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (monitor) {
+                batches++;
+                if (error == null) {
+                    durable = Math.max(durable, upTo);
+                } else {
+                    failure = error;
+                    failedUpTo = Math.max(failedUpTo, upTo);
+                }
+                monitor.notifyAll();
+            }
+        }
+    }
+}
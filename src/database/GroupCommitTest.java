@@ -0,0 +1,89 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class GroupCommitTest {
+    private File dataFile;
+    private File journalFile;
+    
+    @Before
+    public void setUp() throws Exception {
+        dataFile = File.createTempFile("group_commit_test", ".ser");
+        dataFile.delete();
+        journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+    }
+    
+    @After
+    public void tearDown() {
+        dataFile.delete();
+        journalFile.delete();
+    }
+    
+    @Test
+    public void testConcurrentWaitersShareFsyncs() throws Exception {
+        Journal journal = new Journal(journalFile);
+        GroupCommit groupCommit = new GroupCommit(journal, 5);
+        int threads = 8;
+        int records = 25;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < records; i++) {
+                    long sequence = journal.append(Journal.REMOVE_ITEM, out -> out.writeInt(1));
+                    groupCommit.awaitDurable(sequence);
+                    assertTrue("Record should be on disk once its wait returns",
+                        journalFile.length() >= sequence * 21);
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        groupCommit.close();
+        journal.close();
+        
+        assertTrue("Waiters should share fsyncs (" + groupCommit.getBatchCount() + " for " + threads * records + ")",
+            groupCommit.getBatchCount() < threads * records);
+    }
+    
+    @Test(expected = IOException.class)
+    public void testWaitAfterCloseFails() throws Exception {
+        Journal journal = new Journal(journalFile);
+        GroupCommit groupCommit = new GroupCommit(journal, 1);
+        groupCommit.close();
+        try {
+            groupCommit.awaitDurable(journal.append(Journal.REMOVE_ITEM, out -> out.writeInt(1)));
+        } finally {
+            journal.close();
+        }
+    }
+    
+    @Test
+    public void testPurchaseIsDurableWhenItReturns() {
+        Database database = new Database(dataFile.getPath(), true);
+        database.loadFromDisk();
+        database.addUser(new User("buyer", "pw"));
+        database.addUser(new User("seller", "pw"));
+        Item item = new Item("Book", "Paperback", 30.0, "seller");
+        database.addItem(item);
+        assertTrue("Purchase should succeed",
+            new PaymentProcessor(database).processPayment("buyer", "seller", item.getId()).isSuccess());
+        
+        // Read the files as a crash would leave them: nothing was saved or closed after the purchase
+        Database recovered = new Database(dataFile.getPath(), true);
+        recovered.loadFromDisk();
+        assertTrue("Item should be sold after recovery", recovered.getItemById(item.getId()).isSold());
+        assertEquals("Buyer should have paid after recovery", 70.0,
+            recovered.getUserByUsername("buyer").getBalance(), 0.001);
+        database.close();
+        recovered.close();
+    }
+}
@@ -0,0 +1,72 @@
+package database;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IdAllocator class
+ *
+ * Hands out unique, increasing 64-bit IDs without locking. The top NODE_BITS bits hold the ID
+ * of the node that allocated it and the rest a sequence counted by that node, so nodes sharing
+ * one ID space never collide. Every allocated ID is persisted with the record it names, and the
+ * database moves the allocator past the IDs it loads, so IDs are not reused after a restart.
+ * Thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class IdAllocator {
+    static final int NODE_BITS = 16; // Bits of an ID naming the node that allocated it
+    static final long SEQUENCE_MASK = (1L << (Long.SIZE - 1 - NODE_BITS)) - 1; // Bits of the per-node sequence
+    
+    private final long nodePrefix; // Node ID shifted into place
+    private final AtomicLong nextSequence; // Sequence of the next ID, starting at 1 so 0 means "no ID"
+    
+    /**
+    * Creates an allocator for the given node.
+    *
+    * @param nodeId node ID between 0 and 2^NODE_BITS - 1
+    */
+    IdAllocator(int nodeId) {
+        if (nodeId < 0 || nodeId >= (1 << NODE_BITS)) {
+            throw new IllegalArgumentException("Node ID out of range: " + nodeId);
+        }
+        this.nodePrefix = (long) nodeId << (Long.SIZE - 1 - NODE_BITS);
+        this.nextSequence = new AtomicLong(1);
+    }
+    
+    /**
+    * Returns a new ID, larger than every ID this allocator returned or was moved past.
+    *
+    * @return the ID
+    */
+    long next() {
+        long sequence = nextSequence.getAndIncrement();
+        if (sequence > SEQUENCE_MASK) {
+            throw new IllegalStateException("ID space of the node is exhausted");
+        }
+        return nodePrefix | sequence;
+    }
+    
+    /**
+    * Makes sure an ID loaded from disk is never handed out again.
+    * IDs allocated by other nodes are ignored.
+    *
+    * @param id an ID in use
+    */
+    void advancePast(long id) {
+        if (id <= 0 || (id & ~SEQUENCE_MASK) != nodePrefix) {
+            return;
+        }
+        nextSequence.accumulateAndGet((id & SEQUENCE_MASK) + 1, Math::max);
+    }
+    
+    /**
+    * Returns the ID next() would return now, for saving in a snapshot.
+    *
+    * @return the next ID
+    */
+    long peek() {
+        return nodePrefix | nextSequence.get();
+    }
+}
@@ -0,0 +1,67 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class IdAllocatorTest {
+    @Test
+    public void testIdsAreUniqueAcrossThreads() throws Exception {
+        IdAllocator allocator = new IdAllocator(0);
+        int threads = 8;
+        int ids = 10000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                long[] allocated = new long[ids];
+                for (int i = 0; i < ids; i++) {
+                    allocated[i] = allocator.next();
+                }
+                return allocated;
+            }));
+        }
+        Set<Long> seen = new HashSet<>();
+        for (Future<long[]> future : futures) {
+            long[] allocated = future.get(30, TimeUnit.SECONDS);
+            for (int i = 0; i < ids; i++) {
+                assertTrue("IDs should be positive", allocated[i] > 0);
+                assertTrue("IDs should increase within a thread", i == 0 || allocated[i] > allocated[i - 1]);
+                assertTrue("IDs should not repeat", seen.add(allocated[i]));
+            }
+        }
+        pool.shutdown();
+        assertEquals("Every ID should be handed out once", threads * ids, seen.size());
+    }
+    
+    @Test
+    public void testAdvancePastSkipsLoadedIds() {
+        IdAllocator allocator = new IdAllocator(0);
+        assertEquals("First ID should be 1", 1, allocator.next());
+        allocator.advancePast(1713000000);
+        assertEquals("IDs should continue after the largest loaded one", 1713000001L, allocator.next());
+        allocator.advancePast(5);
+        assertEquals("Smaller IDs should not move the allocator back", 1713000002L, allocator.peek());
+        allocator.advancePast(0);
+        assertEquals("ID 0 means no ID and should be ignored", 1713000002L, allocator.next());
+    }
+    
+    @Test
+    public void testNodesDoNotCollide() {
+        IdAllocator first = new IdAllocator(1);
+        IdAllocator second = new IdAllocator(2);
+        long fromFirst = first.next();
+        long fromSecond = second.next();
+        assertNotEquals("Nodes should allocate different IDs", fromFirst, fromSecond);
+        assertTrue("IDs should stay positive for the highest node", new IdAllocator(65535).next() > 0);
+        
+        first.advancePast(fromSecond + 100);
+        assertEquals("IDs of other nodes should not move the allocator", fromFirst + 1, first.next());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testNodeIdOutOfRangeIsRejected() {
+        new IdAllocator(1 << IdAllocator.NODE_BITS);
+    }
+}
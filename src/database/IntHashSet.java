@@ -0,0 +1,241 @@
+package database;
+import java.util.*;
+
+/**
+ * IntHashSet class
+ *
+ * Set of ints kept in an int array with open addressing and linear probing, instead of a HashSet
+ * of boxed Integers. A member takes 5 to 11 bytes, where a HashSet member with its Integer takes
+ * about 50. Removing a member moves the members probed after it back, so no slot is left marked
+ * as removed and lookups never slow down.
+ * Not thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public final class IntHashSet {
+    private static final int FREE = 0; // Value of an empty slot; 0 itself is kept outside the table
+    private static final int MIN_CAPACITY = 4; // Smallest table; most posting lists are short
+    private static final int MAX_CAPACITY = 1 << 30; // Largest table
+    
+    private int[] slots; // Members, FREE in empty slots, length a power of two
+    private boolean hasZero; // True if 0 is a member
+    private int size; // Number of members
+    
+    public IntHashSet() {
+        this(0);
+    }
+    
+    /**
+    * Creates a set with room for the given number of members before it grows.
+    *
+    * @param expectedSize number of members expected
+    */
+    public IntHashSet(int expectedSize) {
+        this.slots = new int[capacityFor(expectedSize)];
+    }
+    
+    /**
+    * Adds a value.
+    *
+    * @param value the value
+    * @return true if it was not a member yet
+    */
+    public boolean add(int value) {
+        if (value == FREE) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int i = probe(slots, value);
+        if (slots[i] == value) {
+            return false;
+        }
+        slots[i] = value;
+        size++;
+        if (size > slots.length / 4 * 3) {
+            resize(slots.length * 2);
+        }
+        return true;
+    }
+    
+    /**
+    * Returns true if the value is a member.
+    *
+    * @param value the value
+    * @return true if present
+    */
+    public boolean contains(int value) {
+        if (value == FREE) {
+            return hasZero;
+        }
+        return slots[probe(slots, value)] == value;
+    }
+    
+    /**
+    * Removes a value.
+    *
+    * @param value the value
+    * @return true if it was a member
+    */
+    public boolean remove(int value) {
+        if (value == FREE) {
+            if (!hasZero) {
+                return false;
+            }
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int i = probe(slots, value);
+        if (slots[i] != value) {
+            return false;
+        }
+        // Move back every member of the run after the slot that would otherwise no longer be reached
+        int mask = slots.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int member = slots[j];
+            if (member == FREE) {
+                break;
+            }
+            int home = slot(member, mask);
+            // The member stays if its home lies cyclically after the emptied slot, up to its own slot
+            boolean reachable = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+            if (!reachable) {
+                slots[i] = member;
+                i = j;
+            }
+        }
+        slots[i] = FREE;
+        size--;
+        return true;
+    }
+    
+    /**
+    * Returns the number of members.
+    *
+    * @return size
+    */
+    public int size() {
+        return size;
+    }
+    
+    /**
+    * Returns true if the set has no members.
+    *
+    * @return true if empty
+    */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+    * Returns the members, in no particular order.
+    *
+    * @return new array of the members
+    */
+    public int[] toArray() {
+        int[] members = new int[size];
+        int n = 0;
+        if (hasZero) {
+            members[n++] = 0;
+        }
+        for (int member : slots) {
+            if (member != FREE) {
+                members[n++] = member;
+            }
+        }
+        return members;
+    }
+    
+    /**
+    * Returns an iterator over the members, in no particular order. The set must not be changed
+    * while it is iterated.
+    *
+    * @return iterator
+    */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private boolean zeroLeft = hasZero; // True until 0 has been returned, if a member
+            private int next = nextSlot(0); // Slot of the next member
+            
+            @Override
+            public boolean hasNext() {
+                return zeroLeft || next < slots.length;
+            }
+            
+            @Override
+            public int nextInt() {
+                if (zeroLeft) {
+                    zeroLeft = false;
+                    return 0;
+                }
+                if (next >= slots.length) {
+                    throw new NoSuchElementException();
+                }
+                int member = slots[next];
+                next = nextSlot(next + 1);
+                return member;
+            }
+            
+            private int nextSlot(int from) {
+                while (from < slots.length && slots[from] == FREE) {
+                    from++;
+                }
+                return from;
+            }
+        };
+    }
+    
+    /**
+    * Moves the members into a table of the given size.
+    */
+    private void resize(int capacity) {
+        int[] old = slots;
+        slots = new int[Math.min(capacity, MAX_CAPACITY)];
+        for (int member : old) {
+            if (member != FREE) {
+                slots[probe(slots, member)] = member;
+            }
+        }
+    }
+    
+    /**
+    * Returns the slot holding the value, or the free slot where it would go.
+    */
+    private static int probe(int[] slots, int value) {
+        int mask = slots.length - 1;
+        int i = slot(value, mask);
+        while (slots[i] != value && slots[i] != FREE) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+    
+    /**
+    * Returns the home slot of a value. Consecutive IDs are spread over the table by
+    * multiplying with the golden ratio.
+    */
+    private static int slot(int value, int mask) {
+        int h = value * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+    
+    /**
+    * Returns the table size that holds the given number of members at most half full.
+    */
+    private static int capacityFor(int members) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < members && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
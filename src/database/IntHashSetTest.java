@@ -0,0 +1,53 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.util.*;
+
+public class IntHashSetTest {
+    @Test
+    public void testAddContainsRemove() {
+        IntHashSet set = new IntHashSet();
+        assertTrue("New values should be added", set.add(3));
+        assertFalse("Members should not be added twice", set.add(3));
+        assertTrue("Zero should be added", set.add(0));
+        assertTrue("Negative values should be added", set.add(-9));
+        assertTrue("Members should be found", set.contains(3));
+        assertTrue("Zero should be found", set.contains(0));
+        assertFalse("Other values should not be found", set.contains(4));
+        assertEquals("Size should count every member", 3, set.size());
+
+        assertTrue("Members should be removed", set.remove(3));
+        assertFalse("Absent values should not be removed", set.remove(3));
+        assertTrue("Zero should be removed", set.remove(0));
+        assertArrayEquals("Array should hold the remaining members", new int[] {-9}, set.toArray());
+        assertTrue("Last member should be removed", set.remove(-9));
+        assertTrue("Set should be empty", set.isEmpty());
+    }
+
+    @Test
+    public void testMatchesHashSetThroughGrowthAndRemoval() {
+        IntHashSet set = new IntHashSet();
+        Set<Integer> expected = new HashSet<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            int value = random.nextInt(5000);
+            if (random.nextBoolean()) {
+                assertEquals("Remove should match HashSet", expected.remove(value), set.remove(value));
+            } else {
+                assertEquals("Add should match HashSet", expected.add(value), set.add(value));
+            }
+        }
+        assertEquals("Size should match HashSet", expected.size(), set.size());
+        for (int value = 0; value < 5000; value++) {
+            assertEquals("Membership should match HashSet", expected.contains(value), set.contains(value));
+        }
+
+        Set<Integer> iterated = new HashSet<>();
+        for (PrimitiveIterator.OfInt members = set.iterator(); members.hasNext(); ) {
+            iterated.add(members.nextInt());
+        }
+        assertEquals("Iteration should return every member once", expected, iterated);
+        assertEquals("Array should hold every member", expected.size(), set.toArray().length);
+    }
+}
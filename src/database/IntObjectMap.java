@@ -0,0 +1,277 @@
+package database;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+
+/**
+ * IntObjectMap class
+ *
+ * Hash map from int keys to objects that keeps keys in an int array instead of boxing them, with
+ * open addressing and linear probing. An entry takes 11 to 16 bytes of table, where a HashMap
+ * entry with its Integer key takes about 50.
+ * Lookups take no lock. A slot, once given a key, keeps it for as long as the table is in use;
+ * removing an entry only clears its value, and the slot is reused if the same key is put again.
+ * The value is written before the key, so a lookup that finds a key also sees its value. Changes
+ * are serialized by the map's monitor, and when too many slots are taken a new table is built
+ * from the live entries and published in one write, so lookups see either the old or the new table.
+ * Null values are not allowed.
+ * Thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public final class IntObjectMap<V> {
+    private static final int FREE = 0; // Key of an empty slot; key 0 itself is kept outside the table
+    private static final int MIN_CAPACITY = 16; // Smallest table
+    private static final int MAX_CAPACITY = 1 << 30; // Largest table
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    
+    /**
+     * Slots of the map; replaced as a whole when the map grows
+     */
+    private static final class Table {
+        final int[] keys; // Key of each slot, FREE if the slot was never used
+        final Object[] values; // Value of each slot, null if never used or removed
+        final int mask; // Number of slots minus one, the number of slots being a power of two
+        
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+    
+    private volatile Table table; // Current slots
+    private volatile Object zeroValue; // Value of key 0, null if absent
+    private volatile int size; // Number of entries
+    private int used; // Slots holding a key, live or removed, guarded by the monitor
+    
+    public IntObjectMap() {
+        this(0);
+    }
+    
+    /**
+    * Creates a map with room for the given number of entries before it grows.
+    *
+    * @param expectedSize number of entries expected
+    */
+    public IntObjectMap(int expectedSize) {
+        this.table = new Table(capacityFor(expectedSize));
+    }
+    
+    /**
+    * Returns the value of a key.
+    *
+    * @param key the key
+    * @return value, or null if the key is absent
+    */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        if (key == FREE) {
+            return (V) zeroValue;
+        }
+        Table t = table;
+        for (int i = slot(key, t.mask); ; i = (i + 1) & t.mask) {
+            int k = (int) KEYS.getAcquire(t.keys, i);
+            if (k == key) {
+                return (V) VALUES.getAcquire(t.values, i);
+            }
+            if (k == FREE) {
+                return null;
+            }
+        }
+    }
+    
+    /**
+    * Returns true if the key has a value.
+    *
+    * @param key the key
+    * @return true if present
+    */
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+    
+    /**
+    * Sets the value of a key.
+    *
+    * @param key the key
+    * @param value the new value, not null
+    * @return previous value, or null if the key was absent
+    */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(int key, V value) {
+        Objects.requireNonNull(value);
+        if (key == FREE) {
+            V previous = (V) zeroValue;
+            zeroValue = value;
+            if (previous == null) {
+                size++;
+            }
+            return previous;
+        }
+        Table t = table;
+        int i = probe(t, key);
+        if (t.keys[i] == key) {
+            V previous = (V) t.values[i];
+            VALUES.setRelease(t.values, i, value);
+            if (previous == null) {
+                size++;
+            }
+            return previous;
+        }
+        if (used + 1 > t.keys.length / 4 * 3) {
+            t = rehash(size + 1);
+            i = probe(t, key);
+        }
+        VALUES.setRelease(t.values, i, value);
+        KEYS.setRelease(t.keys, i, key);
+        used++;
+        size++;
+        return null;
+    }
+    
+    /**
+    * Removes the value of a key.
+    *
+    * @param key the key
+    * @return removed value, or null if the key was absent
+    */
+    public synchronized V remove(int key) {
+        return removeIf(key, null);
+    }
+    
+    /**
+    * Removes the value of a key only if it is the given value.
+    *
+    * @param key the key
+    * @param value value expected
+    * @return true if the value was removed
+    */
+    public synchronized boolean remove(int key, V value) {
+        return value != null && removeIf(key, value) != null;
+    }
+    
+    /**
+    * Returns the number of entries.
+    *
+    * @return size
+    */
+    public int size() {
+        return size;
+    }
+    
+    /**
+    * Returns true if the map has no entries.
+    *
+    * @return true if empty
+    */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+    * Returns a list of the values, in no particular order. Changes made while the list is
+    * built may or may not be in it.
+    *
+    * @return new list of the values
+    */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        Object zero = zeroValue;
+        if (zero != null) {
+            values.add((V) zero);
+        }
+        Table t = table;
+        for (int i = 0; i < t.values.length; i++) {
+            Object value = VALUES.getAcquire(t.values, i);
+            if (value != null) {
+                values.add((V) value);
+            }
+        }
+        return values;
+    }
+    
+    /**
+    * Removes the value of a key if it equals the expected value, or whatever it is if none is
+    * expected. Called while holding the monitor.
+    */
+    @SuppressWarnings("unchecked")
+    private V removeIf(int key, V expected) {
+        if (key == FREE) {
+            V previous = (V) zeroValue;
+            if (previous == null || (expected != null && !expected.equals(previous))) {
+                return null;
+            }
+            zeroValue = null;
+            size--;
+            return previous;
+        }
+        Table t = table;
+        int i = probe(t, key);
+        V previous = (V) t.values[i];
+        if (t.keys[i] != key || previous == null || (expected != null && !expected.equals(previous))) {
+            return null;
+        }
+        // The slot keeps its key, so lookups probing past it still reach the keys after it
+        VALUES.setRelease(t.values, i, null);
+        size--;
+        return previous;
+    }
+    
+    /**
+    * Returns the slot holding the key, or the free slot where it would go.
+    */
+    private static int probe(Table t, int key) {
+        int i = slot(key, t.mask);
+        while (t.keys[i] != key && t.keys[i] != FREE) {
+            i = (i + 1) & t.mask;
+        }
+        return i;
+    }
+    
+    /**
+    * Builds a table with room for the live entries and publishes it. Called while holding the monitor.
+    */
+    private Table rehash(int minSize) {
+        Table old = table;
+        Table t = new Table(capacityFor(minSize));
+        int count = 0;
+        for (int i = 0; i < old.keys.length; i++) {
+            Object value = old.values[i];
+            if (value != null) {
+                int j = probe(t, old.keys[i]);
+                t.keys[j] = old.keys[i];
+                t.values[j] = value;
+                count++;
+            }
+        }
+        used = count;
+        table = t;
+        return t;
+    }
+    
+    /**
+    * Returns the home slot of a key. Consecutive IDs are spread over the table by
+    * multiplying with the golden ratio.
+    */
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+    
+    /**
+    * Returns the table size that holds the given number of entries at most half full.
+    */
+    private static int capacityFor(int entries) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < entries && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
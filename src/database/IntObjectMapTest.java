@@ -0,0 +1,84 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class IntObjectMapTest {
+    @Test
+    public void testPutGetRemove() {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        assertNull("Absent keys should have no value", map.get(5));
+        assertNull("First put should have no previous value", map.put(5, "five"));
+        assertEquals("Put should replace the value", "five", map.put(5, "FIVE"));
+        assertEquals("Value should be found", "FIVE", map.get(5));
+        map.put(0, "zero");
+        map.put(-7, "minus seven");
+        assertEquals("Key 0 should be stored", "zero", map.get(0));
+        assertEquals("Negative keys should be stored", "minus seven", map.get(-7));
+        assertEquals("Size should count every key", 3, map.size());
+
+        assertFalse("Remove should compare the value", map.remove(5, "five"));
+        assertTrue("Remove should remove the expected value", map.remove(5, "FIVE"));
+        assertNull("Removed keys should have no value", map.get(5));
+        assertEquals("Removing key 0 should return its value", "zero", map.remove(0));
+        assertEquals("Size should drop on remove", 1, map.size());
+        map.put(5, "again");
+        assertEquals("A removed key should be put again", "again", map.get(5));
+        assertEquals("Values should list every entry", new HashSet<>(Arrays.asList("again", "minus seven")),
+                     new HashSet<>(map.values()));
+    }
+
+    @Test
+    public void testMatchesHashMapThroughGrowthAndRemoval() {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(20000) - 100;
+            if (random.nextInt(3) == 0) {
+                assertEquals("Remove should match HashMap", expected.remove(key), map.remove(key));
+            } else {
+                assertEquals("Put should match HashMap", expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals("Size should match HashMap", expected.size(), map.size());
+        for (int key = -100; key < 19900; key++) {
+            assertEquals("Every key should match HashMap", expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testLookupsDuringWrites() throws InterruptedException {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        for (int key = 1; key <= 1000; key++) {
+            map.put(key, key);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                for (int key = 1; key <= 1000; key++) {
+                    Integer value = map.get(key);
+                    if (value == null || value != key) {
+                        failure.set("Key " + key + " read as " + value);
+                    }
+                }
+            }
+        });
+        reader.start();
+        // Grows the table many times and leaves removed slots behind while the reader looks up
+        for (int key = 1001; key <= 200000; key++) {
+            map.put(key, key);
+            map.remove(key - 500);
+            if (key - 500 <= 1000) {
+                map.put(key - 500, key - 500);
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull("Keys that are never removed should always be found", failure.get());
+    }
+}
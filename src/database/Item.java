@@ -1,11 +1,12 @@
 package database;
-import java.io.Serializable;
+import java.io.*;
 
 
 /**
  * Item class
  *
  * This class represents an item with a title, description, price, seller, and sold status.
+ * The price is kept in cents (see Money).
  * 
  * @author L10-Team1 
  *
@@ -13,22 +14,49 @@ import java.io.Serializable;
  *
  */
 public class Item implements ItemInterface, Serializable {
+    private static final long serialVersionUID = -1327791938991972138L;
     
     private int id; //ID of the item
     private String title; //Title of the item
     private String description; //Description of the item
-    private double price; //Price of the item
+    private long priceCents; //Price of the item in cents
     private String seller; //Seller of the item
-    private boolean sold; //Sold status of the item
+    private volatile boolean sold; //Sold status of the item, changed under the item's lock in Database
+    private long version; //Catalog version at which the item was last listed for sale
+    private transient SoldListener soldListener; //Notified when the sold status changes (not persisted)
+    
+    /**
+     * Callback used by the database to keep its indexes in sync with the sold status.
+     */
+    interface SoldListener {
+        void soldChanged(Item item);
+    }
     
     public Item(String title, String description, double price, String seller) {
+        this(title, description, seller, Money.toCents(price));
+    }
+    
+    private Item(String title, String description, String seller, long priceCents) {
         this.title = title;
         this.description = description;
-        this.price = price;
+        this.priceCents = priceCents;
         this.seller = seller;
         this.sold = false; // Item is not sold (False) upon creation
     }
     
+    /**
+    * Creates an item priced in cents.
+    *
+    * @param title title of the item
+    * @param description description of the item
+    * @param priceCents price in cents
+    * @param seller username of the seller
+    * @return the item
+    */
+    public static Item withPriceCents(String title, String description, long priceCents, String seller) {
+        return new Item(title, description, seller, priceCents);
+    }
+    
     /**
     * Returns the ID of the item.
     *
@@ -71,7 +99,16 @@ public class Item implements ItemInterface, Serializable {
     * @return price
     */
     public double getPrice() {
-        return price;
+        return Money.toAmount(priceCents);
+    }
+    
+    /**
+    * Returns price of the item in cents.
+    *
+    * @return price in cents
+    */
+    public long getPriceCents() {
+        return priceCents;
     }
     
     /**
@@ -98,6 +135,98 @@ public class Item implements ItemInterface, Serializable {
     * @param sold the sold status to set
     */
     public void setSold(boolean sold) {
+        if (this.sold == sold) {
+            return;
+        }
         this.sold = sold;
+        SoldListener listener = soldListener;
+        if (listener != null) {
+            listener.soldChanged(this);
+        }
+    }
+    
+    /**
+    * Returns the catalog version at which the item was last listed for sale.
+    * A listed item does not change until it is sold, so clients holding this version
+    * of the item have the same data as the server.
+    *
+    * @return version
+    */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+    * Sets the catalog version of the item; called by the search index and the wire protocol.
+    *
+    * @param version the version to set
+    */
+    void setVersion(long version) {
+        this.version = version;
+    }
+    
+    /**
+    * Returns true if this is a placeholder standing in for an item the client already has.
+    * Placeholders carry only an ID and a version; every other item has a title.
+    *
+    * @return true for a placeholder
+    */
+    public boolean isPlaceholder() {
+        return title == null;
+    }
+    
+    /**
+    * Creates a placeholder for the given version of an item.
+    *
+    * @param id ID of the item
+    * @param version version of the item
+    * @return the placeholder
+    */
+    static Item placeholder(int id, long version) {
+        Item item = new Item(null, null, null, 0);
+        item.setId(id);
+        item.setVersion(version);
+        return item;
+    }
+    
+    /**
+    * Returns a copy of the item as it is now, for writing a snapshot while the item keeps changing.
+    * The copy has no sold listener.
+    *
+    * @return the copy
+    */
+    Item copy() {
+        Item item = new Item(title, description, seller, priceCents);
+        item.id = id;
+        item.sold = sold;
+        item.version = version;
+        return item;
+    }
+    
+    /**
+    * Sets the listener notified when the sold status changes.
+    *
+    * @param listener the listener, or null to remove it
+    */
+    void setSoldListener(SoldListener listener) {
+        this.soldListener = listener;
+    }
+    
+    /**
+    * Reads an item, converting the price of files written before prices were kept in cents.
+    */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = fields.get("id", 0);
+        title = (String) fields.get("title", null);
+        description = (String) fields.get("description", null);
+        if (fields.defaulted("priceCents")) {
+            priceCents = Money.toCents(fields.get("price", 0.0));
+        } else {
+            priceCents = fields.get("priceCents", 0L);
+        }
+        seller = (String) fields.get("seller", null);
+        sold = fields.get("sold", false);
+        version = fields.get("version", 0L);
     }
 }
@@ -5,7 +5,10 @@ public interface ItemInterface {
     String getTitle();
     String getDescription();
     double getPrice();
+    long getPriceCents();
     String getSeller();
     boolean isSold();
     void setSold(boolean sold);
+    long getVersion();
+    boolean isPlaceholder();
 }
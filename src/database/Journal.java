@@ -0,0 +1,472 @@
+package database;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Journal class
+ *
+ * Append-only write-ahead log used by Database in journaled mode.
+ * Every mutation is written as one compact, checksummed record, so saving only
+ * has to flush the tail of the log instead of re-serializing the whole database.
+ * On startup the records written after the last snapshot are replayed on top of it.
+ *
+ * Record layout: [int length][long crc32][byte type][long sequence][payload]
+ * A torn or corrupt record at the end of the file (crash mid-write) ends the log.
+ * Once replication is started, every record is also kept in a ReplicationLog for the replicas,
+ * which see it as soon as it has been flushed.
+ * All methods are thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class Journal {
+    static final byte ADD_USER = 1;
+    static final byte REMOVE_USER = 2;
+    static final byte ADD_ITEM = 3;
+    static final byte REMOVE_ITEM = 4;
+    static final byte ADD_MESSAGE = 5;
+    static final byte PURCHASE = 6;
+    // Records written since money is kept in cents; the types above are still read from older journals
+    static final byte ADD_USER_CENTS = 7;
+    static final byte ADD_ITEM_CENTS = 8;
+    static final byte PURCHASE_CENTS = 9;
+    // Purchase with a 64-bit transaction ID; the purchase types above are still read from older journals
+    static final byte PURCHASE_ID64 = 10;
+    // Refund of a failed cross-shard purchase, laid out like PURCHASE_ID64
+    static final byte REFUND = 11;
+    
+    private static final int HEADER_SIZE = 4 + 8; // length + crc
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024; // Sanity limit for a single record
+    
+    private final File file; // Log file on disk
+    private FileOutputStream fileOut; // Underlying file stream, used for fsync
+    private volatile DataOutputStream out; // Buffered stream records are appended to
+    private volatile long lastSequence; // Sequence number of the last record written
+    private volatile int recordCount; // Records in the log since it was last truncated
+    private final ReentrantLock lock = new ReentrantLock(); // Serializes writers of the log
+    private volatile ReplicationLog replicationLog; // Records shipped to replicas, null until replication starts
+    
+    /**
+     * Callback used to write the payload of a record.
+     */
+    interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    Journal(File file) {
+        this.file = file;
+        this.lastSequence = 0;
+        this.recordCount = 0;
+    }
+    
+    /**
+    * Returns true if the journal has been opened for appending.
+    *
+    * @return open status
+    */
+    boolean isOpen() {
+        return out != null;
+    }
+    
+    /**
+    * Returns the sequence number of the last record written or replayed.
+    *
+    * @return lastSequence
+    */
+    long getLastSequence() {
+        return lastSequence;
+    }
+    
+    /**
+    * Returns the number of records in the log since the last truncation.
+    *
+    * @return recordCount
+    */
+    int getRecordCount() {
+        return recordCount;
+    }
+    
+    /**
+    * Opens the journal for appending.
+    * Any torn record at the end of the file is cut off so new records stay readable.
+    *
+    * @param minSequence sequence number already covered by the snapshot
+    * @throws IOException if the file cannot be opened
+    */
+    void open(long minSequence) throws IOException {
+        lock.lock();
+        try {
+            if (isOpen()) {
+                return;
+            }
+            
+            long validLength = 0;
+            if (file.exists()) {
+                validLength = replay(0, null);
+                if (file.length() > validLength) {
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.setLength(validLength);
+                    }
+                    System.err.println("Journal: discarded torn record at end of " + file.getName());
+                }
+            }
+            
+            lastSequence = Math.max(lastSequence, minSequence);
+            fileOut = new FileOutputStream(file, true);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+    * Appends a record to the log. The record is buffered until flush() is called.
+    *
+    * @param type record type
+    * @param writer writes the record payload
+    * @return sequence number assigned to the record
+    * @throws IOException if the record cannot be written
+    */
+    long append(byte type, RecordWriter writer) throws IOException {
+        lock.lock();
+        try {
+            if (!isOpen()) {
+                open(0);
+            }
+            
+            long sequence = lastSequence + 1;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream body = new DataOutputStream(bytes);
+            body.writeByte(type);
+            body.writeLong(sequence);
+            writer.write(body);
+            body.flush();
+            
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            
+            out.writeInt(record.length);
+            out.writeLong(crc.getValue());
+            out.write(record);
+            
+            lastSequence = sequence;
+            recordCount++;
+            if (replicationLog != null) {
+                replicationLog.append(sequence, record);
+            }
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+    * Flushes buffered records to the operating system.
+    *
+    * @param sync if true, also forces the data to the storage device
+    * @throws IOException if the flush fails
+    */
+    void flush(boolean sync) throws IOException {
+        lock.lock();
+        try {
+            if (!isOpen()) {
+                return;
+            }
+            out.flush();
+            publish();
+            if (sync) {
+                fileOut.getFD().sync();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+    * Drops the records captured by a snapshot. Records appended since the snapshot was taken
+    * are kept: they are copied to a new file that atomically replaces the log, so a crash
+    * leaves either the old log or the new one. Sequence numbers keep counting from where they were.
+    *
+    * @param throughSequence last sequence number contained in the snapshot
+    * @throws IOException if the file cannot be truncated
+    */
+    void truncate(long throughSequence) throws IOException {
+        lock.lock();
+        try {
+            if (isOpen()) {
+                out.flush();
+                publish();
+            }
+            if (lastSequence <= throughSequence) {
+                if (isOpen()) {
+                    fileOut.getChannel().truncate(0);
+                } else if (file.exists()) {
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.setLength(0);
+                    }
+                }
+                recordCount = 0;
+                return;
+            }
+            
+            long keepFrom = offsetAfter(throughSequence);
+            File temp = new File(file.getPath() + ".tmp");
+            try (FileInputStream in = new FileInputStream(file);
+                 FileOutputStream copy = new FileOutputStream(temp)) {
+                in.getChannel().transferTo(keepFrom, Long.MAX_VALUE, copy.getChannel());
+                copy.getFD().sync();
+            }
+            boolean wasOpen = isOpen();
+            if (wasOpen) {
+                out.close();
+                out = null;
+                fileOut = null;
+            }
+            AtomicFiles.replace(temp, file);
+            if (wasOpen) {
+                fileOut = new FileOutputStream(file, true);
+                out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            }
+            recordCount = (int) (lastSequence - throughSequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+    * Starts keeping every record appended from now on for replicas. Records already in the
+    * log are not kept; a replica that needs them is sent a snapshot instead.
+    *
+    * @param capacity most records kept for replicas that fall behind
+    * @return the replication log, or the one already started
+    */
+    ReplicationLog startReplication(int capacity) {
+        lock.lock();
+        try {
+            if (replicationLog == null) {
+                replicationLog = new ReplicationLog(lastSequence, capacity);
+            }
+            return replicationLog;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+    * Lets replicas see the records flushed so far. Called while holding the lock.
+    */
+    private void publish() {
+        if (replicationLog != null) {
+            replicationLog.publish(lastSequence);
+        }
+    }
+    
+    /**
+    * Returns the file offset of the first record with a sequence number greater than the given one.
+    * Called while holding the lock with everything flushed.
+    */
+    private long offsetAfter(long sequence) throws IOException {
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length = in.readInt();
+                in.readLong(); // crc
+                in.readByte(); // type
+                if (in.readLong() > sequence) {
+                    return offset;
+                }
+                in.skipNBytes(length - 1 - 8);
+                offset += HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            return offset;
+        }
+    }
+    
+    /**
+    * Closes the journal. Buffered records are flushed first.
+    */
+    void close() {
+        lock.lock();
+        try {
+            if (!isOpen()) {
+                return;
+            }
+            try {
+                out.flush();
+                out.close();
+            } catch (IOException e) {
+                System.err.println("Error closing journal: " + e.getMessage());
+            }
+            out = null;
+            fileOut = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+    * Replays all intact records with a sequence number greater than afterSequence.
+    *
+    * @param afterSequence records up to and including this sequence are skipped
+    * @param database database to apply the records to, or null to only scan the log
+    * @return number of bytes of the file holding intact records
+    * @throws IOException if the file cannot be read
+    */
+    long replay(long afterSequence, Database database) throws IOException {
+        long validLength = 0;
+        int count = 0;
+        if (!file.exists()) {
+            return 0;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    long checksum = in.readLong();
+                    record = new byte[length];
+                    in.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if (crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = body.readByte();
+                long sequence = body.readLong();
+                if (database != null && sequence > afterSequence) {
+                    apply(type, body, database);
+                }
+                lastSequence = Math.max(lastSequence, sequence);
+                validLength += HEADER_SIZE + record.length;
+                count++;
+            }
+        }
+        
+        recordCount = count;
+        return validLength;
+    }
+    
+    /**
+    * Applies one record as kept by the replication log, e.g. on a replica.
+    *
+    * @param record type, sequence number and payload of the record
+    * @param database database to apply the record to
+    * @throws IOException if the record is malformed
+    */
+    static void apply(byte[] record, Database database) throws IOException {
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = body.readByte();
+        body.readLong(); // sequence
+        apply(type, body, database);
+    }
+    
+    /**
+    * Returns the sequence number of a record as kept by the replication log.
+    *
+    * @param record type, sequence number and payload of the record
+    * @return sequence number
+    */
+    static long sequenceOf(byte[] record) throws IOException {
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(record));
+        body.readByte(); // type
+        return body.readLong();
+    }
+    
+    /**
+    * Decodes a single record and applies it to the database.
+    */
+    private static void apply(byte type, DataInputStream in, Database database) throws IOException {
+        switch (type) {
+            case ADD_USER:
+            case ADD_USER_CENTS: {
+                User user = new User(readString(in), readString(in));
+                user.setBalanceCents((type == ADD_USER) ? Money.toCents(in.readDouble()) : in.readLong());
+                database.addUser(user);
+                break;
+            }
+            case REMOVE_USER:
+                database.removeUser(readString(in));
+                break;
+            case ADD_ITEM:
+            case ADD_ITEM_CENTS: {
+                int id = in.readInt();
+                String title = readString(in);
+                String description = readString(in);
+                long priceCents = (type == ADD_ITEM) ? Money.toCents(in.readDouble()) : in.readLong();
+                Item item = Item.withPriceCents(title, description, priceCents, readString(in));
+                item.setSold(in.readBoolean());
+                database.restoreItem(id, item);
+                break;
+            }
+            case REMOVE_ITEM:
+                database.removeItem(in.readInt());
+                break;
+            case ADD_MESSAGE: {
+                String sender = readString(in);
+                String recipient = readString(in);
+                String content = readString(in);
+                Date timestamp = new Date(in.readLong());
+                database.addMessage(new Message(sender, recipient, content, in.readInt(), timestamp));
+                break;
+            }
+            case PURCHASE:
+            case PURCHASE_CENTS:
+            case PURCHASE_ID64: {
+                long id = (type == PURCHASE_ID64) ? in.readLong() : in.readInt();
+                int itemId = in.readInt();
+                long amount = (type == PURCHASE) ? Money.toCents(in.readDouble()) : in.readLong();
+                Date timestamp = new Date(in.readLong());
+                Transaction transaction = new Transaction(id, itemId, amount, readString(in), readString(in), timestamp);
+                database.applyPurchase(transaction);
+                break;
+            }
+            case REFUND: {
+                long id = in.readLong();
+                int itemId = in.readInt();
+                long amount = in.readLong();
+                Date timestamp = new Date(in.readLong());
+                Transaction refund = new Transaction(id, itemId, amount, readString(in), readString(in), timestamp);
+                refund.setRefund(true);
+                database.applyRefund(refund);
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+    
+    /**
+    * Writes a string as a length-prefixed UTF-8 byte sequence.
+    * Unlike writeUTF this has no 64KB limit.
+    */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+    * Reads a string written by writeString.
+    */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,230 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+public class JournalTest {
+    private File dataFile;
+    private File journalFile;
+    
+    @Before
+    public void setUp() throws Exception {
+        dataFile = File.createTempFile("journal_test", ".ser");
+        dataFile.delete();
+        journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+    }
+    
+    @After
+    public void tearDown() {
+        dataFile.delete();
+        journalFile.delete();
+    }
+    
+    private Database openDatabase() {
+        Database database = new Database(dataFile.getPath(), true);
+        database.loadFromDisk();
+        return database;
+    }
+    
+    @Test
+    public void testMutationsReplayedWithoutSnapshot() {
+        Database database = openDatabase();
+        database.addUser(new User("alice", "pw"));
+        database.addUser(new User("bob", "pw"));
+        Item item = new Item("Lamp", "Desk lamp", 20.0, "alice");
+        database.addItem(item);
+        database.addMessage(new Message("bob", "alice", "Still available?", item.getId()));
+        database.saveToDisk();
+        
+        assertFalse("Saving in journaled mode should not write a snapshot", dataFile.exists());
+        assertTrue("Journal file should exist", journalFile.exists());
+        
+        Database reloaded = openDatabase();
+        assertNotNull("User should be replayed", reloaded.getUserByUsername("alice"));
+        assertEquals("Item should be replayed with its ID", "Lamp", reloaded.getItemById(item.getId()).getTitle());
+        assertEquals("Message should be replayed", 1, reloaded.getMessagesForUser("alice").size());
+    }
+    
+    @Test
+    public void testPurchaseReplayRestoresBalancesAndSoldFlag() {
+        Database database = openDatabase();
+        database.addUser(new User("buyer", "pw"));
+        database.addUser(new User("seller", "pw"));
+        Item item = new Item("Book", "Paperback", 30.0, "seller");
+        database.addItem(item);
+        
+        TransactionResult result = new PaymentProcessor(database).processPayment("buyer", "seller", item.getId());
+        assertTrue("Payment should succeed", result.isSuccess());
+        
+        Database reloaded = openDatabase();
+        assertEquals("Buyer balance should be replayed", 70.0, reloaded.getUserByUsername("buyer").getBalance(), 0.001);
+        assertEquals("Seller balance should be replayed", 130.0, reloaded.getUserByUsername("seller").getBalance(), 0.001);
+        assertTrue("Item should be sold after replay", reloaded.getItemById(item.getId()).isSold());
+        assertEquals("Transaction should be replayed", 1, reloaded.getTransactionsForUser("buyer").size());
+    }
+    
+    @Test
+    public void testRefundReplayedAsRefund() {
+        Database database = openDatabase();
+        database.addUser(new User("buyer", "pw"));
+        Transaction purchase = Transaction.withAmountCents("buyer", "farSeller", 7, 2500);
+        assertTrue("Payment should succeed", database.debitForPurchase(purchase).isSuccess());
+        database.refundPurchase(purchase);
+        
+        Database reloaded = openDatabase();
+        assertEquals("Refund should restore the buyer's balance", 100.0,
+                     reloaded.getUserByUsername("buyer").getBalance(), 0.001);
+        List<Transaction> history = reloaded.getTransactionsForUser("buyer");
+        assertEquals("Payment and refund should be replayed", 2, history.size());
+        assertFalse("Payment should not be replayed as a refund", history.get(0).isRefund());
+        assertTrue("Refund should be replayed as a refund", history.get(1).isRefund());
+        assertEquals("Refund should keep its amount", 2500, history.get(1).getAmountCents());
+    }
+    
+    @Test
+    public void testRemovalsReplayed() {
+        Database database = openDatabase();
+        database.addUser(new User("carol", "pw"));
+        Item item = new Item("Chair", "Wooden chair", 15.0, "carol");
+        database.addItem(item);
+        database.removeItem(item.getId());
+        database.removeUser("carol");
+        database.saveToDisk();
+        
+        Database reloaded = openDatabase();
+        assertNull("Removed item should stay removed", reloaded.getItemById(item.getId()));
+        assertNull("Removed user should stay removed", reloaded.getUserByUsername("carol"));
+    }
+    
+    @Test
+    public void testCheckpointCompactsJournal() {
+        Database database = openDatabase();
+        database.addUser(new User("dave", "pw"));
+        database.checkpoint();
+        
+        assertTrue("Checkpoint should write a snapshot", dataFile.exists());
+        assertEquals("Checkpoint should empty the journal", 0, journalFile.length());
+        
+        database.addUser(new User("erin", "pw"));
+        database.saveToDisk();
+        
+        Database reloaded = openDatabase();
+        assertNotNull("Snapshot data should load", reloaded.getUserByUsername("dave"));
+        assertNotNull("Journal tail should be replayed on top of the snapshot", reloaded.getUserByUsername("erin"));
+    }
+    
+    @Test
+    public void testRecordsInSnapshotAreNotReplayedTwice() throws Exception {
+        Database database = openDatabase();
+        database.addUser(new User("buyer", "pw"));
+        database.addUser(new User("seller", "pw"));
+        Item item = new Item("Pen", "Blue pen", 5.0, "seller");
+        database.addItem(item);
+        new PaymentProcessor(database).processPayment("buyer", "seller", item.getId());
+        
+        // Simulate a crash after the snapshot was written but before the journal was truncated
+        byte[] journalBytes = Files.readAllBytes(journalFile.toPath());
+        database.checkpoint();
+        Files.write(journalFile.toPath(), journalBytes);
+        
+        Database reloaded = openDatabase();
+        assertEquals("Purchase should only be applied once", 95.0, reloaded.getUserByUsername("buyer").getBalance(), 0.001);
+        List<Transaction> transactions = reloaded.getTransactionsForUser("buyer");
+        assertEquals("Transaction should only be recorded once", 1, transactions.size());
+    }
+    
+    @Test
+    public void testTruncateKeepsRecordsAfterSnapshot() throws Exception {
+        Journal journal = new Journal(journalFile);
+        journal.open(0);
+        for (int i = 1; i <= 3; i++) {
+            int id = i;
+            journal.append(Journal.REMOVE_ITEM, out -> out.writeInt(id));
+        }
+        // Records 1 and 2 are in the snapshot, record 3 was appended while it was written
+        journal.truncate(2);
+        assertEquals("Only the record after the snapshot should be kept", 1, journal.getRecordCount());
+        journal.append(Journal.REMOVE_ITEM, out -> out.writeInt(4));
+        journal.close();
+        
+        Journal reopened = new Journal(journalFile);
+        reopened.replay(0, null);
+        assertEquals("Kept and new records should be readable", 2, reopened.getRecordCount());
+        assertEquals("Sequence numbers should keep counting", 4, reopened.getLastSequence());
+        assertFalse("Temporary file should be gone", new File(journalFile.getPath() + ".tmp").exists());
+    }
+    
+    @Test
+    public void testFailedSnapshotKeepsPreviousOne() throws Exception {
+        Database database = openDatabase();
+        database.addUser(new User("heidi", "pw"));
+        database.checkpoint();
+        byte[] snapshot = Files.readAllBytes(dataFile.toPath());
+        
+        // A snapshot cut short by a crash is never seen under the data file's name
+        try {
+            AtomicFiles.write(dataFile, out -> {
+                out.write(snapshot, 0, snapshot.length / 2);
+                throw new IOException("Simulated crash");
+            });
+            fail("Write should fail");
+        } catch (IOException e) {
+            assertArrayEquals("Previous snapshot should be intact", snapshot, Files.readAllBytes(dataFile.toPath()));
+        }
+        assertFalse("Temporary file should be removed", new File(dataFile.getPath() + ".tmp").exists());
+        assertNotNull("Previous snapshot should still load", openDatabase().getUserByUsername("heidi"));
+    }
+    
+    @Test
+    public void testTornRecordIsDiscarded() throws Exception {
+        Database database = openDatabase();
+        database.addUser(new User("frank", "pw"));
+        database.addUser(new User("grace", "pw"));
+        database.saveToDisk();
+        
+        // Cut the last record in half
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        
+        Database reloaded = openDatabase();
+        assertNotNull("Intact record should be replayed", reloaded.getUserByUsername("frank"));
+        assertNull("Torn record should be ignored", reloaded.getUserByUsername("grace"));
+        
+        reloaded.addUser(new User("heidi", "pw"));
+        reloaded.saveToDisk();
+        
+        Database again = openDatabase();
+        assertNotNull("Records appended after a torn tail should be readable", again.getUserByUsername("heidi"));
+    }
+    
+    @Test
+    public void testRecordsWithDoubleAmountsReplayed() throws Exception {
+        // Records as written before money was kept in cents
+        Journal journal = new Journal(journalFile);
+        journal.append(Journal.ADD_USER, out -> {
+            Journal.writeString(out, "seller");
+            Journal.writeString(out, "pw");
+            out.writeDouble(10.1);
+        });
+        journal.append(Journal.ADD_ITEM, out -> {
+            out.writeInt(1);
+            Journal.writeString(out, "Pen");
+            Journal.writeString(out, "Blue pen");
+            out.writeDouble(0.29);
+            Journal.writeString(out, "seller");
+            out.writeBoolean(false);
+        });
+        journal.close();
+        
+        Database reloaded = openDatabase();
+        assertEquals("Old balance should be converted to cents", 1010,
+            reloaded.getUserByUsername("seller").getBalanceCents());
+        assertEquals("Old price should be converted to cents", 29, reloaded.getItemById(1).getPriceCents());
+    }
+}
@@ -0,0 +1,344 @@
+package database;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * MappedItemStore class
+ *
+ * The item catalog as a file of fixed-width columns, read through memory mapping instead of Java
+ * serialization. Items are stored in ID order, with one column each for the ID, the price in cents,
+ * the sold flag, the seller, the title and the description. Sellers are numbered so each name is
+ * stored once; the seller table and the title and description columns hold offsets into a heap of
+ * length-prefixed UTF-8 strings. A footer at the end of the file gives the number of rows and
+ * sellers and the size of the heap, from which the position of every column follows.
+ * A mapping is limited to 2 GB, so the heap is mapped in segments that no string crosses, and a
+ * column of longs limits a store to MAX_ROWS items.
+ * A store file is written once, atomically, and never changed. Reads do not move the positions
+ * of the mapped buffers, so any number of threads can read at once.
+ * Thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+final class MappedItemStore {
+    static final int MAGIC = 0x4D4B4931; // Last four bytes of every item store file, "MKI1"
+    static final long SEGMENT_BYTES = 1L << 30; // Size of the string heap segments mapped one by one
+    static final int MAX_ROWS = Integer.MAX_VALUE / Long.BYTES; // Most items one mapped column of longs holds
+    private static final int ROW_BYTES = Integer.BYTES + Long.BYTES + 1 + Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int FOOTER_BYTES = Integer.BYTES + Integer.BYTES + Long.BYTES * 3 + Integer.BYTES;
+    
+    private final int rows; // Number of items
+    private final long journalSequence; // Last journal record the items contain
+    private final long segmentBytes; // Size of the heap segments
+    private final ByteBuffer ids; // int per row, ascending
+    private final ByteBuffer prices; // long per row, price in cents
+    private final ByteBuffer soldFlags; // byte per row, 1 if sold
+    private final ByteBuffer sellerRefs; // int per row, index into sellers
+    private final ByteBuffer titles; // long per row, heap offset
+    private final ByteBuffer descriptions; // long per row, heap offset
+    private final ByteBuffer[] heap; // String heap, one mapping per segment
+    private final String[] sellers; // Seller names, decoded once and shared by their items
+    
+    private MappedItemStore(int rows, long journalSequence, long segmentBytes, ByteBuffer[] columns,
+                            ByteBuffer sellerTable, int sellerCount, ByteBuffer[] heap) {
+        this.rows = rows;
+        this.journalSequence = journalSequence;
+        this.segmentBytes = segmentBytes;
+        this.ids = columns[0];
+        this.prices = columns[1];
+        this.soldFlags = columns[2];
+        this.sellerRefs = columns[3];
+        this.titles = columns[4];
+        this.descriptions = columns[5];
+        this.heap = heap;
+        this.sellers = new String[sellerCount];
+        for (int i = 0; i < sellerCount; i++) {
+            sellers[i] = string(sellerTable.getLong(i * Long.BYTES));
+        }
+    }
+    
+    /**
+    * Writes the given items to a new store file, replacing the old one atomically.
+    *
+    * @param file store file
+    * @param items items to store, in any order
+    * @param journalSequence last journal record the items contain
+    * @throws IOException if the file cannot be written
+    */
+    static void write(File file, Collection<Item> items, long journalSequence) throws IOException {
+        write(file, items, journalSequence, SEGMENT_BYTES);
+    }
+    
+    /**
+    * Writes a store with the given heap segment size, so tests can cross segments with small heaps.
+    */
+    static void write(File file, Collection<Item> items, long journalSequence, long segmentBytes) throws IOException {
+        if (items.size() > MAX_ROWS) {
+            throw new IOException("Too many items for one item store: " + items.size());
+        }
+        List<Item> sorted = new ArrayList<>(items);
+        sorted.sort(Comparator.comparingInt(Item::getId));
+        int rows = sorted.size();
+        
+        AtomicFiles.write(file, stream -> {
+            DataOutputStream out = new DataOutputStream(stream);
+            // The heap comes first, so its offsets are known when the columns are written after it
+            HeapWriter heapWriter = new HeapWriter(out, segmentBytes);
+            Map<String, Integer> sellerNumbers = new HashMap<>();
+            List<Long> sellerOffsets = new ArrayList<>();
+            int[] sellerColumn = new int[rows];
+            long[] titleColumn = new long[rows];
+            long[] descriptionColumn = new long[rows];
+            for (int row = 0; row < rows; row++) {
+                Item item = sorted.get(row);
+                Integer seller = sellerNumbers.get(item.getSeller());
+                if (seller == null) {
+                    seller = sellerOffsets.size();
+                    sellerNumbers.put(item.getSeller(), seller);
+                    sellerOffsets.add(heapWriter.write(item.getSeller()));
+                }
+                sellerColumn[row] = seller;
+                titleColumn[row] = heapWriter.write(item.getTitle());
+                descriptionColumn[row] = heapWriter.write(item.getDescription());
+            }
+            
+            for (Item item : sorted) {
+                out.writeInt(item.getId());
+            }
+            for (Item item : sorted) {
+                out.writeLong(item.getPriceCents());
+            }
+            for (Item item : sorted) {
+                out.writeByte(item.isSold() ? 1 : 0);
+            }
+            for (int seller : sellerColumn) {
+                out.writeInt(seller);
+            }
+            for (long title : titleColumn) {
+                out.writeLong(title);
+            }
+            for (long description : descriptionColumn) {
+                out.writeLong(description);
+            }
+            for (long offset : sellerOffsets) {
+                out.writeLong(offset);
+            }
+            
+            out.writeInt(rows);
+            out.writeInt(sellerOffsets.size());
+            out.writeLong(heapWriter.position);
+            out.writeLong(segmentBytes);
+            out.writeLong(journalSequence);
+            out.writeInt(MAGIC);
+            out.flush();
+        });
+    }
+    
+    /**
+    * Maps a store file. The mappings stay valid after the file is replaced by a newer store.
+    *
+    * @param file store file
+    * @return the store
+    * @throws IOException if the file cannot be read or is not a complete store
+    */
+    static MappedItemStore open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_BYTES) {
+                throw new StreamCorruptedException("Item store " + file + " is truncated");
+            }
+            ByteBuffer footer = map(channel, size - FOOTER_BYTES, FOOTER_BYTES);
+            int rows = footer.getInt();
+            int sellerCount = footer.getInt();
+            long heapBytes = footer.getLong();
+            long segmentBytes = footer.getLong();
+            long journalSequence = footer.getLong();
+            if (footer.getInt() != MAGIC || rows < 0 || rows > MAX_ROWS || sellerCount < 0 || heapBytes < 0 ||
+                segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE ||
+                size != heapBytes + (long) rows * ROW_BYTES + (long) sellerCount * Long.BYTES + FOOTER_BYTES) {
+                throw new StreamCorruptedException("Item store " + file + " is corrupt");
+            }
+            
+            ByteBuffer[] heap = new ByteBuffer[(int) ((heapBytes + segmentBytes - 1) / segmentBytes)];
+            for (int i = 0; i < heap.length; i++) {
+                heap[i] = map(channel, i * segmentBytes, Math.min(segmentBytes, heapBytes - i * segmentBytes));
+            }
+            int[] widths = {Integer.BYTES, Long.BYTES, 1, Integer.BYTES, Long.BYTES, Long.BYTES};
+            ByteBuffer[] columns = new ByteBuffer[widths.length];
+            long position = heapBytes;
+            for (int i = 0; i < widths.length; i++) {
+                columns[i] = map(channel, position, (long) rows * widths[i]);
+                position += (long) rows * widths[i];
+            }
+            ByteBuffer sellerTable = map(channel, position, (long) sellerCount * Long.BYTES);
+            return new MappedItemStore(rows, journalSequence, segmentBytes, columns, sellerTable, sellerCount, heap);
+        }
+    }
+    
+    /**
+    * Maps part of a file for reading.
+    */
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+    
+    /**
+    * Returns the number of items in the store.
+    *
+    * @return item count
+    */
+    int size() {
+        return rows;
+    }
+    
+    /**
+    * Returns the sequence number of the last journal record the items contain.
+    *
+    * @return journal sequence
+    */
+    long getJournalSequence() {
+        return journalSequence;
+    }
+    
+    /**
+    * Returns the ID of the item in the given row. IDs ascend with the rows.
+    *
+    * @param row row from 0 to size() - 1
+    * @return item ID
+    */
+    int id(int row) {
+        return ids.getInt(row * Integer.BYTES);
+    }
+    
+    /**
+    * Returns the price in cents of the item in the given row.
+    *
+    * @param row row from 0 to size() - 1
+    * @return price in cents
+    */
+    long priceCents(int row) {
+        return prices.getLong(row * Long.BYTES);
+    }
+    
+    /**
+    * Returns true if the item in the given row was sold when the store was written.
+    *
+    * @param row row from 0 to size() - 1
+    * @return sold flag
+    */
+    boolean isSold(int row) {
+        return soldFlags.get(row) != 0;
+    }
+    
+    /**
+    * Returns the seller of the item in the given row. Items of one seller share the same string.
+    *
+    * @param row row from 0 to size() - 1
+    * @return seller name
+    */
+    String seller(int row) {
+        return sellers[sellerRefs.getInt(row * Integer.BYTES)];
+    }
+    
+    /**
+    * Returns the title of the item in the given row.
+    *
+    * @param row row from 0 to size() - 1
+    * @return title
+    */
+    String title(int row) {
+        return string(titles.getLong(row * Long.BYTES));
+    }
+    
+    /**
+    * Returns the description of the item in the given row.
+    *
+    * @param row row from 0 to size() - 1
+    * @return description
+    */
+    String description(int row) {
+        return string(descriptions.getLong(row * Long.BYTES));
+    }
+    
+    /**
+    * Returns the item in the given row as a new Item.
+    *
+    * @param row row from 0 to size() - 1
+    * @return the item
+    */
+    Item item(int row) {
+        Item item = Item.withPriceCents(title(row), description(row), priceCents(row), seller(row));
+        item.setId(id(row));
+        item.setSold(isSold(row));
+        return item;
+    }
+    
+    /**
+    * Returns every item in the store as new Items, by ID.
+    *
+    * @return map of item ID to item
+    */
+    Map<Integer, Item> items() {
+        Map<Integer, Item> items = new HashMap<>(rows * 4 / 3 + 1);
+        for (int row = 0; row < rows; row++) {
+            Item item = item(row);
+            items.put(item.getId(), item);
+        }
+        return items;
+    }
+    
+    /**
+    * Decodes the heap string at the given offset.
+    */
+    private String string(long offset) {
+        ByteBuffer segment = heap[(int) (offset / segmentBytes)];
+        int index = (int) (offset % segmentBytes);
+        byte[] bytes = new byte[segment.getInt(index)];
+        segment.get(index + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+    * Appends strings to the heap, starting a new segment rather than letting a string cross one.
+    */
+    private static final class HeapWriter {
+        private final DataOutputStream out; // Stream the heap is written to, from its first byte
+        private final long segmentBytes; // Size of the heap segments
+        private long position; // Bytes written so far, the size of the heap once done
+        
+        HeapWriter(DataOutputStream out, long segmentBytes) {
+            this.out = out;
+            this.segmentBytes = segmentBytes;
+        }
+        
+        /**
+        * Writes a string and returns its offset in the heap.
+        */
+        long write(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            long length = Integer.BYTES + (long) bytes.length;
+            if (length > segmentBytes) {
+                throw new IOException("String of " + bytes.length + " bytes does not fit a heap segment");
+            }
+            long room = segmentBytes - position % segmentBytes;
+            if (length > room) {
+                byte[] padding = new byte[(int) Math.min(room, 64 * 1024)];
+                for (long left = room; left > 0; left -= padding.length) {
+                    out.write(padding, 0, (int) Math.min(left, padding.length));
+                }
+                position += room;
+            }
+            long offset = position;
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            position += length;
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+public class MappedItemStoreTest {
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("item_store", ".items");
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    private static Item item(int id, String title, String description, long priceCents, String seller, boolean sold) {
+        Item item = Item.withPriceCents(title, description, priceCents, seller);
+        item.setId(id);
+        item.setSold(sold);
+        return item;
+    }
+    
+    @Test
+    public void testItemsRoundTripInIdOrder() throws IOException {
+        List<Item> items = Arrays.asList(
+            item(7, "Lamp", "Desk lamp", 3050, "alice", false),
+            item(2, "Caf\u00e9 table", "", 12000, "bob", true),
+            item(4, "Chair", "Oak chair \u2013 like new", 4000, "alice", false));
+        MappedItemStore.write(file, items, 42);
+        
+        MappedItemStore store = MappedItemStore.open(file);
+        assertEquals("Every item should be stored", 3, store.size());
+        assertEquals("Journal position should be stored", 42, store.getJournalSequence());
+        assertEquals("Rows should be in ID order", 2, store.id(0));
+        assertEquals("Rows should be in ID order", 7, store.id(2));
+        assertEquals("Non-ASCII titles should survive", "Caf\u00e9 table", store.title(0));
+        assertEquals("Empty descriptions should survive", "", store.description(0));
+        assertEquals("Prices should be exact cents", 12000, store.priceCents(0));
+        assertTrue("Sold flag should survive", store.isSold(0));
+        assertFalse("Unsold flag should survive", store.isSold(1));
+        assertSame("Items of one seller should share the name", store.seller(1), store.seller(2));
+        
+        Item chair = store.items().get(4);
+        assertEquals("Description should survive", "Oak chair \u2013 like new", chair.getDescription());
+        assertEquals("Seller should survive", "alice", chair.getSeller());
+        assertEquals("Price should survive", 40.0, chair.getPrice(), 0.0);
+    }
+    
+    @Test
+    public void testStringsDoNotCrossHeapSegments() throws IOException {
+        List<Item> items = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            items.add(item(i, "Item number " + i, "Description " + i + " of a listed item", i, "seller" + (i % 3), false));
+        }
+        MappedItemStore.write(file, items, 0, 64);
+        
+        MappedItemStore store = MappedItemStore.open(file);
+        for (int row = 0; row < store.size(); row++) {
+            int id = row + 1;
+            assertEquals("Title should survive across segments", "Item number " + id, store.title(row));
+            assertEquals("Description should survive across segments",
+                         "Description " + id + " of a listed item", store.description(row));
+            assertEquals("Seller should survive across segments", "seller" + (id % 3), store.seller(row));
+        }
+    }
+    
+    @Test
+    public void testEmptyStore() throws IOException {
+        MappedItemStore.write(file, new ArrayList<Item>(), 5);
+        MappedItemStore store = MappedItemStore.open(file);
+        assertEquals("Empty store should have no items", 0, store.size());
+        assertTrue("Empty store should give no items", store.items().isEmpty());
+    }
+    
+    @Test(expected = IOException.class)
+    public void testTruncatedStoreIsRejected() throws IOException {
+        MappedItemStore.write(file, Collections.singletonList(item(1, "Lamp", "Desk lamp", 3050, "alice", false)), 0);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        MappedItemStore.open(file);
+    }
+}
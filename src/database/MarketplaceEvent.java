@@ -0,0 +1,124 @@
+package database;
+import java.io.Serializable;
+
+/**
+ * MarketplaceEvent class
+ *
+ * A change pushed by the server to a subscribed client: a message it received,
+ * an item it bought or sold, or its new balance. Only the field matching the type is set.
+ * Fields are not meant to be modified after creation.
+ * 
+ * @author L10-Team1 
+ *
+ * @version April 2024
+ *
+ */
+public class MarketplaceEvent implements MarketplaceEventInterface, Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+    * Kinds of events
+    */
+    public enum Type {
+        MESSAGE_RECEIVED, // A message was sent to the user
+        ITEM_SOLD, // The user bought or sold an item
+        BALANCE_CHANGED // The user's balance changed
+    }
+    
+    private Type type; //Kind of event
+    private Message message; //The received message, for MESSAGE_RECEIVED
+    private Transaction transaction; //The sale, for ITEM_SOLD
+    private long balanceCents; //The new balance in cents, for BALANCE_CHANGED
+    
+    private MarketplaceEvent(Type type, Message message, Transaction transaction, long balanceCents) {
+        this.type = type;
+        this.message = message;
+        this.transaction = transaction;
+        this.balanceCents = balanceCents;
+    }
+    
+    /**
+    * Creates an event for a received message.
+    *
+    * @param message the message
+    * @return the event
+    */
+    public static MarketplaceEvent messageReceived(Message message) {
+        return new MarketplaceEvent(Type.MESSAGE_RECEIVED, message, null, 0);
+    }
+    
+    /**
+    * Creates an event for a sale, sent to both buyer and seller.
+    *
+    * @param transaction the sale
+    * @return the event
+    */
+    public static MarketplaceEvent itemSold(Transaction transaction) {
+        return new MarketplaceEvent(Type.ITEM_SOLD, null, transaction, 0);
+    }
+    
+    /**
+    * Creates an event for a new balance.
+    *
+    * @param balance the new balance
+    * @return the event
+    */
+    public static MarketplaceEvent balanceChanged(double balance) {
+        return balanceChangedCents(Money.toCents(balance));
+    }
+    
+    /**
+    * Creates an event for a new balance given in cents.
+    *
+    * @param balanceCents the new balance in cents
+    * @return the event
+    */
+    public static MarketplaceEvent balanceChangedCents(long balanceCents) {
+        return new MarketplaceEvent(Type.BALANCE_CHANGED, null, null, balanceCents);
+    }
+    
+    /**
+    * Returns the kind of event.
+    *
+    * @return type
+    */
+    public Type getType() {
+        return type;
+    }
+    
+    /**
+    * Returns the received message.
+    *
+    * @return message, or null unless the type is MESSAGE_RECEIVED
+    */
+    public Message getMessage() {
+        return message;
+    }
+    
+    /**
+    * Returns the sale.
+    *
+    * @return transaction, or null unless the type is ITEM_SOLD
+    */
+    public Transaction getTransaction() {
+        return transaction;
+    }
+    
+    /**
+    * Returns the new balance.
+    *
+    * @return balance, or 0 unless the type is BALANCE_CHANGED
+    */
+    public double getBalance() {
+        return Money.toAmount(balanceCents);
+    }
+    
+    /**
+    * Returns the new balance in cents.
+    *
+    * @return balance in cents, or 0 unless the type is BALANCE_CHANGED
+    */
+    public long getBalanceCents() {
+        return balanceCents;
+    }
+}
@@ -0,0 +1,9 @@
+package database;
+
+public interface MarketplaceEventInterface {
+    MarketplaceEvent.Type getType();
+    Message getMessage();
+    Transaction getTransaction();
+    double getBalance();
+    long getBalanceCents();
+}
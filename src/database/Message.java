@@ -14,12 +14,14 @@ import java.util.Date;
  *
  */
 public class Message implements MessageInterface, Serializable {
+    private static final long serialVersionUID = -5019284620458129422L;
     
     private String sender; //ID of the sender
     private String recipient; //ID of the recipient
     private String content; //Content of the message
     private Date timestamp; //Time of message creation
     private int itemId; //ID of the related item
+    private long sequence; //Position in the message history, assigned when stored; 0 before
     
 
     public Message(String sender, String recipient, String content, int itemId) {
@@ -30,6 +32,17 @@ public class Message implements MessageInterface, Serializable {
         this.itemId = itemId;
     }
     
+    /**
+    * Restores a message with its original timestamp (used when replaying the journal).
+    */
+    Message(String sender, String recipient, String content, int itemId, Date timestamp) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.content = content;
+        this.timestamp = timestamp;
+        this.itemId = itemId;
+    }
+    
     /**
     * Returns the ID of the sender.
     *
@@ -74,4 +87,35 @@ public class Message implements MessageInterface, Serializable {
     public int getItemId() {
         return itemId;
     }
+
+    /**
+    * Returns the sequence number assigned when the message was stored.
+    * Later messages always have larger numbers, so it can be used as a cursor.
+    *
+    * @return sequence, 0 if the message has not been stored
+    */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+    * Sets the sequence number; called by the database and the wire protocol.
+    *
+    * @param sequence
+    */
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+    * Replaces the sender and recipient with equal strings; called by the database so that
+    * all of a user's messages refer to one String.
+    *
+    * @param sender the sender, equal to the current one
+    * @param recipient the recipient, equal to the current one
+    */
+    void setUsernames(String sender, String recipient) {
+        this.sender = sender;
+        this.recipient = recipient;
+    }
 }
\ No newline at end of file
@@ -7,4 +7,5 @@ public interface MessageInterface {
     String getContent();
     Date getTimestamp();
     int getItemId();
+    long getSequence();
 }
@@ -0,0 +1,52 @@
+package database;
+
+/**
+ * Money class
+ *
+ * Amounts of money are kept as a whole number of cents in a long, so balances and prices add up
+ * exactly however many purchases they go through. This class converts between cents and the
+ * decimal amounts users type and see.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public final class Money {
+    public static final long CENTS_PER_UNIT = 100; // Cents in one unit of currency
+    
+    private Money() {
+    }
+    
+    /**
+    * Converts a decimal amount to cents, rounding to the nearest cent.
+    *
+    * @param amount amount, e.g. 12.5
+    * @return cents, e.g. 1250
+    */
+    public static long toCents(double amount) {
+        return Math.round(amount * CENTS_PER_UNIT);
+    }
+    
+    /**
+    * Converts cents to a decimal amount, for display and for older clients.
+    *
+    * @param cents cents, e.g. 1250
+    * @return amount, e.g. 12.5
+    */
+    public static double toAmount(long cents) {
+        return cents / (double) CENTS_PER_UNIT;
+    }
+    
+    /**
+    * Formats cents as a decimal amount with two digits after the point.
+    *
+    * @param cents cents, e.g. -1205
+    * @return text, e.g. "-12.05"
+    */
+    public static String format(long cents) {
+        String sign = (cents < 0) ? "-" : "";
+        long abs = Math.abs(cents);
+        return String.format("%s%d.%02d", sign, abs / CENTS_PER_UNIT, abs % CENTS_PER_UNIT);
+    }
+}
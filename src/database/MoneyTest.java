@@ -0,0 +1,26 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class MoneyTest {
+    @Test
+    public void testToCentsRoundsToNearestCent() {
+        assertEquals("Whole cents should convert exactly", 1250, Money.toCents(12.5));
+        assertEquals("Binary fractions should round to the intended cent", 29, Money.toCents(0.29));
+        assertEquals("Sums with rounding errors should give the exact cent", 30, Money.toCents(0.1 + 0.2));
+        assertEquals("Negative amounts should convert", -505, Money.toCents(-5.05));
+    }
+    
+    @Test
+    public void testToAmount() {
+        assertEquals("Cents should convert back", 12.5, Money.toAmount(1250), 0.0);
+        assertEquals("Converting back and forth should keep the cents", 1999, Money.toCents(Money.toAmount(1999)));
+    }
+    
+    @Test
+    public void testFormat() {
+        assertEquals("Amounts should have two decimals", "12.05", Money.format(1205));
+        assertEquals("Small amounts should have a leading zero", "0.07", Money.format(7));
+        assertEquals("Negative amounts should keep their sign", "-0.50", Money.format(-50));
+    }
+}
@@ -1,5 +1,5 @@
 package database;
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -7,7 +7,11 @@ import java.util.List;
  *
  * This class handles the payment processing between buyers and sellers,
  * including checking user balances, processing transactions, and saving data.
- * It interacts with the Database class to manage user and item data.
+ * It interacts with the Database class to manage user and item data; the purchase itself is
+ * made atomically by Database, so concurrent purchases cannot sell an item twice or overdraw a buyer.
+ * When the marketplace is sharded and buyer and seller live on different shards, a purchase is a saga:
+ * the buyer's shard takes the money, the seller's shard sells the item, and if the seller's shard
+ * refuses, the buyer's shard gives the money back.
  * 
  * @author L10-Team1 
  *
@@ -15,8 +19,23 @@ import java.util.List;
  *
  */
 public class PaymentProcessor implements PaymentProcessorInterface {
+    static final int REMOTE_SALE_ATTEMPTS = 3; // Tries to reach the seller's shard before giving up
+    
     private Database database; // Database object to interact with user and item data
     
+    /**
+     * Sells an item on the shard holding it, for a purchase paid on this shard
+     */
+    public interface RemoteSale {
+        /**
+         * Asks the seller's shard to sell the item; calling it again for the same transaction is harmless
+         * @param transaction the paid purchase, with its ID
+         * @return Result of the sale
+         * @throws IOException if the seller's shard could not be reached
+         */
+        TransactionResult sell(Transaction transaction) throws IOException;
+    }
+    
     public PaymentProcessor(Database database) {
         this.database = database;
     }
@@ -31,65 +50,59 @@ public class PaymentProcessor implements PaymentProcessorInterface {
      */
     @Override
     public TransactionResult processPayment(String buyerUsername, String sellerUsername, int itemId) {
-        // Get the user objects
-        User buyer = database.getUserByUsername(buyerUsername);
-        User seller = database.getUserByUsername(sellerUsername);
-        
-        // Check if users exist
-        if (buyer == null) {
-            return new TransactionResult(false, "Buyer not found");
-        }
-        if (seller == null) {
-            return new TransactionResult(false, "Seller not found");
-        }
-        
-        // Get the item
-        Item item = database.getItemById(itemId);
-        if (item == null) {
-            return new TransactionResult(false, "Item not found");
-        }
-        
-        // Check if the item has already been sold
-        if (item.isSold()) {
-            return new TransactionResult(false, "Item is already sold");
-        }
-        
-        // Verify that the seller owns the item
-        if (!item.getSeller().equals(sellerUsername)) {
-            return new TransactionResult(false, "Seller doesn't own this item");
+        // Checks, transfer, sale and transaction record happen under the locks of the item and both users,
+        // and a successful purchase is saved to disk before it returns
+        return database.purchase(buyerUsername, sellerUsername, itemId);
+    }
+    
+    /**
+     * Buy an item held by another shard. The buyer pays on this shard first; the seller's shard then
+     * sells the item, and if it refuses (the item was sold meanwhile, for example) the buyer is refunded.
+     * If the seller's shard cannot be reached the outcome is unknown, so the payment is kept rather
+     * than risk refunding a sale that went through.
+     *
+     * @param buyerUsername The username of the buyer, a user of this shard
+     * @param item The item as last read from the seller's shard
+     * @param sale Sells the item on the seller's shard
+     * @return TransactionResult containing success status and message
+     */
+    @Override
+    public TransactionResult processCrossShardPayment(String buyerUsername, Item item, RemoteSale sale) {
+        Transaction transaction = Transaction.withAmountCents(buyerUsername, item.getSeller(), item.getId(),
+                                                              item.getPriceCents());
+        TransactionResult paid = database.debitForPurchase(transaction);
+        if (!paid.isSuccess()) {
+            return paid;
         }
         
-        double price = item.getPrice();
-        
-        // Check if buyer has sufficient funds
-        if (!hasSufficientFunds(buyerUsername, price)) {
-            return new TransactionResult(false, "Insufficient funds");
+        for (int attempt = 1; attempt <= REMOTE_SALE_ATTEMPTS; attempt++) {
+            TransactionResult sold;
+            try {
+                sold = sale.sell(transaction);
+            } catch (IOException e) {
+                System.err.println("Seller's shard unreachable for transaction " + transaction.getId() +
+                                   " (attempt " + attempt + "): " + e.getMessage());
+                continue;
+            }
+            if (!sold.isSuccess()) {
+                database.refundPurchase(transaction);
+            }
+            return sold;
         }
-        
-        // Process payment - deduct from buyer
-        buyer.setBalance(buyer.getBalance() - price);
-        
-        // Add to seller
-        seller.setBalance(seller.getBalance() + price);
-        
-        // Mark item as sold
-        item.setSold(true);
-        
-        // Create transaction record
-        Transaction transaction = new Transaction(buyerUsername, sellerUsername, itemId, price);
-        
-        // Add to the database (removed local transactions list since it's redundant)
-        database.addTransaction(transaction);
-        
-        // Save changes to disk
-        database.saveToDisk();
-        
-        System.out.println("Transaction created: ID=" + transaction.getId() + 
-                           ", Buyer=" + transaction.getBuyer() + 
-                           ", Seller=" + transaction.getSeller() + 
-                           ", ItemId=" + transaction.getItemId());
-        
-        return new TransactionResult(true, "Payment processed successfully", itemId);
+        return new TransactionResult(false, "Seller's shard did not confirm the purchase of item " + item.getId() +
+                                            "; transaction " + transaction.getId() + " is pending");
+    }
+    
+    /**
+     * Sell an item of this shard for a purchase the buyer's shard has already paid for.
+     * Repeating a transaction that was already applied succeeds without changing anything.
+     *
+     * @param transaction The paid purchase, with the ID the buyer's shard gave it
+     * @return TransactionResult containing success status and message
+     */
+    @Override
+    public TransactionResult processRemoteSale(Transaction transaction) {
+        return database.creditForSale(transaction);
     }
     
     /**
@@ -106,7 +119,7 @@ public class PaymentProcessor implements PaymentProcessorInterface {
             return false;
         }
         
-        return user.getBalance() >= amount;
+        return user.getBalanceCents() >= Money.toCents(amount);
     }
     
     /**
@@ -1,5 +1,7 @@
 package database;
 public interface PaymentProcessorInterface {
     TransactionResult processPayment(String buyerUsername, String sellerUsername, int itemId);
+    TransactionResult processCrossShardPayment(String buyerUsername, Item item, PaymentProcessor.RemoteSale sale);
+    TransactionResult processRemoteSale(Transaction transaction);
     boolean hasSufficientFunds(String username, double amount);
 }
\ No newline at end of file
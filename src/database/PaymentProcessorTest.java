@@ -2,6 +2,9 @@ package database;
 import static org.junit.Assert.*;
 import org.junit.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 public class PaymentProcessorTest {
@@ -142,4 +145,93 @@ public class PaymentProcessorTest {
         assertEquals("Seller should have 1 transaction", 1, sellerTransactions.size());
         assertEquals("Transaction seller should be seller", "seller", sellerTransactions.get(0).getSeller());
     }
+    
+    @Test
+    public void testCrossShardPayment_Success() {
+        Item remoteItem = Item.withPriceCents("Remote Item", "Held by another shard", 4000, "farSeller");
+        remoteItem.setId(2);
+        List<Transaction> sold = new ArrayList<>();
+        
+        TransactionResult result = paymentProcessor.processCrossShardPayment("buyer", remoteItem, transaction -> {
+            sold.add(transaction);
+            return new TransactionResult(true, "Payment processed successfully", transaction.getItemId());
+        });
+        
+        assertTrue("Payment should succeed", result.isSuccess());
+        assertEquals("Buyer should pay on this shard", 160.0, buyer.getBalance(), 0.0);
+        assertEquals("Seller's shard should be asked once", 1, sold.size());
+        assertTrue("Transaction should have an ID", sold.get(0).getId() > 0);
+        assertEquals("Buyer's history should hold the purchase", sold.get(0).getId(),
+                     paymentProcessor.getTransactionsByUser("buyer").get(0).getId());
+    }
+    
+    @Test
+    public void testCrossShardPayment_RefundedWhenSaleRefused() {
+        Item remoteItem = Item.withPriceCents("Remote Item", "Held by another shard", 4000, "farSeller");
+        remoteItem.setId(2);
+        int[] attempts = new int[1];
+        
+        TransactionResult result = paymentProcessor.processCrossShardPayment("buyer", remoteItem, transaction -> {
+            if (attempts[0]++ == 0) {
+                throw new IOException("Connection reset");
+            }
+            return new TransactionResult(false, "Item is already sold");
+        });
+        
+        assertFalse("Payment should fail", result.isSuccess());
+        assertEquals("Seller's shard's reason should be returned", "Item is already sold", result.getMessage());
+        assertEquals("Unreachable seller's shard should be retried", 2, attempts[0]);
+        assertEquals("Buyer should be refunded", 200.0, buyer.getBalance(), 0.0);
+        List<Transaction> history = paymentProcessor.getTransactionsByUser("buyer");
+        assertEquals("Payment and refund should both be recorded", 2, history.size());
+        assertFalse("Payment should not be a refund", history.get(0).isRefund());
+        assertTrue("Refund should be flagged as one", history.get(1).isRefund());
+        assertEquals("Refund should return the amount paid", 4000, history.get(1).getAmountCents());
+    }
+    
+    @Test
+    public void testRemoteSale_RepeatedTransactionAppliedOnce() {
+        Transaction transaction = new Transaction(5L << 40, item.getId(), 50.0, "farBuyer", "seller");
+        
+        assertTrue("Sale should succeed", paymentProcessor.processRemoteSale(transaction).isSuccess());
+        assertTrue("Repeated sale should succeed", paymentProcessor.processRemoteSale(transaction).isSuccess());
+        assertTrue("Item should be sold", item.isSold());
+        assertEquals("Seller should be paid once", 150.0, seller.getBalance(), 0.0);
+        
+        Transaction other = new Transaction(6L << 40, item.getId(), 50.0, "otherBuyer", "seller");
+        assertFalse("Another buyer's sale should fail", paymentProcessor.processRemoteSale(other).isSuccess());
+    }
+    
+    @Test
+    public void testRemoteSale_RepeatRecognizedAfterRestart() throws IOException {
+        File dataFile = File.createTempFile("remote_sale", ".ser");
+        dataFile.delete();
+        File journalFile = new File(dataFile.getPath().replaceFirst("\\.ser$", "") + ".journal");
+        try {
+            Database shard = new Database(dataFile.getPath(), true, 1, 2);
+            shard.loadFromDisk();
+            shard.addUser(new User("seller", "password"));
+            Item lamp = Item.withPriceCents("Lamp", "Desk lamp", 1999, "seller");
+            shard.addItem(lamp);
+            long balanceBefore = shard.getUserByUsername("seller").getBalanceCents();
+            Transaction transaction = Transaction.withAmountCents(5L << 40, "farBuyer", "seller", lamp.getId(), 1999);
+            assertTrue("Sale should succeed", new PaymentProcessor(shard).processRemoteSale(transaction).isSuccess());
+            shard.close();
+            
+            Database restarted = new Database(dataFile.getPath(), true, 1, 2);
+            restarted.loadFromDisk();
+            Transaction retry = Transaction.withAmountCents(5L << 40, "farBuyer", "seller", lamp.getId(), 1999);
+            assertTrue("Repeated sale should be recognized after a restart",
+                       new PaymentProcessor(restarted).processRemoteSale(retry).isSuccess());
+            assertEquals("Seller should be paid once", balanceBefore + 1999,
+                         restarted.getUserByUsername("seller").getBalanceCents());
+            Transaction other = Transaction.withAmountCents(6L << 40, "otherBuyer", "seller", lamp.getId(), 1999);
+            assertFalse("Another buyer's sale should fail",
+                        new PaymentProcessor(restarted).processRemoteSale(other).isSuccess());
+            restarted.close();
+        } finally {
+            dataFile.delete();
+            journalFile.delete();
+        }
+    }
 }
@@ -0,0 +1,122 @@
+package database;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReplicationLog class
+ *
+ * The newest journal records of a primary, kept in memory for its replicas. Records are added as
+ * the journal appends them and published once the journal has flushed them, so a replica never
+ * sees a record that is not yet in the primary's file. A replica asks for the records after the
+ * last one it applied; if those are older than what the log still holds, it has to be sent a
+ * snapshot instead.
+ * Thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class ReplicationLog {
+    static final int DEFAULT_CAPACITY = 100000; // Records kept for replicas that fall behind
+    
+    private final byte[][] records; // Ring of the newest records, the record numbered s at s % capacity
+    private long base; // Sequence number before the oldest record held
+    private long appended; // Sequence number of the newest record held
+    private long published; // Sequence number of the newest record replicas may see
+    
+    /**
+    * Creates an empty log that continues after the given record.
+    *
+    * @param lastSequence sequence number of the last record already in the journal
+    * @param capacity most records held
+    */
+    ReplicationLog(long lastSequence, int capacity) {
+        this.records = new byte[capacity][];
+        this.base = lastSequence;
+        this.appended = lastSequence;
+        this.published = lastSequence;
+    }
+    
+    /**
+    * Adds a record appended to the journal. Records arrive in sequence order; the oldest
+    * record is dropped once the log is full.
+    *
+    * @param sequence sequence number of the record
+    * @param record type, sequence number and payload of the record
+    */
+    synchronized void append(long sequence, byte[] record) {
+        if (sequence != appended + 1) {
+            // The journal skipped ahead; records before this one cannot be sent any more
+            base = sequence - 1;
+            published = Math.max(published, base);
+        }
+        records[slot(sequence)] = record;
+        appended = sequence;
+        if (appended - base > records.length) {
+            records[slot(base + 1)] = null;
+            base++;
+        }
+    }
+    
+    /**
+    * Lets replicas see every record up to the given one.
+    *
+    * @param sequence sequence number of the last record flushed by the journal
+    */
+    synchronized void publish(long sequence) {
+        long upTo = Math.min(sequence, appended);
+        if (upTo > published) {
+            published = upTo;
+            notifyAll();
+        }
+    }
+    
+    /**
+    * Returns the sequence number of the newest record replicas may see.
+    *
+    * @return published sequence number
+    */
+    synchronized long getPublishedSequence() {
+        return published;
+    }
+    
+    /**
+    * Returns the published records after the given one, waiting for one to be published if
+    * there are none yet.
+    *
+    * @param afterSequence sequence number of the last record the replica has
+    * @param max most records returned
+    * @param waitMillis longest wait for a new record
+    * @return the records in order, empty if none was published in time, or null if the replica
+    *         needs a snapshot because the log no longer holds, or never held, the records it needs
+    * @throws InterruptedException if interrupted while waiting
+    */
+    synchronized List<byte[]> recordsAfter(long afterSequence, int max, long waitMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (afterSequence >= base && afterSequence == published) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return new ArrayList<>();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (afterSequence < base || afterSequence > published) {
+            return null;
+        }
+        long last = Math.min(published, afterSequence + max);
+        List<byte[]> result = new ArrayList<>((int) (last - afterSequence));
+        for (long sequence = afterSequence + 1; sequence <= last; sequence++) {
+            result.add(records[slot(sequence)]);
+        }
+        return result;
+    }
+    
+    /**
+    * Returns the ring position of a record.
+    */
+    private int slot(long sequence) {
+        return (int) Math.floorMod(sequence, (long) records.length);
+    }
+}
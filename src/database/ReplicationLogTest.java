@@ -0,0 +1,60 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.util.List;
+
+public class ReplicationLogTest {
+    private static byte[] record(int value) {
+        return new byte[] {(byte) value};
+    }
+    
+    @Test
+    public void testOnlyPublishedRecordsAreSent() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog(10, 100);
+        log.append(11, record(11));
+        log.append(12, record(12));
+        log.append(13, record(13));
+        log.publish(12);
+        
+        List<byte[]> records = log.recordsAfter(10, 100, 0);
+        assertEquals("Only flushed records should be sent", 2, records.size());
+        assertEquals("Records should be sent in order", 11, records.get(0)[0]);
+        assertEquals("Published sequence should be the last flushed record", 12, log.getPublishedSequence());
+        assertTrue("Nothing new should be an empty batch", log.recordsAfter(12, 100, 0).isEmpty());
+        assertEquals("Batches should stop at the maximum", 1, log.recordsAfter(10, 1, 0).size());
+    }
+    
+    @Test
+    public void testWaitsForNextRecord() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog(0, 100);
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            log.append(1, record(1));
+            log.publish(1);
+        });
+        writer.start();
+        List<byte[]> records = log.recordsAfter(0, 100, 10000);
+        writer.join();
+        assertEquals("Waiting replica should get the new record", 1, records.size());
+    }
+    
+    @Test
+    public void testReplicaOutsideTheLogNeedsSnapshot() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog(0, 3);
+        for (int i = 1; i <= 5; i++) {
+            log.append(i, record(i));
+        }
+        log.publish(5);
+        
+        assertNull("Dropped records should need a snapshot", log.recordsAfter(1, 100, 0));
+        List<byte[]> records = log.recordsAfter(2, 100, 0);
+        assertEquals("Records still held should be sent", 3, records.size());
+        assertEquals("Oldest held record should come first", 3, records.get(0)[0]);
+        assertNull("A replica ahead of the primary should need a snapshot", log.recordsAfter(6, 100, 0));
+    }
+}
@@ -0,0 +1,170 @@
+package database;
+import java.util.*;
+
+/**
+ * SearchCache class
+ *
+ * Bounded cache of search results keyed by the lower case query, so popular searches are not
+ * answered from the index again and again. Its size is the number of item references held
+ * rather than the number of queries, and the least recently used results are evicted first;
+ * a result too large to share the cache with others is not kept at all.
+ * Entries are invalidated precisely: when an item is added to or removed from the index, only
+ * the results of queries the item's title or description contains are dropped. Each cached query
+ * is filed under one of its n-grams, so a change looks only at the queries filed under the
+ * item's own n-grams instead of every cached query.
+ * Thread safe; SearchIndex changes it only while no search is running.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class SearchCache {
+    static final int DEFAULT_MAX_WEIGHT = 100000; // Item references held before results are evicted
+    static final int MAX_ENTRY_SHARE = 4; // A result may use at most this fraction of the cache
+    
+    private final int maxWeight; // Most item references held
+    private final LinkedHashMap<String, List<Item>> results; // Results by lower case query, in access order
+    private final Map<String, Set<String>> queriesByGram; // n-gram -> cached queries filed under it
+    private long weight; // Item references held, plus one per entry
+    private long hits; // Searches answered from the cache
+    private long misses; // Searches answered from the index
+    private long evictions; // Results dropped to make room
+    private long invalidations; // Results dropped because an item they may contain changed
+    
+    SearchCache(int maxWeight) {
+        this.maxWeight = maxWeight;
+        this.results = new LinkedHashMap<>(16, 0.75f, true);
+        this.queriesByGram = new HashMap<>();
+    }
+    
+    /**
+    * Returns the cached result of a query and records a hit or a miss.
+    *
+    * @param lower lower case query
+    * @return the result, which must not be changed, or null if it is not cached
+    */
+    synchronized List<Item> get(String lower) {
+        List<Item> result = results.get(lower);
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+    
+    /**
+    * Caches the result of a query, evicting the least recently used results if needed.
+    *
+    * @param lower lower case query
+    * @param result matching items; a copy is kept
+    */
+    synchronized void put(String lower, List<Item> result) {
+        long entryWeight = weightOf(result);
+        if (entryWeight > maxWeight / MAX_ENTRY_SHARE) {
+            return;
+        }
+        List<Item> previous = results.put(lower, Collections.unmodifiableList(new ArrayList<>(result)));
+        if (previous != null) {
+            weight -= weightOf(previous);
+        } else {
+            queriesByGram.computeIfAbsent(gramOf(lower), g -> new HashSet<>()).add(lower);
+        }
+        weight += entryWeight;
+        Iterator<Map.Entry<String, List<Item>>> eldest = results.entrySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            Map.Entry<String, List<Item>> entry = eldest.next();
+            weight -= weightOf(entry.getValue());
+            eldest.remove();
+            unfile(entry.getKey());
+            evictions++;
+        }
+    }
+    
+    /**
+    * Drops the results that the given item is or was part of.
+    * Called when the item is added to or removed from the index.
+    *
+    * @param item the changed item
+    * @param grams the item's n-grams, as stored in the index
+    */
+    synchronized void itemChanged(Item item, Set<String> grams) {
+        String title = item.getTitle().toLowerCase();
+        String description = item.getDescription().toLowerCase();
+        drop("", title, description); // The empty query matches every item
+        for (String gram : grams) {
+            drop(gram, title, description);
+        }
+    }
+    
+    /**
+    * Drops every result, for example when the index is rebuilt.
+    */
+    synchronized void clear() {
+        invalidations += results.size();
+        results.clear();
+        queriesByGram.clear();
+        weight = 0;
+    }
+    
+    /**
+    * Returns the current counters.
+    *
+    * @return statistics
+    */
+    synchronized SearchCacheStats stats() {
+        return new SearchCacheStats(hits, misses, evictions, invalidations, results.size(), weight);
+    }
+    
+    /**
+    * Drops the queries filed under an n-gram that the title or description contains.
+    */
+    private void drop(String gram, String title, String description) {
+        Set<String> queries = queriesByGram.get(gram);
+        if (queries == null) {
+            return;
+        }
+        Iterator<String> bucket = queries.iterator();
+        while (bucket.hasNext()) {
+            String query = bucket.next();
+            if (query.isEmpty() || title.contains(query) || description.contains(query)) {
+                bucket.remove();
+                weight -= weightOf(results.remove(query));
+                invalidations++;
+            }
+        }
+        if (queries.isEmpty()) {
+            queriesByGram.remove(gram);
+        }
+    }
+    
+    /**
+    * Removes an evicted query from its n-gram's bucket.
+    */
+    private void unfile(String lower) {
+        String gram = gramOf(lower);
+        Set<String> queries = queriesByGram.get(gram);
+        if (queries != null) {
+            queries.remove(lower);
+            if (queries.isEmpty()) {
+                queriesByGram.remove(gram);
+            }
+        }
+    }
+    
+    /**
+    * Returns the n-gram a query is filed under. Every item the query matches has this n-gram:
+    * a short query is an n-gram itself, and a longer one is filed under its first n-gram.
+    */
+    private static String gramOf(String lower) {
+        return (lower.length() <= SearchIndex.GRAM_LENGTH) ? lower : lower.substring(0, SearchIndex.GRAM_LENGTH);
+    }
+    
+    /**
+    * Returns the weight of a result: its item references plus one for the entry itself.
+    */
+    private static long weightOf(List<Item> result) {
+        return result.size() + 1;
+    }
+}
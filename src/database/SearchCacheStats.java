@@ -0,0 +1,104 @@
+package database;
+import java.io.Serializable;
+
+/**
+ * SearchCacheStats class
+ *
+ * Counters of the server's search result cache at one point in time.
+ * Fields are not meant to be modified after creation.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public class SearchCacheStats implements SearchCacheStatsInterface, Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private long hits; //Searches answered from the cache
+    private long misses; //Searches answered from the index
+    private long evictions; //Results dropped to make room
+    private long invalidations; //Results dropped because an item they may contain changed
+    private int entries; //Queries currently cached
+    private long weight; //Item references currently held
+    
+    public SearchCacheStats(long hits, long misses, long evictions, long invalidations, int entries, long weight) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.invalidations = invalidations;
+        this.entries = entries;
+        this.weight = weight;
+    }
+    
+    /**
+    * Returns the number of searches answered from the cache.
+    *
+    * @return hits
+    */
+    public long getHits() {
+        return hits;
+    }
+    
+    /**
+    * Returns the number of searches answered from the index.
+    *
+    * @return misses
+    */
+    public long getMisses() {
+        return misses;
+    }
+    
+    /**
+    * Returns the number of results dropped to make room for others.
+    *
+    * @return evictions
+    */
+    public long getEvictions() {
+        return evictions;
+    }
+    
+    /**
+    * Returns the number of results dropped because an item they may contain was added, removed or sold.
+    *
+    * @return invalidations
+    */
+    public long getInvalidations() {
+        return invalidations;
+    }
+    
+    /**
+    * Returns the number of queries currently cached.
+    *
+    * @return entries
+    */
+    public int getEntries() {
+        return entries;
+    }
+    
+    /**
+    * Returns the size of the cache: item references held plus one per entry.
+    *
+    * @return weight
+    */
+    public long getWeight() {
+        return weight;
+    }
+    
+    /**
+    * Returns the share of searches answered from the cache.
+    *
+    * @return hit rate between 0 and 1, 0 before the first search
+    */
+    public double getHitRate() {
+        long searches = hits + misses;
+        return (searches == 0) ? 0 : (double) hits / searches;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Search cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations, "
+                             + "%d queries holding %d items", hits, misses, getHitRate() * 100, evictions,
+                             invalidations, entries, weight);
+    }
+}
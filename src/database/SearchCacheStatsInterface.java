@@ -0,0 +1,11 @@
+package database;
+
+public interface SearchCacheStatsInterface {
+    long getHits();
+    long getMisses();
+    long getEvictions();
+    long getInvalidations();
+    int getEntries();
+    long getWeight();
+    double getHitRate();
+}
@@ -0,0 +1,126 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.util.*;
+
+public class SearchCacheTest {
+    private Database database;
+    
+    @Before
+    public void setUp() {
+        database = new Database();
+    }
+    
+    private List<Item> items(int count) {
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Item item = new Item("Item " + i, "", 1.0, "seller");
+            item.setId(i);
+            items.add(item);
+        }
+        return items;
+    }
+    
+    @Test
+    public void testRepeatedSearchIsAHit() {
+        database.addItem(new Item("Lamp", "Desk lamp", 10.0, "seller"));
+        database.searchItems("lamp");
+        List<Item> again = database.searchItems("LAMP");
+        assertEquals("Cached result should match", 1, again.size());
+        SearchCacheStats stats = database.getSearchCacheStats();
+        assertEquals("First search should miss", 1, stats.getMisses());
+        assertEquals("Same query in another case should hit", 1, stats.getHits());
+        
+        again.clear();
+        assertEquals("Changing a returned list should not change the cache", 1, database.searchItems("lamp").size());
+    }
+    
+    @Test
+    public void testOnlyMatchingQueriesAreInvalidated() {
+        database.addItem(new Item("Lamp", "Desk lamp", 10.0, "seller"));
+        Item chair = new Item("Chair", "Oak chair", 20.0, "seller");
+        database.addItem(chair);
+        database.searchItems("lamp");
+        database.searchItems("chair");
+        database.searchItems("");
+        
+        database.addItem(new Item("Floor lamp", "Tall", 30.0, "seller"));
+        assertEquals("New lamp should be found", 2, database.searchItems("lamp").size());
+        assertEquals("Chair should still be found", 1, database.searchItems("chair").size());
+        assertEquals("Listing a lamp should keep the chair result", 1, database.getSearchCacheStats().getHits());
+        assertEquals("Listing an item should drop the matching and empty queries",
+            2, database.getSearchCacheStats().getInvalidations());
+        
+        chair.setSold(true);
+        assertTrue("Sold chair should not be found", database.searchItems("chair").isEmpty());
+        assertEquals("All items should include the new lamp but not the sold chair", 2, database.searchItems("").size());
+        assertEquals("Selling the chair should drop only the chair result",
+            3, database.getSearchCacheStats().getInvalidations());
+        assertEquals("Lamp result should survive the sale", 2, database.searchItems("lamp").size());
+        assertEquals("Lamp result should be a hit", 2, database.getSearchCacheStats().getHits());
+    }
+    
+    @Test
+    public void testLeastRecentlyUsedResultsAreEvicted() {
+        SearchCache cache = new SearchCache(40);
+        cache.put("a", items(9));
+        cache.put("b", items(9));
+        cache.put("c", items(9));
+        cache.put("d", items(9));
+        cache.get("a");
+        cache.put("e", items(9));
+        assertNotNull("Recently used result should be kept", cache.get("a"));
+        assertNull("Least recently used result should be evicted", cache.get("b"));
+        SearchCacheStats stats = cache.stats();
+        assertEquals("One result should have been evicted", 1, stats.getEvictions());
+        assertEquals("Weight should count items and entries", 40, stats.getWeight());
+        assertTrue("Weight should stay within the bound", stats.getWeight() <= 40);
+    }
+    
+    @Test
+    public void testLargeResultsAreNotCached() {
+        SearchCache cache = new SearchCache(40);
+        cache.put("small", items(2));
+        cache.put("", items(20));
+        assertNull("A result larger than its share of the cache should not be kept", cache.get(""));
+        assertNotNull("A large result should not evict others", cache.get("small"));
+        assertEquals("Nothing should have been evicted", 0, cache.stats().getEvictions());
+    }
+    
+    @Test
+    public void testChangeLooksUpQueriesByNGram() {
+        SearchCache cache = new SearchCache(40);
+        cache.put("lamp", items(1));
+        cache.put("desk lamp", items(1));
+        cache.put("la", items(1));
+        cache.put("chair", items(1));
+        cache.put("lamb", items(1));
+        cache.put("", items(1));
+        
+        Item lamp = new Item("Lamp", "Desk lamp", 10.0, "seller");
+        cache.itemChanged(lamp, new HashSet<>(Arrays.asList("l", "la", "lam", "des", "esk", "amp")));
+        assertNull("Short query in the title should be dropped", cache.get("la"));
+        assertNull("Long query in the title should be dropped", cache.get("lamp"));
+        assertNull("Long query in the description should be dropped", cache.get("desk lamp"));
+        assertNull("Empty query should be dropped", cache.get(""));
+        assertNotNull("Query sharing its first n-gram but not found should be kept", cache.get("lamb"));
+        assertNotNull("Unrelated query should be kept", cache.get("chair"));
+        assertEquals("Four results should have been invalidated", 4, cache.stats().getInvalidations());
+        assertEquals("Weight should count only the kept results", 4, cache.stats().getWeight());
+    }
+    
+    @Test
+    public void testEvictedQueryCanBeCachedAndDroppedAgain() {
+        SearchCache cache = new SearchCache(40);
+        cache.put("lamp", items(9));
+        for (int i = 0; i < 4; i++) {
+            cache.put("q" + i, items(9));
+        }
+        assertNull("Oldest result should be evicted", cache.get("lamp"));
+        cache.put("lamp", items(1));
+        cache.itemChanged(new Item("Lamp", "", 1.0, "seller"), new HashSet<>(Arrays.asList("lam")));
+        assertNull("Re-cached query should still be dropped", cache.get("lamp"));
+        assertEquals("Only the re-cached query should be invalidated", 1, cache.stats().getInvalidations());
+    }
+}
@@ -0,0 +1,308 @@
+package database;
+import java.util.*;
+
+/**
+ * SearchIndex class
+ *
+ * Incrementally maintained inverted index over the titles and descriptions of unsold items.
+ * Every substring of up to GRAM_LENGTH characters is a token pointing to the IDs of the items
+ * containing it. Queries of up to GRAM_LENGTH characters are answered straight from one
+ * posting list; longer queries intersect the posting lists of their n-grams and the few
+ * remaining candidates are checked with contains(), so results match a full scan exactly.
+ * The indexed items are also kept sorted by price and by title, so a page of results in
+ * either order is read from the sorted set instead of sorting every match.
+ * Every change to the indexed items advances the catalog version, and an item is stamped
+ * with the version at which it was added, so clients can tell whether what they hold is current.
+ * Results of plain searches are kept in a SearchCache; adding or removing an item drops only the
+ * cached results of queries that item matches.
+ * Not thread safe; Database guards it with its own lock.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class SearchIndex {
+    static final int GRAM_LENGTH = 3; // Longest n-gram stored in the index
+    // Below one match per this many indexed items, a page is picked from the matches
+    // instead of walking a sorted set past the many items that do not match
+    static final int SPARSE_MATCH_RATIO = 16;
+    
+    private final Map<String, IntHashSet> postings; // n-gram -> IDs of items containing it
+    private final TreeMap<Integer, Item> indexed; // Indexed (unsold) items ordered by ID
+    private final TreeSet<Item> byPrice; // Indexed items in SearchPage.Order.PRICE order
+    private final TreeSet<Item> byTitle; // Indexed items in SearchPage.Order.TITLE order
+    // Starts from the clock so versions keep growing across restarts, where the count starts over
+    private long version = System.currentTimeMillis() * 1000;
+    private final SearchCache cache; // Results of recent searches
+    
+    SearchIndex() {
+        this(SearchCache.DEFAULT_MAX_WEIGHT);
+    }
+    
+    SearchIndex(int cacheWeight) {
+        this.cache = new SearchCache(cacheWeight);
+        this.postings = new HashMap<>();
+        this.indexed = new TreeMap<>();
+        this.byPrice = new TreeSet<>(SearchPage.Order.PRICE.comparator());
+        this.byTitle = new TreeSet<>(SearchPage.Order.TITLE.comparator());
+    }
+    
+    /**
+    * Returns the number of indexed items.
+    *
+    * @return indexed item count
+    */
+    int size() {
+        return indexed.size();
+    }
+    
+    /**
+    * Returns the catalog version, which changes whenever an item is added or removed.
+    *
+    * @return catalog version
+    */
+    long getVersion() {
+        return version;
+    }
+    
+    /**
+    * Returns true if the item with the given ID is in the index.
+    *
+    * @param id item ID
+    * @return true if indexed
+    */
+    boolean contains(int id) {
+        return indexed.containsKey(id);
+    }
+    
+    /**
+    * Adds an item to the index. Items that are already indexed are ignored.
+    *
+    * @param item the item to add
+    */
+    void add(Item item) {
+        if (indexed.containsKey(item.getId())) {
+            return;
+        }
+        item.setVersion(++version);
+        Set<String> grams = grams(item);
+        cache.itemChanged(item, grams);
+        indexed.put(item.getId(), item);
+        byPrice.add(item);
+        byTitle.add(item);
+        for (String gram : grams) {
+            postings.computeIfAbsent(gram, g -> new IntHashSet()).add(item.getId());
+        }
+    }
+    
+    /**
+    * Removes an item from the index.
+    *
+    * @param id ID of the item to remove
+    */
+    void remove(int id) {
+        Item item = indexed.remove(id);
+        if (item == null) {
+            return;
+        }
+        version++;
+        Set<String> grams = grams(item);
+        cache.itemChanged(item, grams);
+        byPrice.remove(item);
+        byTitle.remove(item);
+        for (String gram : grams) {
+            IntHashSet ids = postings.get(gram);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+    
+    /**
+    * Removes every item from the index.
+    */
+    void clear() {
+        postings.clear();
+        indexed.clear();
+        byPrice.clear();
+        byTitle.clear();
+        cache.clear();
+        version++;
+    }
+    
+    /**
+    * Returns the indexed items whose title or description contains the query (case insensitive),
+    * ordered by item ID. An empty query returns every indexed item.
+    * Safe to call from several threads at once as long as the index is not changed meanwhile.
+    *
+    * @param query text to search for
+    * @return matching items
+    */
+    List<Item> search(String query) {
+        String lower = query.toLowerCase();
+        List<Item> cached = cache.get(lower);
+        if (cached != null) {
+            return new ArrayList<>(cached);
+        }
+        List<Item> result = lower.isEmpty() ? new ArrayList<>(indexed.values()) : toItems(matchingIds(lower));
+        cache.put(lower, result);
+        return result;
+    }
+    
+    /**
+    * Returns the counters of the search result cache.
+    *
+    * @return statistics
+    */
+    SearchCacheStats getCacheStats() {
+        return cache.stats();
+    }
+    
+    /**
+    * Returns one page of the indexed items matching the query, in the given order.
+    * With no or many matches the page is read from the sorted items, skipping those that do
+    * not match; with few matches the first ones after the cursor are picked from the matches.
+    * Either way only a page worth of items is ever sorted.
+    *
+    * @param query text to search for, empty for every indexed item
+    * @param order order of the results
+    * @param after item the previous page ended with, null for the first page
+    * @param limit most items on the page, at least 1
+    * @return the page, with a token if more items follow
+    */
+    SearchPage searchPage(String query, SearchPage.Order order, Item after, int limit) {
+        String lower = query.toLowerCase();
+        IntHashSet matches = lower.isEmpty() ? null : matchingIds(lower);
+        List<Item> page = new ArrayList<>(limit + 1);
+        
+        if (matches == null || (long) matches.size() * SPARSE_MATCH_RATIO >= indexed.size()) {
+            for (Item item : sortedAfter(order, after)) {
+                if (matches == null || matches.contains(item.getId())) {
+                    page.add(item);
+                    if (page.size() > limit) {
+                        break;
+                    }
+                }
+            }
+        } else {
+            // Keep the limit + 1 first matches after the cursor; the head of the queue is the last of them
+            Comparator<Item> comparator = order.comparator();
+            PriorityQueue<Item> first = new PriorityQueue<>(limit + 2, comparator.reversed());
+            for (PrimitiveIterator.OfInt ids = matches.iterator(); ids.hasNext(); ) {
+                Item item = indexed.get(ids.nextInt());
+                if (after != null && comparator.compare(item, after) <= 0) {
+                    continue;
+                }
+                first.add(item);
+                if (first.size() > limit + 1) {
+                    first.poll();
+                }
+            }
+            page.addAll(first);
+            page.sort(comparator);
+        }
+        
+        // One item more than the limit was looked for to learn whether another page follows
+        if (page.size() <= limit) {
+            return new SearchPage(page, null, version);
+        }
+        page.remove(limit);
+        return new SearchPage(page, SearchPage.tokenFor(order, page.get(limit - 1)), version);
+    }
+    
+    /**
+    * Returns the indexed items following the cursor in the given order.
+    */
+    private Collection<Item> sortedAfter(SearchPage.Order order, Item after) {
+        switch (order) {
+            case PRICE:
+                return (after == null) ? byPrice : byPrice.tailSet(after, false);
+            case TITLE:
+                return (after == null) ? byTitle : byTitle.tailSet(after, false);
+            default:
+                NavigableMap<Integer, Item> newest = indexed.descendingMap();
+                return ((after == null) ? newest : newest.tailMap(after.getId(), false)).values();
+        }
+    }
+    
+    /**
+    * Returns the IDs of the indexed items whose title or description contains a non-empty
+    * lower case query. The result may be a posting list of the index and must not be changed.
+    */
+    private IntHashSet matchingIds(String lower) {
+        if (lower.length() <= GRAM_LENGTH) {
+            IntHashSet ids = postings.get(lower);
+            return (ids == null) ? new IntHashSet() : ids;
+        }
+        
+        // Intersect the posting lists of the query's n-grams, smallest first
+        List<IntHashSet> lists = new ArrayList<>();
+        for (int i = 0; i + GRAM_LENGTH <= lower.length(); i++) {
+            IntHashSet ids = postings.get(lower.substring(i, i + GRAM_LENGTH));
+            if (ids == null) {
+                return new IntHashSet();
+            }
+            lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(IntHashSet::size));
+        
+        IntHashSet matches = new IntHashSet();
+        for (PrimitiveIterator.OfInt candidates = lists.get(0).iterator(); candidates.hasNext(); ) {
+            int id = candidates.nextInt();
+            boolean inAll = true;
+            for (int i = 1; i < lists.size() && inAll; i++) {
+                inAll = lists.get(i).contains(id);
+            }
+            if (!inAll) {
+                continue;
+            }
+            // The n-grams can all be present without the query being a substring
+            Item item = indexed.get(id);
+            if (item.getTitle().toLowerCase().contains(lower) ||
+                item.getDescription().toLowerCase().contains(lower)) {
+                matches.add(id);
+            }
+        }
+        return matches;
+    }
+    
+    /**
+    * Looks up the items for a collection of IDs, ordered by ID.
+    */
+    private List<Item> toItems(IntHashSet ids) {
+        int[] sorted = ids.toArray();
+        Arrays.sort(sorted);
+        List<Item> items = new ArrayList<>(sorted.length);
+        for (int id : sorted) {
+            items.add(indexed.get(id));
+        }
+        return items;
+    }
+    
+    /**
+    * Returns the distinct n-grams of an item's title and description.
+    * Title and description are split separately so no gram spans both.
+    */
+    private static Set<String> grams(Item item) {
+        Set<String> grams = new HashSet<>();
+        addGrams(item.getTitle().toLowerCase(), grams);
+        addGrams(item.getDescription().toLowerCase(), grams);
+        return grams;
+    }
+    
+    /**
+    * Adds every substring of text with length 1 to GRAM_LENGTH to the set.
+    */
+    private static void addGrams(String text, Set<String> grams) {
+        for (int start = 0; start < text.length(); start++) {
+            int maxEnd = Math.min(text.length(), start + GRAM_LENGTH);
+            for (int end = start + 1; end <= maxEnd; end++) {
+                grams.add(text.substring(start, end));
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.util.*;
+
+public class SearchIndexTest {
+    private Database database;
+    
+    @Before
+    public void setUp() {
+        database = new Database();
+    }
+    
+    /**
+     * Reference implementation: the linear scan the index replaces.
+     */
+    private List<Integer> scan(Collection<Item> items, String query) {
+        List<Integer> ids = new ArrayList<>();
+        String lower = query.toLowerCase();
+        for (Item item : items) {
+            if (!item.isSold() &&
+                (item.getTitle().toLowerCase().contains(lower) ||
+                 item.getDescription().toLowerCase().contains(lower))) {
+                ids.add(item.getId());
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+    
+    private List<Integer> ids(List<Item> items) {
+        List<Integer> ids = new ArrayList<>();
+        for (Item item : items) {
+            ids.add(item.getId());
+        }
+        return ids;
+    }
+    
+    @Test
+    public void testMatchesLinearScan() {
+        String[] words = {"Red", "bicycle", "lamp", "desk", "OAK", "chair", "vintage", "book", "cycle", "a"};
+        Random random = new Random(42);
+        List<Item> all = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            String title = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)];
+            String description = words[random.nextInt(words.length)] + words[random.nextInt(words.length)];
+            Item item = new Item(title, description, 1.0 + i, "seller");
+            database.addItem(item);
+            all.add(item);
+        }
+        for (int i = 0; i < 50; i++) {
+            all.get(random.nextInt(all.size())).setSold(true);
+        }
+        
+        String[] queries = {"", "a", "R", "cy", "cle", "bicycle", "icyc", "ed b", "desk", "oakoak", "lampdesk",
+                            "zzz", "vintage book", "kd"};
+        for (String query : queries) {
+            assertEquals("Index should match a scan for \"" + query + "\"",
+                scan(all, query), ids(database.searchItems(query)));
+        }
+    }
+    
+    @Test
+    public void testSoldFlagUpdatesIndex() {
+        Item item = new Item("Guitar", "Acoustic guitar", 120.0, "seller");
+        database.addItem(item);
+        assertEquals("Unsold item should be found", 1, database.searchItems("guitar").size());
+        
+        item.setSold(true);
+        assertTrue("Sold item should be dropped from the index", database.searchItems("guitar").isEmpty());
+        
+        item.setSold(false);
+        assertEquals("Item should be indexed again when no longer sold", 1, database.searchItems("guitar").size());
+    }
+    
+    @Test
+    public void testRemovedItemIsNotFound() {
+        Item item = new Item("Piano", "Upright piano", 900.0, "seller");
+        database.addItem(item);
+        database.removeItem(item.getId());
+        
+        assertTrue("Removed item should not be found", database.searchItems("piano").isEmpty());
+        item.setSold(false);
+        item.setSold(true);
+        item.setSold(false);
+        assertTrue("Removed item should not be re-indexed by its sold flag", database.searchItems("piano").isEmpty());
+    }
+    
+    @Test
+    public void testQueryDoesNotSpanTitleAndDescription() {
+        database.addItem(new Item("ab", "cd", 1.0, "seller"));
+        assertTrue("Match must lie within the title or the description", database.searchItems("bc").isEmpty());
+        assertTrue("Match must lie within the title or the description", database.searchItems("abcd").isEmpty());
+    }
+    
+    /**
+     * Collects every page of a paged search.
+     */
+    private List<Integer> allPages(String query, SearchPage.Order order, int pageSize) {
+        List<Integer> ids = new ArrayList<>();
+        String token = null;
+        do {
+            SearchPage page = database.searchItemsPage(query, order, token, pageSize);
+            assertTrue("Pages should not exceed the page size", page.getItems().size() <= pageSize);
+            ids.addAll(ids(page.getItems()));
+            token = page.getNextPageToken();
+        } while (token != null);
+        return ids;
+    }
+    
+    @Test
+    public void testPagesMatchSortedScan() {
+        String[] words = {"Lamp", "desk", "chair", "oak", "red", "zebra", "apple"};
+        Random random = new Random(7);
+        List<Item> all = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String title = words[random.nextInt(words.length)] + " " + i;
+            // Few items mention "rare", so that query takes the sparse path
+            String description = (i % 40 == 0) ? "rare" : words[random.nextInt(words.length)];
+            Item item = new Item(title, description, random.nextInt(20), "seller");
+            database.addItem(item);
+            all.add(item);
+        }
+        for (int i = 0; i < 30; i++) {
+            all.get(random.nextInt(all.size())).setSold(true);
+        }
+        
+        for (String query : new String[] {"", "a", "desk", "rare", "nothing"}) {
+            for (SearchPage.Order order : SearchPage.Order.values()) {
+                List<Item> expected = new ArrayList<>();
+                for (Integer id : scan(all, query)) {
+                    expected.add(database.getItemById(id));
+                }
+                expected.sort(order.comparator());
+                assertEquals("Pages should match a sorted scan for \"" + query + "\" by " + order,
+                    ids(expected), allPages(query, order, 7));
+            }
+        }
+    }
+    
+    @Test
+    public void testTokenSurvivesChangesBetweenPages() {
+        for (int i = 1; i <= 6; i++) {
+            database.addItem(new Item("Lamp " + i, "Desk lamp", i * 10.0, "seller"));
+        }
+        SearchPage first = database.searchItemsPage("lamp", SearchPage.Order.PRICE, null, 3);
+        assertEquals("First page should hold the cheapest items", Arrays.asList(10.0, 20.0, 30.0),
+            Arrays.asList(first.getItems().get(0).getPrice(), first.getItems().get(1).getPrice(),
+                          first.getItems().get(2).getPrice()));
+        assertTrue("More items should follow", first.hasNextPage());
+        
+        // The last item of the page is sold and a cheaper one is listed before the next page
+        first.getItems().get(2).setSold(true);
+        database.addItem(new Item("Lamp 0", "Cheap lamp", 5.0, "seller"));
+        SearchPage second = database.searchItemsPage("lamp", SearchPage.Order.PRICE, first.getNextPageToken(), 3);
+        assertEquals("Next page should continue after the sold item", 40.0, second.getItems().get(0).getPrice(), 0.0);
+        assertEquals("Next page should hold the rest", 3, second.getItems().size());
+        assertFalse("Nothing should follow the last page", second.hasNextPage());
+        
+        SearchPage wrongOrder = database.searchItemsPage("lamp", SearchPage.Order.TITLE, first.getNextPageToken(), 3);
+        assertTrue("A token should only continue the order it was made for", wrongOrder.getItems().isEmpty());
+        assertTrue("Invalid tokens should give an empty last page",
+            database.searchItemsPage("lamp", SearchPage.Order.PRICE, "not a token", 3).getItems().isEmpty());
+    }
+    
+    @Test
+    public void testNewestFirstAndTitleOrder() {
+        database.addItem(new Item("banana", "fruit", 1.0, "seller"));
+        database.addItem(new Item("Apple", "fruit", 2.0, "seller"));
+        database.addItem(new Item("cherry", "fruit", 3.0, "seller"));
+        List<Item> newest = database.searchItemsPage("", SearchPage.Order.NEWEST, null, 10).getItems();
+        assertEquals("Newest listing should come first", "cherry", newest.get(0).getTitle());
+        List<Item> byTitle = database.searchItemsPage("fruit", SearchPage.Order.TITLE, null, 10).getItems();
+        assertEquals("Titles should be ordered ignoring case", "Apple", byTitle.get(0).getTitle());
+        assertEquals("Titles should be ordered ignoring case", "banana", byTitle.get(1).getTitle());
+    }
+    
+    @Test
+    public void testCatalogVersionTracksListedItems() {
+        Item lamp = new Item("Lamp", "Desk lamp", 10.0, "seller");
+        database.addItem(lamp);
+        SearchPage page = database.searchItemsPage("", SearchPage.Order.NEWEST, null, 10);
+        assertEquals("Item should carry the version it was listed at", page.getCatalogVersion(), lamp.getVersion());
+        assertTrue("Unchanged catalog should not be sent again", database.searchItemsPage("", SearchPage.Order.NEWEST,
+            null, 10, page.getCatalogVersion()).isNotModified());
+        
+        Item chair = new Item("Chair", "Oak chair", 20.0, "seller");
+        database.addItem(chair);
+        SearchPage changed = database.searchItemsPage("", SearchPage.Order.NEWEST, null, 10, page.getCatalogVersion());
+        assertFalse("A new listing should change the catalog", changed.isNotModified());
+        assertFalse("New item should be sent in full", changed.getItems().get(0).isPlaceholder());
+        assertTrue("Known item should be sent as a placeholder", changed.getItems().get(1).isPlaceholder());
+        
+        lamp.setSold(true);
+        assertFalse("A sale should change the catalog", database.searchItemsPage("", SearchPage.Order.NEWEST,
+            null, 10, changed.getCatalogVersion()).isNotModified());
+        lamp.setSold(false);
+        assertTrue("A relisted item should get a new version", lamp.getVersion() > changed.getCatalogVersion());
+    }
+}
@@ -0,0 +1,183 @@
+package database;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * SearchPage class
+ *
+ * One page of search results in a chosen order, with a token that continues the search
+ * after the last item of the page. The token holds that item's sort key rather than a
+ * position, so a page never repeats or skips items because others were sold or listed
+ * in between.
+ * Pages also carry the catalog version they were read at. A client that sends the version of
+ * a page it holds is told the page is not modified if nothing in the catalog changed; otherwise
+ * items it already has in that version are sent as placeholders with only their ID and version.
+ * Fields are not meant to be modified after creation.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public class SearchPage implements SearchPageInterface, Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+    * Orders search results can be returned in
+    */
+    public enum Order {
+        NEWEST(Comparator.comparingInt(Item::getId).reversed()), // Most recently listed first
+        PRICE(Comparator.comparingLong(Item::getPriceCents).thenComparingInt(Item::getId)), // Cheapest first
+        TITLE(Comparator.comparing(Item::getTitle, String.CASE_INSENSITIVE_ORDER)
+                        .thenComparingInt(Item::getId)); // Alphabetical by title
+        
+        private final Comparator<Item> comparator; //Total order of the items, ties broken by ID
+        
+        Order(Comparator<Item> comparator) {
+            this.comparator = comparator;
+        }
+        
+        /**
+        * Returns the comparator that puts items in this order.
+        *
+        * @return comparator
+        */
+        Comparator<Item> comparator() {
+            return comparator;
+        }
+    }
+    
+    private List<Item> items; //Items of this page, in the requested order
+    private String nextPageToken; //Continues after the last item, null on the last page
+    private long catalogVersion; //Catalog version the page was read at, 0 if unknown
+    private boolean notModified; //True if the catalog has not changed since the version the client sent
+    
+    public SearchPage(List<Item> items, String nextPageToken) {
+        this(items, nextPageToken, 0);
+    }
+    
+    public SearchPage(List<Item> items, String nextPageToken, long catalogVersion) {
+        this.items = items;
+        this.nextPageToken = nextPageToken;
+        this.catalogVersion = catalogVersion;
+    }
+    
+    /**
+    * Creates the reply telling a client its copy of a page is still current.
+    *
+    * @param catalogVersion the unchanged catalog version
+    * @return reply without items
+    */
+    public static SearchPage notModified(long catalogVersion) {
+        SearchPage page = new SearchPage(new ArrayList<>(), null, catalogVersion);
+        page.notModified = true;
+        return page;
+    }
+    
+    /**
+    * Returns the items of this page.
+    *
+    * @return items
+    */
+    public List<Item> getItems() {
+        return items;
+    }
+    
+    /**
+    * Returns the token that requests the next page.
+    *
+    * @return nextPageToken, null if this is the last page
+    */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+    
+    /**
+    * Returns true if more results follow this page.
+    *
+    * @return true if there is a next page
+    */
+    public boolean hasNextPage() {
+        return nextPageToken != null;
+    }
+    
+    /**
+    * Returns the catalog version the page was read at.
+    *
+    * @return catalogVersion, 0 if unknown
+    */
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+    
+    /**
+    * Returns true if this reply only says that the client's copy of the page is current.
+    *
+    * @return notModified
+    */
+    public boolean isNotModified() {
+        return notModified;
+    }
+    
+    /**
+    * Combines pages read with the same query, order and token from several shards into one page.
+    * Each shard's page holds its first items after the token, so the first pageSize items of all of
+    * them together are the first pageSize items of the whole marketplace. Catalog versions of different
+    * shards cannot be compared, so the result has none and clients do not cache it.
+    *
+    * @param pages one page from every shard
+    * @param order order the pages were read in
+    * @param pageSize most items on the combined page
+    * @return combined page, continuing after its last item
+    */
+    public static SearchPage merge(List<SearchPage> pages, Order order, int pageSize) {
+        List<Item> items = new ArrayList<>();
+        boolean more = false;
+        for (SearchPage page : pages) {
+            items.addAll(page.getItems());
+            more |= page.hasNextPage();
+        }
+        items.sort(order.comparator());
+        if (items.size() > pageSize) {
+            items = new ArrayList<>(items.subList(0, pageSize));
+            more = true;
+        }
+        String token = (more && !items.isEmpty()) ? tokenFor(order, items.get(items.size() - 1)) : null;
+        return new SearchPage(items, token);
+    }
+    
+    /**
+    * Creates the token continuing a search after the given item.
+    * The item's sort key is encoded as text, then as URL-safe Base64 so the token is opaque.
+    *
+    * @param order order of the search
+    * @param last last item of the page
+    * @return token
+    */
+    static String tokenFor(Order order, Item last) {
+        String key = order.name() + "\n" + last.getId() + "\n" + last.getPriceCents() + "\n" + last.getTitle();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+    * Decodes a token into an item carrying the sort key it was made from.
+    *
+    * @param order order of the search; a token made for another order is invalid
+    * @param token token from a previous page
+    * @return item to continue after, or null if the token is invalid
+    */
+    static Item cursorFor(Order order, String token) {
+        try {
+            String[] key = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\n", 4);
+            if (key.length != 4 || !key[0].equals(order.name())) {
+                return null;
+            }
+            Item cursor = Item.withPriceCents(key[3], "", Long.parseLong(key[2]), null);
+            cursor.setId(Integer.parseInt(key[1]));
+            return cursor;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package database;
+import java.util.List;
+
+public interface SearchPageInterface {
+    List<Item> getItems();
+    String getNextPageToken();
+    boolean hasNextPage();
+    long getCatalogVersion();
+    boolean isNotModified();
+}
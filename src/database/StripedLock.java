@@ -0,0 +1,84 @@
+package database;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StripedLock class
+ *
+ * A fixed set of locks shared by many entities. Each key (username, item ID, ...) always maps
+ * to the same lock, so operations on one entity are serialized while operations on unrelated
+ * entities usually proceed in parallel, without keeping a lock object per entity.
+ * Code holding several stripes at once takes them in stripe index order (see locksFor),
+ * so two such operations can never wait for each other in a cycle.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class StripedLock {
+    private final ReentrantLock[] locks; // The stripes, length is a power of two
+    
+    /**
+    * Creates a striped lock.
+    *
+    * @param stripes minimum number of stripes, rounded up to a power of two
+    */
+    StripedLock(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+    
+    /**
+    * Returns the lock guarding the given key.
+    *
+    * @param key entity key
+    * @return lock for the key
+    */
+    ReentrantLock lockFor(Object key) {
+        return locks[indexFor(key)];
+    }
+    
+    /**
+    * Returns the locks guarding the given keys, each stripe once, in the order they must be taken.
+    * Keys sharing a stripe share its lock, so the list may be shorter than the keys.
+    *
+    * @param keys entity keys
+    * @return distinct locks in ascending stripe index order
+    */
+    List<ReentrantLock> locksFor(Object... keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = indexFor(keys[i]);
+        }
+        Arrays.sort(indexes);
+        List<ReentrantLock> ordered = new ArrayList<>(keys.length);
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                ordered.add(locks[indexes[i]]);
+            }
+        }
+        return ordered;
+    }
+    
+    /**
+    * Returns the stripe index for a key.
+    * The hash is spread so keys differing only in their high bits land on different stripes.
+    *
+    * @param key entity key
+    * @return stripe index
+    */
+    int indexFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & (locks.length - 1);
+    }
+}
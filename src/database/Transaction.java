@@ -1,6 +1,6 @@
 package database;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.Date;
 
 /**
@@ -8,6 +8,10 @@ import java.util.Date;
  *
  * Represents a transaction between a buyer and seller for a specific item.
  * Stores transaction details including ID, item ID, amount, timestamp, and involved parties.
+ * The amount is kept in cents (see Money). IDs are 64-bit and assigned by the database
+ * when the transaction is stored (see IdAllocator), so they never collide.
+ * A refund gives the buyer back the amount of a purchase that did not go through; it is flagged
+ * rather than recorded as a purchase of a negative amount, and its amount is the positive sum returned.
  * 
  * @author L10-Team1
  * @version April 2024
@@ -15,15 +19,17 @@ import java.util.Date;
 public class Transaction implements TransactionInterface, Serializable {
     private static final long serialVersionUID = 1L;
     
-    private int id;
+    private long transactionId; // Unique ID, 0 until the transaction is stored; older files have an int "id"
     private int itemId;
-    private double amount;
+    private long amountCents;
     private Date timestamp;
     private String buyer;
     private String seller;
+    private long sequence; // Position in the transaction history, assigned when stored; 0 before
+    private boolean refund; // True if the amount went back to the buyer; false in older files
     
     /**
-     * Constructor for Transaction with auto-generated ID
+     * Constructor for Transaction; the database assigns its ID when it is stored
      * 
      * @param buyer Username of buyer
      * @param seller Username of seller
@@ -31,12 +37,7 @@ public class Transaction implements TransactionInterface, Serializable {
      * @param amount Transaction amount/price
      */
     public Transaction(String buyer, String seller, int itemId, double amount) {
-        this.id = (int)(System.currentTimeMillis() % Integer.MAX_VALUE);
-        this.buyer = buyer;
-        this.seller = seller;
-        this.itemId = itemId;
-        this.amount = amount;
-        this.timestamp = new Date(); // Current time
+        this(0, itemId, Money.toCents(amount), buyer, seller, new Date());
     }
     
     /**
@@ -48,21 +49,78 @@ public class Transaction implements TransactionInterface, Serializable {
      * @param buyer Username of buyer
      * @param seller Username of seller
      */
-    public Transaction(int id, int itemId, double amount, String buyer, String seller) {
-        this.id = id;
+    public Transaction(long id, int itemId, double amount, String buyer, String seller) {
+        this(id, itemId, Money.toCents(amount), buyer, seller, new Date());
+    }
+    
+    /**
+     * Creates a transaction with an amount in cents; the database assigns its ID when it is stored
+     * 
+     * @param buyer Username of buyer
+     * @param seller Username of seller
+     * @param itemId ID of the item involved
+     * @param amountCents Transaction amount/price in cents
+     * @return the transaction
+     */
+    static Transaction withAmountCents(String buyer, String seller, int itemId, long amountCents) {
+        return new Transaction(0, itemId, amountCents, buyer, seller, new Date());
+    }
+    
+    /**
+     * Creates a transaction with an ID given elsewhere and an amount in cents, such as a purchase
+     * paid on another shard
+     * 
+     * @param id Transaction ID
+     * @param buyer Username of buyer
+     * @param seller Username of seller
+     * @param itemId ID of the item involved
+     * @param amountCents Transaction amount/price in cents
+     * @return the transaction
+     */
+    public static Transaction withAmountCents(long id, String buyer, String seller, int itemId, long amountCents) {
+        return new Transaction(id, itemId, amountCents, buyer, seller, new Date());
+    }
+    
+    /**
+     * Creates the refund of a purchase; the database assigns its ID when it is stored
+     * 
+     * @param purchase The purchase being refunded
+     * @return the refund, of the purchase's amount
+     */
+    static Transaction refundOf(Transaction purchase) {
+        Transaction refund = withAmountCents(purchase.getBuyer(), purchase.getSeller(), purchase.getItemId(),
+                                             purchase.getAmountCents());
+        refund.refund = true;
+        return refund;
+    }
+    
+    /**
+     * Restores a transaction with its original timestamp (used when replaying the journal)
+     */
+    Transaction(long id, int itemId, long amountCents, String buyer, String seller, Date timestamp) {
+        this.transactionId = id;
         this.itemId = itemId;
-        this.amount = amount;
-        this.timestamp = new Date(); // Current time
+        this.amountCents = amountCents;
+        this.timestamp = timestamp;
         this.buyer = buyer;
         this.seller = seller;
     }
     
     /**
      * Get the transaction ID
-     * @return Transaction ID
+     * @return Transaction ID, 0 if the transaction has not been stored
+     */
+    @Override
+    public long getId() {
+        return transactionId;
+    }
+    
+    /**
+     * Set the transaction ID; called by the database when the transaction is stored
+     * @param id Transaction ID
      */
-    public int getId() {
-        return id;
+    void setId(long id) {
+        this.transactionId = id;
     }
     
     /**
@@ -80,7 +138,16 @@ public class Transaction implements TransactionInterface, Serializable {
      */
     @Override
     public double getAmount() {
-        return amount;
+        return Money.toAmount(amountCents);
+    }
+    
+    /**
+     * Get the transaction amount in cents
+     * @return Amount in cents
+     */
+    @Override
+    public long getAmountCents() {
+        return amountCents;
     }
     
     /**
@@ -109,4 +176,74 @@ public class Transaction implements TransactionInterface, Serializable {
     public String getSeller() {
         return seller;
     }
+    
+    /**
+     * Get the sequence number assigned when the transaction was stored.
+     * Later transactions always have larger numbers, so it can be used as a cursor.
+     * @return Sequence number, 0 if the transaction has not been stored
+     */
+    @Override
+    public long getSequence() {
+        return sequence;
+    }
+    
+    /**
+     * Returns true if this transaction gave the buyer back the amount of a failed purchase
+     * @return true for a refund, false for a purchase
+     */
+    @Override
+    public boolean isRefund() {
+        return refund;
+    }
+    
+    /**
+     * Mark the transaction as a refund; called by the journal and the wire protocol
+     * @param refund true for a refund
+     */
+    void setRefund(boolean refund) {
+        this.refund = refund;
+    }
+    
+    /**
+     * Set the sequence number; called by the database and the wire protocol
+     * @param sequence Sequence number
+     */
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
+    /**
+     * Replace the buyer and seller with equal strings; called by the database so that
+     * all of a user's transactions refer to one String
+     * @param buyer The buyer, equal to the current one
+     * @param seller The seller, equal to the current one
+     */
+    void setUsernames(String buyer, String seller) {
+        this.buyer = buyer;
+        this.seller = seller;
+    }
+    
+    /**
+     * Reads a transaction, converting the amount of files written before amounts were kept in cents
+     * and the ID of files written before IDs were 64-bit
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        if (fields.getObjectStreamClass().getField("id") != null) {
+            transactionId = fields.get("id", 0);
+        } else {
+            transactionId = fields.get("transactionId", 0L);
+        }
+        itemId = fields.get("itemId", 0);
+        if (fields.defaulted("amountCents")) {
+            amountCents = Money.toCents(fields.get("amount", 0.0));
+        } else {
+            amountCents = fields.get("amountCents", 0L);
+        }
+        timestamp = (Date) fields.get("timestamp", null);
+        buyer = (String) fields.get("buyer", null);
+        seller = (String) fields.get("seller", null);
+        sequence = fields.get("sequence", 0L);
+        refund = fields.get("refund", false);
+    }
 }
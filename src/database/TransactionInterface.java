@@ -2,9 +2,13 @@ package database;
 import java.util.Date;
 
 public interface TransactionInterface {
+    long getId();
     String getBuyer();
     String getSeller();
     int getItemId();
     double getAmount();
+    long getAmountCents();
     Date getTimestamp();
+    long getSequence();
+    boolean isRefund();
 }
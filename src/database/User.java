@@ -1,10 +1,11 @@
 package database;
-import java.io.Serializable;
+import java.io.*;
 
 /**
  * User class
  *
  * This class represents a user with a username, password, and balance.
+ * The balance is kept in cents (see Money).
  * 
  * @author L10-Team1 
  *
@@ -12,15 +13,29 @@ import java.io.Serializable;
  *
  */
 public class User implements UserInterface, Serializable {
+    private static final long serialVersionUID = 3671172211958229155L;
+    
+    private static final long INITIAL_BALANCE_CENTS = 10000; //Initial balance after account creation is 100
     
     private String username; //username of the user
     private String password; //password of the user
-    private double balance; //balance(money) of the user
+    private volatile long balanceCents; //balance(money) of the user in cents, changed under the user's lock in Database
     
     public User(String username, String password) {
         this.username = username;
         this.password = password;
-        this.balance = 100.0; // Initial balance after account creation is 100
+        this.balanceCents = INITIAL_BALANCE_CENTS;
+    }
+    
+    /**
+    * Returns a copy of the user as it is now, for writing a snapshot while the balance keeps changing.
+    *
+    * @return the copy
+    */
+    User copy() {
+        User user = new User(username, password);
+        user.balanceCents = balanceCents;
+        return user;
     }
     
     /**
@@ -42,22 +57,64 @@ public class User implements UserInterface, Serializable {
         return this.password.equals(password);
     }
     
+    /**
+    * Returns the password of the user.
+    * Only used by the database to persist the account.
+    *
+    * @return password
+    */
+    String getPassword() {
+        return password;
+    }
+    
     /**
     * Returns the balance of the user.
     *
     * @return balance
     */
     public double getBalance() {
-        return balance;
+        return Money.toAmount(balanceCents);
     }
     
     /**
     * Sets the username of the user.
     *
-    * @param balance the balance to set
+    * @param balance the balance to set, rounded to the nearest cent
     */
     public void setBalance(double balance) {
-        this.balance = balance;
+        this.balanceCents = Money.toCents(balance);
+    }
+    
+    /**
+    * Returns the balance of the user in cents.
+    *
+    * @return balance in cents
+    */
+    public long getBalanceCents() {
+        return balanceCents;
+    }
+    
+    /**
+    * Sets the balance of the user in cents.
+    *
+    * @param balanceCents the balance to set
+    */
+    public void setBalanceCents(long balanceCents) {
+        this.balanceCents = balanceCents;
+    }
+    
+    /**
+    * Reads a user, converting the balance of files written before balances were kept in cents.
+    */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        username = (String) fields.get("username", null);
+        password = (String) fields.get("password", null);
+        if (fields.defaulted("balanceCents")) {
+            balanceCents = Money.toCents(fields.get("balance", 0.0));
+        } else {
+            balanceCents = fields.get("balanceCents", 0L);
+        }
     }
     
 }
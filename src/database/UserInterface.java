@@ -4,4 +4,6 @@ public interface UserInterface {
     boolean checkPassword(String password);
     double getBalance();
     void setBalance(double balance);
+    long getBalanceCents();
+    void setBalanceCents(long balanceCents);
 }
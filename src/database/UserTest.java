@@ -2,6 +2,9 @@ package database;
 import static org.junit.Assert.*;
 import org.junit.*;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
 public class UserTest {
     private User user;
     
@@ -41,4 +44,72 @@ public class UserTest {
         user.setBalance(-50.0);
         assertEquals("Balance should be updated to negative", -50.0, user.getBalance(), 0.001);
     }
+    
+    @Test
+    public void testBalanceInCents() {
+        user.setBalance(0.1);
+        for (int i = 0; i < 1000; i++) {
+            user.setBalanceCents(user.getBalanceCents() + Money.toCents(0.1));
+        }
+        assertEquals("Cents should add up exactly", 10010, user.getBalanceCents());
+        assertEquals("Balance should match the cents", 100.1, user.getBalance(), 0.0);
+        user.setBalance(19.999);
+        assertEquals("Balances should be rounded to the nearest cent", 2000, user.getBalanceCents());
+    }
+    
+    /**
+     * User as it was serialized before balances were kept in cents
+     */
+    private static class LegacyUser implements Serializable {
+        private static final long serialVersionUID = 3671172211958229155L;
+        private String username = "legacy";
+        private String password = "pw";
+        private double balance = 42.35;
+    }
+    
+    @Test
+    public void testOldFilesAreMigrated() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new LegacyUser());
+        }
+        // Rename the class in the stream, as if User itself had been written with the old fields
+        byte[] stream = replace(bytes.toByteArray(), utf(LegacyUser.class.getName()), utf(User.class.getName()));
+        
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stream))) {
+            User migrated = (User) in.readObject();
+            assertEquals("Username should be read", "legacy", migrated.getUsername());
+            assertTrue("Password should be read", migrated.checkPassword("pw"));
+            assertEquals("Old balance should be converted to cents", 4235, migrated.getBalanceCents());
+        }
+    }
+    
+    /**
+     * Encodes a string the way object streams write class names.
+     */
+    private static byte[] utf(String value) {
+        byte[] text = value.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[text.length + 2];
+        encoded[0] = (byte) (text.length >> 8);
+        encoded[1] = (byte) text.length;
+        System.arraycopy(text, 0, encoded, 2, text.length);
+        return encoded;
+    }
+    
+    private static byte[] replace(byte[] data, byte[] target, byte[] replacement) {
+        for (int i = 0; i + target.length <= data.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < target.length && match; j++) {
+                match = data[i + j] == target[j];
+            }
+            if (match) {
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                result.write(data, 0, i);
+                result.write(replacement, 0, replacement.length);
+                result.write(data, i + target.length, data.length - i - target.length);
+                return result.toByteArray();
+            }
+        }
+        throw new AssertionError("Class name not found in stream");
+    }
 }
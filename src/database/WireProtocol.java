@@ -0,0 +1,596 @@
+package database;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * WireProtocol class
+ *
+ * Compact binary protocol between MarketplaceClient and the server, used instead of Java object
+ * streams when both sides support it. A client opens the connection by sending MAGIC; a server
+ * that understands the protocol answers with MAGIC, while an older server answers with an object
+ * stream header, in which case the client falls back to object streams.
+ *
+ * Every request and reply is a frame: a four byte length followed by that many bytes, starting
+ * with the command's opcode. Request arguments follow in the order the object stream protocol
+ * sends them. A reply carries a tag naming its type, then the encoded value. Strings are a four
+ * byte length (-1 for null) and UTF-8 bytes. Prices, amounts and balances are a long number of cents
+ * (see Money), so they cross the wire exactly. Unlike object streams, no state is kept between
+ * frames, so a long session costs no memory and every reply carries current values.
+ *
+ * A client that opens with MAGIC_MULTIPLEXED instead tags every frame with a request ID placed
+ * before the opcode. It may then send further requests before the earlier ones are answered; the
+ * server runs them concurrently and each reply carries the ID of the request it answers, so
+ * replies can arrive in any order. Such a client can also SUBSCRIBE to events; the server
+ * then pushes MarketplaceEvents in frames tagged with EVENT_REQUEST_ID, which no request uses.
+ *
+ * No frame is longer than MAX_FRAME_LENGTH. A list reply that would be longer is cut to the part
+ * that fits: the newest messages or transactions, which GET_MESSAGES_SINCE and GET_TRANSACTIONS_SINCE
+ * page back from, or the first items, the rest of which SEARCH_ITEMS_PAGE pages through. Any other
+ * reply that would be too long is replaced by a failed TransactionResult.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public final class WireProtocol {
+    public static final int MAGIC = 0x4D4B5031; // "MKP1", opens a binary connection
+    public static final int MAGIC_MULTIPLEXED = 0x4D4B5032; // "MKP2", opens a binary connection with tagged frames
+    public static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024; // Largest frame accepted
+    public static final int EVENT_REQUEST_ID = 0; // Request ID of frames pushed by the server
+    private static final int MAX_HEADER_LENGTH = 10; // Request ID, opcode, reply tag and list size
+
+    // Commands by opcode; the index is the opcode byte
+    private static final String[] COMMANDS = {
+        null, "LOGIN", "REGISTER", "LOGOUT", "ADD_ITEM", "SEARCH_ITEMS", "BUY_ITEM", "GET_USER_ITEMS",
+        "SEND_MESSAGE", "GET_MESSAGES", "GET_TRANSACTIONS", "GET_BALANCE", "DELETE_ACCOUNT", "DELETE_ITEM", "EXIT",
+        "SUBSCRIBE", "GET_MESSAGES_SINCE", "GET_TRANSACTIONS_SINCE",
+        "SEARCH_ITEMS_PAGE",
+        // Sent between the shards of a partitioned marketplace; the first argument is the cluster secret
+        "SHARD_SEARCH_ITEMS", "SHARD_SEARCH_ITEMS_PAGE", "SHARD_GET_ITEM", "SHARD_SELL_ITEM", "SHARD_DELIVER_MESSAGE",
+        "SET_MAX_STALENESS"
+    };
+    // Argument types by opcode: S = String, I = int, L = long, M = money (a Double, sent as long cents)
+    private static final String[] ARGUMENT_TYPES = {
+        "", "SS", "SS", "", "SSM", "S", "I", "", "SSI", "", "", "", "", "I", "",
+        "", "LI", "LI",
+        "SSSIL",
+        "SS", "SSSSI", "SI", "SLISSL", "SSSSI",
+        "L"
+    };
+
+    // Reply type tags
+    private static final byte REPLY_RESULT = 'R';
+    private static final byte REPLY_ITEMS = 'I';
+    private static final byte REPLY_MESSAGES = 'M';
+    private static final byte REPLY_TRANSACTIONS = 'T';
+    private static final byte REPLY_BALANCE = 'C'; // Balance in cents
+    private static final byte REPLY_EVENT = 'E';
+    private static final byte REPLY_PAGE = 'P';
+
+    private WireProtocol() {
+    }
+
+    /**
+     * A decoded request: command name and arguments.
+     */
+    public static final class Request {
+        private final int requestId; // 0 unless the frame was tagged
+        private final String command; // Command name, "" for an unknown opcode
+        private final Object[] arguments; // String, Integer, Long or Double values
+
+        Request(int requestId, String command, Object[] arguments) {
+            this.requestId = requestId;
+            this.command = command;
+            this.arguments = arguments;
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public Object[] getArguments() {
+            return arguments;
+        }
+    }
+
+    /**
+     * Returns the opcode of a command.
+     *
+     * @param command command name
+     * @return opcode, or 0 for an unknown command
+     */
+    public static byte opcodeFor(String command) {
+        for (int i = 1; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return (byte) i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads one frame and returns its contents without the length prefix.
+     *
+     * @param in stream positioned at a frame
+     * @return frame contents
+     * @throws IOException if the stream ends or the frame is too large
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Encodes a request frame, including its length prefix.
+     *
+     * @param command command name
+     * @param arguments arguments in the order of the object stream protocol
+     * @return encoded frame
+     */
+    public static byte[] encodeRequest(String command, Object... arguments) throws IOException {
+        FrameWriter frame = new FrameWriter();
+        writeRequest(frame.out, command, arguments);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Encodes a request frame tagged with a request ID, including its length prefix.
+     *
+     * @param requestId ID the reply will carry
+     * @param command command name
+     * @param arguments arguments in the order of the object stream protocol
+     * @return encoded frame
+     */
+    public static byte[] encodeTaggedRequest(int requestId, String command, Object... arguments) throws IOException {
+        FrameWriter frame = new FrameWriter();
+        frame.out.writeInt(requestId);
+        writeRequest(frame.out, command, arguments);
+        return frame.toByteArray();
+    }
+
+    private static void writeRequest(DataOutputStream out, String command, Object[] arguments) throws IOException {
+        byte opcode = opcodeFor(command);
+        if (opcode == 0) {
+            throw new IllegalArgumentException("Unknown command " + command);
+        }
+        String types = ARGUMENT_TYPES[opcode];
+        if (arguments.length != types.length()) {
+            throw new IllegalArgumentException(command + " takes " + types.length() + " arguments");
+        }
+        out.writeByte(opcode);
+        for (int i = 0; i < arguments.length; i++) {
+            switch (types.charAt(i)) {
+                case 'S':
+                    writeString(out, (String) arguments[i]);
+                    break;
+                case 'I':
+                    out.writeInt((Integer) arguments[i]);
+                    break;
+                case 'L':
+                    out.writeLong((Long) arguments[i]);
+                    break;
+                default:
+                    out.writeLong(Money.toCents((Double) arguments[i]));
+            }
+        }
+    }
+
+    /**
+     * Decodes the contents of a request frame.
+     *
+     * @param frame frame contents as returned by readFrame
+     * @return the request; unknown opcodes give command "" and no arguments
+     * @throws IOException if the frame is malformed
+     */
+    public static Request decodeRequest(byte[] frame) throws IOException {
+        return readRequestBody(new DataInputStream(new ByteArrayInputStream(frame)), 0);
+    }
+
+    /**
+     * Decodes the contents of a tagged request frame.
+     *
+     * @param frame frame contents as returned by readFrame
+     * @return the request with its request ID; unknown opcodes give command "" and no arguments
+     * @throws IOException if the frame is malformed
+     */
+    public static Request decodeTaggedRequest(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        return readRequestBody(in, in.readInt());
+    }
+
+    private static Request readRequestBody(DataInputStream in, int requestId) throws IOException {
+        int opcode = in.readUnsignedByte();
+        if (opcode == 0 || opcode >= COMMANDS.length) {
+            return new Request(requestId, "", new Object[0]);
+        }
+        String types = ARGUMENT_TYPES[opcode];
+        Object[] arguments = new Object[types.length()];
+        for (int i = 0; i < arguments.length; i++) {
+            switch (types.charAt(i)) {
+                case 'S':
+                    arguments[i] = readString(in);
+                    break;
+                case 'I':
+                    arguments[i] = in.readInt();
+                    break;
+                case 'L':
+                    arguments[i] = in.readLong();
+                    break;
+                default:
+                    // Same Double as the object stream protocol, so commands see one argument type
+                    arguments[i] = Money.toAmount(in.readLong());
+            }
+        }
+        return new Request(requestId, COMMANDS[opcode], arguments);
+    }
+
+    /**
+     * Encodes a reply frame, including its length prefix.
+     *
+     * @param command the command being answered
+     * @param reply TransactionResult, Double, SearchPage, or a list of items, messages or transactions
+     * @return encoded frame
+     */
+    public static byte[] encodeReply(String command, Object reply) throws IOException {
+        FrameWriter frame = new FrameWriter();
+        writeReply(frame.out, command, reply);
+        if (frame.length() > MAX_FRAME_LENGTH) {
+            return encodeReply(command, tooLarge(frame.length()));
+        }
+        return frame.toByteArray();
+    }
+
+    /**
+     * Encodes a reply frame tagged with the ID of the request it answers, including its length prefix.
+     *
+     * @param requestId ID of the request being answered
+     * @param command the command being answered
+     * @param reply TransactionResult, Double, SearchPage, or a list of items, messages or transactions
+     * @return encoded frame
+     */
+    public static byte[] encodeTaggedReply(int requestId, String command, Object reply) throws IOException {
+        FrameWriter frame = new FrameWriter();
+        frame.out.writeInt(requestId);
+        writeReply(frame.out, command, reply);
+        if (frame.length() > MAX_FRAME_LENGTH) {
+            return encodeTaggedReply(requestId, command, tooLarge(frame.length()));
+        }
+        return frame.toByteArray();
+    }
+
+    /**
+     * Returns the reply sent instead of one that does not fit in a frame.
+     */
+    private static TransactionResult tooLarge(int length) {
+        return new TransactionResult(false, "Reply of " + length + " bytes is too large to send");
+    }
+
+    /**
+     * Encodes an event frame pushed to a subscribed client, including its length prefix.
+     *
+     * @param event the event
+     * @return encoded frame, tagged with EVENT_REQUEST_ID
+     */
+    public static byte[] encodeEvent(MarketplaceEvent event) throws IOException {
+        return encodeTaggedReply(EVENT_REQUEST_ID, "SUBSCRIBE", event);
+    }
+
+    private static void writeReply(DataOutputStream out, String command, Object reply) throws IOException {
+        out.writeByte(opcodeFor(command));
+        if (reply instanceof TransactionResult) {
+            TransactionResult result = (TransactionResult) reply;
+            out.writeByte(REPLY_RESULT);
+            out.writeBoolean(result.isSuccess());
+            writeString(out, result.getMessage());
+            out.writeInt(result.getItemId());
+        } else if (reply instanceof Double) {
+            out.writeByte(REPLY_BALANCE);
+            out.writeLong(Money.toCents((Double) reply));
+        } else if (reply instanceof MarketplaceEvent) {
+            MarketplaceEvent event = (MarketplaceEvent) reply;
+            out.writeByte(REPLY_EVENT);
+            out.writeByte(event.getType().ordinal());
+            switch (event.getType()) {
+                case MESSAGE_RECEIVED:
+                    writeMessage(out, event.getMessage());
+                    break;
+                case ITEM_SOLD:
+                    writeTransaction(out, event.getTransaction());
+                    break;
+                default:
+                    out.writeLong(event.getBalanceCents());
+            }
+        } else if (reply instanceof SearchPage) {
+            SearchPage page = (SearchPage) reply;
+            out.writeByte(REPLY_PAGE);
+            writeString(out, page.getNextPageToken());
+            out.writeLong(page.getCatalogVersion());
+            out.writeBoolean(page.isNotModified());
+            out.writeInt(page.getItems().size());
+            for (Item item : page.getItems()) {
+                // Placeholders are sent as just their ID and version
+                out.writeBoolean(item.isPlaceholder());
+                out.writeLong(item.getVersion());
+                if (item.isPlaceholder()) {
+                    out.writeInt(item.getId());
+                } else {
+                    writeItem(out, item);
+                }
+            }
+        } else if (reply instanceof List) {
+            List<?> list = (List<?>) reply;
+            byte tag = command.startsWith("GET_MESSAGES") ? REPLY_MESSAGES :
+                       command.startsWith("GET_TRANSACTIONS") ? REPLY_TRANSACTIONS : REPLY_ITEMS;
+            // Elements are encoded apart first, so a list too long for one frame can be cut
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream elements = new DataOutputStream(bytes);
+            int[] ends = new int[list.size()]; // Offset just past each element
+            for (int i = 0; i < ends.length; i++) {
+                Object element = list.get(i);
+                if (tag == REPLY_ITEMS) {
+                    writeItem(elements, (Item) element);
+                } else if (tag == REPLY_MESSAGES) {
+                    writeMessage(elements, (Message) element);
+                } else {
+                    writeTransaction(elements, (Transaction) element);
+                }
+                ends[i] = elements.size();
+            }
+            int first = 0;
+            int last = ends.length; // Elements first to last - 1 are sent
+            int budget = MAX_FRAME_LENGTH - MAX_HEADER_LENGTH;
+            int total = elements.size();
+            if (total > budget) {
+                if (tag == REPLY_ITEMS) {
+                    while (last > 0 && ends[last - 1] > budget) {
+                        last--;
+                    }
+                } else {
+                    // Histories are oldest first; keep the newest
+                    while (total - ends[first] > budget) {
+                        first++;
+                    }
+                    first++;
+                }
+            }
+            int from = (first == 0) ? 0 : ends[first - 1];
+            int to = (last == 0) ? 0 : ends[last - 1];
+            out.writeByte(tag);
+            out.writeInt(last - first);
+            out.write(bytes.toByteArray(), from, to - from);
+        } else {
+            throw new IllegalArgumentException("Cannot encode reply " + reply);
+        }
+    }
+
+    /**
+     * Decodes the contents of a reply frame.
+     *
+     * @param frame frame contents as returned by readFrame
+     * @return TransactionResult, Double, SearchPage, or a List of Item, Message or Transaction
+     * @throws IOException if the frame is malformed
+     */
+    public static Object decodeReply(byte[] frame) throws IOException {
+        return readReplyBody(new DataInputStream(new ByteArrayInputStream(frame)), frame.length);
+    }
+
+    /**
+     * Decodes the contents of a tagged reply frame; its request ID is read with requestIdOf.
+     *
+     * @param frame frame contents as returned by readFrame
+     * @return TransactionResult, Double, SearchPage, MarketplaceEvent, or a List of Item, Message or Transaction
+     * @throws IOException if the frame is malformed
+     */
+    public static Object decodeTaggedReply(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        in.readInt();
+        return readReplyBody(in, frame.length);
+    }
+
+    /**
+     * Returns the request ID of a tagged frame.
+     *
+     * @param frame frame contents as returned by readFrame
+     * @return the request ID
+     * @throws IOException if the frame is too short to carry one
+     */
+    public static int requestIdOf(byte[] frame) throws IOException {
+        if (frame.length < 4) {
+            throw new StreamCorruptedException("Frame has no request ID");
+        }
+        return ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+    }
+
+    private static Object readReplyBody(DataInputStream in, int frameLength) throws IOException {
+        in.readByte(); // Opcode of the command answered
+        byte tag = in.readByte();
+        switch (tag) {
+            case REPLY_RESULT: {
+                boolean success = in.readBoolean();
+                String message = readString(in);
+                return new TransactionResult(success, message, in.readInt());
+            }
+            case REPLY_BALANCE:
+                return Money.toAmount(in.readLong());
+            case REPLY_EVENT: {
+                int type = in.readUnsignedByte();
+                if (type == MarketplaceEvent.Type.MESSAGE_RECEIVED.ordinal()) {
+                    return MarketplaceEvent.messageReceived(readMessage(in));
+                } else if (type == MarketplaceEvent.Type.ITEM_SOLD.ordinal()) {
+                    return MarketplaceEvent.itemSold(readTransaction(in));
+                } else if (type == MarketplaceEvent.Type.BALANCE_CHANGED.ordinal()) {
+                    return MarketplaceEvent.balanceChangedCents(in.readLong());
+                }
+                throw new StreamCorruptedException("Unknown event type " + type);
+            }
+            case REPLY_PAGE: {
+                String nextPageToken = readString(in);
+                long catalogVersion = in.readLong();
+                if (in.readBoolean()) {
+                    return SearchPage.notModified(catalogVersion);
+                }
+                int size = in.readInt();
+                if (size < 0 || size > frameLength) {
+                    throw new StreamCorruptedException("Invalid list size " + size);
+                }
+                List<Item> items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    boolean placeholder = in.readBoolean();
+                    long version = in.readLong();
+                    Item item = placeholder ? Item.placeholder(in.readInt(), version) : readItem(in);
+                    item.setVersion(version);
+                    items.add(item);
+                }
+                return new SearchPage(items, nextPageToken, catalogVersion);
+            }
+            case REPLY_ITEMS:
+            case REPLY_MESSAGES:
+            case REPLY_TRANSACTIONS: {
+                int size = in.readInt();
+                if (size < 0 || size > frameLength) {
+                    throw new StreamCorruptedException("Invalid list size " + size);
+                }
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(tag == REPLY_ITEMS ? readItem(in) :
+                             tag == REPLY_MESSAGES ? readMessage(in) : readTransaction(in));
+                }
+                return list;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown reply type " + tag);
+        }
+    }
+
+    /**
+     * Reads one reply frame and decodes it.
+     *
+     * @param in stream positioned at a reply frame
+     * @return the decoded reply
+     */
+    public static Object readReply(DataInputStream in) throws IOException {
+        return decodeReply(readFrame(in));
+    }
+
+    private static void writeItem(DataOutputStream out, Item item) throws IOException {
+        out.writeInt(item.getId());
+        writeString(out, item.getTitle());
+        writeString(out, item.getDescription());
+        out.writeLong(item.getPriceCents());
+        writeString(out, item.getSeller());
+        out.writeBoolean(item.isSold());
+    }
+
+    private static Item readItem(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        String title = readString(in);
+        String description = readString(in);
+        Item item = Item.withPriceCents(title, description, in.readLong(), readString(in));
+        item.setId(id);
+        item.setSold(in.readBoolean());
+        return item;
+    }
+
+    private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+        writeString(out, message.getSender());
+        writeString(out, message.getRecipient());
+        writeString(out, message.getContent());
+        out.writeInt(message.getItemId());
+        out.writeLong(message.getTimestamp().getTime());
+        out.writeLong(message.getSequence());
+    }
+
+    private static Message readMessage(DataInputStream in) throws IOException {
+        String sender = readString(in);
+        String recipient = readString(in);
+        String content = readString(in);
+        int itemId = in.readInt();
+        Message message = new Message(sender, recipient, content, itemId, new Date(in.readLong()));
+        message.setSequence(in.readLong());
+        return message;
+    }
+
+    private static void writeTransaction(DataOutputStream out, Transaction transaction) throws IOException {
+        out.writeLong(transaction.getId());
+        out.writeInt(transaction.getItemId());
+        out.writeLong(transaction.getAmountCents());
+        writeString(out, transaction.getBuyer());
+        writeString(out, transaction.getSeller());
+        out.writeLong(transaction.getTimestamp().getTime());
+        out.writeLong(transaction.getSequence());
+        out.writeBoolean(transaction.isRefund());
+    }
+
+    private static Transaction readTransaction(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        int itemId = in.readInt();
+        long amount = in.readLong();
+        String buyer = readString(in);
+        String seller = readString(in);
+        Transaction transaction = new Transaction(id, itemId, amount, buyer, seller, new Date(in.readLong()));
+        transaction.setSequence(in.readLong());
+        transaction.setRefund(in.readBoolean());
+        return transaction;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        // Frames are decoded from memory, so a valid length never exceeds what is left
+        if (length < 0 || length > in.available()) {
+            throw new StreamCorruptedException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Buffer for one frame; the length prefix is filled in by toByteArray.
+     */
+    private static final class FrameWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        FrameWriter() throws IOException {
+            out.writeInt(0);
+        }
+
+        int length() {
+            return bytes.size() - 4;
+        }
+
+        byte[] toByteArray() {
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+    }
+}
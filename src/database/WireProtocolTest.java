@@ -0,0 +1,232 @@
+package database;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+
+public class WireProtocolTest {
+    /**
+     * Strips the length prefix of an encoded frame, as readFrame does.
+     */
+    private byte[] body(byte[] frame) throws IOException {
+        return WireProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+
+    @Test
+    public void testRequestsRoundTrip() throws IOException {
+        WireProtocol.Request login = WireProtocol.decodeRequest(body(WireProtocol.encodeRequest("LOGIN", "alice", "p\u00e4ssword")));
+        assertEquals("Command should survive encoding", "LOGIN", login.getCommand());
+        assertArrayEquals("Arguments should survive encoding", new Object[] {"alice", "p\u00e4ssword"}, login.getArguments());
+
+        WireProtocol.Request addItem = WireProtocol.decodeRequest(
+            body(WireProtocol.encodeRequest("ADD_ITEM", "Lamp", "", 12.5)));
+        assertArrayEquals("Doubles and empty strings should survive encoding",
+            new Object[] {"Lamp", "", 12.5}, addItem.getArguments());
+
+        WireProtocol.Request message = WireProtocol.decodeRequest(
+            body(WireProtocol.encodeRequest("SEND_MESSAGE", "bob", "Hi", 7)));
+        assertArrayEquals("Integers should survive encoding", new Object[] {"bob", "Hi", 7}, message.getArguments());
+
+        WireProtocol.Request since = WireProtocol.decodeRequest(
+            body(WireProtocol.encodeRequest("GET_MESSAGES_SINCE", 5000000000L, 50)));
+        assertArrayEquals("Longs should survive encoding", new Object[] {5000000000L, 50}, since.getArguments());
+
+        WireProtocol.Request sale = WireProtocol.decodeRequest(
+            body(WireProtocol.encodeRequest("SHARD_SELL_ITEM", "secret", 1L << 40, 3, "bob", "alice", 1999L)));
+        assertEquals("Cross-shard amounts should stay in cents", 1999L, sale.getArguments()[5]);
+
+        WireProtocol.Request exit = WireProtocol.decodeRequest(body(WireProtocol.encodeRequest("EXIT")));
+        assertEquals("Commands without arguments should be encoded", "EXIT", exit.getCommand());
+        assertEquals("Commands without arguments should have none", 0, exit.getArguments().length);
+    }
+
+    @Test
+    public void testUnknownOpcodeDecodesToUnknownCommand() throws IOException {
+        WireProtocol.Request request = WireProtocol.decodeRequest(new byte[] {(byte) 200, 1, 2, 3});
+        assertEquals("Unknown opcodes should give an unknown command", "", request.getCommand());
+    }
+
+    @Test
+    public void testRepliesRoundTrip() throws IOException {
+        TransactionResult result = (TransactionResult) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("ADD_ITEM", new TransactionResult(true, "Item added", 42))));
+        assertTrue("Success flag should survive encoding", result.isSuccess());
+        assertEquals("Message should survive encoding", "Item added", result.getMessage());
+        assertEquals("Item ID should survive encoding", 42, result.getItemId());
+
+        assertEquals("Balance should survive encoding", 87.25,
+            (Double) WireProtocol.decodeReply(body(WireProtocol.encodeReply("GET_BALANCE", 87.25))), 0.0);
+        assertEquals("Prices should be sent as exact cents", 0.3, ((Item) ((List<?>) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("SEARCH_ITEMS", Collections.singletonList(new Item("Pen", "", 0.1 + 0.2, "bob"))))))
+            .get(0)).getPrice(), 0.0);
+
+        Item item = new Item("Chair", "Oak chair", 40.0, "bob");
+        item.setId(9);
+        item.setSold(true);
+        List<?> items = (List<?>) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("SEARCH_ITEMS", Collections.singletonList(item))));
+        Item decodedItem = (Item) items.get(0);
+        assertEquals("Item ID should survive encoding", 9, decodedItem.getId());
+        assertEquals("Item title should survive encoding", "Chair", decodedItem.getTitle());
+        assertEquals("Item price should survive encoding", 40.0, decodedItem.getPrice(), 0.0);
+        assertEquals("Item seller should survive encoding", "bob", decodedItem.getSeller());
+        assertTrue("Sold flag should survive encoding", decodedItem.isSold());
+
+        Message message = new Message("alice", "bob", "Still available?", 9);
+        Message decodedMessage = (Message) ((List<?>) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("GET_MESSAGES", Collections.singletonList(message))))).get(0);
+        assertEquals("Message content should survive encoding", "Still available?", decodedMessage.getContent());
+        assertEquals("Message timestamp should survive encoding", message.getTimestamp(), decodedMessage.getTimestamp());
+        message.setSequence(31);
+        decodedMessage = (Message) ((List<?>) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("GET_MESSAGES_SINCE", Collections.singletonList(message))))).get(0);
+        assertEquals("Message sequence should survive encoding", 31, decodedMessage.getSequence());
+
+        Transaction transaction = new Transaction(5, 9, 40.0, "alice", "bob");
+        Transaction decodedTransaction = (Transaction) ((List<?>) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("GET_TRANSACTIONS", Collections.singletonList(transaction))))).get(0);
+        assertEquals("Transaction ID should survive encoding", 5, decodedTransaction.getId());
+        assertEquals("Transaction buyer should survive encoding", "alice", decodedTransaction.getBuyer());
+        assertEquals("Transaction timestamp should survive encoding",
+            transaction.getTimestamp(), decodedTransaction.getTimestamp());
+        transaction.setSequence(8);
+        decodedTransaction = (Transaction) ((List<?>) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("GET_TRANSACTIONS_SINCE", Collections.singletonList(transaction))))).get(0);
+        assertEquals("Transaction sequence should survive encoding", 8, decodedTransaction.getSequence());
+        assertFalse("Purchase should not decode as a refund", decodedTransaction.isRefund());
+        transaction.setRefund(true);
+        decodedTransaction = (Transaction) ((List<?>) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("GET_TRANSACTIONS", Collections.singletonList(transaction))))).get(0);
+        assertTrue("Refund flag should survive encoding", decodedTransaction.isRefund());
+
+        SearchPage page = (SearchPage) WireProtocol.decodeReply(body(WireProtocol.encodeReply("SEARCH_ITEMS_PAGE",
+            new SearchPage(Collections.singletonList(item), "next"))));
+        assertEquals("Page items should survive encoding", 9, page.getItems().get(0).getId());
+        assertEquals("Page token should survive encoding", "next", page.getNextPageToken());
+        assertEquals("Catalog version should survive encoding", 77L, ((SearchPage) WireProtocol.decodeReply(body(
+            WireProtocol.encodeReply("SEARCH_ITEMS_PAGE", new SearchPage(new ArrayList<Item>(), null, 77))))).getCatalogVersion());
+        assertTrue("Not modified replies should survive encoding", ((SearchPage) WireProtocol.decodeReply(body(
+            WireProtocol.encodeReply("SEARCH_ITEMS_PAGE", SearchPage.notModified(77))))).isNotModified());
+        item.setVersion(12);
+        page = (SearchPage) WireProtocol.decodeReply(body(WireProtocol.encodeReply("SEARCH_ITEMS_PAGE",
+            new SearchPage(Arrays.asList(item, Item.placeholder(4, 11)), null, 12))));
+        assertEquals("Item version should survive encoding", 12, page.getItems().get(0).getVersion());
+        assertFalse("Full items should not become placeholders", page.getItems().get(0).isPlaceholder());
+        assertTrue("Placeholders should survive encoding", page.getItems().get(1).isPlaceholder());
+        assertEquals("Placeholder ID should survive encoding", 4, page.getItems().get(1).getId());
+        assertEquals("Placeholder version should survive encoding", 11, page.getItems().get(1).getVersion());
+        assertFalse("Last page should survive encoding", ((SearchPage) WireProtocol.decodeReply(body(
+            WireProtocol.encodeReply("SEARCH_ITEMS_PAGE", new SearchPage(new ArrayList<Item>(), null))))).hasNextPage());
+
+        assertTrue("Empty lists should survive encoding", ((List<?>) WireProtocol.decodeReply(
+            body(WireProtocol.encodeReply("GET_MESSAGES", new ArrayList<Message>())))).isEmpty());
+    }
+
+    @Test
+    public void testSmallerThanJavaSerialization() throws IOException {
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Item item = new Item("Item " + i, "Description of item " + i, i, "seller");
+            item.setId(i);
+            items.add(item);
+        }
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(serialized);
+        oos.writeObject(items);
+        oos.flush();
+
+        int binary = WireProtocol.encodeReply("SEARCH_ITEMS", items).length;
+        assertTrue("Binary reply (" + binary + " bytes) should be smaller than serialized (" +
+            serialized.size() + " bytes)", binary < serialized.size());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testOversizedFrameIsRejected() throws IOException {
+        byte[] frame = {0x7F, 0x00, 0x00, 0x00};
+        WireProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+
+    @Test
+    public void testOversizedListRepliesAreCutToFit() throws IOException {
+        char[] filler = new char[100000];
+        Arrays.fill(filler, 'x');
+        String description = new String(filler);
+        List<Item> items = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Item item = new Item("Item " + i, description, i, "seller");
+            item.setId(i);
+            items.add(item);
+            messages.add(new Message("bob", "alice", i + description, i));
+        }
+
+        byte[] frame = WireProtocol.encodeReply("SEARCH_ITEMS", items);
+        List<?> decoded = (List<?>) WireProtocol.readReply(new DataInputStream(new ByteArrayInputStream(frame)));
+        assertTrue("Cut reply should not be empty", decoded.size() > 0);
+        assertTrue("Reply larger than a frame should be cut", decoded.size() < items.size());
+        assertEquals("Items should be cut from the end", 0, ((Item) decoded.get(0)).getId());
+
+        frame = WireProtocol.encodeTaggedReply(9, "GET_MESSAGES", messages);
+        assertTrue("Cut reply should fit in a frame", frame.length - 4 <= WireProtocol.MAX_FRAME_LENGTH);
+        decoded = (List<?>) WireProtocol.decodeTaggedReply(body(frame));
+        assertTrue("History larger than a frame should be cut", decoded.size() < messages.size());
+        assertEquals("Newest message should be kept", 199, ((Message) decoded.get(decoded.size() - 1)).getItemId());
+    }
+
+    @Test
+    public void testOversizedReplyBecomesFailure() throws IOException {
+        char[] filler = new char[WireProtocol.MAX_FRAME_LENGTH];
+        Arrays.fill(filler, 'x');
+        Item item = new Item("Huge", new String(filler), 1.0, "seller");
+        byte[] frame = WireProtocol.encodeTaggedReply(3, "SEARCH_ITEMS_PAGE",
+            new SearchPage(Collections.singletonList(item), null));
+        byte[] contents = WireProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(frame)));
+        assertEquals("Failure should answer the same request", 3, WireProtocol.requestIdOf(contents));
+        TransactionResult result = (TransactionResult) WireProtocol.decodeTaggedReply(contents);
+        assertFalse("Reply too large for a frame should become a failure", result.isSuccess());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testInvalidStringLengthIsRejected() throws IOException {
+        // LOGIN with a username claiming to be 1000 bytes long
+        byte[] body = {1, 0, 0, 0x03, (byte) 0xE8, 'a'};
+        WireProtocol.decodeRequest(body);
+    }
+
+    @Test
+    public void testTaggedFramesCarryRequestId() throws IOException {
+        byte[] requestFrame = body(WireProtocol.encodeTaggedRequest(77, "BUY_ITEM", 12));
+        assertEquals("Request ID should be readable", 77, WireProtocol.requestIdOf(requestFrame));
+        WireProtocol.Request request = WireProtocol.decodeTaggedRequest(requestFrame);
+        assertEquals("Request ID should survive encoding", 77, request.getRequestId());
+        assertEquals("Command should survive encoding", "BUY_ITEM", request.getCommand());
+        assertArrayEquals("Arguments should survive encoding", new Object[] {12}, request.getArguments());
+
+        byte[] replyFrame = body(WireProtocol.encodeTaggedReply(-5, "GET_BALANCE", 12.0));
+        assertEquals("Reply should carry the request ID", -5, WireProtocol.requestIdOf(replyFrame));
+        assertEquals("Reply should survive encoding", 12.0, (Double) WireProtocol.decodeTaggedReply(replyFrame), 0.0);
+    }
+
+    @Test
+    public void testEventsRoundTrip() throws IOException {
+        Message message = new Message("bob", "alice", "Sold yet?", 3);
+        byte[] frame = body(WireProtocol.encodeEvent(MarketplaceEvent.messageReceived(message)));
+        assertEquals("Events should use the reserved request ID",
+                     WireProtocol.EVENT_REQUEST_ID, WireProtocol.requestIdOf(frame));
+        MarketplaceEvent event = (MarketplaceEvent) WireProtocol.decodeTaggedReply(frame);
+        assertEquals("Event type should survive encoding", MarketplaceEvent.Type.MESSAGE_RECEIVED, event.getType());
+        assertEquals("Event message should survive encoding", "Sold yet?", event.getMessage().getContent());
+
+        Transaction transaction = new Transaction(4, 3, 25.0, "bob", "alice");
+        event = (MarketplaceEvent) WireProtocol.decodeTaggedReply(
+            body(WireProtocol.encodeEvent(MarketplaceEvent.itemSold(transaction))));
+        assertEquals("Event type should survive encoding", MarketplaceEvent.Type.ITEM_SOLD, event.getType());
+        assertEquals("Event transaction should survive encoding", 4, event.getTransaction().getId());
+
+        event = (MarketplaceEvent) WireProtocol.decodeTaggedReply(
+            body(WireProtocol.encodeEvent(MarketplaceEvent.balanceChanged(75.5))));
+        assertEquals("Event type should survive encoding", MarketplaceEvent.Type.BALANCE_CHANGED, event.getType());
+        assertEquals("Event balance should survive encoding", 75.5, event.getBalance(), 0.0);
+    }
+}
@@ -1,5 +1,6 @@
 package gui;
 
+import client.AsyncMarketplaceClient;
 import client.MarketplaceClient;
 import database.Transaction;
 import database.TransactionResult;
@@ -9,6 +10,7 @@ import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * AccountPanel class
@@ -16,6 +18,7 @@ import java.util.List;
  * This class implements the account panel for the Marketplace client.
  * It handles displaying user account information, transaction history,
  * and account management functionality like balance updates and deletion.
+ * Balance and transactions are loaded in the background, both at once.
  * 
  * @author L10-Team1 
  *
@@ -32,9 +35,12 @@ public class AccountPanel implements AccountPanelInterface {
     private DefaultTableModel tableModel;
     
     private MarketplaceClient client;
+    private AsyncMarketplaceClient asyncClient; // Loads data without blocking the event dispatch thread
     private AccountCallback callback;
     private SimpleDateFormat dateFormat;
     private double currentBalance;
+    private int loadGeneration; // Number of the latest load; older results are ignored
+    private boolean loading; // The latest load has not arrived yet
     
     /**
      * Constructor for AccountPanel
@@ -42,6 +48,7 @@ public class AccountPanel implements AccountPanelInterface {
      */
     public AccountPanel(MarketplaceClient client) {
         this.client = client;
+        this.asyncClient = new AsyncMarketplaceClient(client);
         this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         initializeUI();
     }
@@ -130,37 +137,104 @@ public class AccountPanel implements AccountPanelInterface {
      */
     @Override
     public void refreshAccountData() {
-        // Update balance
-        currentBalance = client.getBalance();
-        balanceLabel.setText(String.format("Current Balance: $%.2f", currentBalance));
-        
+        int generation = ++loadGeneration;
+        loading = true;
+        CompletableFuture<Double> balance = asyncClient.getBalance();
+        CompletableFuture<List<Transaction>> transactions = asyncClient.getTransactions();
+        CompletableFuture.allOf(balance, transactions).whenComplete((done, error) -> SwingUtilities.invokeLater(() -> {
+            if (generation != loadGeneration) {
+                return;
+            }
+            loading = false;
+            if (error != null) {
+                System.err.println("Error loading account data: " + error.getMessage());
+                return;
+            }
+            showAccountData(balance.join(), transactions.join());
+        }));
+    }
+    
+    /**
+     * Show loaded account data
+     * @param balance The user's balance
+     * @param transactions The user's transactions
+     */
+    private void showAccountData(double balance, List<Transaction> transactions) {
         // Update transactions table
         tableModel.setRowCount(0);
         
-        List<Transaction> transactions = client.getTransactions();
         for (Transaction transaction : transactions) {
-            String type;
-            if (transaction.getBuyer().equals(client.getLoggedInUser())) {
-                type = "Purchase from " + transaction.getSeller();
-            } else {
-                type = "Sale to " + transaction.getBuyer();
-            }
-            
-            tableModel.addRow(new Object[]{
-                transaction.getId(),
-                transaction.getItemId(),
-                type,
-                transaction.getAmount(),
-                dateFormat.format(transaction.getTimestamp())
-            });
+            addTransactionRow(transaction);
         }
         
+        showBalance(balance);
+    }
+    
+    /**
+     * Show a balance and notify the callback
+     * @param balance The user's balance
+     */
+    private void showBalance(double balance) {
+        currentBalance = balance;
+        balanceLabel.setText(String.format("Current Balance: $%.2f", currentBalance));
+        
         // Notify callback if balance has changed
         if (callback != null) {
             callback.onBalanceChanged(currentBalance);
         }
     }
     
+    /**
+     * Add one transaction to the end of the table
+     * @param transaction The transaction
+     */
+    private void addTransactionRow(Transaction transaction) {
+        String type;
+        if (transaction.isRefund()) {
+            type = "Refund from " + transaction.getSeller();
+        } else if (transaction.getBuyer().equals(client.getLoggedInUser())) {
+            type = "Purchase from " + transaction.getSeller();
+        } else {
+            type = "Sale to " + transaction.getBuyer();
+        }
+        
+        tableModel.addRow(new Object[]{
+            transaction.getId(),
+            transaction.getItemId(),
+            type,
+            transaction.getAmount(),
+            dateFormat.format(transaction.getTimestamp())
+        });
+    }
+    
+    /**
+     * Show a balance pushed by the server
+     * @param balance The new balance
+     */
+    @Override
+    public void setBalance(double balance) {
+        if (loading) {
+            // The pending load may predate the change
+            refreshAccountData();
+            return;
+        }
+        showBalance(balance);
+    }
+    
+    /**
+     * Add a transaction pushed by the server without reloading the others
+     * @param transaction The new transaction
+     */
+    @Override
+    public void addTransaction(Transaction transaction) {
+        if (loading) {
+            // The pending load may predate the transaction
+            refreshAccountData();
+            return;
+        }
+        addTransactionRow(transaction);
+    }
+    
     /**
      * Get the current user's balance
      * @return User balance
@@ -1,6 +1,7 @@
 package gui;
 
 import javax.swing.JPanel;
+import database.Transaction;
 
 /**
  * AccountPanelInterface
@@ -30,6 +31,18 @@ public interface AccountPanelInterface {
      */
     double getBalance();
     
+    /**
+     * Show a balance pushed by the server
+     * @param balance The new balance
+     */
+    void setBalance(double balance);
+    
+    /**
+     * Add a transaction pushed by the server without reloading the others
+     * @param transaction The new transaction
+     */
+    void addTransaction(Transaction transaction);
+    
     /**
      * Delete the user's account after confirmation
      * @return true if account deleted successfully, false otherwise
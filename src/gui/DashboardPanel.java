@@ -1,6 +1,10 @@
 package gui;
 
+import client.AsyncMarketplaceClient;
 import client.MarketplaceClient;
+import client.MarketplaceEventListener;
+import database.Message;
+import database.Transaction;
 
 import javax.swing.*;
 import java.awt.*;
@@ -11,6 +15,8 @@ import java.awt.*;
  * This class implements the main dashboard panel for the Marketplace client.
  * It contains tabs for different functionality areas such as marketplace,
  * user items, messages, and account management.
+ * When the server supports events, new messages, sales and balance changes are
+ * added to the panels as they happen; otherwise every tab is reloaded whenever it is opened.
  * 
  * @author L10-Team1 
  *
@@ -30,6 +36,7 @@ public class DashboardPanel implements DashboardPanelInterface {
     
     private MarketplaceClient client;
     private DashboardPanelInterface.DashboardCallback callback;
+    private volatile boolean liveUpdates; // Server pushes events, so tabs need no reload when opened
     
     // Tab indices
     public static final int MARKETPLACE_TAB = 0;
@@ -106,9 +113,36 @@ public class DashboardPanel implements DashboardPanelInterface {
         mainPanel.add(headerPanel, BorderLayout.NORTH);
         mainPanel.add(tabbedPane, BorderLayout.CENTER);
         
+        // Apply events pushed by the server on the event dispatch thread
+        client.addEventListener(new MarketplaceEventListener() {
+            @Override
+            public void onMessageReceived(Message message) {
+                SwingUtilities.invokeLater(() -> messagesPanel.addMessage(message));
+            }
+            
+            @Override
+            public void onItemSold(Transaction transaction) {
+                SwingUtilities.invokeLater(() -> {
+                    marketplacePanel.markItemSold(transaction.getItemId());
+                    myItemsPanel.markItemSold(transaction.getItemId());
+                    accountPanel.addTransaction(transaction);
+                });
+            }
+            
+            @Override
+            public void onBalanceChanged(double balance) {
+                SwingUtilities.invokeLater(() -> accountPanel.setBalance(balance));
+            }
+        });
+        new AsyncMarketplaceClient(client).subscribe().thenAccept(result -> liveUpdates = result.isSuccess());
+        
         // Add listener for tab changes to refresh data
         tabbedPane.addChangeListener(e -> {
             int selectedIndex = tabbedPane.getSelectedIndex();
+            if (liveUpdates && selectedIndex != MARKETPLACE_TAB) {
+                // Kept current by events; new listings of other users are not pushed
+                return;
+            }
             switch (selectedIndex) {
                 case MARKETPLACE_TAB:
                     marketplacePanel.refreshItems();
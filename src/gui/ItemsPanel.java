@@ -1,19 +1,24 @@
 package gui;
 
+import client.AsyncMarketplaceClient;
 import client.MarketplaceClient;
 import database.Item;
+import database.SearchPage;
 import database.TransactionResult;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * ItemsPanel class
  *
  * This class implements the items panel for the Marketplace client.
  * It handles displaying, searching, adding, and managing marketplace items.
+ * Items are loaded in the background so the window stays responsive.
+ * The marketplace listing is fetched a page at a time in the chosen order.
  * 
  * @author L10-Team1 
  *
@@ -21,6 +26,7 @@ import java.util.List;
  *
  */
 public class ItemsPanel implements ItemsPanelInterface {
+    private static final int PAGE_SIZE = 50; // Items fetched per page of the marketplace listing
     
     private JPanel mainPanel;
     private JTextField searchField;
@@ -31,9 +37,17 @@ public class ItemsPanel implements ItemsPanelInterface {
     private DefaultTableModel tableModel;
     private JButton buyButton;
     private JButton deleteButton;
+    private JComboBox<SearchPage.Order> orderBox; // Marketplace listing order
+    private JButton moreButton; // Loads the next page of the marketplace listing
     
     private MarketplaceClient client;
+    private AsyncMarketplaceClient asyncClient; // Loads items without blocking the event dispatch thread
     private boolean myItemsMode;
+    private int loadGeneration; // Number of the latest load; older results are ignored
+    private boolean loading; // The latest load has not arrived yet
+    private Runnable lastLoad = this::refreshItems; // Repeats the latest load
+    private String currentQuery = ""; // Query of the marketplace pages shown
+    private String nextPageToken; // Continues the marketplace listing, null once every page is shown
     
     /**
      * Constructor for ItemsPanel
@@ -42,6 +56,7 @@ public class ItemsPanel implements ItemsPanelInterface {
      */
     public ItemsPanel(MarketplaceClient client, boolean myItemsMode) {
         this.client = client;
+        this.asyncClient = new AsyncMarketplaceClient(client);
         this.myItemsMode = myItemsMode;
         initializeUI();
     }
@@ -62,6 +77,13 @@ public class ItemsPanel implements ItemsPanelInterface {
         searchPanel.add(searchField);
         searchPanel.add(searchButton);
         
+        if (!myItemsMode) {
+            orderBox = new JComboBox<>(SearchPage.Order.values());
+            orderBox.addActionListener(e -> lastLoad.run());
+            searchPanel.add(new JLabel("Sort: "));
+            searchPanel.add(orderBox);
+        }
+        
         // Create button panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         
@@ -101,7 +123,12 @@ public class ItemsPanel implements ItemsPanelInterface {
                 }
             });
             
+            moreButton = new JButton("Load More");
+            moreButton.setEnabled(false);
+            moreButton.addActionListener(e -> loadPage(nextPageToken));
+            
             buttonPanel.add(buyButton);
+            buttonPanel.add(moreButton);
         }
         
         buttonPanel.add(refreshButton);
@@ -163,32 +190,14 @@ public class ItemsPanel implements ItemsPanelInterface {
      */
     @Override
     public void refreshItems() {
-        // Clear table
-        tableModel.setRowCount(0);
-        
-        // Load items
+        lastLoad = this::refreshItems;
         if (myItemsMode) {
             // Get user's items
-            List<Item> items = client.getUserItems();
-            for (Item item : items) {
-                tableModel.addRow(new Object[]{
-                    item.getId(),
-                    item.getTitle(),
-                    item.getPrice(),
-                    item.isSold()
-                });
-            }
+            loadItems(asyncClient.getUserItems(), "");
         } else {
-            // Get all items (using empty search query)
-            List<Item> items = client.searchItems("");
-            for (Item item : items) {
-                tableModel.addRow(new Object[]{
-                    item.getId(),
-                    item.getTitle(),
-                    item.getPrice(),
-                    item.getSeller()
-                });
-            }
+            // Get the first page of all items (using empty search query)
+            currentQuery = "";
+            loadPage(null);
         }
     }
     
@@ -198,37 +207,113 @@ public class ItemsPanel implements ItemsPanelInterface {
      */
     @Override
     public void searchItems(String query) {
-        // Clear table
-        tableModel.setRowCount(0);
-        
+        lastLoad = () -> searchItems(query);
         if (myItemsMode) {
             // Get user's items and filter locally
-            List<Item> items = client.getUserItems();
-            String lowerQuery = query.toLowerCase();
-            
-            for (Item item : items) {
-                if (item.getTitle().toLowerCase().contains(lowerQuery) || 
-                    item.getDescription().toLowerCase().contains(lowerQuery)) {
-                    
-                    tableModel.addRow(new Object[]{
-                        item.getId(),
-                        item.getTitle(),
-                        item.getPrice(),
-                        item.isSold()
-                    });
-                }
-            }
+            loadItems(asyncClient.getUserItems(), query);
         } else {
             // Search server-side
-            List<Item> items = client.searchItems(query);
+            currentQuery = query;
+            loadPage(null);
+        }
+    }
+    
+    /**
+     * Fill the table once items arrive, unless a newer load has been started since
+     * @param request The pending items
+     * @param filter Text the title or description must contain, empty for all items
+     */
+    private void loadItems(CompletableFuture<List<Item>> request, String filter) {
+        int generation = ++loadGeneration;
+        loading = true;
+        String lowerFilter = filter.toLowerCase();
+        request.whenComplete((items, error) -> SwingUtilities.invokeLater(() -> {
+            if (generation != loadGeneration) {
+                return;
+            }
+            loading = false;
+            // Clear table
+            tableModel.setRowCount(0);
+            if (error != null) {
+                System.err.println("Error loading items: " + error.getMessage());
+                return;
+            }
             
             for (Item item : items) {
-                tableModel.addRow(new Object[]{
-                    item.getId(),
-                    item.getTitle(),
-                    item.getPrice(),
-                    item.getSeller()
-                });
+                if (!item.getTitle().toLowerCase().contains(lowerFilter) &&
+                    !item.getDescription().toLowerCase().contains(lowerFilter)) {
+                    continue;
+                }
+                addItemRow(item);
+            }
+        }));
+    }
+    
+    /**
+     * Load a page of the marketplace listing for the current query and order
+     * @param pageToken Token of the previous page to append to, or null to start over
+     */
+    private void loadPage(String pageToken) {
+        int generation = ++loadGeneration;
+        loading = true;
+        SearchPage.Order order = (SearchPage.Order) orderBox.getSelectedItem();
+        asyncClient.searchItems(currentQuery, order, pageToken, PAGE_SIZE).whenComplete((page, error) ->
+            SwingUtilities.invokeLater(() -> {
+                if (generation != loadGeneration) {
+                    return;
+                }
+                loading = false;
+                if (pageToken == null) {
+                    tableModel.setRowCount(0);
+                }
+                if (error != null) {
+                    System.err.println("Error loading items: " + error.getMessage());
+                    nextPageToken = null;
+                    moreButton.setEnabled(false);
+                    return;
+                }
+                
+                for (Item item : page.getItems()) {
+                    addItemRow(item);
+                }
+                nextPageToken = page.getNextPageToken();
+                moreButton.setEnabled(page.hasNextPage());
+            }));
+    }
+    
+    /**
+     * Add one item to the end of the table
+     * @param item The item
+     */
+    private void addItemRow(Item item) {
+        tableModel.addRow(new Object[]{
+            item.getId(),
+            item.getTitle(),
+            item.getPrice(),
+            myItemsMode ? item.isSold() : item.getSeller()
+        });
+    }
+    
+    /**
+     * Update the list for an item sold, as pushed by the server
+     * @param itemId ID of the sold item
+     */
+    @Override
+    public void markItemSold(int itemId) {
+        if (loading) {
+            // The pending load may predate the sale
+            lastLoad.run();
+            return;
+        }
+        for (int row = 0; row < tableModel.getRowCount(); row++) {
+            if ((int) tableModel.getValueAt(row, 0) == itemId) {
+                if (myItemsMode) {
+                    tableModel.setValueAt(true, row, 3);
+                } else {
+                    // Sold items are no longer for sale
+                    tableModel.removeRow(row);
+                }
+                return;
             }
         }
     }
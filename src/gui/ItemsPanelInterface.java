@@ -31,6 +31,12 @@ public interface ItemsPanelInterface {
      */
     void searchItems(String query);
     
+    /**
+     * Update the list for an item sold, as pushed by the server
+     * @param itemId ID of the sold item
+     */
+    void markItemSold(int itemId);
+    
     /**
      * Add a new item to the marketplace
      * @param title Item title
@@ -1,5 +1,6 @@
 package gui;
 
+import client.AsyncMarketplaceClient;
 import client.MarketplaceClient;
 import database.Message;
 import database.TransactionResult;
@@ -8,6 +9,7 @@ import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -15,6 +17,9 @@ import java.util.List;
  *
  * This class implements the messages panel for the Marketplace client.
  * It handles viewing and sending messages between users.
+ * Messages are loaded in the background so the window stays responsive.
+ * Only messages newer than the last one shown are fetched, so a refresh costs
+ * as much as what arrived since the previous one.
  * 
  * @author L10-Team1 
  *
@@ -22,6 +27,7 @@ import java.util.List;
  *
  */
 public class MessagesPanel implements MessagesPanelInterface {
+    private static final int PAGE_SIZE = 100; // Messages fetched per request
     
     private JPanel mainPanel;
     private JTable messagesTable;
@@ -31,7 +37,12 @@ public class MessagesPanel implements MessagesPanelInterface {
     private JButton viewButton;
     
     private MarketplaceClient client;
+    private AsyncMarketplaceClient asyncClient; // Loads messages without blocking the event dispatch thread
     private SimpleDateFormat dateFormat;
+    private int loadGeneration; // Number of the latest load; older results are ignored
+    private boolean loading; // The latest load has not arrived yet
+    private final List<Message> shownMessages = new ArrayList<>(); // One per table row, in row order
+    private long lastSequence; // Sequence number of the newest message shown
     
     /**
      * Constructor for MessagesPanel
@@ -39,6 +50,7 @@ public class MessagesPanel implements MessagesPanelInterface {
      */
     public MessagesPanel(MarketplaceClient client) {
         this.client = client;
+        this.asyncClient = new AsyncMarketplaceClient(client);
         this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         initializeUI();
     }
@@ -117,25 +129,72 @@ public class MessagesPanel implements MessagesPanelInterface {
      */
     @Override
     public void refreshMessages() {
-        // Clear table
-        tableModel.setRowCount(0);
+        int generation = ++loadGeneration;
+        loading = true;
+        loadMessagesAfter(lastSequence, generation);
+    }
+    
+    /**
+     * Add a message pushed by the server without reloading the others
+     * @param message The new message
+     */
+    @Override
+    public void addMessage(Message message) {
+        // Events for messages sent at the same moment may arrive out of order, so fetch
+        // everything after the newest message shown; usually that is just this one
+        refreshMessages();
+    }
+    
+    /**
+     * Fetch one page of messages newer than a sequence number, and the pages after it
+     * @param afterSequence Sequence number of the newest message shown
+     * @param generation Number of the load the page belongs to
+     */
+    private void loadMessagesAfter(long afterSequence, int generation) {
+        asyncClient.getMessagesSince(afterSequence, PAGE_SIZE).whenComplete((messages, error) ->
+            SwingUtilities.invokeLater(() -> {
+                if (generation != loadGeneration) {
+                    return;
+                }
+                if (error != null) {
+                    loading = false;
+                    System.err.println("Error loading messages: " + error.getMessage());
+                    return;
+                }
+                for (Message message : messages) {
+                    addMessageRow(message);
+                }
+                if (messages.size() == PAGE_SIZE) {
+                    loadMessagesAfter(lastSequence, generation);
+                } else {
+                    loading = false;
+                }
+            }));
+    }
+    
+    /**
+     * Add one message to the end of the table unless it is already shown
+     * @param message The message
+     */
+    private void addMessageRow(Message message) {
+        if (message.getSequence() <= lastSequence) {
+            return;
+        }
+        shownMessages.add(message);
+        lastSequence = message.getSequence();
         
-        // Load messages
-        List<Message> messages = client.getMessages();
-        for (Message message : messages) {
-            String preview = message.getContent();
-            if (preview.length() > 30) {
-                preview = preview.substring(0, 27) + "...";
-            }
-            
-            tableModel.addRow(new Object[]{
-                message.getSender(),
-                message.getRecipient(),
-                preview,
-                dateFormat.format(message.getTimestamp()),
-                message.getItemId()
-            });
+        String preview = message.getContent();
+        if (preview.length() > 30) {
+            preview = preview.substring(0, 27) + "...";
         }
+        
+        tableModel.addRow(new Object[]{
+            message.getSender(),
+            message.getRecipient(),
+            preview,
+            dateFormat.format(message.getTimestamp()),
+            message.getItemId()
+        });
     }
     
     /**
@@ -143,10 +202,9 @@ public class MessagesPanel implements MessagesPanelInterface {
      * @param rowIndex Row index in table
      */
     private void showMessageDetails(int rowIndex) {
-        List<Message> messages = client.getMessages();
-        if (rowIndex < 0 || rowIndex >= messages.size()) return;
+        if (rowIndex < 0 || rowIndex >= shownMessages.size()) return;
         
-        Message message = messages.get(rowIndex);
+        Message message = shownMessages.get(rowIndex);
         
         JPanel panel = new JPanel(new BorderLayout());
         panel.setPreferredSize(new Dimension(400, 300));
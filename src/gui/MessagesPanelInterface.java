@@ -1,6 +1,7 @@
 package gui;
 
 import javax.swing.JPanel;
+import database.Message;
 
 /**
  * MessagesPanelInterface
@@ -24,6 +25,12 @@ public interface MessagesPanelInterface {
      */
     void refreshMessages();
     
+    /**
+     * Add a message pushed by the server without reloading the others
+     * @param message The new message
+     */
+    void addMessage(Message message);
+    
     /**
      * Send a new message
      * @param recipient Username of message recipient
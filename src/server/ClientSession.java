@@ -0,0 +1,118 @@
+package server;
+import java.util.function.Consumer;
+import database.MarketplaceEvent;
+
+/**
+ * ClientSession class
+ *
+ * Holds the state of one client connection between commands, such as the logged in user.
+ * Every server engine keeps one session per connection and passes it to
+ * MarketplaceServer.executeCommand, so the commands behave the same in all engines.
+ * Connections that can carry pushed events give their session an event sink.
+ * In a sharded marketplace a user logged in on another shard's node has a connection to that
+ * shard, which the user's commands are forwarded over.
+ * On a replica the session also holds how old the data it reads may be.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class ClientSession {
+    private volatile String currentUser; // Logged in username, null if not logged in
+    private volatile Consumer<MarketplaceEvent> eventSink; // Sends an event to the client, null if it cannot
+    private boolean subscribed; // Registered with the EventHub, guarded by the session
+    private volatile ShardRouter.Connection homeShard; // Connection to the user's shard if it is another one
+    private volatile long maxStalenessMillis = Long.MAX_VALUE; // Oldest data a replica may serve, unbounded by default
+
+    /**
+     * Returns the logged in username
+     * @return username, or null if not logged in
+     */
+    String getCurrentUser() {
+        return currentUser;
+    }
+
+    /**
+     * Sets the logged in username. Use EventHub.userChanged so subscriptions follow the user.
+     * @param currentUser username, or null to log out
+     */
+    void setCurrentUser(String currentUser) {
+        this.currentUser = currentUser;
+    }
+
+    /**
+     * Sets how events are sent to the client
+     * @param eventSink sends one event without blocking for long, or null if the connection cannot push
+     */
+    void setEventSink(Consumer<MarketplaceEvent> eventSink) {
+        this.eventSink = eventSink;
+    }
+
+    /**
+     * Returns whether events can be sent to the client
+     * @return true if the connection has an event sink
+     */
+    boolean canPush() {
+        return eventSink != null;
+    }
+
+    /**
+     * Sends an event to the client if its connection can carry it
+     * @param event the event
+     */
+    void push(MarketplaceEvent event) {
+        Consumer<MarketplaceEvent> sink = eventSink;
+        if (sink != null) {
+            sink.accept(event);
+        }
+    }
+
+    /**
+     * Returns whether the session is registered with the EventHub. Caller holds the session lock.
+     * @return true if subscribed
+     */
+    boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * Records whether the session is registered with the EventHub. Caller holds the session lock.
+     * @param subscribed true if subscribed
+     */
+    void setSubscribed(boolean subscribed) {
+        this.subscribed = subscribed;
+    }
+
+    /**
+     * Returns the connection to the logged in user's shard
+     * @return the connection, or null if the user lives on this shard or nobody is logged in
+     */
+    ShardRouter.Connection getHomeShard() {
+        return homeShard;
+    }
+
+    /**
+     * Sets the connection to the logged in user's shard
+     * @param homeShard the connection, or null if commands are run on this shard
+     */
+    void setHomeShard(ShardRouter.Connection homeShard) {
+        this.homeShard = homeShard;
+    }
+
+    /**
+     * Returns how old the data a replica serves this session may be
+     * @return milliseconds, Long.MAX_VALUE if unbounded
+     */
+    long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    /**
+     * Sets how old the data a replica serves this session may be
+     * @param maxStalenessMillis milliseconds
+     */
+    void setMaxStalenessMillis(long maxStalenessMillis) {
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+}
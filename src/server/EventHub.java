@@ -0,0 +1,96 @@
+package server;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import database.MarketplaceEvent;
+
+/**
+ * EventHub class
+ *
+ * Tracks which sessions subscribed to events and delivers events to the sessions of a user.
+ * A subscription belongs to the session, not the user: it follows whoever is logged in on it,
+ * so every change of a session's user goes through userChanged.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class EventHub {
+    // Subscribed sessions by logged in username
+    private final Map<String, Set<ClientSession>> subscribersByUser = new ConcurrentHashMap<>();
+
+    /**
+     * Subscribes a session to the events of its user
+     * @param session the session, whose connection must be able to push events
+     */
+    void subscribe(ClientSession session) {
+        synchronized (session) {
+            if (!session.isSubscribed()) {
+                session.setSubscribed(true);
+                add(session.getCurrentUser(), session);
+            }
+        }
+    }
+
+    /**
+     * Ends a session's subscription, for example when its connection closes
+     * @param session the session
+     */
+    void unsubscribe(ClientSession session) {
+        synchronized (session) {
+            if (session.isSubscribed()) {
+                session.setSubscribed(false);
+                remove(session.getCurrentUser(), session);
+            }
+        }
+    }
+
+    /**
+     * Changes the logged in user of a session, moving its subscription along
+     * @param session the session
+     * @param username new username, or null when logging out
+     */
+    void userChanged(ClientSession session, String username) {
+        synchronized (session) {
+            String previous = session.getCurrentUser();
+            session.setCurrentUser(username);
+            if (session.isSubscribed()) {
+                remove(previous, session);
+                add(username, session);
+            }
+        }
+    }
+
+    /**
+     * Sends an event to every subscribed session of a user
+     * @param username the user
+     * @param event the event
+     */
+    void publish(String username, MarketplaceEvent event) {
+        Set<ClientSession> sessions = subscribersByUser.get(username);
+        if (sessions != null) {
+            for (ClientSession session : sessions) {
+                session.push(event);
+            }
+        }
+    }
+
+    private void add(String username, ClientSession session) {
+        if (username != null) {
+            subscribersByUser.compute(username, (key, sessions) -> {
+                Set<ClientSession> set = (sessions != null) ? sessions : ConcurrentHashMap.newKeySet();
+                set.add(session);
+                return set;
+            });
+        }
+    }
+
+    private void remove(String username, ClientSession session) {
+        if (username != null) {
+            subscribersByUser.computeIfPresent(username, (key, sessions) -> {
+                sessions.remove(session);
+                return sessions.isEmpty() ? null : sessions;
+            });
+        }
+    }
+}
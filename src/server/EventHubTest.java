@@ -0,0 +1,77 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.util.*;
+import database.*;
+
+public class EventHubTest {
+    private EventHub hub;
+
+    @Before
+    public void setUp() {
+        hub = new EventHub();
+    }
+
+    private ClientSession sessionCollecting(List<MarketplaceEvent> received) {
+        ClientSession session = new ClientSession();
+        session.setEventSink(received::add);
+        return session;
+    }
+
+    @Test
+    public void testSubscriptionFollowsUser() {
+        List<MarketplaceEvent> received = new ArrayList<>();
+        ClientSession session = sessionCollecting(received);
+
+        // Subscribed before logging in
+        hub.subscribe(session);
+        hub.publish("alice", MarketplaceEvent.balanceChanged(1));
+        assertTrue("Events before login should not arrive", received.isEmpty());
+
+        hub.userChanged(session, "alice");
+        hub.publish("alice", MarketplaceEvent.balanceChanged(2));
+        hub.publish("bob", MarketplaceEvent.balanceChanged(3));
+        assertEquals("Only the logged in user's events should arrive", 1, received.size());
+        assertEquals("Event should be delivered unchanged", 2, received.get(0).getBalance(), 0.0);
+
+        hub.userChanged(session, "bob");
+        hub.publish("alice", MarketplaceEvent.balanceChanged(4));
+        hub.publish("bob", MarketplaceEvent.balanceChanged(5));
+        assertEquals("Subscription should move to the new user", 2, received.size());
+        assertEquals("Subscription should move to the new user", 5, received.get(1).getBalance(), 0.0);
+
+        hub.unsubscribe(session);
+        hub.publish("bob", MarketplaceEvent.balanceChanged(6));
+        assertEquals("Events after unsubscribing should not arrive", 2, received.size());
+    }
+
+    @Test
+    public void testUnsubscribedSessionsGetNothing() {
+        List<MarketplaceEvent> received = new ArrayList<>();
+        ClientSession session = sessionCollecting(received);
+        hub.userChanged(session, "alice");
+        hub.publish("alice", MarketplaceEvent.balanceChanged(1));
+        assertTrue("Sessions that did not subscribe should get no events", received.isEmpty());
+    }
+
+    @Test
+    public void testEverySessionOfUserIsNotified() {
+        List<MarketplaceEvent> first = new ArrayList<>();
+        List<MarketplaceEvent> second = new ArrayList<>();
+        ClientSession firstSession = sessionCollecting(first);
+        ClientSession secondSession = sessionCollecting(second);
+        for (ClientSession session : new ClientSession[] {firstSession, secondSession}) {
+            hub.userChanged(session, "alice");
+            hub.subscribe(session);
+        }
+        hub.publish("alice", MarketplaceEvent.balanceChanged(1));
+        assertEquals("First session should be notified", 1, first.size());
+        assertEquals("Second session should be notified", 1, second.size());
+
+        hub.unsubscribe(firstSession);
+        hub.publish("alice", MarketplaceEvent.balanceChanged(2));
+        assertEquals("Closed session should not be notified", 1, first.size());
+        assertEquals("Open session should still be notified", 2, second.size());
+    }
+}
@@ -2,6 +2,8 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import database.*;
 
 /**
@@ -10,26 +12,132 @@ import database.*;
  * Implements the server-side logic for the marketplace system.
  * Listens for client connections, processes commands, and manages concurrent clients.
  * Handles user authentication, item management, messaging, transactions, and persistence.
+ * A server can also be one shard of a partitioned marketplace (see ShardRouter): a logged in user's
+ * commands are then forwarded to the user's shard, searches are run on every shard and merged, and
+ * purchases and messages between users of different shards are completed with the other shard.
+ * A journaled server can stream its journal to replicas (see ReplicationServer). A replica follows
+ * its primary with a ReplicationClient and only serves logins and reads, refusing reads while its
+ * data is older than the bound the session set with SET_MAX_STALENESS.
  * 
  * @author L10-Team1
  * @version April 2024
  */
 
 public class MarketplaceServer implements MarketplaceServerInterface {
+    private static final int ACCEPT_BACKLOG = 1024; // Pending connections queued by the OS
+    public static final int DEFAULT_POOL_SIZE = 256; // Handler threads in POOL mode
+    static final int MAX_IN_FLIGHT = 64; // Requests of one multiplexed connection running at once
+    public static final int MAX_PAGE_SIZE = 500; // Most entries returned by one *_SINCE or SEARCH_ITEMS_PAGE command
+    
+    /**
+     * How client connections are given threads
+     */
+    public enum HandlerMode {
+        THREAD, // A new platform thread per connection
+        POOL, // A fixed pool of platform threads; further connections wait for a free thread
+        VIRTUAL // A virtual thread per connection (Java 21 and later)
+    }
+    
+    // Number of objects the client sends after each command name; keep in sync with executeCommand
+    private static final Map<String, Integer> COMMAND_ARGUMENTS = new HashMap<>();
+    static {
+        COMMAND_ARGUMENTS.put("LOGIN", 2);
+        COMMAND_ARGUMENTS.put("REGISTER", 2);
+        COMMAND_ARGUMENTS.put("LOGOUT", 0);
+        COMMAND_ARGUMENTS.put("ADD_ITEM", 3);
+        COMMAND_ARGUMENTS.put("SEARCH_ITEMS", 1);
+        COMMAND_ARGUMENTS.put("BUY_ITEM", 1);
+        COMMAND_ARGUMENTS.put("GET_USER_ITEMS", 0);
+        COMMAND_ARGUMENTS.put("SEND_MESSAGE", 3);
+        COMMAND_ARGUMENTS.put("GET_MESSAGES", 0);
+        COMMAND_ARGUMENTS.put("GET_TRANSACTIONS", 0);
+        COMMAND_ARGUMENTS.put("GET_BALANCE", 0);
+        COMMAND_ARGUMENTS.put("DELETE_ACCOUNT", 0);
+        COMMAND_ARGUMENTS.put("DELETE_ITEM", 1);
+        COMMAND_ARGUMENTS.put("EXIT", 0);
+        COMMAND_ARGUMENTS.put("SUBSCRIBE", 0);
+        COMMAND_ARGUMENTS.put("GET_MESSAGES_SINCE", 2);
+        COMMAND_ARGUMENTS.put("GET_TRANSACTIONS_SINCE", 2);
+        COMMAND_ARGUMENTS.put("SEARCH_ITEMS_PAGE", 5);
+        COMMAND_ARGUMENTS.put("SHARD_SEARCH_ITEMS", 2);
+        COMMAND_ARGUMENTS.put("SHARD_SEARCH_ITEMS_PAGE", 5);
+        COMMAND_ARGUMENTS.put("SHARD_GET_ITEM", 2);
+        COMMAND_ARGUMENTS.put("SHARD_SELL_ITEM", 6);
+        COMMAND_ARGUMENTS.put("SHARD_DELIVER_MESSAGE", 5);
+        COMMAND_ARGUMENTS.put("SET_MAX_STALENESS", 1);
+    }
+    
+    // Returned by routeCommand for commands this shard runs itself
+    private static final Object RUN_LOCALLY = new Object();
+    
     private ServerSocket serverSocket;
     private Database database;
     private boolean running;
     private Thread serverThread;
+    private final HandlerMode handlerMode;
+    private final int poolSize;
+    private ExecutorService handlers; // Runs handleClient, null in THREAD mode
+    private ExecutorService requestWorkers; // Runs the requests of multiplexed connections
+    private final EventHub events = new EventHub(); // Sessions subscribed to pushed events
+    private volatile ShardRouter shards; // Routes commands to other shards, null when not sharded
+    private volatile ReplicationServer replicas; // Streams the journal to replicas, null when there are none
+    private volatile ReplicationClient primary; // Follows the primary when this server is a replica, null otherwise
 
     /**
      * Constructor for MarketplaceServer
      */
     public MarketplaceServer() {
-        this.database = new Database();
+        this(new Database());
+    }
+
+    /**
+     * Constructor for MarketplaceServer using the given database
+     * @param database The database to serve, loaded from disk here
+     */
+    public MarketplaceServer(Database database) {
+        this(database, HandlerMode.THREAD, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Constructor for MarketplaceServer with a handler mode
+     * @param database The database to serve, loaded from disk here
+     * @param handlerMode How client connections are given threads
+     * @param poolSize Number of handler threads in POOL mode
+     */
+    public MarketplaceServer(Database database, HandlerMode handlerMode, int poolSize) {
+        this.handlerMode = handlerMode;
+        this.poolSize = poolSize;
+        this.database = database;
         this.database.loadFromDisk();
         this.running = false;
     }
 
+    /**
+     * Makes this server one shard of a partitioned marketplace. Call before start; the database
+     * must have been created for the same shard number and count.
+     * @param router Routes commands to the other shards
+     */
+    void setShardRouter(ShardRouter router) {
+        this.shards = router;
+    }
+
+    /**
+     * Makes this server the primary of replicas. Call before start; the database must be journaled.
+     * @param replicas Streams the journal to the replicas
+     */
+    void setReplicationServer(ReplicationServer replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * Makes this server a read-only replica. Call before start; the database must not be shared
+     * with anything else, as only the primary's changes are applied to it.
+     * @param primary Follows the primary
+     */
+    void setReplicaOf(ReplicationClient primary) {
+        this.primary = primary;
+    }
+
     /**
      * Start the server on the specified port
      * @param port The port to start the server on
@@ -37,7 +145,12 @@ public class MarketplaceServer implements MarketplaceServerInterface {
     @Override
     public void start(int port) {
         try {
-            serverSocket = new ServerSocket(port);
+            serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+            startReplication();
+            handlers = createHandlers();
+            AtomicInteger workerNumber = new AtomicInteger();
+            requestWorkers = Executors.newCachedThreadPool(
+                task -> new Thread(task, "request-worker-" + workerNumber.incrementAndGet()));
             running = true;
             serverThread = new Thread(this);
             serverThread.start();
@@ -48,6 +161,20 @@ public class MarketplaceServer implements MarketplaceServerInterface {
         }
     }
 
+    /**
+     * Starts streaming the journal to replicas, or following the primary, if this server was set up
+     * to. Called by every engine when it starts.
+     * @throws IOException if the replication port cannot be opened
+     */
+    void startReplication() throws IOException {
+        if (replicas != null) {
+            replicas.start();
+        }
+        if (primary != null) {
+            primary.start();
+        }
+    }
+
     /**
      * Stop the server
      */
@@ -58,6 +185,22 @@ public class MarketplaceServer implements MarketplaceServerInterface {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (handlers != null) {
+                handlers.shutdown();
+            }
+            if (requestWorkers != null) {
+                requestWorkers.shutdown();
+            }
+            if (shards != null) {
+                shards.close();
+            }
+            if (replicas != null) {
+                replicas.stop();
+            }
+            if (primary != null) {
+                primary.stop();
+            }
+            database.close();
             System.out.println("Server stopped");
         } catch (IOException e) {
             System.err.println("Error stopping server");
@@ -82,8 +225,17 @@ public class MarketplaceServer implements MarketplaceServerInterface {
         while(running) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                // Handle client in a new thread
-                new Thread(() -> handleClient(clientSocket)).start();
+                if (handlers == null) {
+                    // Handle client in a new thread
+                    new Thread(() -> handleClient(clientSocket)).start();
+                } else {
+                    try {
+                        handlers.execute(() -> handleClient(clientSocket));
+                    } catch (RejectedExecutionException e) {
+                        System.err.println("Server busy, refusing client");
+                        clientSocket.close();
+                    }
+                }
             } catch (IOException e) {
                 if (running) {
                     e.printStackTrace();
@@ -92,75 +244,50 @@ public class MarketplaceServer implements MarketplaceServerInterface {
         }
     }
     
+    /**
+     * Creates the executor running client handlers for the configured mode
+     * @return The executor, or null to start a new thread per connection
+     */
+    private ExecutorService createHandlers() {
+        switch (handlerMode) {
+            case POOL:
+                // Connections beyond the pool wait in the queue; beyond that they are refused
+                return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(ACCEPT_BACKLOG));
+            case VIRTUAL:
+                try {
+                    // Looked up reflectively so the server still compiles and runs before Java 21
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.err.println("Virtual threads need Java 21 or later. Using a thread per connection");
+                    return null;
+                }
+            default:
+                return null;
+        }
+    }
+    
     /**
      * Handles a client connection
      * @param clientSocket The client socket connection
      */
     private void handleClient(Socket clientSocket) {
-        ObjectInputStream ois = null;
-        ObjectOutputStream oos = null;
-        String currentUser = null;
-        boolean clientRunning = true;
+        ClientSession session = new ClientSession();
         
         try {
-            // Initialize streams
-            oos = new ObjectOutputStream(clientSocket.getOutputStream());
-            ois = new ObjectInputStream(clientSocket.getInputStream());
+            BufferedInputStream in = new BufferedInputStream(clientSocket.getInputStream());
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
             
-            // Process client requests
-            while (clientRunning) {
-                String command = (String) ois.readObject();
-                
-                // Handle different commands
-                switch (command) {
-                    case "LOGIN":
-                        currentUser = handleLogin(ois, oos);
-                        break;
-                    case "REGISTER":
-                        handleRegister(ois, oos);
-                        break;
-                    case "LOGOUT":
-                        currentUser = null;
-                        oos.writeObject(new TransactionResult(true, "Logout successful"));
-                        break;
-                    case "ADD_ITEM":
-                        handleAddItem(ois, oos, currentUser);
-                        break;
-                    case "SEARCH_ITEMS":
-                        handleSearchItems(ois, oos);
-                        break;
-                    case "BUY_ITEM":
-                        handleBuyItem(ois, oos, currentUser);
-                        break;
-                    case "GET_USER_ITEMS":
-                        handleGetUserItems(oos, currentUser);
-                        break;
-                    case "SEND_MESSAGE":
-                        handleSendMessage(ois, oos, currentUser);
-                        break;
-                    case "GET_MESSAGES":
-                        handleGetMessages(oos, currentUser);
-                        break;
-                    case "GET_TRANSACTIONS":
-                        handleGetTransactions(oos, currentUser);
-                        break;
-                    case "GET_BALANCE":
-                        handleGetBalance(oos, currentUser);
-                        break;
-                    case "DELETE_ACCOUNT":
-                        handleDeleteAccount(oos, currentUser);
-                        if (currentUser != null) currentUser = null; // Reset user if account deleted
-                        break;
-                    case "DELETE_ITEM":
-                        handleDeleteItem(ois, oos, currentUser);
-                        break;
-                    case "EXIT":
-                        clientRunning = false;
-                        break;
-                    default:
-                        oos.writeObject(new TransactionResult(false, "Unknown command"));
-                }
-                oos.flush();
+            // Binary clients open with the protocol's magic number, older clients with an object stream header
+            in.mark(4);
+            int magic = new DataInputStream(in).readInt();
+            if (magic == WireProtocol.MAGIC_MULTIPLEXED) {
+                serveMultiplexed(new DataInputStream(in), new DataOutputStream(out), session);
+            } else if (magic == WireProtocol.MAGIC) {
+                serveBinary(new DataInputStream(in), new DataOutputStream(out), session);
+            } else {
+                in.reset();
+                serveObjectStreams(in, out, session);
             }
         } catch (EOFException e) {
             // Client disconnected
@@ -168,11 +295,10 @@ public class MarketplaceServer implements MarketplaceServerInterface {
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         } finally {
+            sessionClosed(session);
             // Close resources
             try {
-                if (ois != null) ois.close();
-                if (oos != null) oos.close();
-                if (clientSocket != null) clientSocket.close();
+                clientSocket.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -180,254 +306,782 @@ public class MarketplaceServer implements MarketplaceServerInterface {
     }
     
     /**
-     * Handle login command
-     * @return Username if login successful, null otherwise
+     * Serves a client using Java object streams: a command name followed by its arguments,
+     * each a serialized object, answered by one serialized reply
      */
-    private String handleLogin(ObjectInputStream ois, ObjectOutputStream oos) throws IOException, ClassNotFoundException {
-        String username = (String) ois.readObject();
-        String password = (String) ois.readObject();
+    private void serveObjectStreams(InputStream in, OutputStream out, ClientSession session)
+            throws IOException, ClassNotFoundException {
+        // Initialize streams
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.flush();
+        ObjectInputStream ois = new ObjectInputStream(in);
         
+        // Process client requests
+        while (true) {
+            String command = (String) ois.readObject();
+            Object[] arguments = new Object[argumentCount(command)];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = ois.readObject();
+            }
+            Object reply = executeCommand(command, arguments, session);
+            if (reply == null) {
+                break;
+            }
+            oos.writeObject(reply);
+            oos.flush();
+        }
+    }
+    
+    /**
+     * Serves a client using the binary protocol of WireProtocol
+     */
+    private void serveBinary(DataInputStream in, DataOutputStream out, ClientSession session) throws IOException {
+        out.writeInt(WireProtocol.MAGIC);
+        out.flush();
+        
+        while (true) {
+            WireProtocol.Request request = WireProtocol.decodeRequest(WireProtocol.readFrame(in));
+            Object reply = executeCommand(request.getCommand(), request.getArguments(), session);
+            if (reply == null) {
+                break;
+            }
+            out.write(WireProtocol.encodeReply(request.getCommand(), reply));
+            out.flush();
+        }
+    }
+    
+    /**
+     * Serves a client using the binary protocol with tagged frames. Requests are run on
+     * requestWorkers as soon as they arrive, up to MAX_IN_FLIGHT at a time, and each reply is
+     * sent when its command finishes, so replies may overtake each other.
+     */
+    private void serveMultiplexed(DataInputStream in, DataOutputStream out, ClientSession session)
+            throws IOException {
+        out.writeInt(WireProtocol.MAGIC_MULTIPLEXED);
+        out.flush();
+        session.setEventSink(event -> {
+            try {
+                byte[] frame = WireProtocol.encodeEvent(event);
+                synchronized (out) {
+                    out.write(frame);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Client is gone; the reading loop notices as well
+            }
+        });
+        
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        try {
+            while (true) {
+                WireProtocol.Request request = WireProtocol.decodeTaggedRequest(WireProtocol.readFrame(in));
+                if (request.getCommand().equals("EXIT")) {
+                    break;
+                }
+                inFlight.acquireUninterruptibly();
+                try {
+                    requestWorkers.execute(() -> {
+                        try {
+                            Object reply = executeTaggedCommand(request.getCommand(), request.getArguments(),
+                                                                session);
+                            byte[] frame = WireProtocol.encodeTaggedReply(request.getRequestId(),
+                                                                          request.getCommand(), reply);
+                            synchronized (out) {
+                                out.write(frame);
+                                out.flush();
+                            }
+                        } catch (IOException e) {
+                            // Client is gone; the reading loop notices as well
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Server is shutting down
+                    inFlight.release();
+                    break;
+                }
+            }
+        } finally {
+            // Let running commands send their replies before the socket is closed
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+        }
+    }
+    
+    /**
+     * Ends what a closed connection's session was subscribed to. Called by every engine.
+     * @param session State of the closed connection
+     */
+    void sessionClosed(ClientSession session) {
+        events.unsubscribe(session);
+        closeHomeShard(session);
+    }
+    
+    /**
+     * Returns how many arguments follow the given command in the object stream protocol.
+     * @param command The command name
+     * @return Number of arguments, 0 for unknown commands
+     */
+    static int argumentCount(String command) {
+        Integer count = COMMAND_ARGUMENTS.get(command);
+        return (count == null) ? 0 : count;
+    }
+    
+    /**
+     * Runs one command. Shared by every server engine and wire protocol so all of them
+     * follow the same command semantics.
+     * @param command The command name
+     * @param arguments The command's arguments, argumentCount(command) of them
+     * @param session State of the client connection
+     * @return The reply to send, or null if the client asked to close the connection
+     */
+    Object executeCommand(String command, Object[] arguments, ClientSession session) {
+        if (primary != null) {
+            Object refusal = replicaRefusal(command, session);
+            if (refusal != null) {
+                return refusal;
+            }
+        }
+        if (shards != null) {
+            Object reply = routeCommand(command, arguments, session);
+            if (reply != RUN_LOCALLY) {
+                return reply;
+            }
+        }
+        String currentUser = session.getCurrentUser();
+        
+        // Handle different commands
+        switch (command) {
+            case "LOGIN":
+                return handleLogin((String) arguments[0], (String) arguments[1], session);
+            case "REGISTER":
+                return handleRegister((String) arguments[0], (String) arguments[1]);
+            case "LOGOUT":
+                events.userChanged(session, null);
+                return new TransactionResult(true, "Logout successful");
+            case "ADD_ITEM":
+                return handleAddItem((String) arguments[0], (String) arguments[1], (Double) arguments[2], currentUser);
+            case "SEARCH_ITEMS":
+                return handleSearchItems((String) arguments[0]);
+            case "SEARCH_ITEMS_PAGE":
+                return handleSearchItemsPage((String) arguments[0], (String) arguments[1], (String) arguments[2],
+                                             (Integer) arguments[3], (Long) arguments[4]);
+            case "BUY_ITEM":
+                return handleBuyItem((Integer) arguments[0], currentUser);
+            case "GET_USER_ITEMS":
+                return handleGetUserItems(currentUser);
+            case "SEND_MESSAGE":
+                return handleSendMessage((String) arguments[0], (String) arguments[1], (Integer) arguments[2],
+                                         currentUser);
+            case "GET_MESSAGES":
+                return handleGetMessages(currentUser);
+            case "GET_TRANSACTIONS":
+                return handleGetTransactions(currentUser);
+            case "GET_MESSAGES_SINCE":
+                return handleGetMessagesSince((Long) arguments[0], (Integer) arguments[1], currentUser);
+            case "GET_TRANSACTIONS_SINCE":
+                return handleGetTransactionsSince((Long) arguments[0], (Integer) arguments[1], currentUser);
+            case "GET_BALANCE":
+                return handleGetBalance(currentUser);
+            case "DELETE_ACCOUNT": {
+                TransactionResult result = handleDeleteAccount(currentUser);
+                events.userChanged(session, null); // Reset user if account deleted
+                return result;
+            }
+            case "DELETE_ITEM":
+                return handleDeleteItem((Integer) arguments[0], currentUser);
+            case "SUBSCRIBE":
+                return handleSubscribe(session);
+            case "SET_MAX_STALENESS":
+                session.setMaxStalenessMillis((Long) arguments[0]);
+                return new TransactionResult(true, "Staleness bound set");
+            case "SHARD_SEARCH_ITEMS":
+            case "SHARD_SEARCH_ITEMS_PAGE":
+            case "SHARD_GET_ITEM":
+            case "SHARD_SELL_ITEM":
+            case "SHARD_DELIVER_MESSAGE":
+                return handleShardCommand(command, arguments);
+            case "EXIT":
+                return null;
+            default:
+                return new TransactionResult(false, "Unknown command");
+        }
+    }
+    
+    /**
+     * Runs one command of a connection that has several requests in flight. A command that throws
+     * is answered with a failure instead, since the client waits for a reply to every request ID
+     * and the connection's other requests should not fail with it.
+     * @param command The command name
+     * @param arguments The command's arguments
+     * @param session State of the client connection
+     * @return The reply to send, or null if the client asked to close the connection
+     */
+    Object executeTaggedCommand(String command, Object[] arguments, ClientSession session) {
+        try {
+            return executeCommand(command, arguments, session);
+        } catch (RuntimeException e) {
+            System.err.println("Error running " + command + ": " + e);
+            return new TransactionResult(false, "Server error running " + command);
+        }
+    }
+    
+    /**
+     * Decides whether a replica runs a command. Replicas serve logins and reads only, and refuse
+     * reads while their data may be older than the session's staleness bound, so that the client
+     * reads from the primary instead.
+     * @return The refusal, or null if the replica runs the command
+     */
+    private Object replicaRefusal(String command, ClientSession session) {
+        switch (command) {
+            case "LOGIN":
+            case "LOGOUT":
+            case "SET_MAX_STALENESS":
+            case "EXIT":
+                return null;
+            case "SEARCH_ITEMS":
+            case "SEARCH_ITEMS_PAGE":
+            case "GET_USER_ITEMS":
+            case "GET_MESSAGES":
+            case "GET_TRANSACTIONS":
+            case "GET_MESSAGES_SINCE":
+            case "GET_TRANSACTIONS_SINCE":
+            case "GET_BALANCE":
+                if (primary.getStalenessMillis() > session.getMaxStalenessMillis()) {
+                    return new TransactionResult(false, "Replica is behind the primary");
+                }
+                return null;
+            default:
+                return new TransactionResult(false, "This server is a read-only replica");
+        }
+    }
+    
+    /**
+     * Decides where a command runs in a sharded marketplace. Login and registration go to the user's
+     * shard, and a user logged in here whose shard is another one has every command forwarded to it.
+     * Searches are run on every shard. Commands sent by other shards always run here.
+     * @return The reply, or RUN_LOCALLY if this shard runs the command
+     */
+    private Object routeCommand(String command, Object[] arguments, ClientSession session) {
+        switch (command) {
+            case "LOGIN":
+                return routeLogin((String) arguments[0], (String) arguments[1], session);
+            case "REGISTER": {
+                int shard = shards.shardOf((String) arguments[0]);
+                if (shards.isLocal(shard)) {
+                    return RUN_LOCALLY;
+                }
+                try {
+                    return shards.call(shard, command, arguments);
+                } catch (IOException e) {
+                    return shardUnavailable(command);
+                }
+            }
+            case "LOGOUT":
+                closeHomeShard(session);
+                return RUN_LOCALLY;
+            case "SEARCH_ITEMS":
+                return searchAllShards((String) arguments[0]);
+            case "SEARCH_ITEMS_PAGE":
+                return searchPageAllShards((String) arguments[0], (String) arguments[1], (String) arguments[2],
+                                           (Integer) arguments[3]);
+            case "SUBSCRIBE":
+            case "EXIT":
+                return RUN_LOCALLY;
+            default:
+                ShardRouter.Connection home = session.getHomeShard();
+                if (home == null || command.startsWith("SHARD_")) {
+                    return RUN_LOCALLY;
+                }
+                Object reply;
+                try {
+                    reply = home.call(command, arguments);
+                } catch (IOException e) {
+                    closeHomeShard(session);
+                    events.userChanged(session, null);
+                    return shardUnavailable(command);
+                }
+                if (command.equals("DELETE_ACCOUNT") && ((TransactionResult) reply).isSuccess()) {
+                    closeHomeShard(session);
+                    events.userChanged(session, null);
+                }
+                return reply;
+        }
+    }
+    
+    /**
+     * Logs a session in on the user's shard, keeping a connection to it if it is another one
+     */
+    private Object routeLogin(String username, String password, ClientSession session) {
+        closeHomeShard(session);
+        int shard = shards.shardOf(username);
+        if (shards.isLocal(shard)) {
+            return RUN_LOCALLY;
+        }
+        ShardRouter.Connection home = null;
+        try {
+            home = shards.connect(shard);
+            TransactionResult result = (TransactionResult) home.call("LOGIN", username, password);
+            if (result.isSuccess()) {
+                session.setHomeShard(home);
+                home = null;
+                events.userChanged(session, username);
+            } else {
+                events.userChanged(session, null);
+            }
+            return result;
+        } catch (IOException e) {
+            events.userChanged(session, null);
+            return shardUnavailable("LOGIN");
+        } finally {
+            if (home != null) {
+                home.close();
+            }
+        }
+    }
+    
+    /**
+     * Closes a session's connection to its user's shard, if it has one
+     */
+    private void closeHomeShard(ClientSession session) {
+        ShardRouter.Connection home = session.getHomeShard();
+        if (home != null) {
+            session.setHomeShard(null);
+            home.close();
+        }
+    }
+    
+    /**
+     * Returns the reply for a command whose shard could not be reached
+     */
+    private static Object shardUnavailable(String command) {
+        switch (command) {
+            case "GET_BALANCE":
+                return -1.0;
+            case "GET_USER_ITEMS":
+            case "GET_MESSAGES":
+            case "GET_TRANSACTIONS":
+            case "GET_MESSAGES_SINCE":
+            case "GET_TRANSACTIONS_SINCE":
+                return new ArrayList<Object>();
+            default:
+                return new TransactionResult(false, "Shard unavailable");
+        }
+    }
+    
+    /**
+     * Searches every shard and returns all matches. Shards that cannot be reached are left out.
+     */
+    private List<Item> searchAllShards(String query) {
+        List<Item> matches = new ArrayList<>(handleSearchItems(query));
+        for (int shard = 0; shard < shards.getShardCount(); shard++) {
+            if (shards.isLocal(shard)) {
+                continue;
+            }
+            try {
+                for (Object item : (List<?>) shards.call(shard, "SHARD_SEARCH_ITEMS", shards.getSecret(), query)) {
+                    matches.add((Item) item);
+                }
+            } catch (IOException e) {
+                System.err.println("Search skipped shard " + shard + ": " + e.getMessage());
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Reads the page from every shard and merges them. Shards that cannot be reached are left out.
+     */
+    private SearchPage searchPageAllShards(String query, String order, String pageToken, int pageSize) {
+        SearchPage.Order sortOrder;
+        try {
+            sortOrder = SearchPage.Order.valueOf(order);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return new SearchPage(new ArrayList<Item>(), null);
+        }
+        List<SearchPage> pages = new ArrayList<>();
+        pages.add(handleSearchItemsPage(query, order, pageToken, pageSize, 0));
+        for (int shard = 0; shard < shards.getShardCount(); shard++) {
+            if (shards.isLocal(shard)) {
+                continue;
+            }
+            try {
+                pages.add((SearchPage) shards.call(shard, "SHARD_SEARCH_ITEMS_PAGE", shards.getSecret(), query, order,
+                                                   pageToken, pageSize));
+            } catch (IOException e) {
+                System.err.println("Search skipped shard " + shard + ": " + e.getMessage());
+            }
+        }
+        return SearchPage.merge(pages, sortOrder, pageSize(pageSize));
+    }
+    
+    /**
+     * Runs a command sent by another shard of the marketplace
+     */
+    private Object handleShardCommand(String command, Object[] arguments) {
+        if (shards == null || !shards.isShardSecret(arguments[0])) {
+            return new TransactionResult(false, "Not a shard of this marketplace");
+        }
+        switch (command) {
+            case "SHARD_SEARCH_ITEMS":
+                return handleSearchItems((String) arguments[1]);
+            case "SHARD_SEARCH_ITEMS_PAGE":
+                return handleSearchItemsPage((String) arguments[1], (String) arguments[2], (String) arguments[3],
+                                             (Integer) arguments[4], 0);
+            case "SHARD_GET_ITEM": {
+                List<Item> found = new ArrayList<>();
+                Item item = database.getItemById((Integer) arguments[1]);
+                if (item != null) {
+                    found.add(item);
+                }
+                return found;
+            }
+            case "SHARD_SELL_ITEM": {
+                String buyer = (String) arguments[3];
+                String seller = (String) arguments[4];
+                int itemId = (Integer) arguments[2];
+                Transaction transaction = Transaction.withAmountCents((Long) arguments[1], buyer, seller, itemId,
+                                                                      (Long) arguments[5]);
+                TransactionResult result = new PaymentProcessor(database).processRemoteSale(transaction);
+                if (result.isSuccess()) {
+                    publishSale(buyer, seller, itemId);
+                }
+                return result;
+            }
+            default:
+                return deliverMessage((String) arguments[1], (String) arguments[2], (String) arguments[3],
+                                      (Integer) arguments[4]);
+        }
+    }
+    
+    /**
+     * Handle login command
+     */
+    private TransactionResult handleLogin(String username, String password, ClientSession session) {
         User user = database.getUserByUsername(username);
         
         if (user != null && user.checkPassword(password)) {
-            oos.writeObject(new TransactionResult(true, "Login successful"));
-            return username;
+            events.userChanged(session, username);
+            return new TransactionResult(true, "Login successful");
         } else {
-            oos.writeObject(new TransactionResult(false, "Invalid username or password"));
-            return null;
+            events.userChanged(session, null);
+            return new TransactionResult(false, "Invalid username or password");
         }
     }
     
+    /**
+     * Handle subscribe command: the session's user will be sent new messages, sales and balance changes
+     */
+    private TransactionResult handleSubscribe(ClientSession session) {
+        if (!session.canPush()) {
+            return new TransactionResult(false, "Events need the multiplexed binary protocol");
+        }
+        events.subscribe(session);
+        return new TransactionResult(true, "Subscribed to events");
+    }
+    
     /**
      * Handle register command
      */
-    private void handleRegister(ObjectInputStream ois, ObjectOutputStream oos) throws IOException, ClassNotFoundException {
-        String username = (String) ois.readObject();
-        String password = (String) ois.readObject();
-        
-        User existingUser = database.getUserByUsername(username);
+    private TransactionResult handleRegister(String username, String password) {
+        if (username == null || username.isEmpty()) {
+            return new TransactionResult(false, "Username is required");
+        }
         
-        if (existingUser != null) {
-            oos.writeObject(new TransactionResult(false, "Username already exists"));
+        if (!database.addUserIfAbsent(new User(username, password))) {
+            return new TransactionResult(false, "Username already exists");
         } else {
-            User newUser = new User(username, password);
-            database.addUser(newUser);
             database.saveToDisk();
-            oos.writeObject(new TransactionResult(true, "Registration successful"));
+            return new TransactionResult(true, "Registration successful");
         }
     }
     
     /**
      * Handle add item command
      */
-    private void handleAddItem(ObjectInputStream ois, ObjectOutputStream oos, String currentUser) 
-            throws IOException, ClassNotFoundException {
+    private TransactionResult handleAddItem(String title, String description, double price, String currentUser) {
         if (currentUser == null) {
-            oos.writeObject(new TransactionResult(false, "Not logged in"));
-            return;
+            return new TransactionResult(false, "Not logged in");
         }
         
-        String title = (String) ois.readObject();
-        String description = (String) ois.readObject();
-        double price = (Double) ois.readObject();
-        
-        Item item = new Item(title, description, price, currentUser);
+        Item item = Item.withPriceCents(title, description, Money.toCents(price), currentUser);
         database.addItem(item);
         database.saveToDisk();
         
-        oos.writeObject(new TransactionResult(true, "Item added successfully", item.getId()));
+        return new TransactionResult(true, "Item added successfully", item.getId());
     }
     
     /**
      * Handle search items command
      */
-    private void handleSearchItems(ObjectInputStream ois, ObjectOutputStream oos) throws IOException, ClassNotFoundException {
-        String query = (String) ois.readObject();
-        List<Item> items = database.searchItems(query);
-        oos.writeObject(items);
+    private List<Item> handleSearchItems(String query) {
+        return database.searchItems(query);
+    }
+    
+    /**
+     * Handle search items page command
+     */
+    private SearchPage handleSearchItemsPage(String query, String order, String pageToken, int pageSize,
+                                             long knownVersion) {
+        SearchPage.Order sortOrder;
+        try {
+            sortOrder = SearchPage.Order.valueOf(order);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // An order this server does not know ends the search like an invalid token does
+            return new SearchPage(new ArrayList<Item>(), null);
+        }
+        return database.searchItemsPage(query, sortOrder, pageToken, pageSize(pageSize), knownVersion);
     }
     
     /**
      * Handle buy item command
      */
-    private void handleBuyItem(ObjectInputStream ois, ObjectOutputStream oos, String currentUser) 
-            throws IOException, ClassNotFoundException {
+    private TransactionResult handleBuyItem(int itemId, String currentUser) {
         if (currentUser == null) {
-            oos.writeObject(new TransactionResult(false, "Not logged in"));
-            return;
+            return new TransactionResult(false, "Not logged in");
         }
         
-        int itemId = (Integer) ois.readObject();
-        
         Item item = database.getItemById(itemId);
+        if (item == null && shards != null && !shards.isLocal(shards.shardOfItem(itemId))) {
+            return buyFromShard(itemId, currentUser);
+        }
         if (item == null) {
-            oos.writeObject(new TransactionResult(false, "Item not found"));
-            return;
+            return new TransactionResult(false, "Item not found");
         }
         
         String seller = item.getSeller();
         if (seller.equals(currentUser)) {
-            oos.writeObject(new TransactionResult(false, "Cannot buy your own item"));
-            return;
+            return new TransactionResult(false, "Cannot buy your own item");
         }
         
         PaymentProcessor processor = new PaymentProcessor(database);
-        TransactionResult result = processor.processPayment(currentUser, seller, itemId);
         
-        // The transaction has already been added to the database by the PaymentProcessor
-        // and database.saveToDisk() was already called there, so we don't need to do it again here
-        
-        oos.writeObject(result);
+        // The transaction has already been added to the database by the PaymentProcessor,
+        // which returns only once the purchase is durable, so the reply cannot promise an unsaved sale
+        TransactionResult result = processor.processPayment(currentUser, seller, itemId);
+        if (result.isSuccess()) {
+            publishSale(currentUser, seller, itemId);
+        }
+        return result;
     }
     
     /**
-     * Handle get user items command
+     * Buy an item held by another shard: the buyer pays here and the item's shard sells it
      */
-    private void handleGetUserItems(ObjectOutputStream oos, String currentUser) throws IOException {
-        if (currentUser == null) {
-            oos.writeObject(new ArrayList<Item>());
-            return;
+    private TransactionResult buyFromShard(int itemId, String currentUser) {
+        int shard = shards.shardOfItem(itemId);
+        Item item;
+        try {
+            List<?> found = (List<?>) shards.call(shard, "SHARD_GET_ITEM", shards.getSecret(), itemId);
+            if (found.isEmpty()) {
+                return new TransactionResult(false, "Item not found");
+            }
+            item = (Item) found.get(0);
+        } catch (IOException | ClassCastException e) {
+            return new TransactionResult(false, "Shard unavailable");
+        }
+        if (item.getSeller().equals(currentUser)) {
+            return new TransactionResult(false, "Cannot buy your own item");
+        }
+        if (item.isSold()) {
+            return new TransactionResult(false, "Item is already sold");
         }
         
-        List<Item> userItems = new ArrayList<>();
-        
-        for (int i = 1; ; i++) {
-            Item item = database.getItemById(i);
-            if (item == null) break;
-            if (item.getSeller().equals(currentUser)) {
-                userItems.add(item);
+        TransactionResult result = new PaymentProcessor(database).processCrossShardPayment(currentUser, item,
+            transaction -> {
+                Object reply = shards.call(shard, "SHARD_SELL_ITEM", shards.getSecret(), transaction.getId(), itemId,
+                                           currentUser, item.getSeller(), transaction.getAmountCents());
+                return (reply instanceof TransactionResult) ? (TransactionResult) reply :
+                                                              new TransactionResult(false, "Unexpected reply");
+            });
+        if (result.isSuccess()) {
+            publishSale(currentUser, item.getSeller(), itemId);
+        }
+        return result;
+    }
+    
+    /**
+     * Tell buyer and seller about a sale and their new balances
+     */
+    private void publishSale(String buyer, String seller, int itemId) {
+        List<Transaction> sellerTransactions = database.getTransactionsForUser(seller);
+        for (int i = sellerTransactions.size() - 1; i >= 0; i--) {
+            Transaction transaction = sellerTransactions.get(i);
+            if (transaction.getItemId() == itemId) {
+                MarketplaceEvent sold = MarketplaceEvent.itemSold(transaction);
+                events.publish(buyer, sold);
+                events.publish(seller, sold);
+                break;
+            }
+        }
+        for (String username : new String[] {buyer, seller}) {
+            User user = database.getUserByUsername(username);
+            if (user != null) {
+                events.publish(username, MarketplaceEvent.balanceChangedCents(user.getBalanceCents()));
             }
         }
+    }
+    
+    /**
+     * Handle get user items command
+     */
+    private List<Item> handleGetUserItems(String currentUser) {
+        if (currentUser == null) {
+            return new ArrayList<Item>();
+        }
         
-        oos.writeObject(userItems);
+        return database.getItemsBySeller(currentUser);
     }
     
     /**
      * Handle send message command
      */
-    private void handleSendMessage(ObjectInputStream ois, ObjectOutputStream oos, String currentUser) 
-            throws IOException, ClassNotFoundException {
+    private TransactionResult handleSendMessage(String recipient, String content, int itemId, String currentUser) {
         if (currentUser == null) {
-            oos.writeObject(new TransactionResult(false, "Not logged in"));
-            return;
+            return new TransactionResult(false, "Not logged in");
         }
         
-        String recipient = (String) ois.readObject();
-        String content = (String) ois.readObject();
-        int itemId = (Integer) ois.readObject();
+        if (shards != null && !shards.isLocal(shards.shardOf(recipient))) {
+            // The recipient's shard stores the message for the recipient; this shard keeps the sender's copy
+            TransactionResult result;
+            try {
+                result = (TransactionResult) shards.call(shards.shardOf(recipient), "SHARD_DELIVER_MESSAGE",
+                                                         shards.getSecret(), currentUser, recipient, content, itemId);
+            } catch (IOException e) {
+                return new TransactionResult(false, "Shard unavailable");
+            }
+            if (result.isSuccess()) {
+                database.addMessage(new Message(currentUser, recipient, content, itemId));
+                database.saveToDisk();
+            }
+            return result;
+        }
         
+        return deliverMessage(currentUser, recipient, content, itemId);
+    }
+    
+    /**
+     * Store a message to a user of this shard and push it to the recipient
+     */
+    private TransactionResult deliverMessage(String sender, String recipient, String content, int itemId) {
         User recipientUser = database.getUserByUsername(recipient);
         
         if (recipientUser == null) {
-            oos.writeObject(new TransactionResult(false, "Recipient not found"));
-            return;
+            return new TransactionResult(false, "Recipient not found");
         }
         
-        Message message = new Message(currentUser, recipient, content, itemId);
+        Message message = new Message(sender, recipient, content, itemId);
         database.addMessage(message);
         database.saveToDisk();
+        events.publish(recipient, MarketplaceEvent.messageReceived(message));
         
-        oos.writeObject(new TransactionResult(true, "Message sent successfully"));
+        return new TransactionResult(true, "Message sent successfully");
     }
     
     /**
      * Handle get messages command
      */
-    private void handleGetMessages(ObjectOutputStream oos, String currentUser) throws IOException {
+    private List<Message> handleGetMessages(String currentUser) {
         if (currentUser == null) {
-            oos.writeObject(new ArrayList<Message>());
-            return;
+            return new ArrayList<Message>();
         }
         
-        List<Message> messages = database.getMessagesForUser(currentUser);
-        oos.writeObject(messages);
+        return database.getMessagesForUser(currentUser);
     }
     
     /**
      * Handle get transactions command
      */
-    private void handleGetTransactions(ObjectOutputStream oos, String currentUser) throws IOException {
+    private List<Transaction> handleGetTransactions(String currentUser) {
         if (currentUser == null) {
-            oos.writeObject(new ArrayList<Transaction>());
-            return;
+            return new ArrayList<Transaction>();
         }
         List<Transaction> transactions = database.getTransactionsForUser(currentUser);
         System.out.println("Server: Returning " + transactions.size() + " transactions for user " + currentUser);
-        oos.writeObject(transactions);
+        return transactions;
+    }
+    
+    /**
+     * Handle get messages since command
+     */
+    private List<Message> handleGetMessagesSince(long afterSequence, int limit, String currentUser) {
+        if (currentUser == null) {
+            return new ArrayList<Message>();
+        }
+        
+        return database.getMessagesForUserAfter(currentUser, afterSequence, pageSize(limit));
+    }
+    
+    /**
+     * Handle get transactions since command
+     */
+    private List<Transaction> handleGetTransactionsSince(long afterSequence, int limit, String currentUser) {
+        if (currentUser == null) {
+            return new ArrayList<Transaction>();
+        }
+        
+        return database.getTransactionsForUserAfter(currentUser, afterSequence, pageSize(limit));
+    }
+    
+    /**
+     * Clamp a requested page size to MAX_PAGE_SIZE; 0 or less asks for the largest page
+     */
+    private static int pageSize(int limit) {
+        return (limit <= 0 || limit > MAX_PAGE_SIZE) ? MAX_PAGE_SIZE : limit;
     }
     
     /**
      * Handle get balance command
      */
-    private void handleGetBalance(ObjectOutputStream oos, String currentUser) throws IOException {
+    private Double handleGetBalance(String currentUser) {
         if (currentUser == null) {
-            oos.writeObject(-1.0);
-            return;
+            return -1.0;
         }
         
         User user = database.getUserByUsername(currentUser);
-        oos.writeObject(user.getBalance());
+        return user.getBalance();
     }
     
     /**
      * Handle delete account command
      */
-    private void handleDeleteAccount(ObjectOutputStream oos, String currentUser) throws IOException {
+    private TransactionResult handleDeleteAccount(String currentUser) {
         if (currentUser == null) {
-            oos.writeObject(new TransactionResult(false, "Not logged in"));
-            return;
-        }
-        
-        // Remove all user items from database
-        List<Item> userItems = new ArrayList<>();
-        for (int i = 1; ; i++) {
-            Item item = database.getItemById(i);
-            if (item == null) break;
-            if (item.getSeller().equals(currentUser)) {
-                userItems.add(item);
-            }
+            return new TransactionResult(false, "Not logged in");
         }
         
         // Remove all items owned by the user
-        for (Item item : userItems) {
-            database.removeItem(item.getId());
-        }
+        database.removeItemsBySeller(currentUser);
         
         // Delete user account
         database.removeUser(currentUser);
         database.saveToDisk();
         
-        oos.writeObject(new TransactionResult(true, "Account deleted successfully"));
+        return new TransactionResult(true, "Account deleted successfully");
     }
     
     /**
      * Handle delete item command
      */
-    private void handleDeleteItem(ObjectInputStream ois, ObjectOutputStream oos, String currentUser) 
-            throws IOException, ClassNotFoundException {
+    private TransactionResult handleDeleteItem(int itemId, String currentUser) {
         if (currentUser == null) {
-            oos.writeObject(new TransactionResult(false, "Not logged in"));
-            return;
+            return new TransactionResult(false, "Not logged in");
         }
         
-        int itemId = (Integer) ois.readObject();
-        
         Item item = database.getItemById(itemId);
         if (item == null) {
-            oos.writeObject(new TransactionResult(false, "Item not found"));
-            return;
+            return new TransactionResult(false, "Item not found");
         }
         
         // Check if user is the owner of the item
         if (!item.getSeller().equals(currentUser)) {
-            oos.writeObject(new TransactionResult(false, "You can only delete your own items"));
-            return;
+            return new TransactionResult(false, "You can only delete your own items");
         }
         
         // Delete the item
         database.removeItem(itemId);
         database.saveToDisk();
         
-        oos.writeObject(new TransactionResult(true, "Item deleted successfully"));
+        return new TransactionResult(true, "Item deleted successfully");
     }
 }
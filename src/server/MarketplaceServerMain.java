@@ -16,30 +16,183 @@ public class MarketplaceServerMain {
 
     /**
      * Main method to run the Marketplace server
-     * @param args Command-line arguments, first argument can be port number
+     * @param args Command-line arguments: [port] [--persistence=journal|snapshot] [--engine=thread|nio]
+     *             [--handlers=thread|pool|virtual] [--pool-size=N]
+     *             [--shards=host:port,host:port,... --shard=N --shard-secret=SECRET]
+     *             [--replication-port=N | --replica-of=host:port] [--replication-secret=SECRET]
+     *             [--item-store=serialized|mapped]
      */
     public static void main(String[] args) {
         int port = DEFAULT_PORT;
+        boolean journaled = true;
+        boolean nio = false;
+        MarketplaceServer.HandlerMode handlerMode = MarketplaceServer.HandlerMode.THREAD;
+        int poolSize = MarketplaceServer.DEFAULT_POOL_SIZE;
+        String shardList = null;
+        int shard = 0;
+        String shardSecret = null;
+        boolean portGiven = false;
+        int replicationPort = -1;
+        String replicaOf = null;
+        String replicationSecret = null;
+        boolean mappedItems = false;
         
-        // Allow port to be specified as command line argument
-        if (args.length > 0) {
+        for (String arg : args) {
+            if (arg.startsWith("--persistence=")) {
+                String mode = arg.substring("--persistence=".length());
+                if (mode.equals("snapshot")) {
+                    journaled = false;
+                } else if (!mode.equals("journal")) {
+                    System.err.println("Unknown persistence mode " + mode + ". Using journal");
+                }
+            } else if (arg.startsWith("--item-store=")) {
+                String store = arg.substring("--item-store=".length());
+                if (store.equals("mapped")) {
+                    mappedItems = true;
+                } else if (!store.equals("serialized")) {
+                    System.err.println("Unknown item store " + store + ". Using serialized");
+                }
+            } else if (arg.startsWith("--engine=")) {
+                String engine = arg.substring("--engine=".length());
+                if (engine.equals("nio")) {
+                    nio = true;
+                } else if (!engine.equals("thread")) {
+                    System.err.println("Unknown engine " + engine + ". Using thread");
+                }
+            } else if (arg.startsWith("--handlers=")) {
+                String mode = arg.substring("--handlers=".length());
+                try {
+                    handlerMode = MarketplaceServer.HandlerMode.valueOf(mode.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown handler mode " + mode + ". Using thread");
+                }
+            } else if (arg.startsWith("--pool-size=")) {
+                try {
+                    poolSize = Integer.parseInt(arg.substring("--pool-size=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid pool size. Using " + poolSize);
+                }
+            } else if (arg.startsWith("--shards=")) {
+                shardList = arg.substring("--shards=".length());
+            } else if (arg.startsWith("--shard=")) {
+                try {
+                    shard = Integer.parseInt(arg.substring("--shard=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid shard number. Using " + shard);
+                }
+            } else if (arg.startsWith("--shard-secret=")) {
+                shardSecret = arg.substring("--shard-secret=".length());
+            } else if (arg.startsWith("--replication-port=")) {
+                try {
+                    replicationPort = Integer.parseInt(arg.substring("--replication-port=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid replication port. Not replicating");
+                }
+            } else if (arg.startsWith("--replica-of=")) {
+                replicaOf = arg.substring("--replica-of=".length());
+            } else if (arg.startsWith("--replication-secret=")) {
+                replicationSecret = arg.substring("--replication-secret=".length());
+            } else {
+                // Allow port to be specified as command line argument
+                try {
+                    port = Integer.parseInt(arg);
+                    portGiven = true;
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid port number. Using default port " + DEFAULT_PORT);
+                }
+            }
+        }
+        
+        ShardRouter router = null;
+        String dataFile = database.Database.DEFAULT_DATA_FILE;
+        if (shardList != null) {
+            if (shardSecret == null) {
+                System.err.println("A sharded server needs --shard-secret, the same on every shard");
+                return;
+            }
             try {
-                port = Integer.parseInt(args[0]);
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid port number. Using default port " + DEFAULT_PORT);
+                router = new ShardRouter(ShardRouter.parseAddresses(shardList), shard, shardSecret);
+                if (!portGiven) {
+                    port = ShardRouter.parseAddresses(shardList).get(shard).getPort();
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid shard configuration: " + e.getMessage());
+                return;
             }
+            // Every shard keeps its own files, so several shards can run in one directory
+            dataFile = dataFile.replaceFirst("\\.ser$", "_shard" + shard + ".ser");
+            System.out.println("Serving shard " + shard + " of " + router.getShardCount());
         }
         
-        System.out.println("Starting Marketplace Server on port " + port);
+        ReplicationServer replicationServer = null;
+        java.net.InetSocketAddress primary = null;
+        if (replicationPort >= 0 || replicaOf != null) {
+            if (replicationSecret == null) {
+                System.err.println("Replication needs --replication-secret, the same on the primary and its replicas");
+                return;
+            }
+            if (router != null || (replicationPort >= 0 && replicaOf != null)) {
+                System.err.println("A server is either sharded, a primary or a replica");
+                return;
+            }
+        }
+        if (replicationPort >= 0 && !journaled) {
+            System.err.println("Replication ships the journal; it cannot be used with --persistence=snapshot");
+            return;
+        }
+        if (replicaOf != null) {
+            try {
+                primary = ShardRouter.parseAddresses(replicaOf).get(0);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid primary address: " + e.getMessage());
+                return;
+            }
+            // A replica saves snapshots of what it has applied; its own changes never reach a journal
+            dataFile = dataFile.replaceFirst("\\.ser$", "_replica.ser");
+            journaled = false;
+            System.out.println("Serving a read-only replica of " + replicaOf);
+        }
+        
+        if (mappedItems && !journaled) {
+            System.err.println("The mapped item store relies on the journal; it cannot be used with " +
+                               "--persistence=snapshot or on a replica");
+            return;
+        }
+        
+        System.out.println("Starting Marketplace Server on port " + port +
+                           (journaled ? " (journaled persistence)" : " (snapshot persistence)"));
         
         // Create and start the server
-        MarketplaceServer server = new MarketplaceServer();
+        database.Database database = (router != null) ?
+            new database.Database(dataFile, journaled, shard, router.getShardCount()) :
+            new database.Database(dataFile, journaled);
+        if (mappedItems) {
+            database.enableMappedItemStore();
+        }
+        MarketplaceServer server;
+        try {
+            server = nio ? new NioMarketplaceServer(database) :
+                           new MarketplaceServer(database, handlerMode, poolSize);
+        } catch (java.io.UncheckedIOException e) {
+            System.err.println("Not starting: " + e.getCause().getMessage());
+            return;
+        }
+        if (router != null) {
+            server.setShardRouter(router);
+        }
+        if (replicationPort >= 0) {
+            server.setReplicationServer(new ReplicationServer(database, replicationPort, replicationSecret));
+        }
+        if (primary != null) {
+            server.setReplicaOf(new ReplicationClient(database, primary, replicationSecret));
+        }
         server.start(port);
         
         // Add shutdown hook to stop server gracefully
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutting down server...");
             server.stop();
+            System.out.println(database.getSearchCacheStats());
         }));
         
         System.out.println("Server is running. Press Ctrl+C to stop.");
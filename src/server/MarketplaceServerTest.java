@@ -4,7 +4,9 @@ import static org.junit.Assert.*;
 import org.junit.*;
 import java.io.*;
 import java.net.*;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import database.*;
 
 public class MarketplaceServerTest {
     private MarketplaceServer server;
@@ -108,4 +110,105 @@ public class MarketplaceServerTest {
         client1.join();
         client2.join();
     }
+
+    /**
+     * Opens a client connection and sends the stream header and one REGISTER command.
+     */
+    private Socket register(int port, String username) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(10000);
+        ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+        oos.writeObject("REGISTER");
+        oos.writeObject(username);
+        oos.writeObject("pw");
+        oos.writeObject("EXIT");
+        oos.flush();
+        return socket;
+    }
+
+    @Test
+    public void testPoolModeQueuesClientsBeyondPoolSize() throws Exception {
+        File dataFile = File.createTempFile("pool_test", ".ser");
+        dataFile.delete();
+        int testPort = 23457;
+        MarketplaceServer pooled = new MarketplaceServer(new Database(dataFile.getPath(), false),
+            MarketplaceServer.HandlerMode.POOL, 1);
+        pooled.start(testPort);
+        Socket idle = new Socket("localhost", testPort);
+        try {
+            // The only handler thread is busy with the idle client, so this one has to wait
+            new ObjectOutputStream(idle.getOutputStream()).flush();
+            try (Socket waiting = register(testPort, "waiting")) {
+                waiting.setSoTimeout(500);
+                try {
+                    waiting.getInputStream().read();
+                    fail("Client beyond the pool size should wait for a handler");
+                } catch (SocketTimeoutException e) {
+                    // Expected
+                }
+
+                idle.close();
+                waiting.setSoTimeout(10000);
+                ObjectInputStream ois = new ObjectInputStream(waiting.getInputStream());
+                assertTrue("Waiting client should be served once a handler is free",
+                    ((TransactionResult) ois.readObject()).isSuccess());
+            }
+        } finally {
+            idle.close();
+            pooled.stop();
+            dataFile.delete();
+        }
+    }
+
+    @Test
+    public void testVirtualModeServesClients() throws Exception {
+        File dataFile = File.createTempFile("virtual_test", ".ser");
+        dataFile.delete();
+        int testPort = 23458;
+        // Falls back to a thread per connection before Java 21
+        MarketplaceServer virtual = new MarketplaceServer(new Database(dataFile.getPath(), false),
+            MarketplaceServer.HandlerMode.VIRTUAL, MarketplaceServer.DEFAULT_POOL_SIZE);
+        virtual.start(testPort);
+        try (Socket first = register(testPort, "first"); Socket second = register(testPort, "second")) {
+            assertTrue("First client should be served",
+                ((TransactionResult) new ObjectInputStream(first.getInputStream()).readObject()).isSuccess());
+            assertTrue("Second client should be served",
+                ((TransactionResult) new ObjectInputStream(second.getInputStream()).readObject()).isSuccess());
+        } finally {
+            virtual.stop();
+            dataFile.delete();
+        }
+    }
+
+    @Test
+    public void testMultiplexedCommandThatThrowsIsAnswered() throws Exception {
+        File dataFile = File.createTempFile("multiplexed_error_test", ".ser");
+        dataFile.delete();
+        int testPort = 23470;
+        MarketplaceServer multiplexed = new MarketplaceServer(new Database(dataFile.getPath(), false));
+        multiplexed.start(testPort);
+        try (Socket socket = new Socket("localhost", testPort)) {
+            socket.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeInt(WireProtocol.MAGIC_MULTIPLEXED);
+            // A search needs a query; a null one makes the command throw
+            out.write(WireProtocol.encodeTaggedRequest(1, "SEARCH_ITEMS", (Object) null));
+            out.write(WireProtocol.encodeTaggedRequest(2, "SEARCH_ITEMS", "lamp"));
+            out.flush();
+            assertEquals("Server should accept tagged frames", WireProtocol.MAGIC_MULTIPLEXED, in.readInt());
+
+            Map<Integer, Object> replies = new HashMap<>();
+            for (int i = 0; i < 2; i++) {
+                byte[] frame = WireProtocol.readFrame(in);
+                replies.put(WireProtocol.requestIdOf(frame), WireProtocol.decodeTaggedReply(frame));
+            }
+            assertFalse("Command that throws should be answered with a failure",
+                ((TransactionResult) replies.get(1)).isSuccess());
+            assertTrue("Connection should keep serving other requests", replies.get(2) instanceof List);
+        } finally {
+            multiplexed.stop();
+            dataFile.delete();
+        }
+    }
 }
@@ -0,0 +1,481 @@
+package server;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import database.MarketplaceEvent;
+import database.WireProtocol;
+
+/**
+ * NioConnection class
+ *
+ * State of one client connection served by NioMarketplaceServer. The first four bytes tell the
+ * protocol: binary clients send WireProtocol.MAGIC, older clients an object stream header.
+ * Bytes read by the event loop are buffered until a whole request has arrived (a complete frame,
+ * or a command and all of its arguments as found by ObjectStreamScanner); the request is then run
+ * on a worker thread through MarketplaceServer.executeCommand. A connection has at most one
+ * command running at a time, so its commands are handled in the order they were sent, except
+ * for multiplexed clients (WireProtocol.MAGIC_MULTIPLEXED), whose tagged requests run
+ * concurrently and are answered as they finish.
+ *
+ * Unread input, frames waiting for a worker and replies not yet sent together are kept below
+ * MAX_BUFFERED_INPUT: above it the connection stops reading, and stops starting commands while
+ * the unsent replies alone are above it, so a client that sends requests without reading the
+ * replies is held back by TCP instead of filling the heap. Reading resumes once the frames and
+ * replies have drained.
+ *
+ * Everything except the input buffer and the worker task is only touched by the event loop thread.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class NioConnection {
+    static final int MAX_BUFFERED_INPUT = 8 * 1024 * 1024; // Most unread or unsent bytes kept for one client
+    private static final int QUEUED_FRAME_OVERHEAD = 32; // Heap of a queued frame besides its bytes
+    private static final Object NOT_A_STRING = new Object(); // Scanned object that is not a string
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioEventLoop loop;
+    private final MarketplaceServer server;
+    private final ExecutorService workers;
+    private final ClientSession session = new ClientSession();
+
+    private final InputBuffer input = new InputBuffer(); // Received bytes, read by the worker's ObjectInputStream
+    private final ObjectStreamScanner scanner = new ObjectStreamScanner();
+    private final ArrayDeque<Object> scannedObjects = new ArrayDeque<>(); // Complete objects not yet dispatched
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>(); // Complete binary frames not yet dispatched
+    private final ByteArrayOutputStream replyBytes = new ByteArrayOutputStream(); // Target of oos
+    private ObjectOutputStream oos; // Object stream protocol only
+    private ObjectInputStream ois; // Created by the first command, once the client's header has arrived
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private long queuedFrameBytes; // Heap taken by frames, counting QUEUED_FRAME_OVERHEAD for each
+    private long pendingWriteBytes; // Bytes of pendingWrites, counted until each buffer is fully sent
+
+    private boolean headerScanned; // Whether the client's stream header or magic number has arrived
+    private boolean binary; // Client speaks WireProtocol
+    private boolean multiplexed; // Client tags its frames and may have many requests in flight
+    private int inFlight; // Commands of this connection running on workers
+    private boolean exitRequested; // Client sent EXIT; run no more commands
+    private boolean closeAfterWrite; // EXIT and all earlier commands are done; close once the replies are written
+    private boolean closed;
+
+    /**
+     * Creates the connection. Nothing is sent until the client's protocol is known.
+     * @param channel The accepted client channel, in non-blocking mode
+     * @param loop The event loop serving the channel
+     * @param server The server whose command handling is used
+     * @param workers Pool running the commands
+     */
+    NioConnection(SocketChannel channel, NioEventLoop loop, MarketplaceServer server, ExecutorService workers)
+            throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.workers = workers;
+        this.key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Reads what the client has sent, then dispatches the next command if it is complete.
+     * @param readBuffer The event loop's scratch buffer
+     */
+    void read(ByteBuffer readBuffer) {
+        try {
+            while (true) {
+                readBuffer.clear();
+                int count = channel.read(readBuffer);
+                if (count < 0) {
+                    // Client disconnected
+                    close();
+                    return;
+                }
+                if (count == 0) {
+                    break;
+                }
+                input.append(readBuffer.array(), count);
+                if (!scan()) {
+                    return;
+                }
+                if (input.buffered() > MAX_BUFFERED_INPUT && scannedObjects.isEmpty() && frames.isEmpty()) {
+                    // A single oversized object is refused
+                    System.err.println("Closing client: request larger than " + MAX_BUFFERED_INPUT + " bytes");
+                    close();
+                    return;
+                }
+                if (backlog() > MAX_BUFFERED_INPUT) {
+                    // Stop reading until the workers and the client catch up
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+            }
+            dispatch();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Looks for complete requests in newly received bytes.
+     * @return false if the client sent an invalid stream and the connection was closed
+     */
+    private boolean scan() {
+        try {
+            synchronized (input) {
+                if (!headerScanned) {
+                    if (input.writePos - input.scanPos < 4) {
+                        return true;
+                    }
+                    headerScanned = true;
+                    int magicNumber = readInt(input.bytes, input.scanPos);
+                    multiplexed = magicNumber == WireProtocol.MAGIC_MULTIPLEXED;
+                    binary = multiplexed || magicNumber == WireProtocol.MAGIC;
+                    if (binary) {
+                        input.scanPos += 4;
+                        input.readPos = input.scanPos;
+                        ByteBuffer magic = ByteBuffer.allocate(4).putInt(magicNumber);
+                        magic.flip();
+                        queueWrite(magic);
+                        if (multiplexed) {
+                            session.setEventSink(this::pushEvent);
+                        }
+                    } else {
+                        input.scanPos = scanner.scan(input.bytes, input.scanPos, input.writePos);
+                        oos = new ObjectOutputStream(replyBytes);
+                        oos.flush();
+                        queueReply();
+                    }
+                    write();
+                }
+                if (binary) {
+                    scanFrames();
+                } else {
+                    int end;
+                    while ((end = scanner.scan(input.bytes, input.scanPos, input.writePos)) >= 0) {
+                        input.scanPos = end;
+                        String value = scanner.getLastString();
+                        scannedObjects.add(value != null ? value : NOT_A_STRING);
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Closing client: " + e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Moves complete binary frames out of the input buffer. Caller holds the input lock.
+     */
+    private void scanFrames() throws StreamCorruptedException {
+        while (input.writePos - input.scanPos >= 4) {
+            int length = readInt(input.bytes, input.scanPos);
+            if (length < 1 || length > WireProtocol.MAX_FRAME_LENGTH) {
+                throw new StreamCorruptedException("Invalid frame length " + length);
+            }
+            if (input.writePos - input.scanPos - 4 < length) {
+                return;
+            }
+            frames.add(Arrays.copyOfRange(input.bytes, input.scanPos + 4, input.scanPos + 4 + length));
+            queuedFrameBytes += length + QUEUED_FRAME_OVERHEAD;
+            input.scanPos += 4 + length;
+            input.readPos = input.scanPos;
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) |
+               ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Returns the bytes held for this connection: unread input, queued frames and unsent replies.
+     */
+    private long backlog() {
+        return input.buffered() + queuedFrameBytes + pendingWriteBytes;
+    }
+
+    /**
+     * Starts the commands that have fully arrived on workers: the next one if no other command is
+     * running, or up to MarketplaceServer.MAX_IN_FLIGHT of them for a multiplexed client. Nothing
+     * is started while the unsent replies are over MAX_BUFFERED_INPUT.
+     */
+    private void dispatch() {
+        int maxInFlight = multiplexed ? MarketplaceServer.MAX_IN_FLIGHT : 1;
+        while (inFlight < maxInFlight && !closed && !exitRequested && pendingWriteBytes <= MAX_BUFFERED_INPUT) {
+            Runnable command;
+            if (binary) {
+                byte[] frame = frames.poll();
+                if (frame == null) {
+                    return;
+                }
+                queuedFrameBytes -= frame.length + QUEUED_FRAME_OVERHEAD;
+                command = () -> runBinaryCommand(frame);
+            } else {
+                if (scannedObjects.isEmpty()) {
+                    return;
+                }
+                Object first = scannedObjects.peek();
+                int objects = 1 + ((first instanceof String) ? MarketplaceServer.argumentCount((String) first) : 0);
+                if (scannedObjects.size() < objects) {
+                    return;
+                }
+                for (int i = 0; i < objects; i++) {
+                    scannedObjects.poll();
+                }
+                command = this::runObjectStreamCommand;
+            }
+            inFlight++;
+            try {
+                workers.execute(command);
+            } catch (RejectedExecutionException e) {
+                // Server is shutting down
+                close();
+            }
+        }
+    }
+
+    /**
+     * Runs one object stream command on a worker thread and hands the reply back to the event loop.
+     */
+    private void runObjectStreamCommand() {
+        byte[] reply;
+        try {
+            if (ois == null) {
+                ois = new ObjectInputStream(input);
+            }
+            String command = (String) ois.readObject();
+            Object[] arguments = new Object[MarketplaceServer.argumentCount(command)];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = ois.readObject();
+            }
+            Object result = server.executeCommand(command, arguments, session);
+            if (result != null) {
+                oos.writeObject(result);
+                oos.flush();
+            }
+            reply = (result != null) ? replyBytes.toByteArray() : null;
+            replyBytes.reset();
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            System.err.println("Closing client: " + e);
+            loop.execute(this::close);
+            return;
+        }
+        loop.execute(() -> commandFinished(reply));
+    }
+
+    /**
+     * Runs one binary command on a worker thread and hands the reply back to the event loop.
+     */
+    private void runBinaryCommand(byte[] frame) {
+        byte[] reply;
+        try {
+            WireProtocol.Request request = multiplexed ? WireProtocol.decodeTaggedRequest(frame) :
+                                                         WireProtocol.decodeRequest(frame);
+            Object result = multiplexed ?
+                server.executeTaggedCommand(request.getCommand(), request.getArguments(), session) :
+                server.executeCommand(request.getCommand(), request.getArguments(), session);
+            if (result == null) {
+                reply = null;
+            } else if (multiplexed) {
+                reply = WireProtocol.encodeTaggedReply(request.getRequestId(), request.getCommand(), result);
+            } else {
+                reply = WireProtocol.encodeReply(request.getCommand(), result);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Closing client: " + e);
+            loop.execute(this::close);
+            return;
+        }
+        loop.execute(() -> commandFinished(reply));
+    }
+
+    /**
+     * Sends a command's reply and moves on to the next command. Runs on the event loop.
+     * @param reply The encoded reply, or null if the client asked to close the connection
+     */
+    private void commandFinished(byte[] reply) {
+        inFlight--;
+        if (closed) {
+            return;
+        }
+        if (reply != null) {
+            queueWrite(ByteBuffer.wrap(reply));
+        } else {
+            exitRequested = true;
+        }
+        if (exitRequested && inFlight == 0) {
+            closeAfterWrite = true;
+        }
+        write();
+        resume();
+    }
+
+    /**
+     * Starts the commands that may run now, and reads again if reading was stopped and the queued
+     * frames and unsent replies have drained. Runs on the event loop.
+     */
+    private void resume() {
+        if (closed || closeAfterWrite) {
+            return;
+        }
+        dispatch();
+        if (frames.isEmpty() && pendingWrites.isEmpty() && input.buffered() <= MAX_BUFFERED_INPUT &&
+                (key.interestOps() & SelectionKey.OP_READ) == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Queues an event for the client. Called by whichever thread published it.
+     * @param event the event
+     */
+    private void pushEvent(MarketplaceEvent event) {
+        byte[] frame;
+        try {
+            frame = WireProtocol.encodeEvent(event);
+        } catch (IOException e) {
+            return;
+        }
+        loop.execute(() -> {
+            if (!closed) {
+                queueWrite(ByteBuffer.wrap(frame));
+                write();
+            }
+        });
+    }
+
+    /**
+     * Moves what oos has written so far to the write queue.
+     */
+    private void queueReply() {
+        queueWrite(ByteBuffer.wrap(replyBytes.toByteArray()));
+        replyBytes.reset();
+    }
+
+    /**
+     * Adds bytes to the write queue.
+     */
+    private void queueWrite(ByteBuffer buffer) {
+        pendingWrites.add(buffer);
+        pendingWriteBytes += buffer.remaining();
+    }
+
+    /**
+     * Writes queued replies until they are sent or the socket buffer is full.
+     */
+    void write() {
+        try {
+            boolean drained = false; // True if buffers were sent that may have held up commands or reads
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer buffer = pendingWrites.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pendingWrites.poll();
+                pendingWriteBytes -= buffer.limit();
+                drained = true;
+            }
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (closeAfterWrite) {
+                close();
+            } else if (drained) {
+                resume();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection. A command still running on a worker finishes, but its reply is dropped.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        server.sessionClosed(session);
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        input.close();
+    }
+
+    /**
+     * Growable buffer of received bytes. The event loop appends and scans, the worker reads
+     * through an ObjectInputStream. Reads never go past scanPos, the end of the scanned objects.
+     */
+    private static class InputBuffer extends InputStream {
+        private byte[] bytes = new byte[4096];
+        private int readPos; // Next byte for the ObjectInputStream
+        private int scanPos; // End of the complete objects found by the scanner
+        private int writePos; // End of the received data
+        private boolean eof;
+
+        synchronized void append(byte[] data, int length) {
+            if (writePos + length > bytes.length) {
+                // Drop what has been read, then grow if that is not enough
+                int live = writePos - readPos;
+                byte[] target = (live + length > bytes.length) ?
+                    new byte[Math.max(bytes.length * 2, live + length)] : bytes;
+                System.arraycopy(bytes, readPos, target, 0, live);
+                bytes = target;
+                scanPos -= readPos;
+                writePos = live;
+                readPos = 0;
+            }
+            System.arraycopy(data, 0, bytes, writePos, length);
+            writePos += length;
+        }
+
+        synchronized int buffered() {
+            return writePos - readPos;
+        }
+
+        @Override
+        public synchronized int read() {
+            if (eof || readPos >= scanPos) {
+                return -1;
+            }
+            return bytes[readPos++] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] target, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int count = Math.min(length, scanPos - readPos);
+            if (eof || count <= 0) {
+                return -1;
+            }
+            System.arraycopy(bytes, readPos, target, offset, count);
+            readPos += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return eof ? 0 : scanPos - readPos;
+        }
+
+        @Override
+        public synchronized void close() {
+            eof = true;
+        }
+    }
+}
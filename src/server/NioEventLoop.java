@@ -0,0 +1,129 @@
+package server;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * NioEventLoop class
+ *
+ * One selector thread of NioMarketplaceServer. Serves many client connections at once by
+ * reading and writing only when their sockets are ready, so idle clients cost a buffer
+ * instead of a thread. Other threads hand it work (new connections, finished commands)
+ * through execute(), which wakes the selector.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024; // Bytes read from a socket at a time
+
+    private final Selector selector;
+    private final MarketplaceServer server;
+    private final ExecutorService workers;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work handed over by other threads
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    /**
+     * Creates an event loop
+     * @param server The server whose command handling is used
+     * @param workers Pool running the commands
+     */
+    NioEventLoop(MarketplaceServer server, ExecutorService workers) throws IOException {
+        this.selector = Selector.open();
+        this.server = server;
+        this.workers = workers;
+    }
+
+    /**
+     * Returns the selector of this loop
+     * @return selector
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Runs a task on the event loop thread
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Starts serving an accepted client channel
+     * @param channel The client channel
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                new NioConnection(channel, this, server, workers);
+            } catch (IOException e) {
+                System.err.println("Could not register client: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Ignore
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the loop and closes its connections
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Selects ready connections and serves them until shut down
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
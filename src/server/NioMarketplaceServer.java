@@ -0,0 +1,150 @@
+package server;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import database.*;
+
+/**
+ * NioMarketplaceServer class
+ *
+ * Marketplace server engine built on non-blocking sockets. Instead of one thread per client,
+ * a few event loop threads watch all connections with selectors and a fixed pool of worker
+ * threads runs the commands, so thousands of idle clients need no threads of their own.
+ * Commands are handled by MarketplaceServer.executeCommand and behave exactly as in the
+ * thread-per-connection engine; clients cannot tell the engines apart.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+public class NioMarketplaceServer extends MarketplaceServer {
+    private final int eventLoopCount; // Number of selector threads
+    private final int workerCount; // Number of threads running commands
+
+    private ServerSocketChannel serverChannel;
+    private NioEventLoop[] eventLoops;
+    private ExecutorService workers;
+    private Thread acceptThread;
+    private volatile boolean running;
+    private int nextLoop; // Round-robin position for new connections, used by the accept thread only
+
+    /**
+     * Constructor for NioMarketplaceServer with thread counts sized to the machine
+     * @param database The database to serve, loaded from disk here
+     */
+    public NioMarketplaceServer(Database database) {
+        this(database, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+             Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    /**
+     * Constructor for NioMarketplaceServer
+     * @param database The database to serve, loaded from disk here
+     * @param eventLoopCount Number of event loop threads
+     * @param workerCount Number of worker threads running commands
+     */
+    public NioMarketplaceServer(Database database, int eventLoopCount, int workerCount) {
+        super(database);
+        this.eventLoopCount = eventLoopCount;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Start the server on the specified port
+     * @param port The port to start the server on
+     */
+    @Override
+    public void start(int port) {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port));
+            startReplication();
+
+            AtomicInteger workerNumber = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(workerCount,
+                task -> new Thread(task, "nio-worker-" + workerNumber.incrementAndGet()));
+            eventLoops = new NioEventLoop[eventLoopCount];
+            for (int i = 0; i < eventLoopCount; i++) {
+                eventLoops[i] = new NioEventLoop(this, workers);
+                new Thread(eventLoops[i], "nio-event-loop-" + (i + 1)).start();
+            }
+
+            running = true;
+            acceptThread = new Thread(this, "nio-accept");
+            acceptThread.start();
+            System.out.println("Server started on port " + port + " (NIO, " + eventLoopCount +
+                               " event loops, " + workerCount + " workers)");
+        } catch (IOException e) {
+            System.err.println("Could not start server on port " + port);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop the server, close all connections and the database
+     */
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            // The port is only released once the thread blocked in accept() has left it
+            if (acceptThread != null) {
+                acceptThread.join(10000);
+            }
+        } catch (IOException e) {
+            System.err.println("Error stopping server");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (eventLoops != null) {
+            for (NioEventLoop loop : eventLoops) {
+                loop.shutdown();
+            }
+        }
+        if (workers != null) {
+            workers.shutdown();
+            try {
+                workers.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.stop();
+    }
+
+    /**
+     * Check if the server is running
+     * @return true if the server is running, false otherwise
+     */
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Accepts client connections and spreads them over the event loops
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                eventLoops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import database.*;
+
+public class NioMarketplaceServerTest {
+    private static final int TEST_PORT = 34567;
+
+    private File dataFile;
+    private NioMarketplaceServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        dataFile = File.createTempFile("nio_server_test", ".ser");
+        dataFile.delete();
+        server = new NioMarketplaceServer(new Database(dataFile.getPath(), false), 2, 4);
+        server.start(TEST_PORT);
+    }
+
+    @After
+    public void tearDown() {
+        if (server.isRunning()) {
+            server.stop();
+        }
+        dataFile.delete();
+    }
+
+    /**
+     * Minimal blocking client speaking the object stream protocol.
+     */
+    private static class TestClient implements Closeable {
+        final Socket socket;
+        final ObjectOutputStream oos;
+        final ObjectInputStream ois;
+
+        TestClient() throws IOException {
+            socket = new Socket("localhost", TEST_PORT);
+            socket.setSoTimeout(10000);
+            oos = new ObjectOutputStream(socket.getOutputStream());
+            ois = new ObjectInputStream(socket.getInputStream());
+        }
+
+        Object call(Object... request) throws IOException, ClassNotFoundException {
+            for (Object value : request) {
+                oos.writeObject(value);
+            }
+            oos.flush();
+            return ois.readObject();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testCommandsBehaveLikeThreadEngine() throws Exception {
+        try (TestClient seller = new TestClient(); TestClient buyer = new TestClient()) {
+            assertTrue("Registration should succeed",
+                ((TransactionResult) seller.call("REGISTER", "seller", "pw")).isSuccess());
+            assertFalse("Duplicate registration should fail",
+                ((TransactionResult) seller.call("REGISTER", "seller", "pw")).isSuccess());
+            assertFalse("Adding an item requires login",
+                ((TransactionResult) seller.call("ADD_ITEM", "Lamp", "Desk lamp", 30.0)).isSuccess());
+            assertTrue("Login should succeed", ((TransactionResult) seller.call("LOGIN", "seller", "pw")).isSuccess());
+
+            TransactionResult added = (TransactionResult) seller.call("ADD_ITEM", "Lamp", "Desk lamp", 30.0);
+            assertTrue("Item should be added", added.isSuccess());
+            assertEquals("Own items should be listed", 1, ((List<?>) seller.call("GET_USER_ITEMS")).size());
+
+            buyer.call("REGISTER", "buyer", "pw");
+            buyer.call("LOGIN", "buyer", "pw");
+            assertEquals("Search should find the item", 1, ((List<?>) buyer.call("SEARCH_ITEMS", "lamp")).size());
+            assertTrue("Purchase should succeed",
+                ((TransactionResult) buyer.call("BUY_ITEM", added.getItemId())).isSuccess());
+            assertEquals("Buyer should be charged", 70.0, (Double) buyer.call("GET_BALANCE"), 0.001);
+            assertTrue("Message should be sent",
+                ((TransactionResult) buyer.call("SEND_MESSAGE", "seller", "Thanks", added.getItemId())).isSuccess());
+            assertEquals("Seller should see the message", 1, ((List<?>) seller.call("GET_MESSAGES")).size());
+            assertEquals("Seller should see the sale", 1, ((List<?>) seller.call("GET_TRANSACTIONS")).size());
+            List<?> since = (List<?>) seller.call("GET_MESSAGES_SINCE", 0L, 10);
+            assertEquals("Seller should see the message after the start", 1, since.size());
+            assertTrue("Nothing should follow the newest message", ((List<?>) seller.call("GET_MESSAGES_SINCE",
+                ((Message) since.get(0)).getSequence(), 10)).isEmpty());
+            assertEquals("Seller should see the sale after the start",
+                1, ((List<?>) seller.call("GET_TRANSACTIONS_SINCE", 0L, 10)).size());
+            assertFalse("Unknown commands should be refused",
+                ((TransactionResult) seller.call("FLY")).isSuccess());
+            assertFalse("Object stream clients cannot receive events",
+                ((TransactionResult) seller.call("SUBSCRIBE")).isSuccess());
+
+            // EXIT closes the connection
+            seller.oos.writeObject("EXIT");
+            seller.oos.flush();
+            try {
+                seller.ois.readObject();
+                fail("Connection should be closed after EXIT");
+            } catch (EOFException | SocketException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testSplitAndPipelinedRequests() throws Exception {
+        // Three commands sent at once, one byte per write
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        ObjectOutputStream requestStream = new ObjectOutputStream(requests);
+        requestStream.writeObject("REGISTER");
+        requestStream.writeObject("slow");
+        requestStream.writeObject("pw");
+        requestStream.writeObject("LOGIN");
+        requestStream.writeObject("slow");
+        requestStream.writeObject("pw");
+        requestStream.writeObject("GET_BALANCE");
+        requestStream.flush();
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(10000);
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            for (byte b : requests.toByteArray()) {
+                out.write(b);
+                out.flush();
+            }
+            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+            assertTrue("Registration should succeed", ((TransactionResult) ois.readObject()).isSuccess());
+            assertTrue("Login should succeed", ((TransactionResult) ois.readObject()).isSuccess());
+            assertEquals("Replies should arrive in order", 100.0, (Double) ois.readObject(), 0.001);
+        }
+    }
+
+    @Test
+    public void testManyConcurrentClients() throws Exception {
+        int clients = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            String username = "user" + i;
+            results.add(pool.submit(() -> {
+                try (TestClient client = new TestClient()) {
+                    client.call("REGISTER", username, "pw");
+                    client.call("LOGIN", username, "pw");
+                    return ((TransactionResult) client.call("ADD_ITEM", "Widget", "Made by " + username, 1.0))
+                        .isSuccess();
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue("Every client should be served", result.get(30, TimeUnit.SECONDS));
+        }
+        pool.shutdown();
+
+        try (TestClient client = new TestClient()) {
+            assertEquals("Every item should be stored", clients, ((List<?>) client.call("SEARCH_ITEMS", "widget")).size());
+        }
+    }
+
+    @Test
+    public void testInvalidStreamClosesConnection() throws Exception {
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes());
+            InputStream in = socket.getInputStream();
+            in.skip(4); // Server's stream header
+            assertEquals("Server should close the connection", -1, in.read());
+        }
+        try (TestClient client = new TestClient()) {
+            assertTrue("Server should keep serving other clients",
+                ((TransactionResult) client.call("REGISTER", "after", "pw")).isSuccess());
+        }
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        DataOutputStream requestStream = new DataOutputStream(requests);
+        requestStream.writeInt(WireProtocol.MAGIC);
+        requestStream.write(WireProtocol.encodeRequest("REGISTER", "binary", "pw"));
+        requestStream.write(WireProtocol.encodeRequest("LOGIN", "binary", "pw"));
+        requestStream.write(WireProtocol.encodeRequest("ADD_ITEM", "Kettle", "Electric kettle", 25.0));
+        requestStream.write(WireProtocol.encodeRequest("GET_USER_ITEMS"));
+        requestStream.write(WireProtocol.encodeRequest("EXIT"));
+
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(10000);
+            socket.setTcpNoDelay(true);
+            // Frames split at arbitrary points
+            OutputStream out = socket.getOutputStream();
+            byte[] bytes = requests.toByteArray();
+            for (int i = 0; i < bytes.length; i += 3) {
+                out.write(bytes, i, Math.min(3, bytes.length - i));
+                out.flush();
+            }
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertEquals("Server should accept the binary protocol", WireProtocol.MAGIC, in.readInt());
+            assertTrue("Registration should succeed", ((TransactionResult) WireProtocol.readReply(in)).isSuccess());
+            assertTrue("Login should succeed", ((TransactionResult) WireProtocol.readReply(in)).isSuccess());
+            assertTrue("Item should be added", ((TransactionResult) WireProtocol.readReply(in)).isSuccess());
+            List<?> items = (List<?>) WireProtocol.readReply(in);
+            assertEquals("Own item should be listed", "Kettle", ((Item) items.get(0)).getTitle());
+            assertEquals("Connection should close after EXIT", -1, in.read());
+        }
+    }
+
+    @Test
+    public void testMultiplexedRequests() throws Exception {
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeInt(WireProtocol.MAGIC_MULTIPLEXED);
+            out.write(WireProtocol.encodeTaggedRequest(1, "REGISTER", "multi", "pw"));
+            out.flush();
+            assertEquals("Server should accept tagged frames", WireProtocol.MAGIC_MULTIPLEXED, in.readInt());
+            byte[] registered = WireProtocol.readFrame(in);
+            assertEquals("Reply should carry the request ID", 1, WireProtocol.requestIdOf(registered));
+
+            // Everything below is sent before any reply is read
+            int requests = 30;
+            for (int i = 0; i < requests; i++) {
+                out.write(WireProtocol.encodeTaggedRequest(100 + i, "SEARCH_ITEMS", "nothing" + i));
+            }
+            out.write(WireProtocol.encodeTaggedRequest(2, "LOGIN", "multi", "pw"));
+            out.write(WireProtocol.encodeTaggedRequest(3, "EXIT"));
+            out.flush();
+
+            Set<Integer> answered = new HashSet<>();
+            for (int i = 0; i < requests + 1; i++) {
+                byte[] frame = WireProtocol.readFrame(in);
+                int requestId = WireProtocol.requestIdOf(frame);
+                Object reply = WireProtocol.decodeTaggedReply(frame);
+                if (requestId == 2) {
+                    assertTrue("Login should succeed", ((TransactionResult) reply).isSuccess());
+                } else {
+                    assertTrue("Search reply should be a list", reply instanceof List);
+                }
+                assertTrue("Each request should be answered once", answered.add(requestId));
+            }
+            assertEquals("Connection should close after EXIT", -1, in.read());
+        }
+    }
+
+    @Test
+    public void testMultiplexedCommandThatThrowsIsAnswered() throws Exception {
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeInt(WireProtocol.MAGIC_MULTIPLEXED);
+            // A search needs a query; a null one makes the command throw
+            out.write(WireProtocol.encodeTaggedRequest(1, "SEARCH_ITEMS", (Object) null));
+            out.flush();
+            assertEquals("Server should accept tagged frames", WireProtocol.MAGIC_MULTIPLEXED, in.readInt());
+            byte[] frame = WireProtocol.readFrame(in);
+            assertEquals("Failure should answer the request", 1, WireProtocol.requestIdOf(frame));
+            assertFalse("Command that throws should be answered with a failure",
+                ((TransactionResult) WireProtocol.decodeTaggedReply(frame)).isSuccess());
+
+            out.write(WireProtocol.encodeTaggedRequest(2, "SEARCH_ITEMS", "lamp"));
+            out.flush();
+            assertTrue("Connection should keep serving requests",
+                WireProtocol.decodeTaggedReply(WireProtocol.readFrame(in)) instanceof List);
+        }
+    }
+
+    @Test
+    public void testClientThatDoesNotReadIsHeldBack() throws Exception {
+        long cap = 4L * NioConnection.MAX_BUFFERED_INPUT; // Sent without backpressure long before the test times out
+        char[] filler = new char[2000];
+        Arrays.fill(filler, 'x');
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(64 * 1024);
+            socket.connect(new InetSocketAddress("localhost", TEST_PORT));
+            socket.setSoTimeout(10000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeInt(WireProtocol.MAGIC);
+            out.write(WireProtocol.encodeRequest("REGISTER", "flooder", "pw"));
+            out.write(WireProtocol.encodeRequest("LOGIN", "flooder", "pw"));
+            for (int i = 0; i < 10; i++) {
+                out.write(WireProtocol.encodeRequest("ADD_ITEM", "Item " + i, new String(filler), 1.0));
+            }
+            out.flush();
+            assertEquals("Server should accept the binary protocol", WireProtocol.MAGIC, in.readInt());
+            for (int i = 0; i < 12; i++) {
+                assertTrue("Setup should succeed", ((TransactionResult) WireProtocol.readReply(in)).isSuccess());
+            }
+
+            // Every request asks for about 20 KB, and no reply is read from here on
+            byte[] batch = new byte[1000 * 5];
+            byte[] frame = WireProtocol.encodeRequest("GET_USER_ITEMS");
+            for (int i = 0; i < batch.length; i += frame.length) {
+                System.arraycopy(frame, 0, batch, i, frame.length);
+            }
+            AtomicLong sent = new AtomicLong();
+            Thread flooder = new Thread(() -> {
+                try {
+                    OutputStream raw = socket.getOutputStream();
+                    while (sent.get() < cap) {
+                        raw.write(batch);
+                        sent.addAndGet(batch.length);
+                    }
+                } catch (IOException e) {
+                    // Socket closed by the test
+                }
+            });
+            flooder.setDaemon(true);
+            flooder.start();
+
+            long last = -1;
+            for (int i = 0; i < 60 && sent.get() != last; i++) {
+                last = sent.get();
+                Thread.sleep(1000);
+            }
+            assertTrue("Client that does not read should be held back, but sent " + sent.get() + " bytes",
+                       sent.get() < cap);
+        }
+        try (TestClient other = new TestClient()) {
+            assertTrue("Other clients should still be served",
+                ((TransactionResult) other.call("REGISTER", "other", "pw")).isSuccess());
+        }
+    }
+}
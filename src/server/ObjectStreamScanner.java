@@ -0,0 +1,397 @@
+package server;
+import java.io.*;
+import java.util.*;
+
+/**
+ * ObjectStreamScanner class
+ *
+ * Finds where each top-level object of a Java serialization stream ends without deserializing it.
+ * A non-blocking server receives a client's ObjectOutputStream in arbitrary pieces, and an
+ * ObjectInputStream cannot resume after hitting the end of a partial object. The scanner walks the
+ * serialization grammar over the bytes received so far and reports when a whole object has
+ * arrived, so an ObjectInputStream is only ever asked to read objects that are complete.
+ *
+ * The scanner keeps the same handle table as the reading ObjectInputStream (class descriptors and
+ * strings may be sent once and referenced later) and remembers the value of top-level strings,
+ * which is how command names are recognized. Classes whose writeObject writes its own data are
+ * assumed to call defaultWriteObject first, as the serialization specification requires.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class ObjectStreamScanner {
+    private static final int MAX_DEPTH = 64; // Deepest object nesting accepted from a client
+
+    // Flags of a class descriptor (java.io.ObjectStreamConstants)
+    private static final byte SC_WRITE_METHOD = 0x01;
+    private static final byte SC_SERIALIZABLE = 0x02;
+    private static final byte SC_EXTERNALIZABLE = 0x04;
+    private static final byte SC_BLOCK_DATA = 0x08;
+
+    private final List<Object> handles = new ArrayList<>(); // Same numbering as ObjectInputStream's handles
+    private boolean headerSeen; // Whether the stream header has been scanned
+    private String lastString; // Value of the last top-level object if it was a string
+
+    // Cursor over the bytes being scanned
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    /**
+     * Class descriptor as far as the scanner needs it: how to skip an instance's data.
+     */
+    private static class ClassDesc {
+        String name; // Class name, or null for proxy classes
+        byte flags; // SC_* flags
+        char[] fieldTypes; // Type code of each serialized field
+        ClassDesc superDesc; // Descriptor of the serializable superclass, or null
+    }
+
+    /**
+     * Thrown when the bytes end before the object does. Preallocated because it is thrown
+     * whenever a packet ends mid-object.
+     */
+    private static class Incomplete extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Incomplete() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Incomplete INCOMPLETE = new Incomplete();
+    private static final Object OTHER = new Object(); // Handle entry for objects the scanner does not inspect
+
+    /**
+     * Scans the next stream element starting at offset. The first call scans the four byte
+     * stream header; every later call scans one top-level object (with any resets before it).
+     *
+     * @param bytes buffer holding the received data
+     * @param offset where scanning starts
+     * @param end end of the received data
+     * @return offset just past the scanned element, or -1 if more data is needed
+     * @throws StreamCorruptedException if the data is not a valid serialization stream
+     */
+    int scan(byte[] bytes, int offset, int end) throws StreamCorruptedException {
+        this.buf = bytes;
+        this.pos = offset;
+        this.limit = end;
+        int handleCount = handles.size();
+        try {
+            if (!headerSeen) {
+                if (readShort() != ObjectStreamConstants.STREAM_MAGIC ||
+                    readShort() != ObjectStreamConstants.STREAM_VERSION) {
+                    throw new StreamCorruptedException("Invalid stream header");
+                }
+                headerSeen = true;
+                return pos;
+            }
+            // A reset only clears the handle table, so it can be applied even if the object after it is incomplete
+            while (peek() == ObjectStreamConstants.TC_RESET) {
+                pos++;
+                handles.clear();
+                handleCount = 0;
+            }
+            lastString = null;
+            Object value = readContent(0);
+            if (value instanceof String) {
+                lastString = (String) value;
+            }
+            return pos;
+        } catch (Incomplete e) {
+            // Forget handles assigned by the partial object; it is scanned again when more data arrives
+            handles.subList(handleCount, handles.size()).clear();
+            return -1;
+        } finally {
+            this.buf = null;
+        }
+    }
+
+    /**
+     * Returns the value of the last scanned top-level object if it was a string.
+     *
+     * @return string value, or null if the object was not a string
+     */
+    String getLastString() {
+        return lastString;
+    }
+
+    /**
+     * Reads one object (or null or back reference) and returns what the scanner knows about it:
+     * the value for strings, the descriptor for class descriptors, OTHER for anything else.
+     */
+    private Object readContent(int depth) throws Incomplete, StreamCorruptedException {
+        if (depth > MAX_DEPTH) {
+            throw new StreamCorruptedException("Object nesting too deep");
+        }
+        byte tc = readByte();
+        switch (tc) {
+            case ObjectStreamConstants.TC_NULL:
+                return null;
+            case ObjectStreamConstants.TC_REFERENCE: {
+                int index = readInt() - ObjectStreamConstants.baseWireHandle;
+                if (index < 0 || index >= handles.size()) {
+                    throw new StreamCorruptedException("Invalid handle " + index);
+                }
+                return handles.get(index);
+            }
+            case ObjectStreamConstants.TC_STRING:
+                return newHandle(readUtf(readUnsignedShort()));
+            case ObjectStreamConstants.TC_LONGSTRING: {
+                long length = readLong();
+                if (length < 0 || length > Integer.MAX_VALUE) {
+                    throw new StreamCorruptedException("Invalid string length " + length);
+                }
+                skip((int) length);
+                return newHandle(OTHER);
+            }
+            case ObjectStreamConstants.TC_CLASSDESC:
+            case ObjectStreamConstants.TC_PROXYCLASSDESC:
+                pos--;
+                return readClassDesc(depth);
+            case ObjectStreamConstants.TC_CLASS:
+                readClassDesc(depth);
+                return newHandle(OTHER);
+            case ObjectStreamConstants.TC_OBJECT: {
+                ClassDesc desc = readClassDesc(depth);
+                if (desc == null) {
+                    throw new StreamCorruptedException("Object without class descriptor");
+                }
+                newHandle(OTHER);
+                readClassData(desc, depth);
+                return OTHER;
+            }
+            case ObjectStreamConstants.TC_ARRAY: {
+                ClassDesc desc = readClassDesc(depth);
+                if (desc == null || desc.name == null || desc.name.length() < 2 || desc.name.charAt(0) != '[') {
+                    throw new StreamCorruptedException("Array without array class descriptor");
+                }
+                newHandle(OTHER);
+                int length = readInt();
+                if (length < 0) {
+                    throw new StreamCorruptedException("Invalid array length " + length);
+                }
+                char elementType = desc.name.charAt(1);
+                for (int i = 0; i < length; i++) {
+                    readValue(elementType, depth);
+                }
+                return OTHER;
+            }
+            case ObjectStreamConstants.TC_ENUM:
+                readClassDesc(depth);
+                newHandle(OTHER);
+                readContent(depth + 1); // Constant name
+                return OTHER;
+            default:
+                throw new StreamCorruptedException(String.format("Unsupported type code 0x%02X", tc));
+        }
+    }
+
+    /**
+     * Reads a class descriptor (new, proxy, null or back reference).
+     */
+    private ClassDesc readClassDesc(int depth) throws Incomplete, StreamCorruptedException {
+        byte tc = readByte();
+        switch (tc) {
+            case ObjectStreamConstants.TC_NULL:
+                return null;
+            case ObjectStreamConstants.TC_REFERENCE: {
+                pos--;
+                Object desc = readContent(depth + 1);
+                if (!(desc instanceof ClassDesc)) {
+                    throw new StreamCorruptedException("Reference is not a class descriptor");
+                }
+                return (ClassDesc) desc;
+            }
+            case ObjectStreamConstants.TC_CLASSDESC: {
+                ClassDesc desc = new ClassDesc();
+                desc.name = readUtf(readUnsignedShort());
+                skip(8); // serialVersionUID
+                newHandle(desc);
+                desc.flags = readByte();
+                int fieldCount = readUnsignedShort();
+                desc.fieldTypes = new char[fieldCount];
+                for (int i = 0; i < fieldCount; i++) {
+                    char type = (char) readByte();
+                    skip(readUnsignedShort()); // Field name
+                    if (type == 'L' || type == '[') {
+                        readContent(depth + 1); // Field class name
+                    }
+                    desc.fieldTypes[i] = type;
+                }
+                skipAnnotation(depth);
+                desc.superDesc = readClassDesc(depth + 1);
+                return desc;
+            }
+            case ObjectStreamConstants.TC_PROXYCLASSDESC: {
+                ClassDesc desc = new ClassDesc();
+                newHandle(desc);
+                int interfaceCount = readInt();
+                for (int i = 0; i < interfaceCount; i++) {
+                    skip(readUnsignedShort());
+                }
+                desc.flags = SC_SERIALIZABLE;
+                desc.fieldTypes = new char[0];
+                skipAnnotation(depth);
+                desc.superDesc = readClassDesc(depth + 1);
+                return desc;
+            }
+            default:
+                throw new StreamCorruptedException(String.format("Expected class descriptor, got 0x%02X", tc));
+        }
+    }
+
+    /**
+     * Skips the serialized data of an object, superclass data first.
+     */
+    private void readClassData(ClassDesc desc, int depth) throws Incomplete, StreamCorruptedException {
+        List<ClassDesc> hierarchy = new ArrayList<>();
+        for (ClassDesc d = desc; d != null; d = d.superDesc) {
+            hierarchy.add(d);
+        }
+        for (int i = hierarchy.size() - 1; i >= 0; i--) {
+            ClassDesc d = hierarchy.get(i);
+            if ((d.flags & SC_EXTERNALIZABLE) != 0) {
+                if ((d.flags & SC_BLOCK_DATA) == 0) {
+                    throw new StreamCorruptedException("Externalizable data without block mode: " + d.name);
+                }
+                skipAnnotation(depth);
+            } else if ((d.flags & SC_SERIALIZABLE) != 0) {
+                for (char type : d.fieldTypes) {
+                    readValue(type, depth);
+                }
+                if ((d.flags & SC_WRITE_METHOD) != 0) {
+                    skipAnnotation(depth);
+                }
+            }
+        }
+    }
+
+    /**
+     * Skips one field or array element of the given type code.
+     */
+    private void readValue(char type, int depth) throws Incomplete, StreamCorruptedException {
+        switch (type) {
+            case 'B':
+            case 'Z':
+                skip(1);
+                break;
+            case 'C':
+            case 'S':
+                skip(2);
+                break;
+            case 'I':
+            case 'F':
+                skip(4);
+                break;
+            case 'J':
+            case 'D':
+                skip(8);
+                break;
+            case 'L':
+            case '[':
+                readContent(depth + 1);
+                break;
+            default:
+                throw new StreamCorruptedException("Invalid field type " + type);
+        }
+    }
+
+    /**
+     * Skips block data and objects written by a writeObject method, up to TC_ENDBLOCKDATA.
+     */
+    private void skipAnnotation(int depth) throws Incomplete, StreamCorruptedException {
+        while (true) {
+            byte tc = peek();
+            if (tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+                pos++;
+                return;
+            } else if (tc == ObjectStreamConstants.TC_BLOCKDATA) {
+                pos++;
+                skip(readByte() & 0xFF);
+            } else if (tc == ObjectStreamConstants.TC_BLOCKDATALONG) {
+                pos++;
+                int length = readInt();
+                if (length < 0) {
+                    throw new StreamCorruptedException("Invalid block length " + length);
+                }
+                skip(length);
+            } else {
+                readContent(depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Assigns the next handle, as ObjectInputStream does for every new object.
+     */
+    private Object newHandle(Object value) {
+        handles.add(value);
+        return value;
+    }
+
+    private void need(int count) throws Incomplete {
+        if (limit - pos < count) {
+            throw INCOMPLETE;
+        }
+    }
+
+    private byte peek() throws Incomplete {
+        need(1);
+        return buf[pos];
+    }
+
+    private byte readByte() throws Incomplete {
+        need(1);
+        return buf[pos++];
+    }
+
+    private int readShort() throws Incomplete {
+        need(2);
+        int value = (short) (((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF));
+        pos += 2;
+        return value;
+    }
+
+    private int readUnsignedShort() throws Incomplete {
+        return readShort() & 0xFFFF;
+    }
+
+    private int readInt() throws Incomplete {
+        need(4);
+        int value = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) |
+                    ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+        pos += 4;
+        return value;
+    }
+
+    private long readLong() throws Incomplete {
+        long high = readInt() & 0xFFFFFFFFL;
+        long low = readInt() & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    private void skip(int count) throws Incomplete {
+        need(count);
+        pos += count;
+    }
+
+    /**
+     * Decodes a modified UTF-8 string of the given byte length.
+     */
+    private String readUtf(int length) throws Incomplete, StreamCorruptedException {
+        need(length);
+        byte[] encoded = new byte[length + 2];
+        encoded[0] = (byte) (length >>> 8);
+        encoded[1] = (byte) length;
+        System.arraycopy(buf, pos, encoded, 2, length);
+        pos += length;
+        try {
+            return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+        } catch (IOException e) {
+            throw new StreamCorruptedException("Invalid string encoding");
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import database.*;
+
+public class ObjectStreamScannerTest {
+    private ByteArrayOutputStream bytes;
+    private ObjectOutputStream oos;
+    private List<Integer> boundaries; // End offset of the header and of every object written
+
+    @Before
+    public void setUp() throws IOException {
+        bytes = new ByteArrayOutputStream();
+        oos = new ObjectOutputStream(bytes);
+        oos.flush();
+        boundaries = new ArrayList<>();
+        boundaries.add(bytes.size());
+    }
+
+    private void write(Object value) throws IOException {
+        oos.writeObject(value);
+        oos.flush();
+        boundaries.add(bytes.size());
+    }
+
+    /**
+     * Feeds the stream to a scanner one byte at a time and checks that every object is reported
+     * exactly when its last byte arrives.
+     */
+    private List<String> scanByteByByte() throws IOException {
+        byte[] data = bytes.toByteArray();
+        ObjectStreamScanner scanner = new ObjectStreamScanner();
+        List<String> strings = new ArrayList<>();
+        int offset = 0;
+        int next = 0;
+        for (int end = 0; end <= data.length; end++) {
+            int result = scanner.scan(data, offset, end);
+            if (next < boundaries.size() && end == boundaries.get(next)) {
+                assertEquals("Object " + next + " should be complete at its last byte", end, result);
+                if (next > 0) {
+                    strings.add(scanner.getLastString());
+                }
+                offset = result;
+                next++;
+            } else {
+                assertEquals("Nothing should be complete before byte " + end, -1, result);
+            }
+        }
+        assertEquals("Every object should have been found", boundaries.size(), next);
+        return strings;
+    }
+
+    @Test
+    public void testCommandsAndArguments() throws IOException {
+        write("LOGIN");
+        write("alice");
+        write("secret");
+        write("ADD_ITEM");
+        write("Lamp");
+        write("A desk lamp");
+        write(12.5);
+        write("BUY_ITEM");
+        write(7);
+        write(8);
+        write("LOGIN"); // Sent as a back reference to the first string
+
+        List<String> strings = scanByteByByte();
+        assertEquals("Command names should be recognized",
+            Arrays.asList("LOGIN", "alice", "secret", "ADD_ITEM", "Lamp", "A desk lamp", null,
+                          "BUY_ITEM", null, null, "LOGIN"), strings);
+    }
+
+    @Test
+    public void testNestedObjectsArraysAndResets() throws IOException {
+        List<Item> items = new ArrayList<>();
+        items.add(new Item("Chair", "Oak chair", 40.0, "bob"));
+        items.add(new Item("Table", "Oak table", 90.0, "bob"));
+        Map<String, Object> map = new HashMap<>();
+        map.put("when", new Date(0));
+        map.put("ids", new int[] {1, 2, 3});
+
+        write(items);
+        write(items.get(1)); // Back reference into the list
+        write(map);
+        write(new String[] {"a", null, "b"});
+        write(TimeUnit.SECONDS);
+        write(String.class);
+        write(null);
+        oos.reset();
+        write("LOGOUT");
+        write(new TransactionResult(true, "ok", 3));
+        char[] longText = new char[70000];
+        Arrays.fill(longText, 'x');
+        write(new String(longText));
+
+        List<String> strings = scanByteByByte();
+        assertEquals("Only top-level strings should be reported", "LOGOUT", strings.get(7));
+        assertNull("Long strings are not decoded", strings.get(9));
+    }
+
+    @Test
+    public void testScannedObjectsCanBeRead() throws Exception {
+        write("SEND_MESSAGE");
+        write("bob");
+        write("Is it still for sale?");
+        write(4);
+
+        byte[] data = bytes.toByteArray();
+        ObjectStreamScanner scanner = new ObjectStreamScanner();
+        int end = scanner.scan(data, 0, data.length);
+        for (int i = 0; i < 4; i++) {
+            end = scanner.scan(data, end, data.length);
+        }
+        assertEquals("All objects should be scanned", data.length, end);
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        assertEquals("Scanned data should deserialize", "SEND_MESSAGE", ois.readObject());
+        assertEquals("Scanned data should deserialize", "bob", ois.readObject());
+        assertEquals("Scanned data should deserialize", "Is it still for sale?", ois.readObject());
+        assertEquals("Scanned data should deserialize", 4, ois.readObject());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testInvalidHeaderIsRejected() throws IOException {
+        byte[] data = "GET / HTTP/1.1\r\n".getBytes();
+        new ObjectStreamScanner().scan(data, 0, data.length);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testInvalidTypeCodeIsRejected() throws IOException {
+        byte[] header = bytes.toByteArray();
+        byte[] data = Arrays.copyOf(header, header.length + 1);
+        data[header.length] = 0x10;
+        ObjectStreamScanner scanner = new ObjectStreamScanner();
+        int end = scanner.scan(data, 0, data.length);
+        scanner.scan(data, end, data.length);
+    }
+}
@@ -0,0 +1,162 @@
+package server;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.TimeUnit;
+import database.*;
+
+/**
+ * ReplicationClient class
+ *
+ * Replica side of replication: follows the journal a ReplicationServer streams and applies it to
+ * the replica's database on a thread of its own, reconnecting whenever the primary goes away.
+ * The replica is current as of the last heartbeat naming a record it had already applied; its
+ * staleness is the time since then, which clients use to bound how old the data they read may be.
+ * The database is saved to its own file every CHECKPOINT_MILLIS, so a restarted replica only
+ * fetches what it missed, and the file can be used to start a new primary if the old one is lost.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class ReplicationClient {
+    static final long RETRY_MILLIS = 1000; // Wait before reconnecting to the primary
+    static final long CHECKPOINT_MILLIS = 30000; // How often the replica saves its database
+    static final int READ_TIMEOUT_MILLIS = 5000; // Silence after which the primary is taken to be gone
+
+    private final Database database;
+    private final InetSocketAddress primary;
+    private final String secret;
+    private volatile boolean running;
+    private volatile long currentAt; // System.nanoTime() of the last heartbeat the replica had caught up with, 0 if none
+    private volatile Socket socket; // Connection to the primary, null while not connected
+    private Thread follower;
+
+    /**
+     * Constructor for ReplicationClient
+     * @param database Database of the replica, loaded from its own file
+     * @param primary Address of the primary's ReplicationServer
+     * @param secret Secret the primary expects
+     */
+    ReplicationClient(Database database, InetSocketAddress primary, String secret) {
+        this.database = database;
+        this.primary = primary;
+        this.secret = secret;
+    }
+
+    /**
+     * Starts following the primary
+     */
+    void start() {
+        running = true;
+        follower = new Thread(this::follow, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Stops following the primary and saves the database
+     */
+    void stop() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        if (follower != null) {
+            follower.interrupt();
+            try {
+                follower.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        database.checkpoint();
+    }
+
+    /**
+     * Returns how old the replica's data may be
+     * @return Milliseconds since the replica was last known to be current, Long.MAX_VALUE if never
+     */
+    long getStalenessMillis() {
+        long at = currentAt;
+        return (at == 0) ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - at);
+    }
+
+    /**
+     * Body of the follower thread: follows the primary, reconnecting after failures, until stopped
+     */
+    private void follow() {
+        while (running) {
+            try {
+                receive();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Replication from " + primary + " interrupted: " + e.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connects to the primary and applies what it sends until the connection breaks
+     */
+    private void receive() throws IOException {
+        try (Socket connection = new Socket()) {
+            socket = connection;
+            if (!running) {
+                return;
+            }
+            connection.connect(primary, READ_TIMEOUT_MILLIS);
+            connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            out.writeInt(ReplicationServer.MAGIC);
+            out.writeUTF(secret);
+            out.writeLong(database.getReplicatedSequence());
+            out.flush();
+            if (in.readInt() != ReplicationServer.MAGIC) {
+                throw new IOException("Primary refused the replication secret");
+            }
+            System.out.println("Replicating from " + primary + " after record " + database.getReplicatedSequence());
+            
+            long lastCheckpoint = System.nanoTime();
+            long checkpointedSequence = database.getReplicatedSequence();
+            while (running) {
+                byte type = in.readByte();
+                if (type == ReplicationServer.SNAPSHOT || type == ReplicationServer.RECORD) {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    if (type == ReplicationServer.SNAPSHOT) {
+                        database.installReplicaSnapshot(new ByteArrayInputStream(bytes));
+                    } else {
+                        database.applyReplicatedRecord(bytes);
+                    }
+                } else if (type == ReplicationServer.HEARTBEAT) {
+                    if (database.getReplicatedSequence() >= in.readLong()) {
+                        currentAt = System.nanoTime();
+                    }
+                    if (System.nanoTime() - lastCheckpoint > TimeUnit.MILLISECONDS.toNanos(CHECKPOINT_MILLIS) &&
+                        database.getReplicatedSequence() != checkpointedSequence) {
+                        checkpointedSequence = database.getReplicatedSequence();
+                        database.checkpoint();
+                        lastCheckpoint = System.nanoTime();
+                    }
+                } else {
+                    throw new StreamCorruptedException("Unknown replication frame " + type);
+                }
+            }
+        } finally {
+            socket = null;
+        }
+    }
+}
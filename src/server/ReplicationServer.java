@@ -0,0 +1,177 @@
+package server;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import database.*;
+
+/**
+ * ReplicationServer class
+ *
+ * Primary side of replication: streams the journal records of a journaled database to replicas
+ * over TCP, on a port of its own. A replica opens with MAGIC, the replication secret and the
+ * sequence number of the last record it has applied. The primary answers MAGIC and sends frames:
+ * a snapshot if the replica is new or further behind than the primary's replication log reaches,
+ * then every record after it as it is flushed, each batch followed by a heartbeat carrying the
+ * newest record the primary has flushed. Heartbeats are also sent while nothing changes, so a
+ * replica that has applied the record a heartbeat names knows it was current when it was sent. Each replica is served by a thread of its own.
+ *
+ * Frame layout: [byte SNAPSHOT][int length][snapshot] | [byte RECORD][int length][record]
+ *             | [byte HEARTBEAT][long sequence]
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class ReplicationServer {
+    static final int MAGIC = 0x4D4B5231; // "MKR1", opens a replication stream
+    static final byte SNAPSHOT = 'S';
+    static final byte RECORD = 'R';
+    static final byte HEARTBEAT = 'H';
+    static final long HEARTBEAT_MILLIS = 100; // Longest time between two frames
+    static final int MAX_BATCH = 1000; // Most records sent before a heartbeat
+
+    private final Database database;
+    private final String secret; // Proves a replica belongs to this marketplace
+    private final int port;
+    private final Set<Socket> replicas = ConcurrentHashMap.newKeySet(); // Connected replicas
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+
+    /**
+     * Constructor for ReplicationServer
+     * @param database Journaled database to replicate
+     * @param port Port replicas connect to, 0 for any free port
+     * @param secret Secret the replicas must send
+     */
+    ReplicationServer(Database database, int port, String secret) {
+        this.database = database;
+        this.port = port;
+        this.secret = secret;
+    }
+
+    /**
+     * Starts keeping journal records for replicas and accepting them
+     * @throws IOException if the port cannot be opened
+     */
+    void start() throws IOException {
+        database.enableReplication();
+        serverSocket = new ServerSocket(port);
+        running = true;
+        Thread acceptor = new Thread(this::acceptReplicas, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Replication started on port " + serverSocket.getLocalPort());
+    }
+
+    /**
+     * Returns the port replicas connect to
+     * @return The port, or -1 before start
+     */
+    int getPort() {
+        return (serverSocket == null) ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of replicas connected
+     * @return Replica count
+     */
+    int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Disconnects every replica and stops accepting new ones
+     */
+    void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Socket replica : replicas) {
+            try {
+                replica.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Accepts replicas until stopped
+     */
+    private void acceptReplicas() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread sender = new Thread(() -> serve(socket), "replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting replica: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams the journal to one replica until it disconnects
+     */
+    private void serve(Socket socket) {
+        replicas.add(socket);
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != MAGIC || !in.readUTF().equals(secret)) {
+                out.writeInt(0);
+                out.flush();
+                return;
+            }
+            long position = in.readLong();
+            out.writeInt(MAGIC);
+            System.out.println("Replica " + socket.getRemoteSocketAddress() + " connected at record " + position);
+            
+            while (running) {
+                List<byte[]> records = database.getReplicationRecords(position, MAX_BATCH, HEARTBEAT_MILLIS);
+                if (records == null) {
+                    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+                    position = database.writeReplicaSnapshot(snapshot);
+                    out.writeByte(SNAPSHOT);
+                    out.writeInt(snapshot.size());
+                    snapshot.writeTo(out);
+                    System.out.println("Sent replica " + socket.getRemoteSocketAddress() + " a snapshot at record " + position);
+                    records = Collections.emptyList();
+                }
+                for (byte[] record : records) {
+                    out.writeByte(RECORD);
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+                position += records.size();
+                out.writeByte(HEARTBEAT);
+                out.writeLong(database.getReplicationSequence());
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Replica " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicas.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
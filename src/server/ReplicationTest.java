@@ -0,0 +1,186 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import client.AsyncMarketplaceClient;
+import client.MarketplaceClient;
+import database.*;
+
+public class ReplicationTest {
+    private static final int PRIMARY_PORT = 23470;
+    private static final int REPLICATION_PORT = 23471;
+    private static final int REPLICA_PORT = 23472;
+    private static final int OTHER_REPLICA_PORT = 23473;
+    private static final String SECRET = "replication-secret";
+
+    private final List<File> files = new ArrayList<>();
+    private final List<MarketplaceServer> servers = new ArrayList<>();
+    private Database primaryDatabase;
+    private Database replicaDatabase;
+    private ReplicationClient replication;
+
+    @Before
+    public void setUp() throws IOException {
+        primaryDatabase = new Database(tempFile("replication_primary"), true);
+        MarketplaceServer primary = new MarketplaceServer(primaryDatabase);
+        primary.setReplicationServer(new ReplicationServer(primaryDatabase, REPLICATION_PORT, SECRET));
+        start(primary, PRIMARY_PORT);
+
+        replicaDatabase = new Database(tempFile("replication_replica"), false);
+        replication = new ReplicationClient(replicaDatabase, new InetSocketAddress("localhost", REPLICATION_PORT), SECRET);
+        MarketplaceServer replica = new MarketplaceServer(replicaDatabase);
+        replica.setReplicaOf(replication);
+        start(replica, REPLICA_PORT);
+    }
+
+    @After
+    public void tearDown() {
+        for (MarketplaceServer server : servers) {
+            if (server.isRunning()) {
+                server.stop();
+            }
+        }
+        for (File file : files) {
+            file.delete();
+            new File(file.getPath().replaceFirst("\\.ser$", "") + ".journal").delete();
+        }
+    }
+
+    /**
+     * Returns the path of a data file deleted after the test
+     */
+    private String tempFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".ser");
+        file.delete();
+        files.add(file);
+        return file.getPath();
+    }
+
+    private void start(MarketplaceServer server, int port) {
+        servers.add(server);
+        server.start(port);
+    }
+
+    /**
+     * Waits until the replica has applied everything the primary flushed and knows it is current
+     */
+    private void awaitReplicated() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (replicaDatabase.getReplicatedSequence() < primaryDatabase.getReplicationSequence() ||
+               replication.getStalenessMillis() > 500) {
+            assertTrue("Replica should catch up with the primary", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testReplicaServesReadsAndRefusesWrites() throws InterruptedException {
+        MarketplaceClient writer = new MarketplaceClient("localhost", PRIMARY_PORT);
+        writer.register("alice", "pw");
+        writer.login("alice", "pw");
+        writer.addItem("Kettle", "Blue kettle", 12.0);
+        writer.disconnect();
+        awaitReplicated();
+
+        MarketplaceClient reader = new MarketplaceClient("localhost", REPLICA_PORT);
+        try {
+            assertTrue("Replicated user should log in on the replica", reader.login("alice", "pw").isSuccess());
+            assertEquals("Replicated item should be found", 1, reader.searchItems("kettle").size());
+            assertEquals("Replicated balance should be read", 100.0, reader.getBalance(), 0.0);
+            TransactionResult write = reader.addItem("Lamp", "", 5.0);
+            assertFalse("Replica should refuse writes", write.isSuccess());
+            assertEquals("Refusal should say why", "This server is a read-only replica", write.getMessage());
+        } finally {
+            reader.disconnect();
+        }
+    }
+
+    @Test
+    public void testClientReadsFromReplicaWithinStalenessBound() throws InterruptedException {
+        MarketplaceClient client = new MarketplaceClient("localhost", PRIMARY_PORT);
+        try {
+            assertTrue("Replica should accept the bound", client.useReadReplica("localhost", REPLICA_PORT, 1000));
+            client.register("bob", "pw");
+            client.login("bob", "pw");
+            client.addItem("Chair", "Oak chair", 40.0);
+            assertEquals("Own change should be read at once", 1, client.getUserItems().size());
+
+            Thread.sleep(1100); // Past the bound, so reads may go to the replica again
+            awaitReplicated();
+            servers.get(0).stop();
+            assertEquals("Reads should be served by the replica once the primary is gone", 1,
+                         client.getUserItems().size());
+            assertEquals("Balance should be served by the replica", 100.0, client.getBalance(), 0.0);
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void testAsyncClientReadsFromReplica() throws InterruptedException, ExecutionException {
+        MarketplaceClient client = new MarketplaceClient("localhost", PRIMARY_PORT);
+        AsyncMarketplaceClient async = new AsyncMarketplaceClient(client);
+        try {
+            assertTrue("Replica should accept the bound", client.useReadReplica("localhost", REPLICA_PORT, 1000));
+            async.register("dave", "pw").get();
+            assertTrue("Login should succeed", async.login("dave", "pw").get().isSuccess());
+            async.addItem("Rug", "Wool rug", 25.0).get();
+            assertEquals("Own change should be read at once", 1, async.getUserItems().get().size());
+
+            Thread.sleep(1100); // Past the bound, so reads may go to the replica again
+            awaitReplicated();
+            servers.get(0).stop();
+            assertEquals("Async reads should be served by the replica once the primary is gone", 1,
+                         async.getUserItems().get().size());
+            assertEquals("Async balance should be served by the replica", 100.0, async.getBalance().get(), 0.0);
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void testReplicaThatIsNotCurrentRefusesBoundedReads() throws IOException, InterruptedException {
+        // A replica with the wrong secret is never let in, so it never becomes current
+        Database otherDatabase = new Database(tempFile("replication_other"), false);
+        ReplicationClient other = new ReplicationClient(otherDatabase, new InetSocketAddress("localhost", REPLICATION_PORT),
+                                                        "wrong");
+        MarketplaceServer otherReplica = new MarketplaceServer(otherDatabase);
+        otherReplica.setReplicaOf(other);
+        start(otherReplica, OTHER_REPLICA_PORT);
+
+        MarketplaceClient writer = new MarketplaceClient("localhost", PRIMARY_PORT);
+        writer.register("carol", "pw");
+        writer.login("carol", "pw");
+        writer.addItem("Desk", "", 70.0);
+        writer.disconnect();
+        awaitReplicated();
+        assertEquals("Replica with the wrong secret should get nothing", 0, otherDatabase.getReplicatedSequence());
+        assertEquals("Staleness of a replica that never caught up should be unbounded", Long.MAX_VALUE,
+                     other.getStalenessMillis());
+
+        ShardRouter router = new ShardRouter(Collections.singletonList(
+            new InetSocketAddress("localhost", OTHER_REPLICA_PORT)), 0, SECRET);
+        try (ShardRouter.Connection connection = router.connect(0)) {
+            assertTrue("Bound should be accepted",
+                       ((TransactionResult) connection.call("SET_MAX_STALENESS", 1000L)).isSuccess());
+            Object reply = connection.call("SEARCH_ITEMS", "");
+            assertTrue("Reads should be refused while the replica is not current", reply instanceof TransactionResult);
+            assertEquals("Refusal should say why", "Replica is behind the primary", ((TransactionResult) reply).getMessage());
+        } finally {
+            router.close();
+        }
+
+        MarketplaceClient client = new MarketplaceClient("localhost", PRIMARY_PORT);
+        try {
+            assertTrue("Replica should accept the bound", client.useReadReplica("localhost", OTHER_REPLICA_PORT, 1000));
+            Thread.sleep(1100);
+            assertEquals("Reads should fall back to the primary", 1, client.searchItems("desk").size());
+        } finally {
+            client.disconnect();
+        }
+    }
+}
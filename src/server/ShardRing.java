@@ -0,0 +1,79 @@
+package server;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * ShardRing class
+ *
+ * Consistent hash ring assigning usernames to the shards of a partitioned marketplace.
+ * Every shard is placed on the ring at many points (virtual nodes); a username belongs to the
+ * shard at the first point after the username's hash. Adding a shard therefore only moves the
+ * users that fall just before its points, about one in every shardCount, instead of nearly all
+ * of them as hashing modulo the shard count would.
+ * Hashes are MD5 based, so every node of the cluster computes the same assignment.
+ * Immutable and thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class ShardRing {
+    static final int DEFAULT_VIRTUAL_NODES = 128; // Points per shard; more spread users more evenly
+
+    private final NavigableMap<Long, Integer> ring = new TreeMap<>(); // Point on the ring -> shard
+    private final int shardCount;
+
+    /**
+     * Constructor for ShardRing
+     * @param shardCount Number of shards
+     * @param virtualNodes Points each shard is placed at
+     */
+    ShardRing(int shardCount, int virtualNodes) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A ring needs at least one shard");
+        }
+        this.shardCount = shardCount;
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int point = 0; point < virtualNodes; point++) {
+                ring.putIfAbsent(hash("shard-" + shard + "#" + point), shard);
+            }
+        }
+    }
+
+    /**
+     * Returns the shard a key belongs to
+     * @param key Username
+     * @return Shard number, from 0
+     */
+    int shardFor(String key) {
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+        return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Returns the number of shards on the ring
+     * @return Shard count
+     */
+    int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Returns the first eight bytes of the MD5 digest of a key
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required by every Java platform", e);
+        }
+    }
+}
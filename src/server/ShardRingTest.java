@@ -0,0 +1,44 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+
+public class ShardRingTest {
+    @Test
+    public void testUsersAreSpreadEvenly() {
+        ShardRing ring = new ShardRing(4, ShardRing.DEFAULT_VIRTUAL_NODES);
+        int[] users = new int[4];
+        for (int i = 0; i < 20000; i++) {
+            users[ring.shardFor("user" + i)]++;
+        }
+        for (int shard = 0; shard < 4; shard++) {
+            assertTrue("Shard " + shard + " should get about a quarter of the users, got " + users[shard],
+                       users[shard] > 3500 && users[shard] < 6500);
+        }
+    }
+
+    @Test
+    public void testAssignmentIsStable() {
+        ShardRing ring = new ShardRing(3, ShardRing.DEFAULT_VIRTUAL_NODES);
+        ShardRing other = new ShardRing(3, ShardRing.DEFAULT_VIRTUAL_NODES);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Every node should assign users alike", ring.shardFor("user" + i), other.shardFor("user" + i));
+        }
+    }
+
+    @Test
+    public void testAddingShardMovesFewUsers() {
+        ShardRing three = new ShardRing(3, ShardRing.DEFAULT_VIRTUAL_NODES);
+        ShardRing four = new ShardRing(4, ShardRing.DEFAULT_VIRTUAL_NODES);
+        int moved = 0;
+        for (int i = 0; i < 20000; i++) {
+            int before = three.shardFor("user" + i);
+            int after = four.shardFor("user" + i);
+            if (before != after) {
+                assertEquals("Users should only move to the new shard", 3, after);
+                moved++;
+            }
+        }
+        assertTrue("About a quarter of the users should move, moved " + moved, moved > 3500 && moved < 6500);
+    }
+}
@@ -0,0 +1,235 @@
+package server;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import database.*;
+
+/**
+ * ShardRouter class
+ *
+ * Routing layer of a partitioned marketplace. Users are assigned to shards by a ShardRing over
+ * their usernames, and a user's items, messages and transactions live on the user's shard. Item IDs
+ * are assigned per shard (see Database), so the shard holding an item is known from its ID alone.
+ * Each shard is a MarketplaceServer process; the router knows the address of every shard and keeps
+ * binary protocol connections to them. Requests that only shards may send carry a shared secret.
+ * Thread safe.
+ *
+ * @author L10-Team1
+ *
+ * @version April 2024
+ *
+ */
+class ShardRouter {
+    static final int CALL_TIMEOUT_MILLIS = 30000; // Longest wait for another shard's reply
+    static final int MAX_IDLE_CONNECTIONS = 8; // Pooled connections kept per shard
+
+    /**
+     * A binary protocol connection to another shard. Calls on one connection are serialized.
+     */
+    static final class Connection implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        private Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, CALL_TIMEOUT_MILLIS);
+                socket.setSoTimeout(CALL_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(WireProtocol.MAGIC);
+                out.flush();
+                if (in.readInt() != WireProtocol.MAGIC) {
+                    throw new StreamCorruptedException("Shard at " + address + " does not speak the binary protocol");
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Sends a request and waits for its reply
+         * @param command Command name
+         * @param arguments Arguments as for WireProtocol.encodeRequest
+         * @return The decoded reply
+         * @throws IOException if the shard could not be reached or the connection broke
+         */
+        synchronized Object call(String command, Object... arguments) throws IOException {
+            out.write(WireProtocol.encodeRequest(command, arguments));
+            out.flush();
+            return WireProtocol.readReply(in);
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private final List<InetSocketAddress> shards; // Address of every shard, by shard number
+    private final int localShard; // Number of the shard this router runs on
+    private final String secret; // Proves a request comes from a shard of this marketplace
+    private final ShardRing ring;
+    private final List<BlockingQueue<Connection>> idle; // Pooled connections by shard number
+
+    /**
+     * Constructor for ShardRouter
+     * @param shards Address of every shard, in the same order on every shard
+     * @param localShard Number of the shard this router runs on
+     * @param secret Secret shared by all shards
+     */
+    ShardRouter(List<InetSocketAddress> shards, int localShard, String secret) {
+        if (localShard < 0 || localShard >= shards.size()) {
+            throw new IllegalArgumentException("Shard " + localShard + " out of range for " + shards.size() + " shards");
+        }
+        this.shards = new ArrayList<>(shards);
+        this.localShard = localShard;
+        this.secret = secret;
+        this.ring = new ShardRing(shards.size(), ShardRing.DEFAULT_VIRTUAL_NODES);
+        this.idle = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            idle.add(new ArrayBlockingQueue<>(MAX_IDLE_CONNECTIONS));
+        }
+    }
+
+    /**
+     * Parses a comma separated list of host:port addresses
+     * @param list The list, e.g. "localhost:8080,localhost:8081"
+     * @return The addresses in list order
+     */
+    static List<InetSocketAddress> parseAddresses(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String address : list.split(",")) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Shard address " + address + " has no port");
+            }
+            addresses.add(new InetSocketAddress(address.substring(0, colon).trim(),
+                                                Integer.parseInt(address.substring(colon + 1).trim())));
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the number of shards
+     * @return Shard count
+     */
+    int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the number of the shard this router runs on
+     * @return Shard number
+     */
+    int getLocalShard() {
+        return localShard;
+    }
+
+    /**
+     * Returns the secret shards send with requests only shards may make
+     * @return The secret
+     */
+    String getSecret() {
+        return secret;
+    }
+
+    /**
+     * Returns true if a request carries this marketplace's shard secret. The bytes are compared in
+     * constant time, so the time taken does not reveal how much of a guess was right.
+     * @param secret Secret sent with the request
+     * @return true if it comes from a shard
+     */
+    boolean isShardSecret(Object secret) {
+        if (!(secret instanceof String)) {
+            return false;
+        }
+        return MessageDigest.isEqual(this.secret.getBytes(StandardCharsets.UTF_8),
+                                     ((String) secret).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the shard a user lives on
+     * @param username The username
+     * @return Shard number
+     */
+    int shardOf(String username) {
+        return ring.shardFor(username);
+    }
+
+    /**
+     * Returns the shard an item lives on, following Database's item ID assignment
+     * @param itemId The item ID
+     * @return Shard number
+     */
+    int shardOfItem(int itemId) {
+        return Math.floorMod(itemId - 1, shards.size());
+    }
+
+    /**
+     * Returns true if the shard is the one this router runs on
+     * @param shard Shard number
+     * @return true for the local shard
+     */
+    boolean isLocal(int shard) {
+        return shard == localShard;
+    }
+
+    /**
+     * Sends a request to another shard over a pooled connection
+     * @param shard Shard number
+     * @param command Command name
+     * @param arguments Arguments as for WireProtocol.encodeRequest
+     * @return The decoded reply
+     * @throws IOException if the shard could not be reached
+     */
+    Object call(int shard, String command, Object... arguments) throws IOException {
+        Connection connection = idle.get(shard).poll();
+        if (connection == null) {
+            connection = connect(shard);
+        }
+        Object reply;
+        try {
+            reply = connection.call(command, arguments);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        if (!idle.get(shard).offer(connection)) {
+            connection.close();
+        }
+        return reply;
+    }
+
+    /**
+     * Opens a connection of its own to another shard, e.g. to act for one logged in user
+     * @param shard Shard number
+     * @return The connection; the caller closes it
+     * @throws IOException if the shard could not be reached
+     */
+    Connection connect(int shard) throws IOException {
+        return new Connection(shards.get(shard));
+    }
+
+    /**
+     * Closes the pooled connections
+     */
+    void close() {
+        for (BlockingQueue<Connection> connections : idle) {
+            Connection connection;
+            while ((connection = connections.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
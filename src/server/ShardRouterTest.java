@@ -0,0 +1,154 @@
+package server;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import database.*;
+
+public class ShardRouterTest {
+    private static final int[] PORTS = {23468, 23469};
+    private static final String SECRET = "test-secret";
+
+    private File[] dataFiles = new File[PORTS.length];
+    private Database[] databases = new Database[PORTS.length];
+    private MarketplaceServer[] servers = new MarketplaceServer[PORTS.length];
+    private ShardRouter router;
+
+    @Before
+    public void setUp() throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int port : PORTS) {
+            addresses.add(new InetSocketAddress("localhost", port));
+        }
+        router = new ShardRouter(addresses, 0, SECRET);
+        for (int shard = 0; shard < PORTS.length; shard++) {
+            dataFiles[shard] = File.createTempFile("shard_test", ".ser");
+            dataFiles[shard].delete();
+            databases[shard] = new Database(dataFiles[shard].getPath(), true, shard, PORTS.length);
+            servers[shard] = new MarketplaceServer(databases[shard]);
+            servers[shard].setShardRouter(new ShardRouter(addresses, shard, SECRET));
+            servers[shard].start(PORTS[shard]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (int shard = 0; shard < PORTS.length; shard++) {
+            if (servers[shard].isRunning()) {
+                servers[shard].stop();
+            }
+            dataFiles[shard].delete();
+            new File(dataFiles[shard].getPath().replaceFirst("\\.ser$", "") + ".journal").delete();
+        }
+        router.close();
+    }
+
+    /**
+     * Returns a username living on the given shard
+     */
+    private String userOn(int shard, String name) {
+        for (int i = 0; ; i++) {
+            if (router.shardOf(name + i) == shard) {
+                return name + i;
+            }
+        }
+    }
+
+    /**
+     * Registers and logs in a user through the node of the given shard
+     */
+    private ShardRouter.Connection loggedIn(int node, String username) throws IOException {
+        ShardRouter.Connection connection = router.connect(node);
+        connection.call("REGISTER", username, "pw");
+        assertTrue("Login should succeed", ((TransactionResult) connection.call("LOGIN", username, "pw")).isSuccess());
+        return connection;
+    }
+
+    @Test
+    public void testUsersAndItemsLiveOnTheirShard() throws IOException {
+        String alice = userOn(1, "alice");
+        try (ShardRouter.Connection connection = loggedIn(0, alice)) {
+            TransactionResult added = (TransactionResult) connection.call("ADD_ITEM", "Lamp", "Desk lamp", 20.0);
+            assertTrue("Item should be added", added.isSuccess());
+
+            assertNotNull("User should live on her shard", databases[1].getUserByUsername(alice));
+            assertNull("User should not live on the node she connected to", databases[0].getUserByUsername(alice));
+            assertNotNull("Item should live on its seller's shard", databases[1].getItemById(added.getItemId()));
+            assertEquals("Item ID should name its shard", 1, router.shardOfItem(added.getItemId()));
+            assertEquals("Balance should be read from the user's shard", 100.0, (Double) connection.call("GET_BALANCE"), 0.0);
+            assertEquals("Items should be read from the user's shard", 1, ((List<?>) connection.call("GET_USER_ITEMS")).size());
+        }
+    }
+
+    @Test
+    public void testOnlyTheExactSecretIsAccepted() {
+        assertTrue("Shared secret should be accepted", router.isShardSecret(SECRET));
+        assertFalse("Prefix of the secret should be refused", router.isShardSecret("test-"));
+        assertFalse("Longer secret should be refused", router.isShardSecret(SECRET + "x"));
+        assertFalse("Missing secret should be refused", router.isShardSecret(null));
+        assertFalse("Secret of another type should be refused", router.isShardSecret(42));
+    }
+
+    @Test
+    public void testPurchaseAcrossShards() throws IOException {
+        String seller = userOn(1, "seller");
+        String buyer = userOn(0, "buyer");
+        String lateBuyer = userOn(0, "late");
+        int itemId;
+        try (ShardRouter.Connection connection = loggedIn(1, seller)) {
+            itemId = ((TransactionResult) connection.call("ADD_ITEM", "Chair", "Oak chair", 30.0)).getItemId();
+        }
+
+        // Connected to the seller's node, so the purchase is forwarded to the buyer's shard first
+        try (ShardRouter.Connection connection = loggedIn(1, buyer)) {
+            TransactionResult result = (TransactionResult) connection.call("BUY_ITEM", itemId);
+            assertTrue("Purchase should succeed: " + result.getMessage(), result.isSuccess());
+        }
+        assertEquals("Buyer should pay on her shard", 70.0, databases[0].getUserByUsername(buyer).getBalance(), 0.0);
+        assertEquals("Seller should be paid on his shard", 130.0, databases[1].getUserByUsername(seller).getBalance(), 0.0);
+        assertTrue("Item should be sold", databases[1].getItemById(itemId).isSold());
+        assertEquals("Both shards should record the same transaction",
+                     databases[0].getTransactionsForUser(buyer).get(0).getId(),
+                     databases[1].getTransactionsForUser(seller).get(0).getId());
+
+        try (ShardRouter.Connection connection = loggedIn(0, lateBuyer)) {
+            TransactionResult result = (TransactionResult) connection.call("BUY_ITEM", itemId);
+            assertFalse("Sold item should not be sold again", result.isSuccess());
+            assertEquals("Refused buyer should keep her money", 100.0, (Double) connection.call("GET_BALANCE"), 0.0);
+        }
+    }
+
+    @Test
+    public void testSearchAndMessagesSpanShards() throws IOException {
+        String first = userOn(0, "first");
+        String second = userOn(1, "second");
+        try (ShardRouter.Connection firstConnection = loggedIn(0, first);
+             ShardRouter.Connection secondConnection = loggedIn(0, second)) {
+            firstConnection.call("ADD_ITEM", "Red kettle", "", 10.0);
+            secondConnection.call("ADD_ITEM", "Blue kettle", "", 12.0);
+
+            assertEquals("Search should find items of every shard", 2,
+                         ((List<?>) firstConnection.call("SEARCH_ITEMS", "kettle")).size());
+            SearchPage page = (SearchPage) firstConnection.call("SEARCH_ITEMS_PAGE", "kettle", "PRICE", null, 1, 0L);
+            assertEquals("Cheapest item of all shards should come first", "Red kettle", page.getItems().get(0).getTitle());
+            page = (SearchPage) firstConnection.call("SEARCH_ITEMS_PAGE", "kettle", "PRICE", page.getNextPageToken(), 1, 0L);
+            assertEquals("Next page should continue across shards", "Blue kettle", page.getItems().get(0).getTitle());
+            assertFalse("Last page should end the search", page.hasNextPage());
+
+            TransactionResult sent = (TransactionResult) firstConnection.call("SEND_MESSAGE", second, "Hi", 0);
+            assertTrue("Message should be sent across shards", sent.isSuccess());
+            assertEquals("Recipient should see the message", 1, ((List<?>) secondConnection.call("GET_MESSAGES")).size());
+            assertEquals("Sender should see the message", 1, ((List<?>) firstConnection.call("GET_MESSAGES")).size());
+        }
+    }
+
+    @Test
+    public void testShardCommandsNeedTheSecret() throws IOException {
+        try (ShardRouter.Connection connection = router.connect(0)) {
+            Object reply = connection.call("SHARD_SELL_ITEM", "guess", 1L, 1, "mallory", "bob", 100L);
+            assertFalse("Shard commands without the secret should be refused", ((TransactionResult) reply).isSuccess());
+        }
+    }
+}